@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ai.nets.samj.AbstractSamJ;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * JMH benchmark that measures how the conversion of an image into the format sent to the models
+ * ({@link AbstractSamJ#copyToThreeChannels(RandomAccessibleInterval, RandomAccessibleInterval, int)})
+ * scales with the number of threads. The times include the single-threaded search of the intensity range
+ * done when the converted views are created.
+ * <p>
+ * Run with {@code mvn -P benchmarks exec:exec -Djmh.args="AdaptImageBenchmark -p size=2048"}. The speedup
+ * of each case is the time with 1 thread divided by the time with more threads.
+ * 
+ * @author Carlos Garcia
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AdaptImageBenchmark {
+
+	@Param({"2048", "8192"})
+	public int size;
+
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+
+	private AbstractSamJ samj;
+	private RandomAccessibleInterval<UnsignedShortType> gray;
+	private RandomAccessibleInterval<FloatType> rgb;
+	private RandomAccessibleInterval<UnsignedByteType> vitTarget;
+	private RandomAccessibleInterval<FloatType> esamTarget;
+
+	@Setup
+	public void setup() {
+		samj = new AbstractSamJ();
+		samj.disableDebugPrinting();
+		gray = ArrayImgs.unsignedShorts(new long[] {size, size});
+		Random rand = new Random(42);
+		for (UnsignedShortType px : Views.flatIterable(gray))
+			px.set(rand.nextInt(1 << 16));
+		rgb = ArrayImgs.floats(new long[] {size, size, 3});
+		for (FloatType px : Views.flatIterable(rgb))
+			px.set(rand.nextFloat() * 1000);
+		vitTarget = ArrayImgs.unsignedBytes(new long[] {size, size, 3});
+		esamTarget = ArrayImgs.floats(new long[] {size, size, 3});
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<UnsignedByteType> grayToUint8() {
+		AbstractSamJ.copyToThreeChannels(samj.convertViewToRGB(gray), vitTarget, threads);
+		return vitTarget;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<UnsignedByteType> rgbToUint8() {
+		RandomAccessibleInterval<UnsignedByteType> view = Views.stack(samj.convertViewToRGB(Views.hyperSlice(rgb, 2, 0)), 
+				samj.convertViewToRGB(Views.hyperSlice(rgb, 2, 1)), samj.convertViewToRGB(Views.hyperSlice(rgb, 2, 2)));
+		AbstractSamJ.copyToThreeChannels(view, vitTarget, threads);
+		return vitTarget;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<FloatType> grayToFloat32() {
+		AbstractSamJ.copyToThreeChannels(samj.normalizedView(gray), esamTarget, threads);
+		return esamTarget;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<FloatType> rgbToFloat32() {
+		RandomAccessibleInterval<FloatType> view = Views.stack(samj.normalizedView(Views.hyperSlice(rgb, 2, 0)), 
+				samj.normalizedView(Views.hyperSlice(rgb, 2, 1)), samj.normalizedView(Views.hyperSlice(rgb, 2, 2)));
+		AbstractSamJ.copyToThreeChannels(view, esamTarget, threads);
+		return esamTarget;
+	}
+}
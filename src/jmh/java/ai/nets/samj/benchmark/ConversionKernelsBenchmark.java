@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ai.nets.samj.AbstractSamJ;
+import ai.nets.samj.ImageStatistics;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * JMH benchmark that compares the conversion of images into the shared memory read by the models
+ * with the generic ImgLib2 converters ({@link AbstractSamJ#copyToThreeChannels(RandomAccessibleInterval, RandomAccessibleInterval, int)})
+ * and with the primitive array kernels ({@link AbstractSamJ#writeChannelsPlanar(RandomAccessibleInterval, com.sun.jna.Pointer, boolean)}).
+ * Both include finding the range of the image, the statistics cache is cleared before every invocation.
+ * <p>
+ * Run with {@code mvn -P benchmarks exec:exec -Djmh.args="ConversionKernelsBenchmark -p size=4096"}.
+ * The gray inputs have one channel, the float32 input is RGB.
+ * 
+ * @author Carlos Garcia
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ConversionKernelsBenchmark {
+
+	@Param({"1024", "4096"})
+	public int size;
+
+	@Param({"uint8", "uint16", "float32"})
+	public String input;
+
+	@Param({"uint8", "float32"})
+	public String output;
+
+	private AbstractSamJ samj;
+	private RandomAccessibleInterval img;
+	private SharedMemoryArray shma;
+	private RandomAccessibleInterval target;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		samj = new AbstractSamJ();
+		samj.disableDebugPrinting();
+		Random rand = new Random(42);
+		if (input.equals("uint8")) {
+			img = ArrayImgs.unsignedBytes(new long[] {size, size});
+		} else if (input.equals("uint16")) {
+			img = ArrayImgs.unsignedShorts(new long[] {size, size});
+		} else {
+			img = ArrayImgs.floats(new long[] {size, size, 3});
+		}
+		double max = input.equals("uint8") ? (1 << 8) : (input.equals("uint16") ? (1 << 16) : 1000);
+		for (Object px : Views.flatIterable(img))
+			((RealType) px).setReal(Math.floor(rand.nextDouble() * max));
+		long[] dims = new long[] {size, size, 3};
+		if (output.equals("uint8"))
+			shma = SharedMemoryArray.buildMemorySegmentForImage(dims, new UnsignedByteType());
+		else
+			shma = SharedMemoryArray.buildMemorySegmentForImage(dims, new FloatType());
+		target = shma.getSharedRAI();
+	}
+
+	@Setup(Level.Invocation)
+	public void clearStatistics() {
+		ImageStatistics.clearCache();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		shma.close();
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval converters() {
+		RandomAccessibleInterval view = output.equals("uint8") ? toUint8View() : toFloatView();
+		AbstractSamJ.copyToThreeChannels(view, target, samj.getNumberOfThreads());
+		return target;
+	}
+
+	@Benchmark
+	public Object kernels() {
+		return samj.writeChannelsPlanar(img, shma.getPointer(), output.equals("uint8"));
+	}
+
+	private RandomAccessibleInterval<UnsignedByteType> toUint8View() {
+		if (img.numDimensions() == 2)
+			return samj.convertViewToRGB(img);
+		return Views.stack(samj.convertViewToRGB(Views.hyperSlice(img, 2, 0)), 
+				samj.convertViewToRGB(Views.hyperSlice(img, 2, 1)), samj.convertViewToRGB(Views.hyperSlice(img, 2, 2)));
+	}
+
+	private RandomAccessibleInterval<FloatType> toFloatView() {
+		if (img.numDimensions() == 2)
+			return samj.normalizedView(img);
+		return Views.stack(samj.normalizedView(Views.hyperSlice(img, 2, 0)), 
+				samj.normalizedView(Views.hyperSlice(img, 2, 1)), samj.normalizedView(Views.hyperSlice(img, 2, 2)));
+	}
+}
@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.benchmark;
+
+import java.awt.Polygon;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ai.nets.samj.EfficientSamJ;
+import ai.nets.samj.EfficientViTSamJ;
+import ai.nets.samj.SamJTracer;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * JMH end-to-end benchmark of the calls to the models, from the Java API to the Python process and back, with the
+ * deterministic stand-in of the models ({@link EfficientViTSamJ#initializeStandIn(String, String, RandomAccessibleInterval, ai.nets.samj.AbstractSamJ.DebugTextPrinter)}
+ * and {@link EfficientSamJ#initializeStandIn(String, RandomAccessibleInterval, ai.nets.samj.AbstractSamJ.DebugTextPrinter)}).
+ * As the stand-in costs almost nothing, the latencies are the overhead of SAMJ: image conversion, shared memory,
+ * inter-process communication, serialisation, contour tracing and polygon building.
+ * <p>
+ * For every image size and number of objects a {@link SyntheticScene} is encoded and segmented with box prompts and
+ * point prompts, one object per call, with the boxes of all the objects in one batched call and with a mask prompt of
+ * all the objects. The benchmarks run in sample time mode,
+ * so JMH reports the percentiles of the latencies.
+ * <p>
+ * Run with {@code mvn -P benchmarks exec:exec -Djmh.args="EndToEndBenchmark -p pythonEnv=/path/to/env"}, optionally
+ * selecting the model ("efficientvitsam" or "efficientsam"), sizes and numbers of objects with {@code -p}. If
+ * {@code -p traceFile=...} is given, the run is recorded with {@link SamJTracer}, which also measures the overhead of tracing.
+ * 
+ * @author Carlos Garcia
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	@Param({""})
+	public String pythonEnv;
+
+	@Param({"efficientvitsam", "efficientsam"})
+	public String model;
+
+	@Param({"512", "1024", "2048"})
+	public int size;
+
+	@Param({"1", "8", "32"})
+	public int objects;
+
+	@Param({""})
+	public String traceFile;
+
+	/**
+	 * The calls of the models used by the benchmark
+	 */
+	private interface Model extends AutoCloseable {
+		void encode(RandomAccessibleInterval<UnsignedByteType> img) throws IOException, RuntimeException, InterruptedException;
+		
+		List<Polygon> box(int[] box) throws IOException, RuntimeException, InterruptedException;
+		
+		List<List<Polygon>> boxes(List<int[]> boxes) throws IOException, RuntimeException, InterruptedException;
+		
+		List<Polygon> point(int[] point) throws IOException, RuntimeException, InterruptedException;
+		
+		List<Polygon> mask(RandomAccessibleInterval<UnsignedShortType> mask) throws IOException, RuntimeException, InterruptedException;
+		
+		@Override
+		void close();
+	}
+
+	private SyntheticScene scene;
+	private Model sam;
+	private Closeable trace;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, RuntimeException, InterruptedException {
+		if (pythonEnv.isEmpty())
+			throw new IllegalArgumentException("Set the Python environment of the stand-in models with -p pythonEnv=...");
+		trace = traceFile.isEmpty() ? null : SamJTracer.start(new File(traceFile));
+		scene = SyntheticScene.generate(size, objects, 42);
+		sam = create(model, pythonEnv, scene.getImage());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		sam.close();
+		if (trace != null)
+			trace.close();
+	}
+
+	@Benchmark
+	public void encode() throws IOException, RuntimeException, InterruptedException {
+		sam.encode(scene.getImage());
+	}
+
+	@Benchmark
+	public List<Polygon> box() throws IOException, RuntimeException, InterruptedException {
+		return sam.box(scene.getBoxes().get(nextObject()));
+	}
+
+	@Benchmark
+	public List<List<Polygon>> boxes() throws IOException, RuntimeException, InterruptedException {
+		return sam.boxes(scene.getBoxes());
+	}
+
+	@Benchmark
+	public List<Polygon> points() throws IOException, RuntimeException, InterruptedException {
+		return sam.point(scene.getCenters().get(nextObject()));
+	}
+
+	@Benchmark
+	public List<Polygon> mask() throws IOException, RuntimeException, InterruptedException {
+		return sam.mask(scene.getLabels());
+	}
+	
+	private int nextObject() {
+		next = (next + 1) % objects;
+		return next;
+	}
+	
+	private static Model create(String modelName, String pythonEnv, RandomAccessibleInterval<UnsignedByteType> img) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (modelName.equals("efficientvitsam")) {
+			final EfficientViTSamJ sam = EfficientViTSamJ.initializeStandIn("l0", pythonEnv, img, (t) -> {});
+			return new Model() {
+				@Override public void encode(RandomAccessibleInterval<UnsignedByteType> img) 
+						throws IOException, RuntimeException, InterruptedException { sam.updateImage(img); }
+				@Override public List<Polygon> box(int[] box) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processBox(box); }
+				@Override public List<List<Polygon>> boxes(List<int[]> boxes) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processBoxes(boxes); }
+				@Override public List<Polygon> point(int[] point) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processPoints(Collections.singletonList(point)); }
+				@Override public List<Polygon> mask(RandomAccessibleInterval<UnsignedShortType> mask) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processMask(mask); }
+				@Override public void close() { sam.close(); }
+			};
+		} else if (modelName.equals("efficientsam")) {
+			final EfficientSamJ sam = EfficientSamJ.initializeStandIn(pythonEnv, img, (t) -> {});
+			return new Model() {
+				@Override public void encode(RandomAccessibleInterval<UnsignedByteType> img) 
+						throws IOException, RuntimeException, InterruptedException { sam.updateImage(img); }
+				@Override public List<Polygon> box(int[] box) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processBox(box); }
+				@Override public List<List<Polygon>> boxes(List<int[]> boxes) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processBoxes(boxes); }
+				@Override public List<Polygon> point(int[] point) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processPoints(Collections.singletonList(point)); }
+				@Override public List<Polygon> mask(RandomAccessibleInterval<UnsignedShortType> mask) 
+						throws IOException, RuntimeException, InterruptedException { return sam.processMask(mask); }
+				@Override public void close() { sam.close(); }
+			};
+		}
+		throw new IllegalArgumentException("Unknown model " + modelName + ", it should be 'efficientvitsam' or 'efficientsam'.");
+	}
+}
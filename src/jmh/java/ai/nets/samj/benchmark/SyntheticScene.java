@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Synthetic image with bright discs on a noisy background, together with the prompts that select each of the discs:
+ * its bounding box, its center and a label mask. The scenes are reproducible, the same size, number of objects and seed
+ * always give the same image.
+ * 
+ * @author Carlos Garcia
+ */
+public class SyntheticScene {
+	
+	private final RandomAccessibleInterval<UnsignedByteType> image;
+	
+	private final RandomAccessibleInterval<UnsignedShortType> labels;
+	
+	private final List<int[]> boxes;
+	
+	private final List<int[]> centers;
+	
+	private SyntheticScene(RandomAccessibleInterval<UnsignedByteType> image, RandomAccessibleInterval<UnsignedShortType> labels,
+			List<int[]> boxes, List<int[]> centers) {
+		this.image = image;
+		this.labels = labels;
+		this.boxes = Collections.unmodifiableList(boxes);
+		this.centers = Collections.unmodifiableList(centers);
+	}
+	
+	/**
+	 * Generate a scene. The discs have radii between 1/64 and 1/16 of the size of the image and may overlap,
+	 * in which case the last one drawn is the one labelled
+	 * @param size
+	 * 	side of the square image
+	 * @param nObjects
+	 * 	number of discs, at most 65535
+	 * @param seed
+	 * 	seed of the random generator
+	 * @return the scene
+	 */
+	public static SyntheticScene generate(int size, int nObjects, long seed) {
+		if (nObjects < 0 || nObjects > 65535)
+			throw new IllegalArgumentException("The number of objects should be between 0 and 65535.");
+		Random rand = new Random(seed);
+		byte[] pixels = new byte[size * size];
+		short[] labelled = new short[size * size];
+		for (int i = 0; i < pixels.length; i ++)
+			pixels[i] = (byte) (30 + rand.nextInt(20));
+		List<int[]> boxes = new ArrayList<int[]>(nObjects);
+		List<int[]> centers = new ArrayList<int[]>(nObjects);
+		int minRadius = Math.max(2, size / 64);
+		int maxRadius = Math.max(minRadius + 1, size / 16);
+		for (int n = 0; n < nObjects; n ++) {
+			int r = minRadius + rand.nextInt(maxRadius - minRadius);
+			int cx = r + rand.nextInt(Math.max(1, size - 2 * r));
+			int cy = r + rand.nextInt(Math.max(1, size - 2 * r));
+			int x0 = Math.max(0, cx - r), x1 = Math.min(size - 1, cx + r);
+			int y0 = Math.max(0, cy - r), y1 = Math.min(size - 1, cy + r);
+			for (int y = y0; y <= y1; y ++) {
+				for (int x = x0; x <= x1; x ++) {
+					if ((x - cx) * (x - cx) + (y - cy) * (y - cy) > r * r)
+						continue;
+					pixels[x + y * size] = (byte) (180 + rand.nextInt(60));
+					labelled[x + y * size] = (short) (n + 1);
+				}
+			}
+			boxes.add(new int[] {x0, y0, x1, y1});
+			centers.add(new int[] {cx, cy});
+		}
+		return new SyntheticScene(ArrayImgs.unsignedBytes(pixels, size, size), ArrayImgs.unsignedShorts(labelled, size, size), 
+				boxes, centers);
+	}
+	
+	/**
+	 * 
+	 * @return the grayscale image
+	 */
+	public RandomAccessibleInterval<UnsignedByteType> getImage() {
+		return image;
+	}
+	
+	/**
+	 * 
+	 * @return mask where the pixels of each disc have its position in the list of objects plus one, and the background 0
+	 */
+	public RandomAccessibleInterval<UnsignedShortType> getLabels() {
+		return labels;
+	}
+	
+	/**
+	 * 
+	 * @return the bounding box of each disc, as {@code [x0, y0, x1, y1]}
+	 */
+	public List<int[]> getBoxes() {
+		return boxes;
+	}
+	
+	/**
+	 * 
+	 * @return the center of each disc, as {@code [x, y]}
+	 */
+	public List<int[]> getCenters() {
+		return centers;
+	}
+}
@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.jmh;
+
+import java.util.Random;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Synthetic images used by the JMH benchmarks. The pixels are written directly into the backing arrays
+ * so that even the 16384x16384 RGB images are created in a few seconds.
+ *
+ * @author Carlos Garcia
+ */
+final class BenchmarkImages {
+
+	private BenchmarkImages() {
+	}
+
+	/**
+	 * Create a random image
+	 * @param type
+	 * 	pixel type, "uint8", "uint16" or "float32"
+	 * @param size
+	 * 	side of the square image
+	 * @param channels
+	 * 	1 for a 2D grayscale image, 3 for an RGB image with the channels in the last dimension
+	 * @param seed
+	 * 	seed of the random generator
+	 * @return the image
+	 */
+	static RandomAccessibleInterval<?> random(String type, int size, int channels, long seed) {
+		final long[] dims = channels == 1 ? new long[] {size, size} : new long[] {size, size, channels};
+		final int n = Math.multiplyExact(Math.multiplyExact(size, size), channels);
+		final Random rand = new Random(seed);
+		switch (type) {
+		case "uint8":
+			final byte[] bytes = new byte[n];
+			rand.nextBytes(bytes);
+			return ArrayImgs.unsignedBytes(bytes, dims);
+		case "uint16":
+			final short[] shorts = new short[n];
+			for (int i = 0; i < n; i ++)
+				shorts[i] = (short) rand.nextInt(1 << 16);
+			return ArrayImgs.unsignedShorts(shorts, dims);
+		case "float32":
+			final float[] floats = new float[n];
+			for (int i = 0; i < n; i ++)
+				floats[i] = rand.nextFloat() * 1000;
+			return ArrayImgs.floats(floats, dims);
+		default:
+			throw new IllegalArgumentException("Unsupported pixel type: " + type);
+		}
+	}
+}
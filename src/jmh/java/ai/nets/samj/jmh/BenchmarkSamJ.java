@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.jmh;
+
+import java.util.List;
+
+import ai.nets.samj.AbstractSamJ;
+import ai.nets.samj.ImageStatistics;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * {@link AbstractSamJ} without a Python process that exposes the Java side of the models to the benchmarks.
+ * The conversions are the same ones done by {@code adaptImageToModel} in {@link ai.nets.samj.EfficientSamJ} (float32
+ * in [0, 1]) and {@link ai.nets.samj.EfficientViTSamJ} (uint8 in [0, 255]).
+ *
+ * @author Carlos Garcia
+ */
+final class BenchmarkSamJ extends AbstractSamJ {
+
+	BenchmarkSamJ() {
+		disableDebugPrinting();
+	}
+
+	/**
+	 * Convert an image into the float32 input of EfficientSAM
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param ogImg
+	 * 	2D image or 3D image with 1 or 3 channels in the last dimension
+	 * @param targetImg
+	 * 	3 channel image where the result is written
+	 */
+	<T extends RealType<T> & NativeType<T>>
+	void adaptToFloat32(final RandomAccessibleInterval<T> ogImg, final RandomAccessibleInterval<FloatType> targetImg) {
+		final ImageStatistics stats = imageStatistics(ogImg);
+		if (ogImg.numDimensions() == 3 && ogImg.dimension(2) == 3)
+			copyToThreeChannels(Views.stack(normalizedView(Views.hyperSlice(ogImg, 2, 0), stats, 0), 
+					normalizedView(Views.hyperSlice(ogImg, 2, 1), stats, 1), 
+					normalizedView(Views.hyperSlice(ogImg, 2, 2), stats, 2)), 
+					targetImg, numThreads);
+		else
+			copyToThreeChannels(normalizedView(ogImg, stats, 0), targetImg, numThreads);
+	}
+
+	/**
+	 * Convert an image into the uint8 input of EfficientViTSAM
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param ogImg
+	 * 	2D image or 3D image with 1 or 3 channels in the last dimension
+	 * @param targetImg
+	 * 	3 channel image where the result is written
+	 */
+	<T extends RealType<T> & NativeType<T>>
+	void adaptToUint8(final RandomAccessibleInterval<T> ogImg, final RandomAccessibleInterval<UnsignedByteType> targetImg) {
+		final ImageStatistics stats = imageStatistics(ogImg);
+		if (ogImg.numDimensions() == 3 && ogImg.dimension(2) == 3)
+			copyToThreeChannels(Views.stack(convertViewToRGB(Views.hyperSlice(ogImg, 2, 0), stats, 0), 
+					convertViewToRGB(Views.hyperSlice(ogImg, 2, 1), stats, 1), 
+					convertViewToRGB(Views.hyperSlice(ogImg, 2, 2), stats, 2)), 
+					targetImg, numThreads);
+		else
+			copyToThreeChannels(convertViewToRGB(ogImg, stats, 0), targetImg, numThreads);
+	}
+
+	/**
+	 * Set the scale between the image provided by the user and the image encoded by the model
+	 * @param scale
+	 * 	the scale, 1 if the image is not resized
+	 */
+	void setModelScale(double scale) {
+		this.modelScale = scale;
+	}
+
+	/**
+	 * Map point prompts into the coordinates of the model, as done before sending them to Python
+	 * @param points
+	 * 	the points
+	 * @return the points in the coordinates of the model
+	 */
+	List<int[]> pointsToModelSpace(List<int[]> points) {
+		return toModelSpace(points);
+	}
+
+	/**
+	 * Map a bounding box into the coordinates of the model, as done before sending it to Python
+	 * @param box
+	 * 	the bounding box
+	 * @return the bounding box in the coordinates of the model
+	 */
+	int[] boxToModelSpace(int[] box) {
+		return toModelSpace(box);
+	}
+}
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.jmh;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ai.nets.samj.AbstractSamJ;
+import io.bioimage.modelrunner.apposed.appose.Types;
+
+/**
+ * JMH benchmarks of the conversion of the contours returned by Python into polygons, with and without
+ * the JSON parsing of the task outputs done by Appose.
+ *
+ * @author Carlos Garcia
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContourBenchmark {
+
+	@Param({"1", "100", "1000"})
+	public int polygons;
+
+	@Param({"64", "1024"})
+	public int vertices;
+
+	private List<List<Number>> contoursX;
+	private List<List<Number>> contoursY;
+	private String json;
+
+	@Setup
+	public void setup() {
+		contoursX = new ArrayList<List<Number>>(polygons);
+		contoursY = new ArrayList<List<Number>>(polygons);
+		for (int p = 0; p < polygons; p ++) {
+			final List<Number> xs = new ArrayList<Number>(vertices);
+			final List<Number> ys = new ArrayList<Number>(vertices);
+			final double cx = 50 + (p % 40) * 100;
+			final double cy = 50 + (p / 40) * 100;
+			for (int v = 0; v < vertices; v ++) {
+				final double angle = 2 * Math.PI * v / vertices;
+				xs.add((int) Math.round(cx + 40 * Math.cos(angle)));
+				ys.add((int) Math.round(cy + 40 * Math.sin(angle)));
+			}
+			contoursX.add(xs);
+			contoursY.add(ys);
+		}
+		final Map<String, Object> outputs = new HashMap<String, Object>();
+		outputs.put("contours_x", contoursX);
+		outputs.put("contours_y", contoursY);
+		json = Types.encode(outputs);
+	}
+
+	@Benchmark
+	public List<Polygon> contoursToPolygons() {
+		return AbstractSamJ.contoursToPolygons(contoursX, contoursY);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Benchmark
+	public List<Polygon> decodeAndConvert() {
+		final Map<String, Object> outputs = Types.decode(json);
+		return AbstractSamJ.contoursToPolygons((List<List<Number>>) outputs.get("contours_x"), 
+				(List<List<Number>>) outputs.get("contours_y"));
+	}
+}
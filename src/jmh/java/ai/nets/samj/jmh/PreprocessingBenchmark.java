@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ai.nets.samj.AbstractSamJ;
+import ai.nets.samj.ImageStatistics;
+import ai.nets.samj.SharedMemoryPool;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * JMH benchmarks of the conversion of the images into the input of the models, per pixel type, number of channels and size.
+ * The statistics cache is cleared before every invocation, so every measurement includes the search of the
+ * intensity range, as the first encoding of an image does.
+ * <p>
+ * Run with {@code mvn -P benchmarks exec:exec -Djmh.args="PreprocessingBenchmark -p size=512,2048"}. The conversion targets
+ * are separate states, so each benchmark only allocates the one it writes to. The 16384x16384 images are not run by default,
+ * a 3-channel float32 one and its target need about 7 GB of heap, so they are run with
+ * {@code -Djmh.args="PreprocessingBenchmark -p size=16384 -jvmArgsAppend -Xmx16g"}.
+ *
+ * @author Carlos Garcia
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class PreprocessingBenchmark {
+
+	@Param({"512", "2048", "8192"})
+	public int size;
+
+	@Param({"uint8", "uint16", "float32"})
+	public String type;
+
+	@Param({"1", "3"})
+	public int channels;
+
+	private BenchmarkSamJ samj;
+	private RandomAccessibleInterval img;
+
+	/**
+	 * 3-channel uint8 image where the input of EfficientViTSAM is written
+	 */
+	@State(Scope.Benchmark)
+	public static class Uint8Target {
+		private RandomAccessibleInterval<UnsignedByteType> img;
+
+		@Setup(Level.Trial)
+		public void setup(PreprocessingBenchmark benchmark) {
+			img = ArrayImgs.unsignedBytes(new long[] {benchmark.size, benchmark.size, 3});
+		}
+	}
+
+	/**
+	 * 3-channel float32 image where the input of EfficientSAM is written
+	 */
+	@State(Scope.Benchmark)
+	public static class Float32Target {
+		private RandomAccessibleInterval<FloatType> img;
+
+		@Setup(Level.Trial)
+		public void setup(PreprocessingBenchmark benchmark) {
+			img = ArrayImgs.floats(new long[] {benchmark.size, benchmark.size, 3});
+		}
+	}
+
+	/**
+	 * Shared memory segment big enough for the 3-channel float32 input
+	 */
+	@State(Scope.Benchmark)
+	public static class SharedTarget {
+		private SharedMemoryArray shma;
+
+		@Setup(Level.Trial)
+		public void setup(PreprocessingBenchmark benchmark) {
+			shma = SharedMemoryPool.getInstance().acquire((long) benchmark.size * benchmark.size * 3 * 4);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			SharedMemoryPool.getInstance().release(shma);
+			SharedMemoryPool.getInstance().trim(0);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		samj = new BenchmarkSamJ();
+		img = BenchmarkImages.random(type, size, channels, 42);
+	}
+
+	@Setup(Level.Invocation)
+	public void clearStatistics() {
+		ImageStatistics.clearCache();
+	}
+
+	@Benchmark
+	public double[] minMaxPixelValue() {
+		final double[] minMax = new double[2];
+		AbstractSamJ.getMinMaxPixelValue(Views.iterable(img), minMax);
+		return minMax;
+	}
+
+	@Benchmark
+	public ImageStatistics imageStatistics() {
+		return ImageStatistics.get(img, samj.getNumberOfThreads());
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<FloatType> normalizedView() {
+		return samj.normalizedView(channel0());
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<UnsignedByteType> convertViewToRGB() {
+		return samj.convertViewToRGB(channel0());
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<FloatType> adaptImageToEfficientSAM(Float32Target target) {
+		samj.adaptToFloat32(img, target.img);
+		return target.img;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval<UnsignedByteType> adaptImageToEfficientViTSAM(Uint8Target target) {
+		samj.adaptToUint8(img, target.img);
+		return target.img;
+	}
+
+	@Benchmark
+	public void writeFloat32ToSharedMemory(SharedTarget target, Blackhole bh) {
+		bh.consume(samj.writeChannelsPlanar(img, target.shma.getPointer(), false));
+	}
+
+	@Benchmark
+	public void writeUint8ToSharedMemory(SharedTarget target, Blackhole bh) {
+		bh.consume(samj.writeChannelsPlanar(img, target.shma.getPointer(), true));
+	}
+
+	private RandomAccessibleInterval channel0() {
+		return channels == 1 ? img : Views.hyperSlice(img, 2, 0);
+	}
+}
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.jmh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.bioimage.modelrunner.apposed.appose.Types;
+
+/**
+ * JMH benchmarks of the preparation of the prompts sent to Python: the mapping into the coordinates of the model
+ * and the JSON serialisation of the task inputs done by Appose.
+ *
+ * @author Carlos Garcia
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromptBenchmark {
+
+	@Param({"1", "16", "256"})
+	public int prompts;
+
+	/**
+	 * Scale between the image of the user and the image encoded by the model, 1 when the image is not resized
+	 */
+	@Param({"1", "0.25"})
+	public double modelScale;
+
+	private BenchmarkSamJ samj;
+	private List<int[]> points;
+	private List<int[]> negPoints;
+	private List<int[]> boxes;
+
+	@Setup
+	public void setup() {
+		samj = new BenchmarkSamJ();
+		samj.setModelScale(modelScale);
+		final Random rand = new Random(42);
+		points = new ArrayList<int[]>(prompts);
+		negPoints = new ArrayList<int[]>(prompts);
+		boxes = new ArrayList<int[]>(prompts);
+		for (int i = 0; i < prompts; i ++) {
+			points.add(new int[] {rand.nextInt(4096), rand.nextInt(4096)});
+			negPoints.add(new int[] {rand.nextInt(4096), rand.nextInt(4096)});
+			final int x = rand.nextInt(4000);
+			final int y = rand.nextInt(4000);
+			boxes.add(new int[] {x, y, x + 1 + rand.nextInt(96), y + 1 + rand.nextInt(96)});
+		}
+	}
+
+	@Benchmark
+	public String points() {
+		final Map<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("input_points", samj.pointsToModelSpace(points));
+		inputs.put("input_neg_points", samj.pointsToModelSpace(negPoints));
+		return Types.encode(inputs);
+	}
+
+	@Benchmark
+	public String boxes() {
+		final List<int[]> mapped = new ArrayList<int[]>(boxes.size());
+		for (int[] box : boxes)
+			mapped.add(samj.boxToModelSpace(box));
+		final Map<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("input_boxes", mapped);
+		inputs.put("input_centers", new ArrayList<int[]>());
+		return Types.encode(inputs);
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ai.nets.samj.SharedMemoryPool;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+
+/**
+ * JMH benchmarks of the shared memory used to send the images to Python: reusing a segment of the
+ * {@link SharedMemoryPool} and filling it with the bytes of an image of the given size.
+ *
+ * @author Carlos Garcia
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SharedMemoryBenchmark {
+
+	/**
+	 * Side of the square RGB uint8 image
+	 */
+	@Param({"512", "2048", "8192", "16384"})
+	public int size;
+
+	private SharedMemoryPool pool;
+	private SharedMemoryArray shma;
+	private byte[] pixels;
+
+	@Setup
+	public void setup() {
+		pool = SharedMemoryPool.getInstance();
+		pixels = new byte[size * size * 3];
+		for (int i = 0; i < pixels.length; i ++)
+			pixels[i] = (byte) i;
+		shma = pool.acquire(pixels.length);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pool.release(shma);
+		pool.trim(0);
+	}
+
+	@Benchmark
+	public SharedMemoryArray acquireAndRelease() throws IOException {
+		final SharedMemoryArray segment = pool.acquire(pixels.length);
+		pool.release(segment);
+		return segment;
+	}
+
+	@Benchmark
+	public SharedMemoryArray fill() {
+		shma.getPointer().write(0, pixels, 0, pixels.length);
+		return shma;
+	}
+}
@@ -20,19 +20,45 @@
 package ai.nets.samj;
 
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Scale2D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
+import java.awt.Polygon;
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.sun.jna.Pointer;
+
+import io.bioimage.modelrunner.apposed.appose.Service;
+import io.bioimage.modelrunner.apposed.appose.Service.Task;
+import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
+import io.bioimage.modelrunner.apposed.appose.TaskEvent;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
 
 /**
  * Class that contains methods that can be sued by SAMJ models
@@ -43,6 +69,30 @@ public class AbstractSamJ {
 
 	/** Essentially, a syntactic-shortcut for a String consumer */
 	public interface DebugTextPrinter { void printText(String text); }
+	/**
+	 * Image copied into shared memory in the format required by a model, together with the Python code
+	 * that reads it as the numpy array {@code im}
+	 */
+	protected static class EncoderInput {
+		/**
+		 * Shared memory segment that contains the image
+		 */
+		protected final SharedMemoryArray shma;
+		/**
+		 * Dimensions of the image sent to Python
+		 */
+		protected final long[] targetDims;
+		/**
+		 * Python code that reads the image
+		 */
+		protected final String code;
+
+		protected EncoderInput(SharedMemoryArray shma, long[] targetDims, String code) {
+			this.shma = shma;
+			this.targetDims = targetDims;
+			this.code = code;
+		}
+	}
 	/**
 	 * Default String consumer that just prints the Strings that are inputed with {@link System#out}
 	 */
@@ -51,6 +101,84 @@ public class AbstractSamJ {
 	 * Whether the SAMJ model instance is verbose or not
 	 */
 	protected boolean isDebugging = true;
+	/**
+	 * Number of threads used to convert the images into the format required by the model
+	 */
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Whether images larger than the input of the image encoder are downsampled in Java before sending them to Python
+	 */
+	protected boolean downsampleInJava = false;
+	/**
+	 * Whether images are sent to Python in their own data type and number of channels, to be normalized
+	 * and converted to 3 channels with NumPy, instead of converting them in Java
+	 */
+	protected boolean compactTransfer = false;
+	/**
+	 * Scale factor between the image encoded by the model and the image provided by the user, 1 unless the
+	 * image was downsampled in Java. Prompts are multiplied by it and polygons divided by it
+	 */
+	protected double modelScale = 1;
+	/**
+	 * Dimensions of the image provided by the user for the current encoding
+	 */
+	protected long[] imageDims;
+	/**
+	 * Pool that provides the shared memory segments used to send the images to Python
+	 */
+	protected final SharedMemoryPool shmPool = SharedMemoryPool.getInstance();
+	/**
+	 * Registry where the time spent in each stage of the pipeline is recorded
+	 */
+	protected final SamJMetrics metrics = SamJMetrics.getInstance();
+	/**
+	 * Name under which the metrics of the model are recorded
+	 */
+	protected String modelName = getClass().getSimpleName();
+	/**
+	 * Profilers run in Python around the encodings and the prompts
+	 */
+	protected PythonProfile.Mode profilingMode = PythonProfile.Mode.OFF;
+	/**
+	 * Profile of the last task run with profiling enabled
+	 */
+	protected volatile PythonProfile lastProfile;
+	/**
+	 * Number of pixels converted by each task of {@link #writeChannelsPlanar(RandomAccessibleInterval, Pointer, boolean)}
+	 */
+	private static final int KERNEL_CHUNK_SIZE = 1 << 20;
+	/**
+	 * Percentile of the intensity of each channel mapped to the lowest value of the model input.
+	 * If it is negative the images are normalized with their absolute min and max values
+	 */
+	protected double lowerPercentile = -1;
+	/**
+	 * Percentile of the intensity of each channel mapped to the highest value of the model input.
+	 * Only used if {@link #lowerPercentile} is not negative
+	 */
+	protected double upperPercentile = 100;
+	/**
+	 * Default number of point prompts per side of the grid used by the automatic segmentation
+	 */
+	public static final int AUTO_POINTS_PER_SIDE = 32;
+	/**
+	 * Default threshold on the quality (IoU) predicted by the model used to filter the masks of the
+	 * automatic segmentation
+	 */
+	public static final double AUTO_PRED_IOU_THRESH = 0.88;
+	/**
+	 * Default threshold on the stability score (IoU between the masks obtained binarizing the logits with
+	 * two different thresholds) used to filter the masks of the automatic segmentation
+	 */
+	public static final double AUTO_STABILITY_SCORE_THRESH = 0.92;
+	/**
+	 * Default IoU threshold between bounding boxes used by the non-maximum suppression of the automatic segmentation
+	 */
+	public static final double AUTO_BOX_NMS_THRESH = 0.7;
+	/**
+	 * Default minimum number of pixels of the masks kept by the automatic segmentation
+	 */
+	public static final int AUTO_MIN_MASK_AREA = 25;
 
 	/**
 	 * Set an empty consumer as {@link DebugTextPrinter} to avoid the SAMJ model instance
@@ -87,6 +215,551 @@ public class AbstractSamJ {
 		return isDebugging;
 	}
 
+	/**
+	 * Set the number of threads used to convert the images into the format required by the model
+	 * before sending them to Python
+	 * @param numThreads
+	 * 	number of threads, at least 1. By default, the number of available processors
+	 */
+	public void setNumberOfThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("The number of threads should be at least 1.");
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * 
+	 * @return the number of threads used to convert the images into the format required by the model
+	 */
+	public int getNumberOfThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Profile the encodings and prompts run in Python from now on, with cProfile, the torch profiler or both.
+	 * The time per operator of each task is available afterwards with {@link #getLastProfile()}.
+	 * Profiling slows down the tasks
+	 * @param mode
+	 * 	the profilers used, {@link PythonProfile.Mode#OFF} by default
+	 */
+	public void setProfiling(PythonProfile.Mode mode) {
+		this.profilingMode = mode == null ? PythonProfile.Mode.OFF : mode;
+	}
+
+	/**
+	 * 
+	 * @return the profilers run in Python around the encodings and the prompts
+	 */
+	public PythonProfile.Mode getProfiling() {
+		return profilingMode;
+	}
+
+	/**
+	 * 
+	 * @return the time per operator of the last encoding or prompt run while profiling was enabled, null if there is none
+	 */
+	public PythonProfile getLastProfile() {
+		return lastProfile;
+	}
+
+	/**
+	 * Wrap a script with the profilers selected with {@link #setProfiling(PythonProfile.Mode)}. The rows of the profile
+	 * are stored in {@code task.outputs['profile']}
+	 * @param script
+	 * 	the Python script of the task
+	 * @return the script itself if profiling is disabled, otherwise the profiled script
+	 */
+	protected String profiled(final String script) {
+		if (profilingMode == PythonProfile.Mode.OFF)
+			return script;
+		return "samj_profilers = samj_profile_start('" + profilingMode.getPythonName() + "')" + System.lineSeparator()
+				+ script + System.lineSeparator()
+				+ "task.outputs['profile'] = samj_profile_stop(samj_profilers)" + System.lineSeparator();
+	}
+
+	/**
+	 * Keep the profile returned by a task run with a script wrapped by {@link #profiled(String)}
+	 * @param taskName
+	 * 	name of the task, for example "encode" or "prompt"
+	 * @param task
+	 * 	the task, already finished
+	 * @param startNanos
+	 * 	value of {@link System#nanoTime()} when the task was submitted
+	 */
+	protected void collectProfile(final String taskName, final Task task, final long startNanos) {
+		if (profilingMode == PythonProfile.Mode.OFF || task.outputs == null)
+			return;
+		final PythonProfile profile = PythonProfile.parse(taskName, System.nanoTime() - startNanos, task.outputs.get("profile"));
+		if (profile == null)
+			return;
+		lastProfile = profile;
+		debugPrinter.printText(profile.toString());
+	}
+
+	/**
+	 * Propagate the trace of a call into a Python task while {@link SamJTracer} is recording. The trace ID and the span ID
+	 * of the task are added to the inputs as {@code trace_context} and the script is wrapped so that it returns the spans
+	 * of its phases in {@code task.outputs['trace_spans']}
+	 * @param script
+	 * 	the Python script of the task
+	 * @param span
+	 * 	the span of the task in Java
+	 * @param inputs
+	 * 	the inputs of the task, where the trace context is added
+	 * @return the script itself if nothing is being traced, otherwise the traced script
+	 */
+	protected String traced(final String script, final SamJEvents.Span span, final Map<String, Object> inputs) {
+		if (span.isInert() || !SamJTracer.isTracing())
+			return script;
+		final Map<String, Object> context = new HashMap<String, Object>();
+		context.put("trace_id", span.getTraceId());
+		context.put("span_id", span.getSpanId());
+		inputs.put("trace_context", context);
+		return "samj_trace = samj_trace_begin(task, trace_context)" + System.lineSeparator()
+				+ script + System.lineSeparator()
+				+ "task.outputs['trace_spans'] = samj_trace_end(task, samj_trace)" + System.lineSeparator();
+	}
+
+	/**
+	 * Add the spans returned by a task run with a script wrapped by {@link #traced(String, SamJEvents.Span, Map)} to the trace
+	 * @param task
+	 * 	the task, already finished
+	 * @param span
+	 * 	the span of the task in Java, already ended
+	 */
+	protected void collectTrace(final Task task, final SamJEvents.Span span) {
+		if (task.outputs != null)
+			SamJTracer.addPythonSpans(span, task.outputs.get("trace_spans"));
+	}
+
+	/**
+	 * Run a Python task and wait for it, profiled and with the encoding metrics recorded.
+	 * See {@link #runTask(Service, String, String, Map, SamJEvents.Span, SamJMetrics.Stage, boolean, Consumer)}
+	 * @param python
+	 * 	the Python process of the model
+	 * @param code
+	 * 	the Python script of the task
+	 * @param operation
+	 * 	name of the task, for example "encode", used for its profile
+	 * @param span
+	 * 	the span of the task, already begun, that is ended with the status of the task
+	 * @param stage
+	 * 	stage of the metrics where the duration of the task is recorded, can be null
+	 * @return the task, completed
+	 * @throws IOException if the task cannot be started
+	 * @throws RuntimeException if the task is canceled, fails or crashes
+	 * @throws InterruptedException if the thread is interrupted while waiting for the task
+	 */
+	protected Task runTask(final Service python, final String code, final String operation, final SamJEvents.Span span,
+			final SamJMetrics.Stage stage) throws IOException, RuntimeException, InterruptedException {
+		return runTask(python, code, operation, null, span, stage, true, null);
+	}
+
+	/**
+	 * Run a Python task and wait for it. The script is wrapped with {@link #profiled(String)} and {@link #traced(String, SamJEvents.Span, Map)},
+	 * the span of the task is ended with its status, its profile and the spans of Python are collected and
+	 * its duration is recorded in the metrics. A task that does not complete is reported with a {@link RuntimeException}
+	 * @param python
+	 * 	the Python process of the model
+	 * @param code
+	 * 	the Python script of the task
+	 * @param operation
+	 * 	name of the task, for example "encode" or "prompt", used for its profile and its errors
+	 * @param inputs
+	 * 	the inputs of the task, can be null
+	 * @param span
+	 * 	the span of the task, already begun, that is ended with the status of the task
+	 * @param stage
+	 * 	stage of the metrics where the duration of the task is recorded, can be null
+	 * @param profile
+	 * 	whether the task is run with the profilers selected with {@link #setProfiling(PythonProfile.Mode)}
+	 * @param listener
+	 * 	consumer of the events of the task, can be null
+	 * @return the task, completed
+	 * @throws IOException if the task cannot be started
+	 * @throws RuntimeException if the task is canceled, fails or crashes
+	 * @throws InterruptedException if the thread is interrupted while waiting for the task
+	 */
+	protected Task runTask(final Service python, final String code, final String operation, Map<String, Object> inputs,
+			final SamJEvents.Span span, final SamJMetrics.Stage stage, final boolean profile, final Consumer<TaskEvent> listener) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (inputs == null)
+			inputs = new HashMap<String, Object>();
+		final long start = System.nanoTime();
+		final Task task;
+		try {
+			task = python.task(traced(profile ? profiled(code) : code, span, inputs), inputs);
+			if (listener != null)
+				task.listen(listener);
+			task.waitFor();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		} finally {
+			if (stage != null)
+				metrics.recordSince(modelName, stage, start);
+		}
+		span.status(String.valueOf(task.status)).end();
+		if (profile)
+			collectProfile(operation, task, start);
+		collectTrace(task, span);
+		if (task.status != TaskStatus.COMPLETE)
+			throw new RuntimeException("The " + operation + " task of " + modelName + " finished with status " + task.status
+					+ (task.error == null ? "" : ": " + task.error));
+		return task;
+	}
+
+	/**
+	 * Normalize the images encoded from now on with percentiles of their intensity instead of their absolute
+	 * min and max values, so a few very bright or dark pixels do not compress the rest of the image into
+	 * a few grey levels. The values outside of the percentiles are saturated.
+	 * The percentiles are estimated from the histogram of each channel computed by {@link ImageStatistics}.
+	 * @param lowerPercentile
+	 * 	percentile mapped to the lowest value of the model input, for example 1
+	 * @param upperPercentile
+	 * 	percentile mapped to the highest value of the model input, for example 99.8
+	 */
+	public void setPercentileNormalization(double lowerPercentile, double upperPercentile) {
+		if (lowerPercentile < 0 || upperPercentile > 100 || lowerPercentile >= upperPercentile)
+			throw new IllegalArgumentException("The percentiles should verify 0 <= lower < upper <= 100.");
+		this.lowerPercentile = lowerPercentile;
+		this.upperPercentile = upperPercentile;
+	}
+	
+	/**
+	 * Normalize the images encoded from now on with their absolute min and max values, the default behaviour
+	 */
+	public void setMinMaxNormalization() {
+		this.lowerPercentile = -1;
+		this.upperPercentile = 100;
+	}
+	
+	/**
+	 * 
+	 * @return true if the images are normalized with percentiles and false if with their absolute min and max values
+	 */
+	public boolean isPercentileNormalization() {
+		return lowerPercentile >= 0;
+	}
+
+	/**
+	 * Set whether images whose longest side is larger than the input of the image encoder of the model 
+	 * (for example 1024 pixels) are downsampled in Java, with area averaging and in parallel, before sending them to Python.
+	 * The model resizes the images to that size anyway, so this reduces the shared memory used and the time needed
+	 * to transfer and resize the image. Prompts and resulting polygons are mapped transparently between the 
+	 * coordinates of the original image and the coordinates of the downsampled image.
+	 * Only affects the images encoded after calling this method.
+	 * @param downsample
+	 * 	whether to downsample the images in Java or not. By default false
+	 */
+	public void setDownsampleInJava(boolean downsample) {
+		this.downsampleInJava = downsample;
+	}
+	
+	/**
+	 * 
+	 * @return whether the images larger than the encoder input are downsampled in Java
+	 */
+	public boolean isDownsampleInJava() {
+		return downsampleInJava;
+	}
+	
+	/**
+	 * Set whether images of {@link UnsignedByteType}, {@link UnsignedShortType} or {@link FloatType} backed by arrays are sent
+	 * to Python in their own data type and, for grayscale images, with a single channel. The normalization and the 
+	 * replication of the channel into 3 channels are then done with NumPy in the Python process. This reduces the 
+	 * shared memory needed and the time of the copy, up to 12 times for 8-bit grayscale images sent to EfficientSAM.
+	 * The intensity range used for the normalization is still computed in Java, so the result does not change.
+	 * Only affects the images encoded after calling this method.
+	 * @param compact
+	 * 	whether to use the compact transfer or not. By default false
+	 */
+	public void setCompactTransfer(boolean compact) {
+		this.compactTransfer = compact;
+	}
+	
+	/**
+	 * 
+	 * @return whether the images are sent to Python in their own data type and number of channels
+	 */
+	public boolean isCompactTransfer() {
+		return compactTransfer;
+	}
+	
+	/**
+	 * Create the Python code that normalizes, with NumPy, an image sent in its own data type and number of channels, 
+	 * and replicates its channel if it is grayscale. The code expects the image in the variable {@code im} with 
+	 * the channels in the last axis, and leaves the result in the same variable.
+	 * The normalization is the same applied by {@link #writeChannelsPlanar(RandomAccessibleInterval, Pointer, boolean)}.
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param img
+	 * 	the image that has been sent
+	 * @param toUint8
+	 * 	whether the model input is uint8 in [0, 255] or float32 in [0, 1]
+	 * @return the Python code
+	 */
+	protected <T extends RealType<T> & NativeType<T>>
+	String compactNormalizationCode(final RandomAccessibleInterval<T> img, final boolean toUint8) {
+		final int nChannels = img.numDimensions() == 3 ? (int) img.dimension(2) : 1;
+		final ImageStatistics stats = imageStatistics(img);
+		final T type = Util.getTypeFromInterval(img);
+		String mins = "";
+		String scales = "";
+		for (int c = 0; c < nChannels; c ++) {
+			final float[] mapping = linearMapping(type, stats, c, toUint8);
+			mins += mapping[0] + ", ";
+			scales += mapping[1] + ", ";
+		}
+		String code = "";
+		code += "im = (im.astype('float32') - np.array([" + mins + "], dtype='float32')) "
+				+ "* np.array([" + scales + "], dtype='float32')" + System.lineSeparator();
+		if (toUint8)
+			code += "im = (np.clip(im, 0, 255) + 0.5).astype('uint8')" + System.lineSeparator();
+		else
+			code += "im = np.clip(im, 0, 1)" + System.lineSeparator();
+		if (nChannels == 1)
+			code += "im = np.repeat(im, 3, axis=2)" + System.lineSeparator();
+		return code;
+	}
+	
+	/**
+	 * Get the scale factor needed so that the longest side of an image fits in the input of the image encoder
+	 * @param dims
+	 * 	dimensions of the image
+	 * @param encoderSize
+	 * 	size of the side of the input of the image encoder
+	 * @return the scale factor, 1 if the image is not larger than the encoder input
+	 */
+	protected static double scaleForEncoder(long[] dims, int encoderSize) {
+		final long longSide = Math.max(dims[0], dims[1]);
+		return longSide > encoderSize ? encoderSize / (double) longSide : 1;
+	}
+	
+	/**
+	 * Downsample a 2D image, or 3D with channels in the last dimension, averaging all the pixels of the original image
+	 * that fall in each pixel of the new one (box filter), which avoids aliasing. Every pixel of the original image is
+	 * read only once and the rows of the result are computed in parallel.
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param img
+	 * 	the image to be downsampled
+	 * @param scale
+	 * 	scale factor, smaller than 1, applied to the first two dimensions
+	 * @param numThreads
+	 * 	number of threads used
+	 * @return the downsampled image
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<FloatType> downsample(final RandomAccessibleInterval<T> img, final double scale, final int numThreads) {
+		final long[] dims = img.dimensionsAsLongArray();
+		final long[] newDims = dims.clone();
+		newDims[0] = Math.max(1, Math.round(dims[0] * scale));
+		newDims[1] = Math.max(1, Math.round(dims[1] * scale));
+		final RandomAccessibleInterval<FloatType> out = ArrayImgs.floats(newDims);
+		final long[] min = img.minAsLongArray();
+		final int nChannels = dims.length == 3 ? (int) dims[2] : 1;
+		final List<long[]> rows = new ArrayList<long[]>();
+		for (long c = 0; c < nChannels; c ++)
+			for (long j = 0; j < newDims[1]; j ++)
+				rows.add(new long[] {c, j});
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			Parallelization.getTaskExecutor().forEach(rows, row -> {
+				final RandomAccess<T> ra = img.randomAccess();
+				final RandomAccess<FloatType> oa = out.randomAccess();
+				final double[] sums = new double[(int) newDims[0]];
+				final long[] counts = new long[(int) newDims[0]];
+				final long y0 = row[1] * dims[1] / newDims[1];
+				final long y1 = (row[1] + 1) * dims[1] / newDims[1];
+				for (long y = y0; y < y1; y ++) {
+					ra.setPosition(min[0], 0);
+					ra.setPosition(min[1] + y, 1);
+					if (dims.length == 3)
+						ra.setPosition(min[2] + row[0], 2);
+					for (long x = 0; x < dims[0]; x ++) {
+						final int bin = (int) (x * newDims[0] / dims[0]);
+						sums[bin] += ra.get().getRealDouble();
+						counts[bin] ++;
+						ra.fwd(0);
+					}
+				}
+				oa.setPosition(0, 0);
+				oa.setPosition(row[1], 1);
+				if (dims.length == 3)
+					oa.setPosition(row[0], 2);
+				for (int i = 0; i < sums.length; i ++) {
+					oa.get().setReal(sums[i] / counts[i]);
+					oa.fwd(0);
+				}
+			});
+		});
+		return out;
+	}
+	
+	/**
+	 * Resample a 2D mask, with nearest neighbour interpolation, to the size of the image encoded by the model
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask
+	 * @param mask
+	 * 	mask with the size of the image provided by the user
+	 * @return a view of the mask with the size of the image encoded by the model
+	 */
+	protected <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<T> toModelSpace(final RandomAccessibleInterval<T> mask) {
+		if (modelScale == 1)
+			return mask;
+		final long[] newMax = new long[] {Math.max(1, Math.round(mask.dimension(0) * modelScale)) - 1, 
+				Math.max(1, Math.round(mask.dimension(1) * modelScale)) - 1};
+		return Views.interval(RealViews.affine(Views.interpolate(Views.extendZero(Views.zeroMin(mask)), 
+				new NearestNeighborInterpolatorFactory<T>()), new Scale2D(modelScale, modelScale)), new long[2], newMax);
+	}
+	
+	/**
+	 * Map point prompts from the coordinates of the image provided by the user to the coordinates of the image
+	 * encoded by the model
+	 * @param points
+	 * 	list of points, int arrays with the coordinates of each point
+	 * @return the list of points in the coordinates of the model
+	 */
+	protected List<int[]> toModelSpace(final List<int[]> points) {
+		if (modelScale == 1)
+			return points;
+		final List<int[]> mapped = new ArrayList<int[]>(points.size());
+		for (int[] point : points)
+			mapped.add(toModelSpace(point));
+		return mapped;
+	}
+	
+	/**
+	 * Map coordinates, for example a point or a bounding box, from the image provided by the user to the image
+	 * encoded by the model
+	 * @param coords
+	 * 	int array of coordinates
+	 * @return the coordinates in the image encoded by the model
+	 */
+	protected int[] toModelSpace(final int[] coords) {
+		if (modelScale == 1)
+			return coords;
+		final int[] mapped = new int[coords.length];
+		for (int i = 0; i < coords.length; i ++)
+			mapped[i] = (int) Math.round((coords[i] + 0.5) * modelScale - 0.5);
+		return mapped;
+	}
+	
+	/**
+	 * Map polygons from the coordinates of the image encoded by the model to the image provided by the user
+	 * @param polys
+	 * 	polygons in the coordinates of the image encoded by the model, they are modified in place
+	 * @return the same list of polygons
+	 */
+	protected List<Polygon> toImageSpace(final List<Polygon> polys) {
+		if (modelScale == 1)
+			return polys;
+		for (Polygon poly : polys) {
+			for (int i = 0; i < poly.npoints; i ++) {
+				poly.xpoints[i] = (int) Math.round((poly.xpoints[i] + 0.5) / modelScale - 0.5);
+				poly.ypoints[i] = (int) Math.round((poly.ypoints[i] + 0.5) / modelScale - 0.5);
+			}
+			poly.invalidate();
+		}
+		return polys;
+	}
+	
+	/**
+	 * Wrap a consumer of partial results so it receives the polygons in the coordinates of the image provided by the user
+	 * @param partialResults
+	 * 	consumer that expects polygons in the coordinates of the image provided by the user, it can be null
+	 * @return a consumer that accepts polygons in the coordinates of the image encoded by the model, or null
+	 */
+	protected Consumer<List<Polygon>> toImageSpace(final Consumer<List<Polygon>> partialResults) {
+		if (modelScale == 1 || partialResults == null)
+			return partialResults;
+		return polys -> partialResults.accept(toImageSpace(polys));
+	}
+
+	/**
+	 * Prefix of the task update messages used by the Python process to stream each polygon as soon as it
+	 * has been traced, before the whole result is available. The message has the form
+	 * {@code contours_x:x0,x1,...;contours_y:y0,y1,...}
+	 */
+	public static final String STREAMED_CONTOURS_PREFIX = "contours_x:";
+	/**
+	 * Separator between the x and y coordinates of the streamed polygons
+	 */
+	private static final String STREAMED_CONTOURS_SEPARATOR = ";contours_y:";
+
+	/**
+	 * Build the polygons of the contours returned by the Python process, in the coordinates of the model input
+	 * @param contoursX
+	 * 	x coordinates of the vertices of each contour
+	 * @param contoursY
+	 * 	y coordinates of the vertices of each contour, in the same order
+	 * @return one polygon per contour
+	 */
+	public static List<Polygon> contoursToPolygons(final List<? extends List<? extends Number>> contoursX,
+			final List<? extends List<? extends Number>> contoursY) {
+		final List<Polygon> polys = new ArrayList<Polygon>(contoursX.size());
+		final Iterator<? extends List<? extends Number>> itY = contoursY.iterator();
+		for (List<? extends Number> xs : contoursX) {
+			final List<? extends Number> ys = itY.next();
+			final int[] xArr = new int[xs.size()];
+			final int[] yArr = new int[ys.size()];
+			int i = 0;
+			for (Number x : xs)
+				xArr[i ++] = x.intValue();
+			i = 0;
+			for (Number y : ys)
+				yArr[i ++] = y.intValue();
+			polys.add(new Polygon(xArr, yArr, xArr.length));
+		}
+		return polys;
+	}
+
+	/**
+	 * Parse a polygon streamed by the Python process with a task update message
+	 * @param message
+	 * 	the message of the task update
+	 * @return the polygon or null if the message does not contain a streamed polygon
+	 */
+	public static Polygon parseStreamedPolygon(final String message) {
+		if (message == null || !message.startsWith(STREAMED_CONTOURS_PREFIX))
+			return null;
+		final int sep = message.indexOf(STREAMED_CONTOURS_SEPARATOR);
+		if (sep < 0)
+			return null;
+		final int[] xArr = parseCoordinates(message, STREAMED_CONTOURS_PREFIX.length(), sep);
+		final int[] yArr = parseCoordinates(message, sep + STREAMED_CONTOURS_SEPARATOR.length(), message.length());
+		if (xArr.length != yArr.length)
+			return null;
+		return new Polygon(xArr, yArr, xArr.length);
+	}
+
+	private static int[] parseCoordinates(final String text, final int start, final int end) {
+		if (start >= end)
+			return new int[0];
+		int n = 1;
+		for (int i = start; i < end; i ++)
+			if (text.charAt(i) == ',') n ++;
+		final int[] coords = new int[n];
+		int idx = 0;
+		int val = 0;
+		boolean negative = false;
+		for (int i = start; i < end; i ++) {
+			final char c = text.charAt(i);
+			if (c == ',') {
+				coords[idx ++] = negative ? -val : val;
+				val = 0;
+				negative = false;
+			} else if (c == '-') {
+				negative = true;
+			} else {
+				val = val * 10 + (c - '0');
+			}
+		}
+		coords[idx] = negative ? -val : val;
+		return coords;
+	}
+
 	/**
 	 * Method that prints the String in the script parameter to the {@link DebugTextPrinter}
 	 * 
@@ -103,6 +776,161 @@ public class AbstractSamJ {
 		debugPrinter.printText("END:   =========== "+designationOfTheScript+" ===========");
 	}
 
+	/**
+	 * Copy an image into the 3-channel image that is sent to the model. If the source image has
+	 * 3 channels each of them is copied into the corresponding channel of the target. If it is a 2D
+	 * (grayscale) image, it is copied into the 3 channels of the target in a single pass.
+	 * The copy is split in chunks that are processed in parallel.
+	 * @param <T>
+	 * 	ImgLib2 data type of the source image
+	 * @param <R>
+	 * 	ImgLib2 data type of the target image
+	 * @param source
+	 * 	2D image or 3D image with 3 channels in the last dimension, usually a converted view of the original image
+	 * @param target
+	 * 	3D image with 3 channels in the last dimension where the source is copied
+	 * @param numThreads
+	 * 	number of threads used for the copy
+	 */
+	public static <T extends RealType<T>, R extends RealType<R>>
+	void copyToThreeChannels(final RandomAccessibleInterval<T> source, final RandomAccessibleInterval<R> target, 
+			final int numThreads) {
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			if (source.numDimensions() == 2) {
+				LoopBuilder.setImages(source, Views.hyperSlice(target, 2, 0), 
+						Views.hyperSlice(target, 2, 1), Views.hyperSlice(target, 2, 2))
+				.multiThreaded().forEachPixel((i, o0, o1, o2) -> {
+					o0.setReal(i.getRealFloat());
+					o1.setReal(i.getRealFloat());
+					o2.setReal(i.getRealFloat());
+				});
+			} else {
+				for (int c = 0; c < 3; c ++)
+					LoopBuilder.setImages(Views.hyperSlice(source, 2, c), Views.hyperSlice(target, 2, c))
+					.multiThreaded().forEachPixel((i, o) -> o.setReal(i.getRealFloat()));
+			}
+		});
+	}
+
+	/**
+	 * Copy a 2D mask into a segment of the {@link SharedMemoryPool} as float32, in the numpy (C) order of its dimensions,
+	 * thus the pixel {@code (i, j)} of the mask is {@code mask[i, j]} in Python. The segment has to be given back
+	 * to the pool once the Python process has finished with it
+	 * @param <T>
+	 * 	ImgLib2 data type of the mask
+	 * @param mask
+	 * 	the 2D mask
+	 * @return a segment of the pool with the mask
+	 */
+	protected <T extends RealType<T> & NativeType<T>>
+	SharedMemoryArray maskToSharedMemory(final RandomAccessibleInterval<T> mask) {
+		if (mask.numDimensions() != 2)
+			throw new IllegalArgumentException("The mask should be a 2D image.");
+		final float[] data = new float[Math.toIntExact(mask.dimension(0) * mask.dimension(1))];
+		int i = 0;
+		for (T px : Views.flatIterable(Views.permute(mask, 0, 1)))
+			data[i ++] = px.getRealFloat();
+		final SharedMemoryArray shma = shmPool.acquire((long) data.length * 4);
+		shma.getPointer().write(0, data, 0, data.length);
+		return shma;
+	}
+
+	/**
+	 * Convert an image into the 3-channel input of the model working directly on the primitive array that backs it,
+	 * with the {@link PixelKernels}. The result is written in the target memory channel after channel
+	 * (planar layout, same flat order as an {@link ArrayImg} with dimensions {@code [dim0, dim1, 3]}), 
+	 * replicating the channel of grayscale images. The image is split in chunks converted in parallel.
+	 * Only {@link ArrayImg}s and {@link PlanarImg}s of {@link UnsignedByteType}, {@link UnsignedShortType} or {@link FloatType}
+	 * are supported.
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param ogImg
+	 * 	2D image or 3D image with 1 or 3 channels in the last dimension
+	 * @param target
+	 * 	memory where the result is written, usually the shared memory read by Python
+	 * @param toUint8
+	 * 	whether the model input is uint8 in [0, 255] or float32 in [0, 1]
+	 * @return true if the image has been converted, false if its type is not supported, in which case nothing is written
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	boolean writeChannelsPlanar(final RandomAccessibleInterval<T> ogImg, final Pointer target, final boolean toUint8) {
+		final PrimitiveChannels data = PrimitiveChannels.of(ogImg);
+		if (data == null || (data.numChannels() != 1 && data.numChannels() != 3))
+			return false;
+		debugPrinter.printText("IMAGE BACKED BY PRIMITIVE ARRAYS, converting it with kernels");
+		final int nPixels = data.numPixels();
+		final int nChannels = data.numChannels();
+		final ImageStatistics stats = imageStatistics(ogImg);
+		final long conversionStart = System.nanoTime();
+		final T type = Util.getTypeFromInterval(ogImg);
+		final float[][] mappings = new float[nChannels][];
+		for (int c = 0; c < nChannels; c ++)
+			mappings[c] = linearMapping(type, stats, c, toUint8);
+		final List<int[]> chunks = new ArrayList<int[]>();
+		for (int c = 0; c < nChannels; c ++)
+			for (int start = 0; start < nPixels; start += KERNEL_CHUNK_SIZE)
+				chunks.add(new int[] {c, start, Math.min(nPixels, start + KERNEL_CHUNK_SIZE)});
+		final int elementBytes = toUint8 ? 1 : 4;
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			Parallelization.getTaskExecutor().forEach(chunks, chunk -> {
+				final int len = chunk[2] - chunk[1];
+				final float min = mappings[chunk[0]][0];
+				final float scale = mappings[chunk[0]][1];
+				// grayscale images are replicated in the 3 channels
+				final int firstTarget = nChannels == 3 ? chunk[0] : 0;
+				final int lastTarget = nChannels == 3 ? chunk[0] : 2;
+				if (toUint8) {
+					final byte[] buffer = new byte[len];
+					data.toUint8(chunk[0], chunk[1], chunk[2], min, scale, buffer);
+					for (int c = firstTarget; c <= lastTarget; c ++)
+						target.write(((long) c * nPixels + chunk[1]) * elementBytes, buffer, 0, len);
+				} else {
+					final float[] buffer = new float[len];
+					data.toFloat32(chunk[0], chunk[1], chunk[2], min, scale, buffer);
+					for (int c = firstTarget; c <= lastTarget; c ++)
+						target.write(((long) c * nPixels + chunk[1]) * elementBytes, buffer, 0, len);
+				}
+			});
+		});
+		metrics.recordSince(modelName, SamJMetrics.Stage.CONVERSION, conversionStart);
+		return true;
+	}
+
+	/**
+	 * Get the statistics of an image used to normalize it, recording the time needed to compute them
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param img
+	 * 	the image
+	 * @return the statistics of the image
+	 */
+	protected <T extends RealType<T> & NativeType<T>>
+	ImageStatistics imageStatistics(final RandomAccessibleInterval<T> img) {
+		final long start = System.nanoTime();
+		final ImageStatistics stats = ImageStatistics.get(img, numThreads);
+		metrics.recordSince(modelName, SamJMetrics.Stage.IMAGE_STATISTICS, start);
+		return stats;
+	}
+
+	/**
+	 * Get the linear mapping {@code (value - min) * scale} that converts a channel into the model input
+	 * with the same criteria as {@link #convertViewToRGB(RandomAccessibleInterval, ImageStatistics, int)} and
+	 * {@link #normalizedView(RandomAccessibleInterval, ImageStatistics, int)}
+	 */
+	private <T extends RealType<T> & NativeType<T>>
+	float[] linearMapping(final T type, final ImageStatistics stats, final int channel, final boolean toUint8) {
+		final double outMax = toUint8 ? 255 : 1;
+		if (isPercentileNormalization()) {
+			final double low = stats.getPercentile(channel, lowerPercentile);
+			final double high = stats.getPercentile(channel, upperPercentile);
+			return new float[] {(float) low, (float) (outMax / (high - low + 1e-9))};
+		}
+		final double[] minMax = stats.getMinMax(channel);
+		if ((toUint8 && type instanceof UnsignedByteType) || (!toUint8 && isNormalizedInterval(minMax)))
+			return new float[] {0, 1};
+		return new float[] {(float) minMax[0], (float) (outMax / (minMax[1] - minMax[0] + 1e-9))};
+	}
+
 	/**
 	 * Get the maximum and minimum pixel values of an {@link IterableInterval}
 	 * @param <T>
@@ -114,6 +942,15 @@ public class AbstractSamJ {
 	 */
 	public static <T extends RealType<T> & NativeType<T>>
 	void getMinMaxPixelValue(final IterableInterval<T> inImg, final double[] outMinMax) {
+		final PrimitiveChannels data = inImg instanceof RandomAccessibleInterval 
+				? PrimitiveChannels.of((RandomAccessibleInterval<T>) inImg) : null;
+		if (data != null && outMinMax.length > 1) {
+			outMinMax[0] = Double.POSITIVE_INFINITY;
+			outMinMax[1] = Double.NEGATIVE_INFINITY;
+			for (int c = 0; c < data.numChannels(); c ++)
+				data.minMax(c, 0, data.numPixels(), outMinMax);
+			return;
+		}
 		double min = inImg.firstElement().getRealDouble();
 		double max = min;
 
@@ -153,12 +990,76 @@ public class AbstractSamJ {
 	 * @return the normalized {@link RandomAccessibleInterval}
 	 */
 	private static <T extends RealType<T> & NativeType<T>>
-	RandomAccessibleInterval<FloatType> normalizedView(final RandomAccessibleInterval<T> inImg, final double[] inMinMax) {
+	RandomAccessibleInterval<FloatType> normalize(final RandomAccessibleInterval<T> inImg, final double[] inMinMax) {
 		final double min = inMinMax[0];
 		final double range = inMinMax[1] - min;
 		return Converters.convert(inImg, (i, o) -> o.setReal((i.getRealFloat() - min) / (range + 1e-9)), new FloatType());
 	}
 
+	private static <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<FloatType> clippedNormalize(final RandomAccessibleInterval<T> inImg, final double[] inMinMax) {
+		final double min = inMinMax[0];
+		final double range = inMinMax[1] - min;
+		return Converters.convert(inImg, 
+				(i, o) -> o.setReal(Math.max(0, Math.min(1, (i.getRealFloat() - min) / (range + 1e-9)))), new FloatType());
+	}
+
+	private static <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<UnsignedByteType> clippedStretchToRGB(final RandomAccessibleInterval<T> inImg, final double[] inMinMax) {
+		final double min = inMinMax[0];
+		final double range = inMinMax[1] - min;
+		return Converters.convert(inImg, 
+				(i, o) -> o.setReal(Math.max(0, Math.min(255, 255 * (i.getRealDouble() - min) / (range + 1e-9)))), new UnsignedByteType());
+	}
+
+	/**
+	 * Convert one channel of an image into the [0, 1] range required by the model, with the normalization
+	 * selected for this instance: the absolute min and max values or percentiles (see {@link #setPercentileNormalization(double, double)})
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param inImg
+	 * 	one channel of the image
+	 * @param stats
+	 * 	statistics of the whole image
+	 * @param channel
+	 * 	position of the channel in the image
+	 * @return the image itself or a view of it with {@link FloatType} data type
+	 */
+	protected <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<FloatType> normalizedView(final RandomAccessibleInterval<T> inImg, 
+			final ImageStatistics stats, final int channel) {
+		if (!isPercentileNormalization())
+			return normalizedView(inImg, stats.getMinMax(channel));
+		final double[] range = new double[] {stats.getPercentile(channel, lowerPercentile), stats.getPercentile(channel, upperPercentile)};
+		debugPrinter.printText("PERCENTILE " + lowerPercentile + "=" + range[0] + ", PERCENTILE " + upperPercentile + "=" + range[1] 
+				+ ", returning Converted view");
+		return clippedNormalize(inImg, range);
+	}
+
+	/**
+	 * Convert one channel of an image into the [0, 255] range required by the model, with the normalization
+	 * selected for this instance: the absolute min and max values or percentiles (see {@link #setPercentileNormalization(double, double)})
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param inImg
+	 * 	one channel of the image
+	 * @param stats
+	 * 	statistics of the whole image
+	 * @param channel
+	 * 	position of the channel in the image
+	 * @return the image itself or a view of it with {@link UnsignedByteType} data type
+	 */
+	protected <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<UnsignedByteType> convertViewToRGB(final RandomAccessibleInterval<T> inImg, 
+			final ImageStatistics stats, final int channel) {
+		if (!isPercentileNormalization())
+			return convertViewToRGB(inImg, stats.getMinMax(channel));
+		final double[] range = new double[] {stats.getPercentile(channel, lowerPercentile), stats.getPercentile(channel, upperPercentile)};
+		debugPrinter.printText("PERCENTILE " + lowerPercentile + "=" + range[0] + ", PERCENTILE " + upperPercentile + "=" + range[1] 
+				+ ", returning Converted view");
+		return clippedStretchToRGB(inImg, range);
+	}
+
 	/**
 	 * Checks the input RAI if its min and max pixel values are between [0,1].
 	 * If they are not, the RAI will be subject to {@link Converters#convert(RandomAccessibleInterval, Converter, Type)}
@@ -174,6 +1075,23 @@ public class AbstractSamJ {
 	RandomAccessibleInterval<FloatType> normalizedView(final RandomAccessibleInterval<T> inImg) {
 		final double[] minMax = new double[2];
 		getMinMaxPixelValue(Views.iterable(inImg), minMax);
+		return normalizedView(inImg, minMax);
+	}
+
+	/**
+	 * Same as {@link #normalizedView(RandomAccessibleInterval)} but using a min and max pixel values that have already
+	 * been computed, for example with {@link ImageStatistics}, instead of scanning the image
+	 *
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param inImg
+	 *  RAI to be potentially normalized.
+	 * @param minMax
+	 * 	array of length 2 with the min and max pixel values of the RAI
+	 * @return The input image itself or a View of it with {@link FloatType} data type
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<FloatType> normalizedView(final RandomAccessibleInterval<T> inImg, final double[] minMax) {
 		///debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS _NOT_ NORMALIZED, returning Converted view");
 		//return normalizedView(inImg, minMax);
 		if (isNormalizedInterval(minMax) && Util.getTypeFromInterval(inImg) instanceof FloatType) {
@@ -184,12 +1102,12 @@ public class AbstractSamJ {
 			return  Converters.convert(inImg, (i, o) -> o.setReal(i.getRealFloat()), new FloatType());
 		} else {
 			debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS _NOT_ NORMALIZED, returning Converted view");
-			return normalizedView(inImg, minMax);
+			return normalize(inImg, minMax);
 		}
 	}
 
 	private static <T extends RealType<T> & NativeType<T>>
-	RandomAccessibleInterval<UnsignedByteType> convertViewToRGB(final RandomAccessibleInterval<T> inImg, final double[] inMinMax) {
+	RandomAccessibleInterval<UnsignedByteType> stretchToRGB(final RandomAccessibleInterval<T> inImg, final double[] inMinMax) {
 		final double min = inMinMax[0];
 		final double range = inMinMax[1] - min;
 		return Converters.convert(inImg, (i, o) -> o.setReal(255 * (i.getRealDouble() - min) / range), new UnsignedByteType());
@@ -213,6 +1131,28 @@ public class AbstractSamJ {
 		final double[] minMax = new double[2];
 		debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS _NOT_ RGB, returning Converted view");
 		getMinMaxPixelValue(Views.iterable(inImg), minMax);
-		return convertViewToRGB(inImg, minMax);
+		return stretchToRGB(inImg, minMax);
+	}
+
+	/**
+	 * Same as {@link #convertViewToRGB(RandomAccessibleInterval)} but using a min and max pixel values that have already
+	 * been computed, for example with {@link ImageStatistics}, instead of scanning the image
+	 *
+	 * @param <T>
+	 * 	the ImgLib2 data types that the {@link RandomAccessibleInterval} can have
+	 * @param inImg
+	 *  RAI to be potentially converted to RGB.
+	 * @param minMax
+	 * 	array of length 2 with the min and max pixel values of the RAI
+	 * @return The input image itself or a View of it in {@link UnsignedByteType} data type
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	RandomAccessibleInterval<UnsignedByteType> convertViewToRGB(final RandomAccessibleInterval<T> inImg, final double[] minMax) {
+		if (Util.getTypeFromInterval(inImg) instanceof UnsignedByteType) {
+			debugPrinter.printText("IMAGE IS RGB, returning directly itself");
+			return Cast.unchecked(inImg);
+		}
+		debugPrinter.printText("MIN VALUE="+minMax[0]+", MAX VALUE="+minMax[1]+", IMAGE IS _NOT_ RGB, returning Converted view");
+		return stretchToRGB(inImg, minMax);
 	}
-}
\ No newline at end of file
+}
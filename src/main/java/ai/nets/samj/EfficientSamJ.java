@@ -21,29 +21,34 @@ package ai.nets.samj;
 
 import java.lang.AutoCloseable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.awt.Polygon;
 import java.io.File;
 import java.io.IOException;
 
 import io.bioimage.modelrunner.apposed.appose.Environment;
 import io.bioimage.modelrunner.apposed.appose.Service;
+import io.bioimage.modelrunner.apposed.appose.Service.ResponseType;
 import io.bioimage.modelrunner.apposed.appose.Service.Task;
 import io.bioimage.modelrunner.apposed.appose.Service.TaskStatus;
+import io.bioimage.modelrunner.apposed.appose.TaskEvent;
 
 import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import com.sun.jna.Pointer;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 /**
@@ -74,6 +79,33 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	 * converted into a 3-channel image that EfficientSAM requires
 	 */
 	private long[] targetDims;
+	/**
+	 * Image allocated directly in shared memory by {@link #createImageInSharedMemory(long[])} that is
+	 * waiting to be encoded
+	 */
+	private RandomAccessibleInterval<FloatType> sharedInputImg;
+	/**
+	 * Shared memory block backing {@link #sharedInputImg}
+	 */
+	private SharedMemoryArray sharedInputShma;
+	/**
+	 * Slices of the stack being browsed that are encoded in the background, null if no stack is set
+	 */
+	private SliceEmbeddingRing stack;
+	/**
+	 * Images encoded with {@link #encodeBatch(List, int)} whose embeddings are kept in Python, by key
+	 */
+	private final Map<Integer, SliceEmbeddingRing.Slice> imageSessions = new HashMap<Integer, SliceEmbeddingRing.Slice>();
+
+	private int nextImageKey = 0;
+	/**
+	 * Size of the longest side of the input of the EfficientSAM image encoder
+	 */
+	public static final int ENCODER_SIZE = 1024;
+	/**
+	 * Number of point prompts decoded at the same time by the automatic segmentation
+	 */
+	public static final int AUTO_POINTS_PER_BATCH = 64;
 	/**
 	 * All the Python imports and configurations needed to start using EfficientSAM.
 	 */
@@ -96,6 +128,26 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 			+ "globals()['np'] = np" + System.lineSeparator()
 			+ "globals()['torch'] = torch" + System.lineSeparator()
 			+ "globals()['predictor'] = predictor" + System.lineSeparator();
+	/**
+	 * Python code that replaces {@link #IMPORTS} in the instances created by {@link #initializeStandIn(String, RandomAccessibleInterval, DebugTextPrinter)}.
+	 * The predictor is the deterministic stand-in of {@link PythonMethods#STAND_IN_MODELS}, it needs NumPy, scikit-image
+	 * and PyTorch but no weights. It has to be formatted with the stand-in code.
+	 */
+	private static final String STAND_IN_IMPORTS = ""
+			+ "task.update('start')" + System.lineSeparator()
+			+ "from skimage import measure" + System.lineSeparator()
+			+ "import numpy as np" + System.lineSeparator()
+			+ "import torch" + System.lineSeparator()
+			+ "from multiprocessing import shared_memory" + System.lineSeparator()
+			+ "task.update('imported')" + System.lineSeparator()
+			+ "globals()['shared_memory'] = shared_memory" + System.lineSeparator()
+			+ "globals()['measure'] = measure" + System.lineSeparator()
+			+ "globals()['np'] = np" + System.lineSeparator()
+			+ "globals()['torch'] = torch" + System.lineSeparator()
+			+ "%s"
+			+ "predictor = StandInEfficientSam()" + System.lineSeparator()
+			+ "task.update('created predictor')" + System.lineSeparator()
+			+ "globals()['predictor'] = predictor" + System.lineSeparator();
 	/**
 	 * String containing the Python imports code after it has been formatted with the correct 
 	 * paths and names
@@ -132,22 +184,45 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	private EfficientSamJ(SamEnvManager manager,
 	                      final DebugTextPrinter debugPrinter,
 	                      final boolean printPythonCode) throws IOException, RuntimeException, InterruptedException {
+		this(manager.getEfficientSAMPythonEnv(), 
+				String.format(IMPORTS, manager.getEfficientSamEnv() + File.separator + SamEnvManager.ESAM_NAME,
+						manager.getEfficientSAMSmallWeightsPath()), 
+				debugPrinter, printPythonCode);
+	}
+
+	/**
+	 * Create an instance of the class with a Python process started from the environment provided and
+	 * initialized with the code provided, which has to create the {@code predictor}
+	 * 
+	 * @param pythonEnv
+	 * 	path to the Python environment used to start the Python process
+	 * @param imports
+	 * 	Python code run when the process starts, {@link #IMPORTS} formatted for the model or {@link #STAND_IN_IMPORTS}
+	 * @param debugPrinter
+	 * 	functional interface to redirect the Python process Appose text log and ouptut to be redirected anywhere
+	 * @param printPythonCode
+	 * 	whether to print the Python code that is going to be executed on the Python process or not
+	 * @throws IOException if any of the files to create a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	private EfficientSamJ(String pythonEnv, String imports,
+	                      final DebugTextPrinter debugPrinter,
+	                      final boolean printPythonCode) throws IOException, RuntimeException, InterruptedException {
 
 		this.debugPrinter = debugPrinter;
 		this.isDebugging = printPythonCode;
+		this.modelName = "EfficientSAM";
 
 		this.env = new Environment() {
-			@Override public String base() { return manager.getEfficientSAMPythonEnv(); }
+			@Override public String base() { return pythonEnv; }
 			@Override public boolean useSystemPath() { return false; }
 			};
 		python = env.python();
 		python.debug(debugPrinter::printText);
-		IMPORTS_FORMATED = String.format(IMPORTS,
-				manager.getEfficientSamEnv() + File.separator + SamEnvManager.ESAM_NAME,
-				manager.getEfficientSAMSmallWeightsPath());
-		printScript(IMPORTS_FORMATED + PythonMethods.TRACE_EDGES, "Edges tracing code");
-		Task task = python.task(IMPORTS_FORMATED + PythonMethods.TRACE_EDGES);
-		System.out.println(IMPORTS_FORMATED + PythonMethods.TRACE_EDGES);
+		IMPORTS_FORMATED = imports;
+		printScript(IMPORTS_FORMATED + PythonMethods.TRACE_EDGES + PythonMethods.AUTOMATIC_MASKS + PythonMethods.SHARED_MEMORY_POOL + PythonMethods.PROFILING + PythonMethods.TRACING, "Edges tracing code");
+		Task task = python.task(IMPORTS_FORMATED + PythonMethods.TRACE_EDGES + PythonMethods.AUTOMATIC_MASKS + PythonMethods.SHARED_MEMORY_POOL + PythonMethods.PROFILING + PythonMethods.TRACING);
 		task.waitFor();
 		if (task.status == TaskStatus.CANCELED)
 			throw new RuntimeException();
@@ -223,9 +298,44 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 		}
 		return sam;
 	}
-	
+
+	/**
+	 * Create an EfficientSAMJ instance whose Python process runs a deterministic stand-in of EfficientSAM
+	 * ({@link PythonMethods#STAND_IN_MODELS}) instead of the model. The calls go through exactly the same Java code,
+	 * shared memory and Python scripts, but no weights are needed and the masks are synthetic, so it is only meant
+	 * to measure the overhead of SAMJ itself. The Python environment needs appose, NumPy, scikit-image and PyTorch.
+	 *
+	 * @param <T>
+	 * 	the ImgLib2 data type of the image provided
+	 * @param pythonEnv
+	 * 	path to the Python environment used to start the Python process
+	 * @param image
+	 * 	the image where the stand-in is going to be run on
+	 * @param debugPrinter
+	 * 	functional interface to redirect the Python process Appose text log and ouptut to be redirected anywhere
+	 * @return an instance of {@link EfficientSamJ} with the image already encoded by the stand-in
+	 * @throws IOException if any of the files to create a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public static <T extends RealType<T> & NativeType<T>> EfficientSamJ
+	initializeStandIn(String pythonEnv, RandomAccessibleInterval<T> image,
+			final DebugTextPrinter debugPrinter) throws IOException, RuntimeException, InterruptedException {
+		EfficientSamJ sam = null;
+		try{
+			sam = new EfficientSamJ(pythonEnv, String.format(STAND_IN_IMPORTS, PythonMethods.STAND_IN_MODELS), debugPrinter, false);
+			sam.modelName = "EfficientSAM-stand-in";
+			sam.addImage(image);
+		} catch (IOException | RuntimeException | InterruptedException ex) {
+			if (sam != null) sam.close();
+			throw ex;
+		}
+		return sam;
+	}
+
 	/**
-	 * Change the image encoded by the EfficientSAM model
+	 * Change the image encoded by the EfficientSAM model.
+	 * The pixels of the image may have changed since it was last encoded, so its cached {@link ImageStatistics} are discarded
 	 * @param <T>
 	 * 	ImgLib2 data type of the image of interest
 	 * @param rai
@@ -236,9 +346,253 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	 */
 	public <T extends RealType<T> & NativeType<T>>
 	void updateImage(RandomAccessibleInterval<T> rai) throws IOException, RuntimeException, InterruptedException {
+		ImageStatistics.invalidate(rai);
 		addImage(rai);
 	}
 	
+	/**
+	 * Set a stack of images (the slices of a z-stack or the frames of a time series) that is browsed slice by slice.
+	 * Once a slice is activated with {@link #setActiveSlice(int)}, the slices around it are encoded in the background,
+	 * so moving to a neighbouring slice only swaps the embeddings already computed instead of running the encoder.
+	 * Nothing is encoded until the first slice is activated
+	 * @param <T>
+	 * 	ImgLib2 data type of the slices
+	 * @param slices
+	 * 	the slices of the stack, each of them a 2D image with or without channels as the ones accepted by {@link #updateImage(RandomAccessibleInterval)}
+	 * @param radius
+	 * 	number of slices kept encoded at each side of the active one, 1 or 2 is enough for sequential browsing
+	 * @throws InterruptedException if the thread is interrupted while stopping the encoding of a previous stack
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	void setStack(List<RandomAccessibleInterval<T>> slices, int radius) throws InterruptedException {
+		closeStack();
+		stack = new SliceEmbeddingRing(slices.size(), radius, 
+				(slice, key, prelude, background) -> encodeSlice(slices.get(slice), key, prelude, background), 
+				this::activateSlice, debugPrinter);
+	}
+	
+	/**
+	 * Make a slice of the stack set with {@link #setStack(List, int)} the image segmented by EfficientSAM.
+	 * If the slice was encoded in the background this is almost instantaneous, otherwise it is encoded now
+	 * @param slice
+	 * 	position of the slice in the stack
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void setActiveSlice(int slice) throws IOException, RuntimeException, InterruptedException {
+		if (stack == null)
+			throw new IllegalStateException("No stack has been set, call setStack() first.");
+		stack.activate(slice);
+	}
+	
+	/**
+	 * Stop encoding the slices of the stack in the background and free the embeddings kept in memory.
+	 * The active slice remains encoded
+	 * @throws InterruptedException if the thread is interrupted while waiting for the encoding in progress
+	 */
+	public void closeStack() throws InterruptedException {
+		if (stack == null)
+			return;
+		stack.close();
+		stack = null;
+		try {
+			Task task = python.task("globals().pop('slice_cache', None)" + System.lineSeparator());
+			task.waitFor();
+		} catch (IOException ex) {
+			debugPrinter.printText("COULD NOT FREE THE SLICES ENCODED: " + ex);
+		}
+	}
+	
+	/**
+	 * Encode several images with a single forward pass of the EfficientSAM image encoder per batch of {@code maxBatch} images.
+	 * All the images are packed into one shared memory block, and their embeddings are kept in Python as image sessions that can
+	 * be made the ones segmented with {@link #setActiveImage(int)} without encoding them again. Encoding many images together
+	 * uses larger matrix products and sends a single task to Python, which gives a better throughput per image than
+	 * encoding them one by one. The images are normalized in Java, the compact transfer is not used for batches.
+	 * The sessions have to be freed with {@link #releaseImage(int)} once they are not needed
+	 * @param <T>
+	 * 	ImgLib2 data type of the images
+	 * @param images
+	 * 	the images, each of them a 2D image with or without channels as the ones accepted by {@link #updateImage(RandomAccessibleInterval)}
+	 * @param maxBatch
+	 * 	maximum number of images encoded in one forward pass, limited by the memory of the device
+	 * @return the key of the session of each of the images, in the same order
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	List<Integer> encodeBatch(List<RandomAccessibleInterval<T>> images, int maxBatch) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("The batches should have at least one image.");
+		List<Integer> keys = new ArrayList<Integer>();
+		if (images.size() == 0)
+			return keys;
+		long start = System.currentTimeMillis();
+		List<SliceEmbeddingRing.Slice> encoded = new ArrayList<SliceEmbeddingRing.Slice>();
+		List<RandomAccessibleInterval<?>> targets = new ArrayList<RandomAccessibleInterval<?>>();
+		long totalBytes = 0;
+		for (RandomAccessibleInterval<T> rai : images) {
+			long[] dims = rai.dimensionsAsLongArray();
+			double scale = scaleForEncoder(dims, ENCODER_SIZE);
+			RandomAccessibleInterval<?> target = rai;
+			if (downsampleInJava && scale < 1)
+				target = downsample(rai, scale, numThreads);
+			else
+				scale = 1;
+			long[] targetDims = new long[] {target.dimension(0), target.dimension(1), 3};
+			encoded.add(new SliceEmbeddingRing.Slice(nextImageKey ++, dims, targetDims, scale));
+			targets.add(target);
+			totalBytes += targetDims[0] * targetDims[1] * 3 * 4;
+		}
+		SharedMemoryArray shma = shmPool.acquire(totalBytes);
+		try {
+			String layout = "";
+			long offset = 0;
+			for (int i = 0; i < targets.size(); i ++) {
+				long[] targetDims = encoded.get(i).targetDims;
+				packForBatch(Cast.unchecked(targets.get(i)), shma.getPointer().share(offset));
+				layout += "(" + encoded.get(i).key + ", " + offset + ", " + targetDims[0] + ", " + targetDims[1] + "), ";
+				offset += targetDims[0] * targetDims[1] * 3 * 4;
+			}
+			String code = "" + System.lineSeparator()
+					+ "import types" + System.lineSeparator()
+					+ "globals().setdefault('image_sessions', {})" + System.lineSeparator()
+					+ "batch_shm = attach_shm(name='" + shma.getNameForPython() + "', size=" + shma.getSize() + ")" + System.lineSeparator()
+					+ "batch_layout = [" + layout + "]" + System.lineSeparator()
+					+ "for b in range(0, len(batch_layout), " + maxBatch + "):" + System.lineSeparator()
+					+ "  chunk = batch_layout[b:b + " + maxBatch + "]" + System.lineSeparator()
+					+ "  with torch.no_grad():" + System.lineSeparator()
+					+ "    batch_list = []" + System.lineSeparator()
+					+ "    for _, off, h, w in chunk:" + System.lineSeparator()
+					+ "      batch_list.append(predictor.preprocess(torch.from_numpy(np.ascontiguousarray(np.ndarray(3 * h * w, dtype='float32', buffer=batch_shm.buf, offset=off)" + System.lineSeparator()
+					+ "          .reshape([3, w, h]).transpose(0, 2, 1)))[None, ...]))" + System.lineSeparator()
+					+ "    batch_in = torch.cat(batch_list)" + System.lineSeparator()
+					+ "    batch_embeddings = predictor.image_encoder(batch_in)" + System.lineSeparator()
+					+ "  for i, (key, _, h, w) in enumerate(chunk):" + System.lineSeparator()
+					+ "    image_sessions[key] = (batch_embeddings[i:i + 1], h, w)" + System.lineSeparator()
+					+ "task.update('" + images.size() + " IMAGES ENCODED')" + System.lineSeparator();
+			printScript(code, "Batched encoding");
+			SamJEvents.Span taskSpan = SamJEvents.begin(SamJEvents.Kind.PYTHON_TASK, modelName).operation("encode batch").bytes(shma.getSize());
+			runTask(python, code, "encode batch", taskSpan, SamJMetrics.Stage.ENCODER);
+			metrics.increment(modelName, "encodings", images.size());
+		} finally {
+			shmPool.release(shma);
+		}
+		for (SliceEmbeddingRing.Slice image : encoded) {
+			imageSessions.put(image.key, image);
+			keys.add(image.key);
+		}
+		debugPrinter.printText("encodeBatch() encoded " + images.size() + " images in " + (System.currentTimeMillis() - start) + " ms");
+		return keys;
+	}
+
+	private <T extends RealType<T> & NativeType<T>>
+	void packForBatch(RandomAccessibleInterval<T> targetImg, Pointer target) {
+		if (writeChannelsPlanar(targetImg, target, false))
+			return;
+		// images not backed by primitive arrays are converted by ImgLib2 and then copied in bulk
+		ArrayImg<FloatType, FloatArray> converted = ArrayImgs.floats(targetImg.dimension(0), targetImg.dimension(1), 3);
+		long conversionStart = System.nanoTime();
+		adaptImageToModel(targetImg, converted);
+		long copyStart = System.nanoTime();
+		metrics.record(modelName, SamJMetrics.Stage.CONVERSION, copyStart - conversionStart);
+		float[] data = converted.update(null).getCurrentStorageArray();
+		target.write(0, data, 0, data.length);
+		metrics.recordSince(modelName, SamJMetrics.Stage.SHM_COPY, copyStart);
+	}
+
+	/**
+	 * Make one of the images encoded with {@link #encodeBatch(List, int)} the image segmented by EfficientSAM
+	 * @param key
+	 * 	the key of the session of the image
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void setActiveImage(int key) throws IOException, RuntimeException, InterruptedException {
+		SliceEmbeddingRing.Slice image = imageSessions.get(key);
+		if (image == null)
+			throw new IllegalArgumentException("There is no image session with key " + key + ".");
+		activateEmbeddings("image_sessions[" + key + "]", image, "");
+	}
+
+	/**
+	 * Free the embeddings of an image encoded with {@link #encodeBatch(List, int)}. If it is the active image
+	 * it can still be segmented until another image is set
+	 * @param key
+	 * 	the key of the session of the image
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	public void releaseImage(int key) throws IOException, InterruptedException {
+		if (imageSessions.remove(key) == null)
+			return;
+		Task task = python.task("globals().setdefault('image_sessions', {}).pop(" + key + ", None)" + System.lineSeparator());
+		task.waitFor();
+	}
+	
+	private <T extends RealType<T> & NativeType<T>>
+	SliceEmbeddingRing.Slice encodeSlice(RandomAccessibleInterval<T> rai, int key, String prelude, boolean background) 
+			throws IOException, RuntimeException, InterruptedException {
+		long[] dims = rai.dimensionsAsLongArray();
+		double scale = scaleForEncoder(dims, ENCODER_SIZE);
+		EncoderInput input;
+		if (downsampleInJava && scale < 1) {
+			input = prepareInput(downsample(rai, scale, numThreads));
+		} else {
+			scale = 1;
+			input = prepareInput(rai);
+		}
+		String code = prelude + input.code
+				+ "with torch.no_grad():" + System.lineSeparator()
+				+ "  slice_embeddings = predictor.image_encoder(predictor.preprocess(im[None, ...]))" + System.lineSeparator()
+				+ "slice_cache[" + key + "] = (slice_embeddings, input_h, input_w)" + System.lineSeparator();
+		try {
+			printScript(code, "Background encoding of a slice");
+			SamJEvents.Span taskSpan = SamJEvents.begin(SamJEvents.Kind.PYTHON_TASK, modelName).operation("encode slice").image(dims);
+			// the profilers are global to the Python process, only the encodings the user waits for are profiled
+			runTask(python, code, "encode slice", null, taskSpan, SamJMetrics.Stage.ENCODER, !background, null);
+			metrics.increment(modelName, "encodings", 1);
+		} finally {
+			shmPool.release(input.shma);
+		}
+		return new SliceEmbeddingRing.Slice(key, dims, input.targetDims, scale);
+	}
+	
+	private void activateSlice(SliceEmbeddingRing.Slice slice, String prelude) 
+			throws IOException, RuntimeException, InterruptedException {
+		activateEmbeddings("slice_cache[" + slice.key + "]", slice, prelude);
+	}
+	
+	/**
+	 * Make embeddings stored in Python the ones used by the predictor
+	 * @param entry
+	 * 	Python expression with the embeddings
+	 * @param slice
+	 * 	information of the image encoded
+	 * @param prelude
+	 * 	Python code that has to run before the activation
+	 * @throws IOException if any of the files to run a Python process is missing
+	 * @throws RuntimeException if there is any error running the Python code
+	 * @throws InterruptedException if the process is interrupted
+	 */
+	private void activateEmbeddings(String entry, SliceEmbeddingRing.Slice slice, String prelude) 
+			throws IOException, RuntimeException, InterruptedException {
+		String code = prelude
+				+ "predictor.encoded_images = " + entry + "[0]" + System.lineSeparator()
+				+ "globals()['input_h'] = " + entry + "[1]" + System.lineSeparator()
+				+ "globals()['input_w'] = " + entry + "[2]" + System.lineSeparator();
+		printScript(code, "Activation of a slice");
+		SamJEvents.Span taskSpan = SamJEvents.begin(SamJEvents.Kind.PYTHON_TASK, modelName).operation("activate slice").image(slice.imageDims);
+		runTask(python, code, "activate slice", null, taskSpan, null, false, null);
+		this.imageDims = slice.imageDims;
+		this.targetDims = slice.targetDims;
+		this.modelScale = slice.modelScale;
+	}
+	
 	/**
 	 * Encode an image (n-dimensional array) with an EfficientSAM model
 	 * @param <T>
@@ -253,69 +607,90 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	void addImage(RandomAccessibleInterval<T> rai) 
 			throws IOException, RuntimeException, InterruptedException{
 		this.script = "";
-		sendImgLib2AsNp(rai);
+		this.imageDims = rai.dimensionsAsLongArray();
+		double scale = scaleForEncoder(imageDims, ENCODER_SIZE);
+		if (downsampleInJava && scale < 1 && (Object) rai != sharedInputImg) {
+			debugPrinter.printText("DOWNSAMPLING THE IMAGE IN JAVA BY " + scale);
+			this.modelScale = scale;
+			sendImgLib2AsNp(downsample(rai, scale, numThreads));
+		} else {
+			this.modelScale = 1;
+			sendImgLib2AsNp(rai);
+		}
 		this.script += ""
 				+ "task.update(str(im.shape))" + System.lineSeparator()
 				+ "aa = predictor.get_image_embeddings(im[None, ...])";
 		try {
 			printScript(script, "Creation of initial embeddings");
-			Task task = python.task(script);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException();
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException();
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException();
-			this.shma.close();
+			SamJEvents.Span taskSpan = SamJEvents.begin(SamJEvents.Kind.PYTHON_TASK, modelName).operation("encode").image(imageDims);
+			runTask(python, script, "encode", taskSpan, SamJMetrics.Stage.ENCODER);
+			metrics.increment(modelName, "encodings", 1);
 		} catch (IOException | InterruptedException | RuntimeException e) {
 			try {
-				this.shma.close();
+				releaseEncoderInput();
 			} catch (IOException e1) {
 				throw new IOException(e.toString() + System.lineSeparator() + e1.toString());
 			}
 			throw e;
 		}
+		releaseEncoderInput();
+	}
+	
+	/**
+	 * Give back to the pool the shared memory segment used to send the image to the encoder. The field is cleared
+	 * first so the same segment is never released twice
+	 * @throws IOException if the segment cannot be closed
+	 */
+	private void releaseEncoderInput() throws IOException {
+		SharedMemoryArray input = this.shma;
+		this.shma = null;
+		shmPool.release(input);
 	}
 	
 	private List<Polygon> processAndRetrieveContours(HashMap<String, Object> inputs) 
 			throws IOException, RuntimeException, InterruptedException {
-		Map<String, Object> results = null;
-		try {
-			Task task = python.task(script, inputs);
-			task.waitFor();
-			if (task.status == TaskStatus.CANCELED)
-				throw new RuntimeException();
-			else if (task.status == TaskStatus.FAILED)
-				throw new RuntimeException();
-			else if (task.status == TaskStatus.CRASHED)
-				throw new RuntimeException();
-			else if (task.status != TaskStatus.COMPLETE)
-				throw new RuntimeException();
-			else if (task.outputs.get("contours_x") == null)
-				throw new RuntimeException();
-			else if (task.outputs.get("contours_y") == null)
-				throw new RuntimeException();
-			results = task.outputs;
-		} catch (IOException | InterruptedException | RuntimeException e) {
-			try {
-				this.shma.close();
-			} catch (IOException e1) {
-				throw new IOException(e.toString() + System.lineSeparator() + e1.toString());
-			}
-			throw e;
-		}
+		return processAndRetrieveContours(inputs, null);
+	}
+	
+	private List<Polygon> processAndRetrieveContours(HashMap<String, Object> inputs, Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
+		return processAndRetrieveContours(inputs, partialResults, null);
+	}
+	
+	private List<Polygon> processAndRetrieveContours(HashMap<String, Object> inputs, Consumer<List<Polygon>> partialResults,
+			List<Integer> promptOfEachPolygon) throws IOException, RuntimeException, InterruptedException {
+		if (inputs == null)
+			inputs = new HashMap<String, Object>();
+		inputs.put("stream_results", partialResults != null);
+		final Consumer<List<Polygon>> imageSpaceResults = toImageSpace(partialResults);
+		final List<Polygon> streamedPolys = Collections.synchronizedList(new ArrayList<Polygon>());
+		final SamJMetrics.TaskTimeline timeline = metrics.startTask(modelName);
+		final SamJEvents.Span taskSpan = SamJEvents.begin(SamJEvents.Kind.PYTHON_TASK, modelName).operation("prompt").image(imageDims);
+		final Task task = runTask(python, script, "prompt", inputs, taskSpan, null, true, event -> {
+			timeline.onEvent(event);
+			if (imageSpaceResults != null)
+				streamPolygon(event, streamedPolys, imageSpaceResults);
+		});
+		if (task.outputs.get("contours_x") == null || task.outputs.get("contours_y") == null)
+			throw new RuntimeException("The prompt task of " + modelName + " did not return the contours.");
+		final Map<String, Object> results = task.outputs;
+		timeline.finish();
 
-		final List<List<Number>> contours_x_container = (List<List<Number>>)results.get("contours_x");
-		final Iterator<List<Number>> contours_x = contours_x_container.iterator();
-		final Iterator<List<Number>> contours_y = ((List<List<Number>>)results.get("contours_y")).iterator();
-		final List<Polygon> polys = new ArrayList<>(contours_x_container.size());
-		while (contours_x.hasNext()) {
-			int[] xArr = contours_x.next().stream().mapToInt(Number::intValue).toArray();
-			int[] yArr = contours_y.next().stream().mapToInt(Number::intValue).toArray();
-			polys.add( new Polygon(xArr, yArr, xArr.length) );
-		}
-		return polys;
+		final long polygonsStart = System.nanoTime();
+		final SamJEvents.Span postSpan = SamJEvents.begin(SamJEvents.Kind.POST_PROCESSING, modelName).image(imageDims);
+		// the polygons already streamed are not repeated in the outputs of the task
+		final List<Polygon> polys = new ArrayList<Polygon>(streamedPolys);
+		polys.addAll(contoursToPolygons((List<List<Number>>) results.get("contours_x"),
+				(List<List<Number>>) results.get("contours_y")));
+		if (promptOfEachPolygon != null)
+			for (Number prompt : (List<Number>) results.get("contours_prompt"))
+				promptOfEachPolygon.add(prompt.intValue());
+		final List<Polygon> imagePolys = toImageSpace(polys);
+		metrics.recordSince(modelName, SamJMetrics.Stage.POLYGON_BUILDING, polygonsStart);
+		postSpan.polygons(imagePolys).end();
+		metrics.increment(modelName, "decodings", 1);
+		metrics.increment(modelName, "polygons", imagePolys.size());
+		return imagePolys;
 	}
 	
 	/**
@@ -335,38 +710,69 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	 */
 	public <T extends RealType<T> & NativeType<T>>
 	List<Polygon> processMask(RandomAccessibleInterval<T> img) throws IOException, RuntimeException, InterruptedException {
+		return processMask(img, null);
+	}
+	
+	/**
+	 * Method used that runs EfficientSAM using a mask as the prompt. The mask should be a 2D single-channel
+	 * image {@link RandomAccessibleInterval} of the same x and y sizes as the image of interest.
+	 * Each of the polygons found is sent to the consumer provided as soon as its contour has been traced,
+	 * without waiting for the rest of the labels of the mask to be processed.
+	 * 
+	 * @param <T>
+	 * 	ImgLib2 datatype of the mask
+	 * @param img
+	 * 	mask used as the prompt
+	 * @param partialResults
+	 * 	consumer that receives each of the polygons as soon as it is available, it can be null
+	 * @return a list of polygons where each polygon is the contour of a mask that has been found by EfficientSAM
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>>
+	List<Polygon> processMask(RandomAccessibleInterval<T> img, Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
+		img = toModelSpace(img);
 		long[] dims = img.dimensionsAsLongArray();
-		if (dims.length == 2 && dims[1] == this.shma.getOriginalShape()[1] && dims[0] == this.shma.getOriginalShape()[0]) {
+		if (dims.length == 2 && dims[1] == this.targetDims[1] && dims[0] == this.targetDims[0]) {
 			img = Views.permute(img, 0, 1);
-		} else if (dims.length != 2 && dims[0] != this.shma.getOriginalShape()[1] && dims[1] != this.shma.getOriginalShape()[0]) {
+		} else if (dims.length != 2 && dims[0] != this.targetDims[1] && dims[1] != this.targetDims[0]) {
 			throw new IllegalArgumentException("The provided mask should be a 2d image with just one channel of width "
-					+ this.shma.getOriginalShape()[1] + " and height " + this.shma.getOriginalShape()[0]);
+					+ this.targetDims[1] + " and height " + this.targetDims[0]);
 		}
-		SharedMemoryArray maskShma = SharedMemoryArray.buildSHMA(img);
+		SharedMemoryArray maskShma = maskToSharedMemory(img);
 		try {
-			return processMask(maskShma);
-		} catch (IOException | RuntimeException | InterruptedException ex) {
-			maskShma.close();
-			throw ex;
+			return processMask(maskShma, img.dimensionsAsLongArray(), partialResults);
+		} finally {
+			shmPool.release(maskShma);
 		}
 	}
 	
-	private List<Polygon> processMask(SharedMemoryArray shmArr) throws IOException, RuntimeException, InterruptedException {
+	private List<Polygon> processMask(SharedMemoryArray shmArr, long[] shape, Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
 		this.script = "";
-		processMasksWithSam(shmArr);
+		processMasksWithSam(shmArr, shape);
 		printScript(script, "Pre-computed mask inference");
-		List<Polygon> polys = processAndRetrieveContours(null);
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SEGMENTATION, modelName).operation("mask").image(imageDims).prompts(1);
+		List<Polygon> polys;
+		try {
+			polys = processAndRetrieveContours(null, partialResults);
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		}
+		span.polygons(polys).end();
 		debugPrinter.printText("processMask() obtained " + polys.size() + " polygons");
 		return polys;
 	}
 	
-	private void processMasksWithSam(SharedMemoryArray shmArr) {
+	private void processMasksWithSam(SharedMemoryArray shmArr, long[] shape) {
 		String code = "";
-		code += "shm_mask = shared_memory.SharedMemory(name='" + shmArr.getNameForPython() + "')" + System.lineSeparator();
-		code += "mask = np.frombuffer(buffer=shm_mask.buf, dtype='" + shmArr.getOriginalDataType() + "').reshape([";
-		for (long l : shmArr.getOriginalShape()) 
-			code += l + ",";
-		code += "])" + System.lineSeparator();
+		// the segment belongs to the pool, Python only attaches to it and never unlinks it
+		code += "shm_mask = attach_shm(name='" + shmArr.getNameForPython() + "', size=" + shmArr.getSize() + ")" + System.lineSeparator();
+		code += "mask = np.ndarray(" + (shape[0] * shape[1]) + ", dtype='float32', buffer=shm_mask.buf).reshape(["
+				+ shape[0] + ", " + shape[1] + "])" + System.lineSeparator();
 		code += "different_mask_vals = np.unique(mask)" + System.lineSeparator();
 		//code += "print(different_mask_vals)" + System.lineSeparator();
 		code += "cont_x = []" + System.lineSeparator();
@@ -401,18 +807,30 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 			  + "  predicted_iou = torch.take_along_dim(predicted_iou, sorted_ids, dim=2)" + System.lineSeparator()
 			  + "  predicted_logits = torch.take_along_dim(predicted_logits, sorted_ids[..., None, None], dim=2)" + System.lineSeparator()
 			  + "  mask_val = torch.ge(predicted_logits[0, 0, 0, :, :], 0).cpu().detach().numpy()" + System.lineSeparator()
-			  + "  cont_x_val,cont_y_val = get_polygons_from_binary_mask(mask_val)" + System.lineSeparator()
+			  + "  cont_x_val,cont_y_val = get_polygons_from_binary_mask(mask_val, stream_task=(task if stream_results else None))" + System.lineSeparator()
 			  + "  cont_x += cont_x_val" + System.lineSeparator()
 			  + "  cont_y += cont_y_val" + System.lineSeparator()
 			  + "task.update('all contours traced')" + System.lineSeparator()
 			  + "task.outputs['contours_x'] = cont_x" + System.lineSeparator()
 			  + "task.outputs['contours_y'] = cont_y" + System.lineSeparator();
 		code += "mask = 0" + System.lineSeparator();
-		code += "shm_mask.close()" + System.lineSeparator();
-		code += "shm_mask.unlink()" + System.lineSeparator();
 		this.script = code;
 	}
 	
+	private void streamPolygon(TaskEvent event, List<Polygon> streamedPolys, Consumer<List<Polygon>> partialResults) {
+		if (event.responseType != ResponseType.UPDATE)
+			return;
+		try {
+			Polygon poly = parseStreamedPolygon(event.task.message);
+			if (poly == null)
+				return;
+			streamedPolys.add(new Polygon(poly.xpoints, poly.ypoints, poly.npoints));
+			partialResults.accept(Collections.singletonList(poly));
+		} catch (RuntimeException ex) {
+			debugPrinter.printText("Unable to stream a partial result: " + ex.toString());
+		}
+	}
+	
 	/**
 	 * Method used that runs EfficientSAM using a list of points as the prompt. This method runs
 	 * the prompt encoder and the EfficientSAM decoder only, the image encoder was run when the model
@@ -431,9 +849,17 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 		this.script = "";
 		processPointsWithSAM(pointsList.size(), 0);
 		HashMap<String, Object> inputs = new HashMap<String, Object>();
-		inputs.put("input_points", pointsList);
+		inputs.put("input_points", toModelSpace(pointsList));
 		printScript(script, "Points inference");
-		List<Polygon> polys = processAndRetrieveContours(inputs);
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SEGMENTATION, modelName).operation("points").image(imageDims).prompts(pointsList.size());
+		List<Polygon> polys;
+		try {
+			polys = processAndRetrieveContours(inputs);
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		}
+		span.polygons(polys).end();
 		debugPrinter.printText("processPoints() obtained " + polys.size() + " polygons");
 		return polys;
 	}
@@ -456,13 +882,42 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	 */
 	public List<Polygon> processPoints(List<int[]> pointsList, List<int[]> pointsNegList)
 			throws IOException, RuntimeException, InterruptedException{
+		return processPoints(pointsList, pointsNegList, null);
+	}
+	
+	/**
+	 * Method used that runs EfficientSAM using a list of points as the prompt and a list of points as the negative prompt.
+	 * Each of the polygons found is sent to the consumer provided as soon as its contour has been traced,
+	 * without waiting for the rest of the polygons.
+	 * @param pointsList
+	 * 	the list of points that serve as a prompt for EfficientSAM. Each point is an int array
+	 * 	of length 2, first position is x-axis, second y-axis
+	 * @param pointsNegList
+	 * 	the list of points that does not point to the instance of interest, but the background. It can be empty
+	 * @param partialResults
+	 * 	consumer that receives each of the polygons as soon as it is available, it can be null
+	 * @return a list of polygons where each polygon is the contour of a mask that has been found by EfficientSAM
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Polygon> processPoints(List<int[]> pointsList, List<int[]> pointsNegList, Consumer<List<Polygon>> partialResults)
+			throws IOException, RuntimeException, InterruptedException{
 		this.script = "";
 		processPointsWithSAM(pointsList.size(), pointsNegList.size());
 		HashMap<String, Object> inputs = new HashMap<String, Object>();
-		inputs.put("input_points", pointsList);
-		inputs.put("input_neg_points", pointsNegList);
+		inputs.put("input_points", toModelSpace(pointsList));
+		inputs.put("input_neg_points", toModelSpace(pointsNegList));
 		printScript(script, "Points and negative points inference");
-		List<Polygon> polys = processAndRetrieveContours(inputs);
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SEGMENTATION, modelName).operation("points").image(imageDims).prompts(pointsList.size() + pointsNegList.size());
+		List<Polygon> polys;
+		try {
+			polys = processAndRetrieveContours(inputs, partialResults);
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		}
+		span.polygons(polys).end();
 		debugPrinter.printText("processPoints() obtained " + polys.size() + " polygons");
 		return polys;
 	}
@@ -482,16 +937,187 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	 */
 	public List<Polygon> processBox(int[] boundingBox)
 			throws IOException, RuntimeException, InterruptedException {
+		return processBox(boundingBox, null);
+	}
+	
+	/**
+	 * Method used that runs EfficientSAM using a bounding box as the prompt. The bounding box should
+	 * be a int array of length 4 of the form [x0, y0, x1, y1].
+	 * Each of the polygons found is sent to the consumer provided as soon as its contour has been traced,
+	 * without waiting for the rest of the polygons.
+	 * 
+	 * @param boundingBox
+	 * 	the bounding box that serves as the prompt for EfficientSAM
+	 * @param partialResults
+	 * 	consumer that receives each of the polygons as soon as it is available, it can be null
+	 * @return a list of polygons where each polygon is the contour of a mask that has been found by EfficientSAM
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Polygon> processBox(int[] boundingBox, Consumer<List<Polygon>> partialResults)
+			throws IOException, RuntimeException, InterruptedException {
 		this.script = "";
 		processBoxWithSAM();
 		HashMap<String, Object> inputs = new HashMap<String, Object>();
-		inputs.put("input_box", boundingBox);
+		inputs.put("input_box", toModelSpace(boundingBox));
 		printScript(script, "Rectangle inference");
-		List<Polygon> polys = processAndRetrieveContours(inputs);
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SEGMENTATION, modelName).operation("box").image(imageDims).prompts(1);
+		List<Polygon> polys;
+		try {
+			polys = processAndRetrieveContours(inputs, partialResults);
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		}
+		span.polygons(polys).end();
 		debugPrinter.printText("processBox() obtained " + polys.size() + " polygons");
 		return polys;
 	}
 
+	/**
+	 * Method used that runs EfficientSAM on several bounding boxes at once, for example one per object of interest.
+	 * All the boxes are decoded in a single batch by the EfficientSAM decoder, which is much faster than
+	 * calling {@link #processBox(int[])} once per box. Each bounding box should be a int array of length 4 of the form [x0, y0, x1, y1].
+	 * 
+	 * @param boundingBoxes
+	 * 	the bounding boxes that serve as the prompts for EfficientSAM
+	 * @return for each of the bounding boxes, in the same order, the list of polygons that are the contour of the mask found for it
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<List<Polygon>> processBoxes(List<int[]> boundingBoxes)
+			throws IOException, RuntimeException, InterruptedException {
+		return processBoxes(boundingBoxes, null);
+	}
+
+	/**
+	 * Method used that runs EfficientSAM on several bounding boxes at once, each of them together with a point inside of the object,
+	 * for example the centroid of the mask of the object on the previous frame of a time series.
+	 * All the prompts are decoded in a single batch. Each bounding box should be a int array of length 4 of the form [x0, y0, x1, y1]
+	 * and each point an int array of length 2 of the form [x, y].
+	 * 
+	 * @param boundingBoxes
+	 * 	the bounding boxes that serve as the prompts for EfficientSAM
+	 * @param points
+	 * 	one point of the object per bounding box, in the same order, or null to use only the bounding boxes
+	 * @return for each of the bounding boxes, in the same order, the list of polygons that are the contour of the mask found for it
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<List<Polygon>> processBoxes(List<int[]> boundingBoxes, List<int[]> points)
+			throws IOException, RuntimeException, InterruptedException {
+		if (points != null && points.size() != boundingBoxes.size())
+			throw new IllegalArgumentException("One point is needed for each of the bounding boxes.");
+		List<List<Polygon>> results = new ArrayList<List<Polygon>>(boundingBoxes.size());
+		for (int i = 0; i < boundingBoxes.size(); i ++)
+			results.add(new ArrayList<Polygon>());
+		if (boundingBoxes.size() == 0)
+			return results;
+		this.script = "";
+		processBoxesWithSAM();
+		HashMap<String, Object> inputs = new HashMap<String, Object>();
+		inputs.put("input_boxes", toModelSpace(boundingBoxes));
+		inputs.put("input_centers", points == null ? new ArrayList<int[]>() : toModelSpace(points));
+		printScript(script, "Batched rectangles inference");
+		List<Integer> promptOfEachPolygon = new ArrayList<Integer>();
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SEGMENTATION, modelName).operation("boxes").image(imageDims).prompts(boundingBoxes.size());
+		List<Polygon> polys;
+		try {
+			polys = processAndRetrieveContours(inputs, null, promptOfEachPolygon);
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		}
+		span.polygons(polys).end();
+		for (int i = 0; i < polys.size(); i ++)
+			results.get(promptOfEachPolygon.get(i)).add(polys.get(i));
+		debugPrinter.printText("processBoxes() obtained " + polys.size() + " polygons for " + boundingBoxes.size() + " boxes");
+		return results;
+	}
+
+	/**
+	 * Method used that runs EfficientSAM automatically on the whole image, without any prompt from the user ("segment everything").
+	 * A regular grid of point prompts is decoded in batches of {@link #AUTO_POINTS_PER_BATCH} points. The masks obtained are
+	 * filtered by their predicted quality and stability, and the duplicates are removed with non-maximum suppression.
+	 * This method runs the prompt encoder and the EfficientSAM decoder only, the image encoder was run when the model
+	 * was initialized with the image.
+	 * 
+	 * @param partialResults
+	 * 	consumer that receives each of the polygons as soon as it is available, it can be null
+	 * @return a list of polygons where each polygon is the contour of a mask that has been found by EfficientSAM
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Polygon> processAutomaticSegmentation(Consumer<List<Polygon>> partialResults)
+			throws IOException, RuntimeException, InterruptedException {
+		return processAutomaticSegmentation(AUTO_POINTS_PER_SIDE, AUTO_POINTS_PER_BATCH, AUTO_PRED_IOU_THRESH,
+				AUTO_STABILITY_SCORE_THRESH, AUTO_BOX_NMS_THRESH, AUTO_MIN_MASK_AREA, partialResults);
+	}
+
+	/**
+	 * Method used that runs EfficientSAM automatically on the whole image, without any prompt from the user ("segment everything").
+	 * A regular grid of point prompts is decoded in batches. The masks obtained are filtered by their predicted quality
+	 * and stability, and the duplicates are removed with non-maximum suppression.
+	 * Only the low resolution masks of one batch are kept in memory at the same time, so the memory used does not depend
+	 * on the number of objects in the image.
+	 * 
+	 * @param pointsPerSide
+	 * 	number of points per side of the grid of point prompts, the total number of prompts is its square
+	 * @param pointsPerBatch
+	 * 	number of point prompts that are decoded at the same time
+	 * @param predIouThresh
+	 * 	minimum quality (IoU) predicted by the model for a mask to be kept
+	 * @param stabilityScoreThresh
+	 * 	minimum stability score for a mask to be kept
+	 * @param boxNmsThresh
+	 * 	maximum IoU between the bounding boxes of two masks for both of them to be kept
+	 * @param minMaskArea
+	 * 	minimum number of pixels of the masks kept
+	 * @param partialResults
+	 * 	consumer that receives each of the polygons as soon as it is available, it can be null
+	 * @return a list of polygons where each polygon is the contour of a mask that has been found by EfficientSAM
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Polygon> processAutomaticSegmentation(int pointsPerSide, int pointsPerBatch, double predIouThresh,
+			double stabilityScoreThresh, double boxNmsThresh, int minMaskArea, Consumer<List<Polygon>> partialResults)
+			throws IOException, RuntimeException, InterruptedException {
+		if (pointsPerSide < 1 || pointsPerBatch < 1)
+			throw new IllegalArgumentException("The number of points per side and per batch should be positive.");
+		final int nPoints = pointsPerSide * pointsPerSide;
+		final List<Polygon> polys = new ArrayList<Polygon>();
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SEGMENTATION, modelName).operation("automatic").image(imageDims).prompts(nPoints);
+		try {
+			for (int start = 0; start < nPoints; start += pointsPerBatch) {
+				this.script = "";
+				processAutomaticWithSAM();
+				HashMap<String, Object> inputs = new HashMap<String, Object>();
+				inputs.put("auto_new_run", start == 0);
+				inputs.put("points_per_side", pointsPerSide);
+				inputs.put("batch_start", start);
+				inputs.put("batch_end", Math.min(start + pointsPerBatch, nPoints));
+				inputs.put("pred_iou_thresh", predIouThresh);
+				inputs.put("stability_score_thresh", stabilityScoreThresh);
+				inputs.put("box_nms_thresh", boxNmsThresh);
+				inputs.put("min_mask_area", (int) Math.ceil(minMaskArea * modelScale * modelScale));
+				if (start == 0)
+					printScript(script, "Automatic segmentation");
+				polys.addAll(processAndRetrieveContours(inputs, partialResults));
+			}
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			span.status(e.getClass().getSimpleName()).end();
+			throw e;
+		}
+		span.polygons(polys).end();
+		debugPrinter.printText("processAutomaticSegmentation() obtained " + polys.size() + " polygons");
+		return polys;
+	}
+
 
 	@Override
 	/**
@@ -499,35 +1125,154 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 	 * Close the Python process and clean the memory
 	 */
 	public void close() {
+		try {
+			if (stack != null) stack.close();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
 		if (python != null) python.close();
 	}
 	
 	private <T extends RealType<T> & NativeType<T>> 
 	void sendImgLib2AsNp(RandomAccessibleInterval<T> targetImg) {
-		shma = createEfficientSAMInputSHM(targetImg);
-		adaptImageToModel(targetImg, shma.getSharedRAI());
+		EncoderInput input = prepareInput(targetImg);
+		sharedInputImg = null;
+		sharedInputShma = null;
+		shma = input.shma;
+		targetDims = input.targetDims;
+		this.script += IMPORTS_FORMATED + input.code;
+		this.script += "globals()['input_h'] = input_h" + System.lineSeparator();
+		this.script += "globals()['input_w'] = input_w" + System.lineSeparator();
+	}
+	
+	/**
+	 * Copy an image into shared memory in the format required by the model, without modifying the state
+	 * of the instance, so it can also be used to encode images in the background
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param targetImg
+	 * 	the image
+	 * @return the shared memory segment with the image and the Python code that reads it as {@code im}
+	 */
+	private <T extends RealType<T> & NativeType<T>>
+	EncoderInput prepareInput(RandomAccessibleInterval<T> targetImg) {
+		SharedMemoryArray shma;
+		long[] targetDims;
+		boolean channelsFirst = false;
+		String dtype = "float32";
+		String normalizationCode = "";
+		PrimitiveChannels compactData = compactTransfer ? PrimitiveChannels.of(targetImg) : null;
+		if (sharedInputImg != null && (Object) targetImg == sharedInputImg) {
+			debugPrinter.printText("IMAGE ALREADY IN SHARED MEMORY, no copy needed");
+			shma = sharedInputShma;
+			targetDims = targetImg.dimensionsAsLongArray();
+		} else if (!isPercentileNormalization() && isInTransferLayout(targetImg)) {
+			debugPrinter.printText("IMAGE ALREADY IN THE TRANSFER LAYOUT, copying it in bulk");
+			shma = createEfficientSAMInputSHM(targetImg);
+			float[] data = ((FloatArray) ((ArrayImg<?, ?>) targetImg).update(null)).getCurrentStorageArray();
+			long copyStart = System.nanoTime();
+			shma.getPointer().write(0, data, 0, data.length);
+			metrics.recordSince(modelName, SamJMetrics.Stage.SHM_COPY, copyStart);
+			targetDims = targetImg.dimensionsAsLongArray();
+			channelsFirst = true;
+		} else if (compactData != null && (compactData.numChannels() == 1 || compactData.numChannels() == 3)) {
+			debugPrinter.printText("SENDING THE IMAGE IN ITS OWN DATA TYPE, it is normalized in Python");
+			targetDims = new long[] {targetImg.dimension(0), targetImg.dimension(1), compactData.numChannels()};
+			shma = shmPool.acquire(compactData.numBytes());
+			long copyStart = System.nanoTime();
+			compactData.copyTo(shma.getPointer());
+			metrics.recordSince(modelName, SamJMetrics.Stage.SHM_COPY, copyStart);
+			dtype = compactData.numpyDataType();
+			normalizationCode = compactNormalizationCode(targetImg, false);
+			channelsFirst = true;
+		} else {
+			shma = createEfficientSAMInputSHM(targetImg);
+			channelsFirst = writeChannelsPlanar(targetImg, shma.getPointer(), false);
+			if (!channelsFirst) {
+				// images not backed by primitive arrays are converted by ImgLib2 and then copied in bulk
+				ArrayImg<FloatType, FloatArray> converted = ArrayImgs.floats(targetImg.dimension(0), targetImg.dimension(1), 3);
+				long conversionStart = System.nanoTime();
+				adaptImageToModel(targetImg, converted);
+				long copyStart = System.nanoTime();
+				metrics.record(modelName, SamJMetrics.Stage.CONVERSION, copyStart - conversionStart);
+				float[] data = converted.update(null).getCurrentStorageArray();
+				shma.getPointer().write(0, data, 0, data.length);
+				metrics.recordSince(modelName, SamJMetrics.Stage.SHM_COPY, copyStart);
+				channelsFirst = true;
+			}
+			targetDims = new long[] {targetImg.dimension(0), targetImg.dimension(1), 3};
+		}
 		String code = "";
 		// This line wants to recreate the original numpy array. Should look like:
 		// input0_appose_shm = shared_memory.SharedMemory(name=input0)
 		// input0 = np.ndarray(size, dtype="float64", buffer=input0_appose_shm.buf).reshape([64, 64])
-		code += IMPORTS_FORMATED+"im_shm = shared_memory.SharedMemory(name='"
+		// the segment belongs to Java, Python only attaches to it and never unlinks it
+		code += "im_shm = attach_shm(name='"
 							+ shma.getNameForPython() + "', size=" + shma.getSize() 
 							+ ")" + System.lineSeparator();
 		int size = 1;
 		for (long l : targetDims) {size *= l;}
-		code += "im = np.ndarray(" + size + ", dtype='float32', buffer=im_shm.buf).reshape([";
-		for (long ll : targetDims)
-			code += ll + ", ";
-		code = code.substring(0, code.length() - 2);
-		code += "])" + System.lineSeparator();
+		code += "im = np.ndarray(" + size + ", dtype='" + dtype + "', buffer=im_shm.buf).reshape([";
+		if (channelsFirst) {
+			// the ImgLib2 flat order is the numpy order of the reversed shape
+			for (int i = targetDims.length - 1; i >= 0; i --)
+				code += targetDims[i] + ", ";
+			code = code.substring(0, code.length() - 2);
+			code += "])" + System.lineSeparator();
+			code += "im = im.transpose(2, 1, 0)" + System.lineSeparator();
+			code += normalizationCode;
+		} else {
+			for (long ll : targetDims)
+				code += ll + ", ";
+			code = code.substring(0, code.length() - 2);
+			code += "])" + System.lineSeparator();
+		}
 		code += "input_h = im.shape[0]" + System.lineSeparator();
 		code += "input_w = im.shape[1]" + System.lineSeparator();
-		code += "globals()['input_h'] = input_h" + System.lineSeparator();
-		code += "globals()['input_w'] = input_w" + System.lineSeparator();
 		code += "im = torch.from_numpy(np.transpose(im.astype('float32'), (2, 0, 1)))" + System.lineSeparator();
-		code += "im_shm.unlink()" + System.lineSeparator();
 		//code += "box_shm.close()" + System.lineSeparator();
-		this.script += code;
+		return new EncoderInput(shma, targetDims, code);
+	}
+	
+	/**
+	 * Whether the image can be sent to Python with a single bulk memory copy, that is, whether it is
+	 * a 3-channel {@link FloatType} {@link ArrayImg} already normalized between 0 and 1. Such images are
+	 * already in the format required by EfficientSAM so they do not need to be converted pixel by pixel.
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param rai
+	 * 	the image of interest
+	 * @return true if the image can be copied in bulk to the shared memory
+	 */
+	private static <T extends RealType<T> & NativeType<T>>
+	boolean isInTransferLayout(RandomAccessibleInterval<T> rai) {
+		if (!(rai instanceof ArrayImg) || rai.numDimensions() != 3 || rai.dimension(2) != 3)
+			return false;
+		if (!(Util.getTypeFromInterval(rai) instanceof FloatType) 
+				|| !(((ArrayImg<?, ?>) rai).update(null) instanceof FloatArray))
+			return false;
+		float[] data = ((FloatArray) ((ArrayImg<?, ?>) rai).update(null)).getCurrentStorageArray();
+		double[] minMax = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		PixelKernels.minMaxFloat32(data, 0, data.length, minMax);
+		return isNormalizedInterval(minMax);
+	}
+	
+	/**
+	 * Allocate an image directly in the shared memory used to send images to the Python process.
+	 * If the image returned is filled by the caller, with values between 0 and 1, and then passed to 
+	 * {@link #updateImage(RandomAccessibleInterval)}, it is sent to EfficientSAM without any copy or conversion.
+	 * The image can only be used for one update.
+	 * @param dims
+	 * 	the dimensions of the image, it should be a 3-channel 2D image, thus {@code [dim0, dim1, 3]}
+	 * @return an image backed by shared memory in the format required by EfficientSAM
+	 */
+	public RandomAccessibleInterval<FloatType> createImageInSharedMemory(long[] dims) {
+		if (dims.length != 3 || dims[2] != 3)
+			throw new IllegalArgumentException("The image allocated in shared memory should be a 3-channel 2D image.");
+		sharedInputShma = shmPool.track(SharedMemoryArray.buildMemorySegmentForImage(dims, new FloatType()));
+		RandomAccessibleInterval<FloatType> img = sharedInputShma.getSharedRAI();
+		sharedInputImg = img;
+		return img;
 	}
 	
 	private void processPointsWithSAM(int nPoints, int nNegPoints) {
@@ -562,7 +1307,7 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 				+ "task.update('end predict')" + System.lineSeparator()
 				+ "task.update(str(mask.shape))" + System.lineSeparator()
 				//+ "np.save('/temp/aa.npy', mask)" + System.lineSeparator()
-				+ "contours_x,contours_y = get_polygons_from_binary_mask(mask)" + System.lineSeparator()
+				+ "contours_x,contours_y = get_polygons_from_binary_mask(mask, stream_task=(task if stream_results else None))" + System.lineSeparator()
 				+ "task.update('all contours traced')" + System.lineSeparator()
 				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
 				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator();
@@ -591,40 +1336,110 @@ public class EfficientSamJ extends AbstractSamJ implements AutoCloseable {
 				+ "task.update('end predict')" + System.lineSeparator()
 				+ "task.update(str(mask.shape))" + System.lineSeparator()
 				//+ "np.save('/temp/aa.npy', mask)" + System.lineSeparator()
-				+ "contours_x,contours_y = get_polygons_from_binary_mask(mask)" + System.lineSeparator()
+				+ "contours_x,contours_y = get_polygons_from_binary_mask(mask, stream_task=(task if stream_results else None))" + System.lineSeparator()
 				+ "task.update('all contours traced')" + System.lineSeparator()
 				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
 				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator();
 		this.script = code;
 	}
 	
-	private static <T extends RealType<T> & NativeType<T>>
+	private void processBoxesWithSAM() {
+		String code = "" + System.lineSeparator()
+				+ "task.update('start batched predict')" + System.lineSeparator()
+				+ "input_points = torch.reshape(torch.tensor(np.array(input_boxes, dtype=np.float32)), [1, -1, 2, 2])" + System.lineSeparator()
+				+ "input_label = torch.tensor([2, 3]).repeat(1, input_points.shape[1], 1)" + System.lineSeparator()
+				+ "if len(input_centers) > 0:" + System.lineSeparator()
+				+ "  centers = torch.reshape(torch.tensor(np.array(input_centers, dtype=np.float32)), [1, -1, 1, 2])" + System.lineSeparator()
+				+ "  input_points = torch.cat([centers, input_points], dim=2)" + System.lineSeparator()
+				+ "  input_label = torch.tensor([1, 2, 3]).repeat(1, input_points.shape[1], 1)" + System.lineSeparator()
+				+ "with torch.no_grad():" + System.lineSeparator()
+				+ "  low_res_logits, iou_preds = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
+				+ "    input_points," + System.lineSeparator()
+				+ "    input_label," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    input_h=input_h," + System.lineSeparator()
+				+ "    input_w=input_w," + System.lineSeparator()
+				+ "    output_h=256," + System.lineSeparator()
+				+ "    output_w=256,)" + System.lineSeparator()
+				+ "task.update('end batched predict')" + System.lineSeparator()
+				+ "best = torch.argmax(iou_preds[0], dim=-1)" + System.lineSeparator()
+				+ "contours_x = []" + System.lineSeparator()
+				+ "contours_y = []" + System.lineSeparator()
+				+ "contours_prompt = []" + System.lineSeparator()
+				+ "for i in range(input_points.shape[1]):" + System.lineSeparator()
+				+ "  mask, ox, oy = upscale_low_res_crop(low_res_logits[0, i, best[i]], 256, 256, input_h, input_w)" + System.lineSeparator()
+				+ "  if mask is None:" + System.lineSeparator()
+				+ "    continue" + System.lineSeparator()
+				+ "  x_coords,y_coords = get_polygons_from_binary_mask(mask, 3, ox, oy, (task if stream_results else None))" + System.lineSeparator()
+				+ "  contours_x += x_coords" + System.lineSeparator()
+				+ "  contours_y += y_coords" + System.lineSeparator()
+				+ "  contours_prompt += [i] * len(x_coords)" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator()
+				+ "task.outputs['contours_prompt'] = contours_prompt" + System.lineSeparator();
+		this.script = code;
+	}
+	
+	private void processAutomaticWithSAM() {
+		String code = "" + System.lineSeparator()
+				+ "task.update('start automatic predict')" + System.lineSeparator()
+				+ "if auto_new_run:" + System.lineSeparator()
+				+ "  globals()['auto_kept_boxes'] = np.zeros((0, 4), dtype=np.int64)" + System.lineSeparator()
+				+ "  globals()['auto_grid'] = build_point_grid(points_per_side, input_h, input_w)" + System.lineSeparator()
+				+ "input_points = torch.reshape(torch.tensor(auto_grid[batch_start:batch_end], dtype=torch.float), [1, -1, 1, 2])" + System.lineSeparator()
+				+ "input_label = torch.ones((1, input_points.shape[1], 1), dtype=torch.int)" + System.lineSeparator()
+				+ "with torch.no_grad():" + System.lineSeparator()
+				+ "  low_res_logits, iou_preds = predictor.predict_masks(predictor.encoded_images," + System.lineSeparator()
+				+ "    input_points," + System.lineSeparator()
+				+ "    input_label," + System.lineSeparator()
+				+ "    multimask_output=True," + System.lineSeparator()
+				+ "    input_h=input_h," + System.lineSeparator()
+				+ "    input_w=input_w," + System.lineSeparator()
+				+ "    output_h=256," + System.lineSeparator()
+				+ "    output_w=256,)" + System.lineSeparator()
+				+ "task.update('end automatic predict')" + System.lineSeparator()
+				+ "contours_x,contours_y,kept_boxes = filter_and_trace_automatic_masks(low_res_logits[0].flatten(0, 1), iou_preds[0].flatten()," + System.lineSeparator()
+				+ "  256, 256, input_h, input_w, pred_iou_thresh, stability_score_thresh, box_nms_thresh, min_mask_area, auto_kept_boxes," + System.lineSeparator()
+				+ "  (task if stream_results else None))" + System.lineSeparator()
+				+ "globals()['auto_kept_boxes'] = kept_boxes" + System.lineSeparator()
+				+ "task.update('all contours traced')" + System.lineSeparator()
+				+ "task.outputs['contours_x'] = contours_x" + System.lineSeparator()
+				+ "task.outputs['contours_y'] = contours_y" + System.lineSeparator();
+		this.script = code;
+	}
+	
+	private <T extends RealType<T> & NativeType<T>>
 	SharedMemoryArray  createEfficientSAMInputSHM(final RandomAccessibleInterval<T> inImg) {
 		long[] dims = inImg.dimensionsAsLongArray();
 		if ((dims.length != 3 && dims.length != 2) || (dims.length == 3 && dims[2] != 3 && dims[2] != 1)){
 			throw new IllegalArgumentException("Currently SAMJ only supports 1-channel (grayscale) or 3-channel (RGB, BGR, ...) 2D images."
 					+ "The image dimensions order should be 'yxc', first dimension height, second width and third channels.");
 		}
-		return SharedMemoryArray.buildMemorySegmentForImage(new long[] {dims[0], dims[1], 3}, new FloatType());
+		return shmPool.acquire(dims[0] * dims[1] * 3 * 4);
 	}
 	
 	private <T extends RealType<T> & NativeType<T>>
 	void adaptImageToModel(final RandomAccessibleInterval<T> ogImg, RandomAccessibleInterval<FloatType> targetImg) {
 		if (ogImg.numDimensions() == 3 && ogImg.dimensionsAsLongArray()[2] == 3) {
-			for (int i = 0; i < 3; i ++) 
-				RealTypeConverters.copyFromTo( normalizedView(Views.hyperSlice(ogImg, 2, i)), Views.hyperSlice(targetImg, 2, i) );
+			// every channel is converted with its own range, all of them computed in a single pass
+			ImageStatistics stats = imageStatistics(ogImg);
+			copyToThreeChannels( Views.stack(normalizedView(Views.hyperSlice(ogImg, 2, 0), stats, 0), 
+					normalizedView(Views.hyperSlice(ogImg, 2, 1), stats, 1), 
+					normalizedView(Views.hyperSlice(ogImg, 2, 2), stats, 2)), 
+					targetImg, numThreads );
 		} else if (ogImg.numDimensions() == 3 && ogImg.dimensionsAsLongArray()[2] == 1) {
 			debugPrinter.printText("CONVERTED 1 CHANNEL IMAGE INTO 3 TO BE FEEDED TO SAMJ");
-			IntervalView<FloatType> resIm = Views.interval( Views.expandMirrorDouble(normalizedView(ogImg), new long[] {0, 0, 2}), 
-					Intervals.createMinMax(new long[] {0, 0, 0, ogImg.dimensionsAsLongArray()[0], ogImg.dimensionsAsLongArray()[1], 2}) );
-			RealTypeConverters.copyFromTo( resIm, targetImg );
+			ImageStatistics stats = imageStatistics(ogImg);
+			copyToThreeChannels( normalizedView(Views.hyperSlice(ogImg, 2, 0), stats, 0), targetImg, numThreads );
 		} else if (ogImg.numDimensions() == 2) {
-			adaptImageToModel(Views.addDimension(ogImg, 0, 0), targetImg);
+			debugPrinter.printText("CONVERTED 1 CHANNEL IMAGE INTO 3 TO BE FEEDED TO SAMJ");
+			ImageStatistics stats = imageStatistics(ogImg);
+			copyToThreeChannels( normalizedView(ogImg, stats, 0), targetImg, numThreads );
 		} else {
 			throw new IllegalArgumentException("Currently SAMJ only supports 1-channel (grayscale) or 3-channel (RGB, BGR, ...) 2D images."
 					+ "The image dimensions order should be 'yxc', first dimension height, second width and third channels.");
 		}
-		this.targetDims = targetImg.dimensionsAsLongArray();
 	}
 	
 	/**
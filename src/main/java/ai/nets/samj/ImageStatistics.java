@@ -0,0 +1,500 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Per-channel statistics (min, max and histogram) of the images encoded by SAMJ models.
+ * The statistics of all the channels are computed in a single parallel pass over the image.
+ * For integer images of up to 16 bits the histogram has one bin per possible value and it is filled
+ * in that same pass. For other data types the histogram needs the range of the values, so it is
+ * computed with a second pass, only the first time it is requested.
+ * <p>
+ * The statistics are cached per image instance, so encoding the same image with another model, or the slices
+ * of a stack again, does not scan it again. If the pixels of an image are modified, {@link #invalidate(RandomAccessibleInterval)}
+ * should be called. The models do it when an image is passed to their {@code updateImage} method, which is
+ * the method used to encode an image that changed.
+ *
+ * @author Carlos Garcia
+ */
+public class ImageStatistics {
+
+	/**
+	 * Number of bins of the histograms of images whose data type is not an integer type of up to 16 bits
+	 */
+	public static final int FLOAT_HISTOGRAM_BINS = 4096;
+	/**
+	 * Maximum number of bins of the histograms of integer images, one per possible value
+	 */
+	private static final long MAX_INTEGER_BINS = 1 << 16;
+	/**
+	 * Number of pixels processed by each task when the image is backed by primitive arrays
+	 */
+	private static final int RANGE_SIZE = 1 << 20;
+	/**
+	 * Statistics of the images already scanned. Keys are weak, so the statistics are discarded with the image
+	 */
+	private static final Map<RandomAccessibleInterval<?>, ImageStatistics> CACHE =
+			Collections.synchronizedMap(new WeakHashMap<RandomAccessibleInterval<?>, ImageStatistics>());
+
+	private final double[] min;
+
+	private final double[] max;
+
+	private long[][] histograms;
+
+	private final double[] histogramMin;
+
+	private final double[] binWidth;
+
+	private final int numThreads;
+	/**
+	 * Image the statistics come from, only needed if the histograms have to be computed in a second pass
+	 */
+	private final WeakReference<RandomAccessibleInterval<? extends RealType<?>>> image;
+
+	private ImageStatistics(int nChannels, RandomAccessibleInterval<? extends RealType<?>> image, int numThreads) {
+		this.min = new double[nChannels];
+		this.max = new double[nChannels];
+		this.histogramMin = new double[nChannels];
+		this.binWidth = new double[nChannels];
+		this.image = new WeakReference<RandomAccessibleInterval<? extends RealType<?>>>(image);
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Get the statistics of an image, scanning it only if they are not cached yet
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param img
+	 * 	2D image, or 3D image with the channels in the last dimension
+	 * @param numThreads
+	 * 	number of threads used to scan the image if needed
+	 * @return the statistics of the image
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	ImageStatistics get(final RandomAccessibleInterval<T> img, final int numThreads) {
+		ImageStatistics stats = CACHE.get(img);
+		if (stats == null) {
+			stats = compute(img, numThreads);
+			CACHE.put(img, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Remove the cached statistics of an image, for example because its pixels have been modified
+	 * @param img
+	 * 	the image whose statistics are discarded
+	 */
+	public static void invalidate(final RandomAccessibleInterval<?> img) {
+		CACHE.remove(img);
+	}
+
+	/**
+	 * Remove all the cached statistics
+	 */
+	public static void clearCache() {
+		CACHE.clear();
+	}
+
+	/**
+	 * Scan an image to compute its statistics, without looking at or filling the cache
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param img
+	 * 	2D image, or 3D image with the channels in the last dimension
+	 * @param numThreads
+	 * 	number of threads used to scan the image
+	 * @return the statistics of the image
+	 */
+	public static <T extends RealType<T> & NativeType<T>>
+	ImageStatistics compute(final RandomAccessibleInterval<T> img, final int numThreads) {
+		final PrimitiveChannels data = PrimitiveChannels.of(img);
+		if (data != null)
+			return compute(img, data, numThreads);
+		final List<RandomAccessibleInterval<T>> channels = splitChannels(img);
+		final int nChannels = channels.size();
+		final ImageStatistics stats = new ImageStatistics(nChannels, img, numThreads);
+		final T type = Util.getTypeFromInterval(img);
+		final boolean integerHistogram = type instanceof IntegerType
+				&& type.getMaxValue() - type.getMinValue() < MAX_INTEGER_BINS;
+		final double typeMin = type.getMinValue();
+		final int nBins = integerHistogram ? (int) (type.getMaxValue() - typeMin + 1) : 0;
+
+		final List<Accumulator> partials = new ArrayList<Accumulator>();
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			if (nChannels == 3) {
+				partials.addAll(LoopBuilder.setImages(channels.get(0), channels.get(1), channels.get(2))
+						.multiThreaded().forEachChunk(chunk -> {
+							final Accumulator acc = new Accumulator(nChannels, nBins, typeMin);
+							chunk.forEachPixel((c0, c1, c2) -> {
+								acc.add(0, c0.getRealDouble());
+								acc.add(1, c1.getRealDouble());
+								acc.add(2, c2.getRealDouble());
+							});
+							return acc;
+						}));
+			} else {
+				for (int c = 0; c < nChannels; c ++) {
+					final int channel = c;
+					partials.addAll(LoopBuilder.setImages(channels.get(c))
+							.multiThreaded().forEachChunk(chunk -> {
+								final Accumulator acc = new Accumulator(nChannels, nBins, typeMin);
+								chunk.forEachPixel(px -> acc.add(channel, px.getRealDouble()));
+								return acc;
+							}));
+				}
+			}
+		});
+		final Accumulator total = new Accumulator(nChannels, nBins, typeMin);
+		for (Accumulator acc : partials)
+			total.merge(acc);
+		for (int c = 0; c < nChannels; c ++) {
+			stats.min[c] = total.min[c];
+			stats.max[c] = total.max[c];
+		}
+		if (integerHistogram) {
+			stats.histograms = total.histograms;
+			for (int c = 0; c < nChannels; c ++) {
+				stats.histogramMin[c] = typeMin;
+				stats.binWidth[c] = 1;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Same as {@link #compute(RandomAccessibleInterval, int)} for images backed by primitive arrays, processed
+	 * with the {@link PixelKernels}. The image is split in ranges of pixels and each thread processes all the
+	 * channels of its range. The partial results of a range are added to an accumulator that is reused by
+	 * the next range, so only one accumulator per running task is allocated, however large the image is.
+	 */
+	private static ImageStatistics compute(final RandomAccessibleInterval<?> img, final PrimitiveChannels data, 
+			final int numThreads) {
+		final int nChannels = data.numChannels();
+		final int nBins = data.isInteger() ? data.numIntegerBins() : 0;
+		final ImageStatistics stats = new ImageStatistics(nChannels, cast(img), numThreads);
+		final List<int[]> ranges = pixelRanges(data.numPixels());
+		// accumulators are reused by the following ranges, so there are at most as many as tasks run at the same time
+		final Queue<Accumulator> free = new ConcurrentLinkedQueue<Accumulator>();
+		final List<Accumulator> partials = Collections.synchronizedList(new ArrayList<Accumulator>());
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			Parallelization.getTaskExecutor().forEach(ranges, range -> {
+				Accumulator acc = free.poll();
+				if (acc == null) {
+					acc = new Accumulator(nChannels, nBins, 0);
+					partials.add(acc);
+				}
+				for (int c = 0; c < nChannels; c ++) {
+					final double[] minMax = new double[] {acc.min[c], acc.max[c]};
+					data.minMax(c, range[0], range[1], minMax);
+					acc.min[c] = minMax[0];
+					acc.max[c] = minMax[1];
+					if (nBins > 0)
+						data.histogram(c, range[0], range[1], 0, 1, acc.histograms[c]);
+				}
+				free.offer(acc);
+			});
+		});
+		final Accumulator total = new Accumulator(nChannels, nBins, 0);
+		for (Accumulator acc : partials)
+			total.merge(acc);
+		for (int c = 0; c < nChannels; c ++) {
+			stats.min[c] = total.min[c];
+			stats.max[c] = total.max[c];
+		}
+		if (nBins > 0) {
+			stats.histograms = total.histograms;
+			for (int c = 0; c < nChannels; c ++)
+				stats.binWidth[c] = 1;
+		}
+		return stats;
+	}
+
+	private static List<int[]> pixelRanges(final int nPixels) {
+		final List<int[]> ranges = new ArrayList<int[]>();
+		for (int start = 0; start < nPixels; start += RANGE_SIZE)
+			ranges.add(new int[] {start, Math.min(nPixels, start + RANGE_SIZE)});
+		return ranges;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static RandomAccessibleInterval<? extends RealType<?>> cast(final RandomAccessibleInterval<?> img) {
+		return (RandomAccessibleInterval) img;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static PrimitiveChannels primitiveChannels(final RandomAccessibleInterval<?> img) {
+		return PrimitiveChannels.of((RandomAccessibleInterval) img);
+	}
+
+	/**
+	 *
+	 * @return the number of channels of the image
+	 */
+	public int getNumberOfChannels() {
+		return min.length;
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of interest
+	 * @return the minimum value of the channel
+	 */
+	public double getMin(int channel) {
+		return min[channel];
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of interest
+	 * @return the maximum value of the channel
+	 */
+	public double getMax(int channel) {
+		return max[channel];
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of interest
+	 * @return a new array of length 2 with the minimum and maximum values of the channel
+	 */
+	public double[] getMinMax(int channel) {
+		return new double[] {min[channel], max[channel]};
+	}
+
+	/**
+	 * Get the histogram of a channel. Bin i contains the number of pixels with values in
+	 * [{@link #getHistogramMin(int)} + i * {@link #getBinWidth(int)}, {@link #getHistogramMin(int)} + (i + 1) * {@link #getBinWidth(int)}),
+	 * the last bin also contains the maximum value.
+	 * @param channel
+	 * 	channel of interest
+	 * @return the histogram of the channel. The array should not be modified
+	 */
+	public long[] getHistogram(int channel) {
+		computeHistogramsIfNeeded();
+		return histograms[channel];
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of interest
+	 * @return the value where the first bin of the histogram of the channel starts
+	 */
+	public double getHistogramMin(int channel) {
+		computeHistogramsIfNeeded();
+		return histogramMin[channel];
+	}
+
+	/**
+	 *
+	 * @param channel
+	 * 	channel of interest
+	 * @return the width of the bins of the histogram of the channel
+	 */
+	public double getBinWidth(int channel) {
+		computeHistogramsIfNeeded();
+		return binWidth[channel];
+	}
+
+	/**
+	 * Estimate a percentile of the values of a channel from its histogram, interpolating linearly inside
+	 * the bin where the percentile falls. No sorting nor copy of the image is needed.
+	 * @param channel
+	 * 	channel of interest
+	 * @param percentile
+	 * 	the percentile, between 0 and 100
+	 * @return the estimated value of the percentile. Percentile 0 is the min and 100 the max of the channel
+	 */
+	public double getPercentile(int channel, double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentiles should be between 0 and 100: " + percentile);
+		if (percentile == 0)
+			return min[channel];
+		else if (percentile == 100)
+			return max[channel];
+		final long[] hist = getHistogram(channel);
+		long total = 0;
+		for (long count : hist)
+			total += count;
+		final double target = percentile / 100 * total;
+		long cumulative = 0;
+		int bin = 0;
+		for (; bin < hist.length - 1; bin ++) {
+			if (cumulative + hist[bin] >= target)
+				break;
+			cumulative += hist[bin];
+		}
+		final double fraction = hist[bin] == 0 ? 0 : (target - cumulative) / hist[bin];
+		final double value = histogramMin[channel] + (bin + fraction) * binWidth[channel];
+		return Math.max(min[channel], Math.min(max[channel], value));
+	}
+
+	private synchronized void computeHistogramsIfNeeded() {
+		if (histograms != null)
+			return;
+		final RandomAccessibleInterval<? extends RealType<?>> img = image.get();
+		if (img == null)
+			throw new IllegalStateException("The image whose histogram was requested is not available anymore.");
+		computeHistograms(img);
+	}
+
+	private <T extends RealType<?>> void computeHistograms(final RandomAccessibleInterval<T> img) {
+		final PrimitiveChannels data = primitiveChannels(img);
+		if (data != null) {
+			computeHistograms(data);
+			return;
+		}
+		final List<RandomAccessibleInterval<T>> channels = splitChannels(img);
+		final long[][] hists = new long[channels.size()][];
+		for (int c = 0; c < channels.size(); c ++) {
+			final double start = min[c];
+			final double width = Math.max(max[c] - min[c], Double.MIN_NORMAL) / FLOAT_HISTOGRAM_BINS;
+			histogramMin[c] = start;
+			binWidth[c] = width;
+			final List<long[]> partials = new ArrayList<long[]>();
+			final RandomAccessibleInterval<T> channel = channels.get(c);
+			Parallelization.runWithNumThreads(numThreads, () -> {
+				partials.addAll(LoopBuilder.setImages(channel).multiThreaded().forEachChunk(chunk -> {
+					final long[] hist = new long[FLOAT_HISTOGRAM_BINS];
+					chunk.forEachPixel(px -> {
+						final int bin = (int) ((px.getRealDouble() - start) / width);
+						hist[Math.max(0, Math.min(FLOAT_HISTOGRAM_BINS - 1, bin))] ++;
+					});
+					return hist;
+				}));
+			});
+			hists[c] = new long[FLOAT_HISTOGRAM_BINS];
+			for (long[] hist : partials)
+				for (int i = 0; i < FLOAT_HISTOGRAM_BINS; i ++)
+					hists[c][i] += hist[i];
+		}
+		histograms = hists;
+	}
+
+	private void computeHistograms(final PrimitiveChannels data) {
+		final long[][] hists = new long[data.numChannels()][];
+		final List<int[]> ranges = pixelRanges(data.numPixels());
+		for (int c = 0; c < data.numChannels(); c ++) {
+			final int channel = c;
+			final double start = min[c];
+			final double width = Math.max(max[c] - min[c], Double.MIN_NORMAL) / FLOAT_HISTOGRAM_BINS;
+			histogramMin[c] = start;
+			binWidth[c] = width;
+			final Queue<long[]> free = new ConcurrentLinkedQueue<long[]>();
+			final List<long[]> partials = Collections.synchronizedList(new ArrayList<long[]>());
+			Parallelization.runWithNumThreads(numThreads, () -> {
+				Parallelization.getTaskExecutor().forEach(ranges, range -> {
+					long[] hist = free.poll();
+					if (hist == null) {
+						hist = new long[FLOAT_HISTOGRAM_BINS];
+						partials.add(hist);
+					}
+					data.histogram(channel, range[0], range[1], start, width, hist);
+					free.offer(hist);
+				});
+			});
+			hists[c] = new long[FLOAT_HISTOGRAM_BINS];
+			for (long[] hist : partials)
+				for (int i = 0; i < FLOAT_HISTOGRAM_BINS; i ++)
+					hists[c][i] += hist[i];
+		}
+		histograms = hists;
+	}
+
+	private static <T> List<RandomAccessibleInterval<T>> splitChannels(final RandomAccessibleInterval<T> img) {
+		final List<RandomAccessibleInterval<T>> channels = new ArrayList<RandomAccessibleInterval<T>>();
+		if (img.numDimensions() == 2) {
+			channels.add(img);
+		} else if (img.numDimensions() == 3) {
+			for (long c = 0; c < img.dimension(2); c ++)
+				channels.add(Views.hyperSlice(img, 2, c));
+		} else {
+			throw new IllegalArgumentException("Statistics can only be computed for 2D images, with or without channels "
+					+ "in the third dimension.");
+		}
+		return channels;
+	}
+
+	/**
+	 * Statistics of the part of the image processed by one thread
+	 */
+	private static final class Accumulator {
+
+		private final double[] min;
+
+		private final double[] max;
+
+		private final long[][] histograms;
+
+		private final double histogramMin;
+
+		private Accumulator(int nChannels, int nBins, double histogramMin) {
+			this.min = new double[nChannels];
+			this.max = new double[nChannels];
+			for (int c = 0; c < nChannels; c ++) {
+				min[c] = Double.POSITIVE_INFINITY;
+				max[c] = Double.NEGATIVE_INFINITY;
+			}
+			this.histograms = nBins > 0 ? new long[nChannels][nBins] : null;
+			this.histogramMin = histogramMin;
+		}
+
+		private void add(int channel, double val) {
+			if (val < min[channel]) min[channel] = val;
+			if (val > max[channel]) max[channel] = val;
+			if (histograms != null)
+				histograms[channel][(int) (val - histogramMin)] ++;
+		}
+
+		private void merge(Accumulator acc) {
+			for (int c = 0; c < min.length; c ++) {
+				min[c] = Math.min(min[c], acc.min[c]);
+				max[c] = Math.max(max[c], acc.max[c]);
+				if (histograms == null)
+					continue;
+				for (int i = 0; i < histograms[c].length; i ++)
+					histograms[c][i] += acc.histograms[c][i];
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with a bounded relative error, in the spirit of HdrHistogram. Every power of two is split into
+ * {@value #SUB_BUCKETS} linear buckets, so any value is stored with an error below 1/{@value #SUB_BUCKETS} of itself,
+ * from nanoseconds to centuries, with a fixed array of counters. Recording is lock-free and can be done from any thread.
+ *
+ * @author Carlos Garcia
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int N_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+	private final AtomicLong max = new AtomicLong(0);
+
+	LatencyHistogram() {
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Add a duration
+	 * @param nanos
+	 * 	the duration in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		min.accumulateAndGet(nanos, Math::min);
+		max.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * 
+	 * @return number of durations recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * 
+	 * @return sum of all the durations recorded, in nanoseconds
+	 */
+	public long getSumNanos() {
+		return sum.sum();
+	}
+
+	/**
+	 * 
+	 * @return mean duration in nanoseconds, 0 if nothing has been recorded
+	 */
+	public double getMeanNanos() {
+		long n = getCount();
+		return n == 0 ? 0 : getSumNanos() / (double) n;
+	}
+
+	/**
+	 * 
+	 * @return shortest duration recorded in nanoseconds, 0 if nothing has been recorded
+	 */
+	public long getMinNanos() {
+		long m = min.get();
+		return m == Long.MAX_VALUE ? 0 : m;
+	}
+
+	/**
+	 * 
+	 * @return longest duration recorded in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * Get the duration below which a percentage of the recorded durations fall
+	 * @param percentile
+	 * 	percentage between 0 and 100
+	 * @return the highest duration that is equivalent, within the precision of the histogram, to the one at the percentile,
+	 * 	in nanoseconds
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = getCount();
+		if (n == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < N_BUCKETS; i ++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(highestValueIn(i), getMaxNanos());
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * Remove all the durations recorded
+	 */
+	public void reset() {
+		for (int i = 0; i < N_BUCKETS; i ++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.3f ms p50=%.3f ms p90=%.3f ms p99=%.3f ms max=%.3f ms", getCount(), getMeanNanos() / 1e6,
+				getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6, getValueAtPercentile(99) / 1e6, getMaxNanos() / 1e6);
+	}
+}
@@ -0,0 +1,328 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+/**
+ * Kernels that work directly on the primitive arrays backing the most common images
+ * (8-bit and 16-bit unsigned integers and 32-bit floats) to find their range and to convert
+ * them into the uint8 or float32 inputs of the models.
+ * <p>
+ * The loops are kept as simple counted loops over primitive arrays without calls or object accesses,
+ * so the JIT compiler can unroll and vectorize them (superword optimization), which avoids the
+ * virtual calls of the generic {@link net.imglib2.type.numeric.RealType} converters.
+ * <p>
+ * All the methods process the elements in the range [from, to) of the source array.
+ * The conversion applies {@code (value - min) * scale} and saturates the result to the range of the output,
+ * [0, 255] rounded to the nearest integer for uint8 and [0, 1] for float32.
+ *
+ * @author Carlos Garcia
+ */
+public final class PixelKernels {
+
+	private PixelKernels() {
+	}
+
+	/**
+	 * Update the min and max values with the values of an array of unsigned 8-bit integers
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position processed
+	 * @param to
+	 * 	position after the last one processed
+	 * @param minMax
+	 * 	array of length 2 with the current min and max, updated in place
+	 */
+	public static void minMaxUint8(final byte[] src, final int from, final int to, final double[] minMax) {
+		int min = 255;
+		int max = 0;
+		for (int i = from; i < to; i ++) {
+			final int v = src[i] & 0xff;
+			min = v < min ? v : min;
+			max = v > max ? v : max;
+		}
+		update(minMax, min, max, to > from);
+	}
+
+	/**
+	 * Update the min and max values with the values of an array of unsigned 16-bit integers
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position processed
+	 * @param to
+	 * 	position after the last one processed
+	 * @param minMax
+	 * 	array of length 2 with the current min and max, updated in place
+	 */
+	public static void minMaxUint16(final short[] src, final int from, final int to, final double[] minMax) {
+		int min = 65535;
+		int max = 0;
+		for (int i = from; i < to; i ++) {
+			final int v = src[i] & 0xffff;
+			min = v < min ? v : min;
+			max = v > max ? v : max;
+		}
+		update(minMax, min, max, to > from);
+	}
+
+	/**
+	 * Update the min and max values with the values of an array of 32-bit floats
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position processed
+	 * @param to
+	 * 	position after the last one processed
+	 * @param minMax
+	 * 	array of length 2 with the current min and max, updated in place
+	 */
+	public static void minMaxFloat32(final float[] src, final int from, final int to, final double[] minMax) {
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i ++) {
+			final float v = src[i];
+			min = v < min ? v : min;
+			max = v > max ? v : max;
+		}
+		update(minMax, min, max, to > from);
+	}
+
+	private static void update(final double[] minMax, final double min, final double max, final boolean any) {
+		if (!any)
+			return;
+		minMax[0] = Math.min(minMax[0], min);
+		minMax[1] = Math.max(minMax[1], max);
+	}
+
+	/**
+	 * Convert unsigned 8-bit integers into uint8 model input
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position converted
+	 * @param to
+	 * 	position after the last one converted
+	 * @param min
+	 * 	value subtracted to the data
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written
+	 * @param dstFrom
+	 * 	position of dst where the value at position from is written
+	 */
+	public static void toUint8(final byte[] src, final int from, final int to, final float min, final float scale,
+			final byte[] dst, final int dstFrom) {
+		final int shift = dstFrom - from;
+		for (int i = from; i < to; i ++) {
+			final float v = ((src[i] & 0xff) - min) * scale;
+			dst[i + shift] = (byte) (int) (Math.max(0f, Math.min(255f, v)) + 0.5f);
+		}
+	}
+
+	/**
+	 * Convert unsigned 16-bit integers into uint8 model input
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position converted
+	 * @param to
+	 * 	position after the last one converted
+	 * @param min
+	 * 	value subtracted to the data
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written
+	 * @param dstFrom
+	 * 	position of dst where the value at position from is written
+	 */
+	public static void toUint8(final short[] src, final int from, final int to, final float min, final float scale,
+			final byte[] dst, final int dstFrom) {
+		final int shift = dstFrom - from;
+		for (int i = from; i < to; i ++) {
+			final float v = ((src[i] & 0xffff) - min) * scale;
+			dst[i + shift] = (byte) (int) (Math.max(0f, Math.min(255f, v)) + 0.5f);
+		}
+	}
+
+	/**
+	 * Convert 32-bit floats into uint8 model input
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position converted
+	 * @param to
+	 * 	position after the last one converted
+	 * @param min
+	 * 	value subtracted to the data
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written
+	 * @param dstFrom
+	 * 	position of dst where the value at position from is written
+	 */
+	public static void toUint8(final float[] src, final int from, final int to, final float min, final float scale,
+			final byte[] dst, final int dstFrom) {
+		final int shift = dstFrom - from;
+		for (int i = from; i < to; i ++) {
+			final float v = (src[i] - min) * scale;
+			dst[i + shift] = (byte) (int) (Math.max(0f, Math.min(255f, v)) + 0.5f);
+		}
+	}
+
+	/**
+	 * Convert unsigned 8-bit integers into float32 model input
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position converted
+	 * @param to
+	 * 	position after the last one converted
+	 * @param min
+	 * 	value subtracted to the data
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written
+	 * @param dstFrom
+	 * 	position of dst where the value at position from is written
+	 */
+	public static void toFloat32(final byte[] src, final int from, final int to, final float min, final float scale,
+			final float[] dst, final int dstFrom) {
+		final int shift = dstFrom - from;
+		for (int i = from; i < to; i ++) {
+			final float v = ((src[i] & 0xff) - min) * scale;
+			dst[i + shift] = Math.max(0f, Math.min(1f, v));
+		}
+	}
+
+	/**
+	 * Convert unsigned 16-bit integers into float32 model input
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position converted
+	 * @param to
+	 * 	position after the last one converted
+	 * @param min
+	 * 	value subtracted to the data
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written
+	 * @param dstFrom
+	 * 	position of dst where the value at position from is written
+	 */
+	public static void toFloat32(final short[] src, final int from, final int to, final float min, final float scale,
+			final float[] dst, final int dstFrom) {
+		final int shift = dstFrom - from;
+		for (int i = from; i < to; i ++) {
+			final float v = ((src[i] & 0xffff) - min) * scale;
+			dst[i + shift] = Math.max(0f, Math.min(1f, v));
+		}
+	}
+
+	/**
+	 * Convert 32-bit floats into float32 model input
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position converted
+	 * @param to
+	 * 	position after the last one converted
+	 * @param min
+	 * 	value subtracted to the data
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written
+	 * @param dstFrom
+	 * 	position of dst where the value at position from is written
+	 */
+	public static void toFloat32(final float[] src, final int from, final int to, final float min, final float scale,
+			final float[] dst, final int dstFrom) {
+		final int shift = dstFrom - from;
+		for (int i = from; i < to; i ++) {
+			final float v = (src[i] - min) * scale;
+			dst[i + shift] = Math.max(0f, Math.min(1f, v));
+		}
+	}
+
+	/**
+	 * Add the values of an array of unsigned 8-bit integers to a histogram with one bin per value
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position processed
+	 * @param to
+	 * 	position after the last one processed
+	 * @param hist
+	 * 	histogram of length 256 updated in place
+	 */
+	public static void histogramUint8(final byte[] src, final int from, final int to, final long[] hist) {
+		for (int i = from; i < to; i ++)
+			hist[src[i] & 0xff] ++;
+	}
+
+	/**
+	 * Add the values of an array of unsigned 16-bit integers to a histogram with one bin per value
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position processed
+	 * @param to
+	 * 	position after the last one processed
+	 * @param hist
+	 * 	histogram of length 65536 updated in place
+	 */
+	public static void histogramUint16(final short[] src, final int from, final int to, final long[] hist) {
+		for (int i = from; i < to; i ++)
+			hist[src[i] & 0xffff] ++;
+	}
+
+	/**
+	 * Add the values of an array of 32-bit floats to a histogram with bins of the same width.
+	 * Values outside of the histogram are added to the first or last bin
+	 * @param src
+	 * 	the data
+	 * @param from
+	 * 	first position processed
+	 * @param to
+	 * 	position after the last one processed
+	 * @param start
+	 * 	value where the first bin starts
+	 * @param width
+	 * 	width of the bins
+	 * @param hist
+	 * 	histogram updated in place
+	 */
+	public static void histogramFloat32(final float[] src, final int from, final int to, final float start, final float width,
+			final long[] hist) {
+		final int last = hist.length - 1;
+		final float invWidth = 1f / width;
+		for (int i = from; i < to; i ++) {
+			final int bin = (int) ((src[i] - start) * invWidth);
+			hist[bin < 0 ? 0 : (bin > last ? last : bin)] ++;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import com.sun.jna.Pointer;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+/**
+ * View of the channels of a 2D image as the primitive arrays that back them, so they can be processed
+ * with the {@link PixelKernels} instead of the generic ImgLib2 code. Only {@link ArrayImg}s and {@link PlanarImg}s
+ * of {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} are supported.
+ * <p>
+ * Every method dispatches once on the kind of array and then runs a loop specialized for it,
+ * so the JIT compiles each loop for a single pixel type regardless of the other types seen by the JVM.
+ *
+ * @author Carlos Garcia
+ */
+final class PrimitiveChannels {
+
+	/**
+	 * Array holding each of the channels, byte[], short[] or float[]
+	 */
+	private final Object[] arrays;
+	/**
+	 * Position of the first pixel of each channel in its array
+	 */
+	private final int[] offsets;
+
+	private final int nPixels;
+
+	private PrimitiveChannels(Object[] arrays, int[] offsets, int nPixels) {
+		this.arrays = arrays;
+		this.offsets = offsets;
+		this.nPixels = nPixels;
+	}
+
+	/**
+	 * Get the primitive arrays backing a 2D image, or a 3D image with the channels in the last dimension
+	 * @param <T>
+	 * 	ImgLib2 data type of the image
+	 * @param img
+	 * 	the image
+	 * @return the channels of the image or null if the image is not supported
+	 */
+	static <T extends RealType<T> & NativeType<T>> PrimitiveChannels of(final RandomAccessibleInterval<T> img) {
+		if (img.numDimensions() != 2 && img.numDimensions() != 3)
+			return null;
+		if (img.dimension(0) * img.dimension(1) > Integer.MAX_VALUE)
+			return null;
+		final T type = Util.getTypeFromInterval(img);
+		if (!(type instanceof UnsignedByteType) && !(type instanceof UnsignedShortType) && !(type instanceof FloatType))
+			return null;
+		final int nPixels = (int) (img.dimension(0) * img.dimension(1));
+		final int nChannels = img.numDimensions() == 3 ? (int) img.dimension(2) : 1;
+		final Object[] arrays = new Object[nChannels];
+		final int[] offsets = new int[nChannels];
+		if (img instanceof ArrayImg) {
+			final Object data = storage(type, ((ArrayImg<T, ?>) img).update(null));
+			for (int c = 0; c < nChannels; c ++) {
+				arrays[c] = data;
+				offsets[c] = c * nPixels;
+			}
+		} else if (img instanceof PlanarImg) {
+			final PlanarImg<T, ?> planar = (PlanarImg<T, ?>) img;
+			if (planar.numSlices() != nChannels)
+				return null;
+			for (int c = 0; c < nChannels; c ++)
+				arrays[c] = storage(type, planar.getPlane(c));
+		} else {
+			return null;
+		}
+		for (Object arr : arrays)
+			if (arr == null) return null;
+		return new PrimitiveChannels(arrays, offsets, nPixels);
+	}
+
+	private static Object storage(Object type, Object access) {
+		if (type instanceof UnsignedByteType && access instanceof ByteArray)
+			return ((ByteArray) access).getCurrentStorageArray();
+		else if (type instanceof UnsignedShortType && access instanceof ShortArray)
+			return ((ShortArray) access).getCurrentStorageArray();
+		else if (type instanceof FloatType && access instanceof FloatArray)
+			return ((FloatArray) access).getCurrentStorageArray();
+		return null;
+	}
+
+	/**
+	 *
+	 * @return number of channels
+	 */
+	int numChannels() {
+		return arrays.length;
+	}
+
+	/**
+	 *
+	 * @return number of pixels of each channel
+	 */
+	int numPixels() {
+		return nPixels;
+	}
+
+	/**
+	 *
+	 * @return whether the pixels are integers with one histogram bin per possible value
+	 */
+	boolean isInteger() {
+		return !(arrays[0] instanceof float[]);
+	}
+
+	/**
+	 *
+	 * @return number of bins of the histograms with one bin per possible value, only for integer images
+	 */
+	int numIntegerBins() {
+		return arrays[0] instanceof byte[] ? 256 : 65536;
+	}
+
+	/**
+	 *
+	 * @return the name of the NumPy data type equivalent to the pixel type
+	 */
+	String numpyDataType() {
+		if (arrays[0] instanceof byte[])
+			return "uint8";
+		else if (arrays[0] instanceof short[])
+			return "uint16";
+		return "float32";
+	}
+
+	/**
+	 *
+	 * @return number of bytes of all the channels together
+	 */
+	long numBytes() {
+		return (long) arrays.length * nPixels * (arrays[0] instanceof byte[] ? 1 : (arrays[0] instanceof short[] ? 2 : 4));
+	}
+
+	/**
+	 * Copy the pixels, without any conversion, channel after channel into the target memory
+	 * @param target
+	 * 	memory where the channels are written, usually shared memory
+	 */
+	void copyTo(Pointer target) {
+		final long channelBytes = numBytes() / arrays.length;
+		for (int c = 0; c < arrays.length; c ++) {
+			final Object data = arrays[c];
+			if (data instanceof byte[])
+				target.write(c * channelBytes, (byte[]) data, offsets[c], nPixels);
+			else if (data instanceof short[])
+				target.write(c * channelBytes, (short[]) data, offsets[c], nPixels);
+			else
+				target.write(c * channelBytes, (float[]) data, offsets[c], nPixels);
+		}
+	}
+
+	/**
+	 * Update the min and max values with the pixels in [from, to) of a channel
+	 * @param channel
+	 * 	channel of interest
+	 * @param from
+	 * 	first pixel
+	 * @param to
+	 * 	pixel after the last one
+	 * @param minMax
+	 * 	array of length 2 updated in place
+	 */
+	void minMax(int channel, int from, int to, double[] minMax) {
+		final Object data = arrays[channel];
+		final int off = offsets[channel];
+		if (data instanceof byte[])
+			PixelKernels.minMaxUint8((byte[]) data, off + from, off + to, minMax);
+		else if (data instanceof short[])
+			PixelKernels.minMaxUint16((short[]) data, off + from, off + to, minMax);
+		else
+			PixelKernels.minMaxFloat32((float[]) data, off + from, off + to, minMax);
+	}
+
+	/**
+	 * Add the pixels in [from, to) of a channel to a histogram. For integer images the histogram has one bin
+	 * per possible value and start and width are ignored
+	 * @param channel
+	 * 	channel of interest
+	 * @param from
+	 * 	first pixel
+	 * @param to
+	 * 	pixel after the last one
+	 * @param start
+	 * 	value where the first bin starts
+	 * @param width
+	 * 	width of the bins
+	 * @param hist
+	 * 	histogram updated in place
+	 */
+	void histogram(int channel, int from, int to, double start, double width, long[] hist) {
+		final Object data = arrays[channel];
+		final int off = offsets[channel];
+		if (data instanceof byte[])
+			PixelKernels.histogramUint8((byte[]) data, off + from, off + to, hist);
+		else if (data instanceof short[])
+			PixelKernels.histogramUint16((short[]) data, off + from, off + to, hist);
+		else
+			PixelKernels.histogramFloat32((float[]) data, off + from, off + to, (float) start, (float) width, hist);
+	}
+
+	/**
+	 * Convert the pixels in [from, to) of a channel into uint8 model input
+	 * @param channel
+	 * 	channel of interest
+	 * @param from
+	 * 	first pixel
+	 * @param to
+	 * 	pixel after the last one
+	 * @param min
+	 * 	value subtracted to the pixels
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written, starting at position 0
+	 */
+	void toUint8(int channel, int from, int to, float min, float scale, byte[] dst) {
+		final Object data = arrays[channel];
+		final int off = offsets[channel];
+		if (data instanceof byte[])
+			PixelKernels.toUint8((byte[]) data, off + from, off + to, min, scale, dst, 0);
+		else if (data instanceof short[])
+			PixelKernels.toUint8((short[]) data, off + from, off + to, min, scale, dst, 0);
+		else
+			PixelKernels.toUint8((float[]) data, off + from, off + to, min, scale, dst, 0);
+	}
+
+	/**
+	 * Convert the pixels in [from, to) of a channel into float32 model input
+	 * @param channel
+	 * 	channel of interest
+	 * @param from
+	 * 	first pixel
+	 * @param to
+	 * 	pixel after the last one
+	 * @param min
+	 * 	value subtracted to the pixels
+	 * @param scale
+	 * 	factor applied after subtracting the min
+	 * @param dst
+	 * 	array where the result is written, starting at position 0
+	 */
+	void toFloat32(int channel, int from, int to, float min, float scale, float[] dst) {
+		final Object data = arrays[channel];
+		final int off = offsets[channel];
+		if (data instanceof byte[])
+			PixelKernels.toFloat32((byte[]) data, off + from, off + to, min, scale, dst, 0);
+		else if (data instanceof short[])
+			PixelKernels.toFloat32((short[]) data, off + from, off + to, min, scale, dst, 0);
+		else
+			PixelKernels.toFloat32((float[]) data, off + from, off + to, min, scale, dst, 0);
+	}
+}
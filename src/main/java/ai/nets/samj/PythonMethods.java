@@ -79,18 +79,449 @@ public class PythonMethods {
 			+ "    #\n"
 			+ "    return x_coords,y_coords\n"
 			+ "\n"
-			+ "def get_polygons_from_binary_mask(sam_result, at_least_of_this_size = 3):\n"
-			+ "    labels = measure.regionprops( measure.label(sam_result,connectivity=1) )\n"
+			+ "def stream_polygon(task, x_coords, y_coords):\n"
+			+ "    # sends a finished polygon to Java before the whole result is ready\n"
+			+ "    task.update('contours_x:' + ','.join(map(str, x_coords)) + ';contours_y:' + ','.join(map(str, y_coords)))\n"
+			+ "\n"
+			+ "def label_binary_mask(sam_result):\n"
+			+ "    return measure.regionprops( measure.label(sam_result,connectivity=1) )\n"
+			+ "\n"
+			+ "def get_polygons_from_binary_mask(sam_result, at_least_of_this_size = 3, offset_x = 0, offset_y = 0, stream_task = None):\n"
+			+ "    return get_polygons_from_labels(label_binary_mask(sam_result), at_least_of_this_size, offset_x, offset_y, stream_task)\n"
+			+ "\n"
+			+ "def get_polygons_from_labels(labels, at_least_of_this_size = 3, offset_x = 0, offset_y = 0, stream_task = None):\n"
 			+ "    x_contours = []\n"
 			+ "    y_contours = []\n"
 			+ "    for obj in labels:\n"
 			+ "        if obj.num_pixels >= at_least_of_this_size:\n"
-			+ "            x_coords,y_coords = trace_contour(obj.image, obj.num_pixels, obj.bbox[1],obj.bbox[0])\n"
-			+ "            x_contours.append(x_coords)\n"
-			+ "            y_contours.append(y_coords)\n"
+			+ "            x_coords,y_coords = trace_contour(obj.image, obj.num_pixels, obj.bbox[1] + offset_x,obj.bbox[0] + offset_y)\n"
+			+ "            if stream_task is not None:\n"
+			+ "                # streamed polygons are not returned again, Java already has them\n"
+			+ "                stream_polygon(stream_task, x_coords, y_coords)\n"
+			+ "            else:\n"
+			+ "                x_contours.append(x_coords)\n"
+			+ "                y_contours.append(y_coords)\n"
 			+ "    return x_contours,y_contours" + System.lineSeparator()
 			+ "globals()['is_edge_pixel'] = is_edge_pixel" + System.lineSeparator()
 			+ "globals()['find_contour_neighbors'] = find_contour_neighbors" +  System.lineSeparator()
 			+ "globals()['trace_contour'] = trace_contour" +  System.lineSeparator()
-			+ "globals()['get_polygons_from_binary_mask'] = get_polygons_from_binary_mask" +  System.lineSeparator();
+			+ "globals()['stream_polygon'] = stream_polygon" +  System.lineSeparator()
+			+ "globals()['label_binary_mask'] = label_binary_mask" +  System.lineSeparator()
+			+ "globals()['get_polygons_from_binary_mask'] = get_polygons_from_binary_mask" +  System.lineSeparator()
+			+ "globals()['get_polygons_from_labels'] = get_polygons_from_labels" +  System.lineSeparator();
+
+	/**
+	 * String containing the Python methods needed for the automatic segmentation ("segment everything").
+	 * A regular grid of point prompts is decoded in batches, the resulting masks are filtered by their
+	 * predicted quality and stability and the duplicates are removed with a non-maximum suppression
+	 * that is kept across batches. The filtering, the boxes and the suppression work on the whole batch at once
+	 * (with torchvision when it is installed), only the low resolution logits of the batch are kept in memory
+	 * and each of the masks that survives is upscaled only inside its bounding box. The upscaling and the labelling
+	 * of the survivors run in a thread pool, the contours are traced and streamed in order from the calling thread.
+	 * The methods are model agnostic, the decoding itself is done in the script of each model
+	 */
+	protected static String AUTOMATIC_MASKS = ""
+			+ "def build_point_grid(n_per_side, h, w):\n"
+			+ "    offset = 1 / (2 * n_per_side)\n"
+			+ "    points_one_side = np.linspace(offset, 1 - offset, n_per_side)\n"
+			+ "    points_x = np.tile(points_one_side[None, :], (n_per_side, 1))\n"
+			+ "    points_y = np.tile(points_one_side[:, None], (1, n_per_side))\n"
+			+ "    points = np.stack([points_x, points_y], axis=-1).reshape(-1, 2)\n"
+			+ "    return points * np.array([[w, h]])\n"
+			+ "\n"
+			+ "def calculate_stability_score(logits, mask_threshold, threshold_offset):\n"
+			+ "    intersections = (logits > (mask_threshold + threshold_offset)).sum(-1, dtype=torch.int32).sum(-1, dtype=torch.int32)\n"
+			+ "    unions = (logits > (mask_threshold - threshold_offset)).sum(-1, dtype=torch.int32).sum(-1, dtype=torch.int32)\n"
+			+ "    return intersections / torch.clamp(unions, min=1)\n"
+			+ "\n"
+			+ "def pairwise_box_iou(boxes_a, boxes_b):\n"
+			+ "    x0 = np.maximum(boxes_a[:, None, 0], boxes_b[None, :, 0])\n"
+			+ "    y0 = np.maximum(boxes_a[:, None, 1], boxes_b[None, :, 1])\n"
+			+ "    x1 = np.minimum(boxes_a[:, None, 2], boxes_b[None, :, 2])\n"
+			+ "    y1 = np.minimum(boxes_a[:, None, 3], boxes_b[None, :, 3])\n"
+			+ "    inter = np.clip(x1 - x0 + 1, 0, None) * np.clip(y1 - y0 + 1, 0, None)\n"
+			+ "    areas_a = (boxes_a[:, 2] - boxes_a[:, 0] + 1) * (boxes_a[:, 3] - boxes_a[:, 1] + 1)\n"
+			+ "    areas_b = (boxes_b[:, 2] - boxes_b[:, 0] + 1) * (boxes_b[:, 3] - boxes_b[:, 1] + 1)\n"
+			+ "    return inter / (areas_a[:, None] + areas_b[None, :] - inter)\n"
+			+ "\n"
+			+ "def masks_to_boxes(masks):\n"
+			+ "    # masks of shape (N, H, W), returns the boxes (x0, y0, x1, y1) of all of them at once\n"
+			+ "    h, w = masks.shape[-2:]\n"
+			+ "    cols = masks.any(1)\n"
+			+ "    rows = masks.any(2)\n"
+			+ "    xs = torch.arange(w, device=masks.device)\n"
+			+ "    ys = torch.arange(h, device=masks.device)\n"
+			+ "    x0 = w - (cols * (w - xs)).max(-1).values\n"
+			+ "    x1 = (cols * xs).max(-1).values\n"
+			+ "    y0 = h - (rows * (h - ys)).max(-1).values\n"
+			+ "    y1 = (rows * ys).max(-1).values\n"
+			+ "    return torch.stack((x0, y0, x1, y1), dim=-1)\n"
+			+ "\n"
+			+ "def suppress_duplicated_boxes(boxes, scores, kept_boxes, box_nms_thresh):\n"
+			+ "    # boxes sorted by decreasing score, the boxes kept from previous batches always win\n"
+			+ "    try:\n"
+			+ "        from torchvision.ops import nms\n"
+			+ "        all_boxes = torch.from_numpy(np.concatenate((kept_boxes, boxes), axis=0).astype(np.float32))\n"
+			+ "        all_scores = torch.from_numpy(np.concatenate((np.full(kept_boxes.shape[0], np.inf), scores)).astype(np.float32))\n"
+			+ "        keep = nms(all_boxes, all_scores, box_nms_thresh).numpy()\n"
+			+ "        return np.sort(keep[keep >= kept_boxes.shape[0]] - kept_boxes.shape[0])\n"
+			+ "    except ImportError:\n"
+			+ "        pass\n"
+			+ "    alive = np.ones(boxes.shape[0], dtype=bool)\n"
+			+ "    if kept_boxes.shape[0] > 0:\n"
+			+ "        alive &= pairwise_box_iou(boxes, kept_boxes).max(1) <= box_nms_thresh\n"
+			+ "    ious = pairwise_box_iou(boxes, boxes)\n"
+			+ "    keep = []\n"
+			+ "    for i in np.nonzero(alive)[0]:\n"
+			+ "        if not alive[i]:\n"
+			+ "            continue\n"
+			+ "        keep.append(i)\n"
+			+ "        alive &= ious[i] <= box_nms_thresh\n"
+			+ "    return np.array(keep, dtype=np.int64)\n"
+			+ "\n"
+			+ "def upscale_low_res_crop(low_res, valid_h, valid_w, out_h, out_w):\n"
+			+ "    # the region [0:valid_h, 0:valid_w] of the low resolution logits covers the whole image\n"
+			+ "    low_res = low_res[:valid_h, :valid_w]\n"
+			+ "    ys, xs = torch.nonzero(low_res > 0, as_tuple=True)\n"
+			+ "    if ys.shape[0] == 0:\n"
+			+ "        return None, 0, 0\n"
+			+ "    sy = out_h / valid_h\n"
+			+ "    sx = out_w / valid_w\n"
+			+ "    ly0 = max(int(ys.min()) - 1, 0)\n"
+			+ "    ly1 = min(int(ys.max()) + 2, valid_h)\n"
+			+ "    lx0 = max(int(xs.min()) - 1, 0)\n"
+			+ "    lx1 = min(int(xs.max()) + 2, valid_w)\n"
+			+ "    oy0 = int(ly0 * sy)\n"
+			+ "    oy1 = min(int(np.ceil(ly1 * sy)), out_h)\n"
+			+ "    ox0 = int(lx0 * sx)\n"
+			+ "    ox1 = min(int(np.ceil(lx1 * sx)), out_w)\n"
+			+ "    crop = low_res[ly0:ly1, lx0:lx1][None, None].float()\n"
+			+ "    crop = torch.nn.functional.interpolate(crop, (oy1 - oy0, ox1 - ox0), mode='bilinear', align_corners=False)\n"
+			+ "    return (crop[0, 0] > 0).cpu().numpy(), ox0, oy0\n"
+			+ "\n"
+			+ "def filter_and_trace_automatic_masks(low_res_logits, iou_preds, valid_h, valid_w, out_h, out_w,\n"
+			+ "                                     pred_iou_thresh, stability_score_thresh, box_nms_thresh, min_mask_area, kept_boxes,\n"
+			+ "                                     stream_task = None):\n"
+			+ "    keep = (iou_preds > pred_iou_thresh) & (calculate_stability_score(low_res_logits, 0.0, 1.0) > stability_score_thresh)\n"
+			+ "    idx = torch.nonzero(keep).flatten()\n"
+			+ "    idx = idx[torch.argsort(iou_preds[idx], descending=True)]\n"
+			+ "    x_contours = []\n"
+			+ "    y_contours = []\n"
+			+ "    if idx.shape[0] == 0:\n"
+			+ "        return x_contours, y_contours, kept_boxes\n"
+			+ "    sy = out_h / valid_h\n"
+			+ "    sx = out_w / valid_w\n"
+			+ "    low_res_masks = low_res_logits[idx, :valid_h, :valid_w] > 0\n"
+			+ "    areas = low_res_masks.flatten(1).sum(-1).cpu().numpy() * sx * sy\n"
+			+ "    boxes = masks_to_boxes(low_res_masks).cpu().numpy().astype(np.float64)\n"
+			+ "    boxes[:, 2:] += 1\n"
+			+ "    boxes *= np.array([sx, sy, sx, sy])\n"
+			+ "    boxes[:, 2:] -= 1\n"
+			+ "    scores = iou_preds[idx].float().cpu().numpy()\n"
+			+ "    big = np.nonzero(areas >= max(min_mask_area, 1))[0]\n"
+			+ "    survivors = big[suppress_duplicated_boxes(boxes[big], scores[big], kept_boxes, box_nms_thresh)]\n"
+			+ "    kept_boxes = np.concatenate((kept_boxes, boxes[survivors]), axis=0)\n"
+			+ "    def upscale_and_label(i):\n"
+			+ "        mask, ox, oy = upscale_low_res_crop(low_res_logits[idx[i]], valid_h, valid_w, out_h, out_w)\n"
+			+ "        if mask is None:\n"
+			+ "            return None, 0, 0\n"
+			+ "        return label_binary_mask(mask), ox, oy\n"
+			+ "    # torch and skimage release the GIL in the upscaling and the labelling, so they run in parallel.\n"
+			+ "    # The tracing is pure Python and the polygons are streamed in order from this thread\n"
+			+ "    import os\n"
+			+ "    from concurrent.futures import ThreadPoolExecutor\n"
+			+ "    n_workers = max(1, min(len(survivors), os.cpu_count() or 1, 8))\n"
+			+ "    with ThreadPoolExecutor(max_workers=n_workers) as executor:\n"
+			+ "        for labels, ox, oy in executor.map(upscale_and_label, survivors.tolist()):\n"
+			+ "            if labels is None:\n"
+			+ "                continue\n"
+			+ "            x_coords,y_coords = get_polygons_from_labels(labels, min_mask_area, ox, oy, stream_task)\n"
+			+ "            x_contours += x_coords\n"
+			+ "            y_contours += y_coords\n"
+			+ "    return x_contours, y_contours, kept_boxes" + System.lineSeparator()
+			+ "globals()['build_point_grid'] = build_point_grid" + System.lineSeparator()
+			+ "globals()['calculate_stability_score'] = calculate_stability_score" + System.lineSeparator()
+			+ "globals()['pairwise_box_iou'] = pairwise_box_iou" + System.lineSeparator()
+			+ "globals()['masks_to_boxes'] = masks_to_boxes" + System.lineSeparator()
+			+ "globals()['suppress_duplicated_boxes'] = suppress_duplicated_boxes" + System.lineSeparator()
+			+ "globals()['upscale_low_res_crop'] = upscale_low_res_crop" + System.lineSeparator()
+			+ "globals()['filter_and_trace_automatic_masks'] = filter_and_trace_automatic_masks" + System.lineSeparator();
+
+	/**
+	 * String containing the Python methods used to read the segments of the {@link SharedMemoryPool}.
+	 * The segments are attached once and kept open, at most a few of them, because Java reuses them for every
+	 * image. They are removed from the resource tracker of Python so the segments are not unlinked
+	 * when the process finishes, Java owns them
+	 */
+	protected static String SHARED_MEMORY_POOL = ""
+			+ "attached_shm = {}\n"
+			+ "\n"
+			+ "def attach_shm(name, size, max_attached = 4):\n"
+			+ "    shm = attached_shm.pop(name, None)\n"
+			+ "    if shm is None:\n"
+			+ "        shm = shared_memory.SharedMemory(name=name, size=size)\n"
+			+ "        try:\n"
+			+ "            from multiprocessing import resource_tracker\n"
+			+ "            resource_tracker.unregister(shm._name, 'shared_memory')\n"
+			+ "        except Exception:\n"
+			+ "            pass\n"
+			+ "    while len(attached_shm) >= max_attached:\n"
+			+ "        old = attached_shm.pop(next(iter(attached_shm)))\n"
+			+ "        try:\n"
+			+ "            old.close()\n"
+			+ "        except BufferError:\n"
+			+ "            pass\n"
+			+ "    attached_shm[name] = shm\n"
+			+ "    return shm" + System.lineSeparator()
+			+ "globals()['attached_shm'] = attached_shm" + System.lineSeparator()
+			+ "globals()['attach_shm'] = attach_shm" + System.lineSeparator();
+
+	/**
+	 * String containing the Python methods used to profile the tasks. {@code samj_profile_start} starts cProfile,
+	 * the torch profiler or both, and {@code samj_profile_stop} stops them and aggregates the time per operator into
+	 * rows {@code [profiler, operator, calls, total seconds, self seconds, device seconds]}, the most expensive first.
+	 * Profilers left running by a task that failed are stopped when the next one starts
+	 */
+	protected static String PROFILING = ""
+			+ "samj_active_profilers = {}\n"
+			+ "\n"
+			+ "def samj_profile_stop(profilers, max_rows = 50):\n"
+			+ "    rows = []\n"
+			+ "    if 'cprofile' in profilers:\n"
+			+ "        import os, pstats\n"
+			+ "        profilers['cprofile'].disable()\n"
+			+ "        entries = []\n"
+			+ "        for (filename, line, func), (cc, nc, tt, ct, callers) in pstats.Stats(profilers['cprofile']).stats.items():\n"
+			+ "            name = func if filename == '~' else func + ' (' + os.path.basename(filename) + ':' + str(line) + ')'\n"
+			+ "            entries.append(['cprofile', name, int(nc), float(ct), float(tt), 0.0])\n"
+			+ "        entries.sort(key=lambda e: e[3], reverse=True)\n"
+			+ "        rows += entries[:max_rows]\n"
+			+ "    if 'torch' in profilers:\n"
+			+ "        profilers['torch'].__exit__(None, None, None)\n"
+			+ "        entries = []\n"
+			+ "        for evt in profilers['torch'].key_averages():\n"
+			+ "            device = getattr(evt, 'device_time_total', getattr(evt, 'cuda_time_total', 0))\n"
+			+ "            entries.append(['torch', evt.key, int(evt.count), evt.cpu_time_total / 1e6, evt.self_cpu_time_total / 1e6, device / 1e6])\n"
+			+ "        entries.sort(key=lambda e: e[4] + e[5], reverse=True)\n"
+			+ "        rows += entries[:max_rows]\n"
+			+ "    samj_active_profilers.clear()\n"
+			+ "    return rows\n"
+			+ "\n"
+			+ "def samj_profile_start(mode):\n"
+			+ "    if len(samj_active_profilers) > 0:\n"
+			+ "        try:\n"
+			+ "            samj_profile_stop(dict(samj_active_profilers))\n"
+			+ "        except Exception:\n"
+			+ "            samj_active_profilers.clear()\n"
+			+ "    if mode in ('cprofile', 'both'):\n"
+			+ "        import cProfile\n"
+			+ "        samj_active_profilers['cprofile'] = cProfile.Profile()\n"
+			+ "    if mode in ('torch', 'both'):\n"
+			+ "        activities = [torch.profiler.ProfilerActivity.CPU]\n"
+			+ "        if torch.cuda.is_available():\n"
+			+ "            activities.append(torch.profiler.ProfilerActivity.CUDA)\n"
+			+ "        samj_active_profilers['torch'] = torch.profiler.profile(activities=activities)\n"
+			+ "        samj_active_profilers['torch'].__enter__()\n"
+			+ "    if 'cprofile' in samj_active_profilers:\n"
+			+ "        samj_active_profilers['cprofile'].enable()\n"
+			+ "    return dict(samj_active_profilers)" + System.lineSeparator()
+			+ "globals()['samj_active_profilers'] = samj_active_profilers" + System.lineSeparator()
+			+ "globals()['samj_profile_stop'] = samj_profile_stop" + System.lineSeparator()
+			+ "globals()['samj_profile_start'] = samj_profile_start" + System.lineSeparator();
+
+	/**
+	 * String containing the Python methods used to trace the tasks. {@code samj_trace_begin} intercepts the
+	 * {@code task.update()} calls that mark the phases of a prompt and {@code samj_trace_end} turns them into spans
+	 * {@code [name, span id, parent span id, start, end]}, with the times in microseconds since the epoch, children of
+	 * the span of the task in Java
+	 */
+	protected static String TRACING = ""
+			+ "def samj_trace_begin(task, context):\n"
+			+ "    import time\n"
+			+ "    trace = {'context': context, 'marks': [('begin', time.time_ns() // 1000)], 'update': task.update}\n"
+			+ "    def traced_update(message = None, *args, **kwargs):\n"
+			+ "        if isinstance(message, str) and (message.endswith('predict') or message == 'all contours traced'):\n"
+			+ "            trace['marks'].append((message, time.time_ns() // 1000))\n"
+			+ "        return trace['update'](message, *args, **kwargs)\n"
+			+ "    task.update = traced_update\n"
+			+ "    return trace\n"
+			+ "\n"
+			+ "def samj_trace_end(task, trace):\n"
+			+ "    import os, time\n"
+			+ "    end = time.time_ns() // 1000\n"
+			+ "    task.update = trace['update']\n"
+			+ "    begin = trace['marks'][0][1]\n"
+			+ "    times = {}\n"
+			+ "    for message, t in trace['marks'][1:]:\n"
+			+ "        if message.startswith('start'):\n"
+			+ "            times.setdefault('decode_start', t)\n"
+			+ "        elif message.startswith('end'):\n"
+			+ "            times['decode_end'] = t\n"
+			+ "        else:\n"
+			+ "            times['traced'] = t\n"
+			+ "    root = ['python task', os.urandom(8).hex(), trace['context']['span_id'], begin, end]\n"
+			+ "    spans = [root]\n"
+			+ "    if 'decode_end' in times:\n"
+			+ "        spans.append(['decode', os.urandom(8).hex(), root[1], times.get('decode_start', begin), times['decode_end']])\n"
+			+ "    if 'traced' in times:\n"
+			+ "        spans.append(['trace', os.urandom(8).hex(), root[1], times.get('decode_end', begin), times['traced']])\n"
+			+ "        spans.append(['serialise', os.urandom(8).hex(), root[1], times['traced'], end])\n"
+			+ "    return spans" + System.lineSeparator()
+			+ "globals()['samj_trace_begin'] = samj_trace_begin" + System.lineSeparator()
+			+ "globals()['samj_trace_end'] = samj_trace_end" + System.lineSeparator();
+
+	/**
+	 * String containing a deterministic stand-in of the SAM predictors, used to benchmark SAMJ without downloading
+	 * any weights. The "encoding" thresholds the image at its mean and the masks are that foreground inside the box
+	 * prompts and discs around the point prompts, or the points themselves when there are many of them, as with mask prompts.
+	 * Both honour the batch and prompt dimensions of the batched decoders, one mask per prompt.
+	 * {@code StandInViTPredictor} only needs NumPy, its batched decoder and {@code StandInEfficientSam} also need PyTorch
+	 */
+	protected static String STAND_IN_MODELS = ""
+			+ "stand_in_max_discs = 256\n"
+			+ "\n"
+			+ "def stand_in_foreground(im):\n"
+			+ "    gray = np.asarray(im, dtype='float32')\n"
+			+ "    if gray.ndim == 3:\n"
+			+ "        gray = gray.mean(axis=-1)\n"
+			+ "    return gray > gray.mean()\n"
+			+ "\n"
+			+ "def stand_in_discs(mask, coords, radius, value):\n"
+			+ "    h, w = mask.shape\n"
+			+ "    if len(coords) > stand_in_max_discs:\n"
+			+ "        xs = np.clip(np.round(coords[:, 0]).astype(int), 0, w - 1)\n"
+			+ "        ys = np.clip(np.round(coords[:, 1]).astype(int), 0, h - 1)\n"
+			+ "        mask[ys, xs] = value\n"
+			+ "        return\n"
+			+ "    for x, y in coords:\n"
+			+ "        x0, x1 = max(int(x) - radius, 0), min(int(x) + radius + 1, w)\n"
+			+ "        y0, y1 = max(int(y) - radius, 0), min(int(y) + radius + 1, h)\n"
+			+ "        if x0 >= x1 or y0 >= y1:\n"
+			+ "            continue\n"
+			+ "        yy, xx = np.ogrid[y0:y1, x0:x1]\n"
+			+ "        disc = (xx - x) ** 2 + (yy - y) ** 2 <= radius ** 2\n"
+			+ "        mask[y0:y1, x0:x1][disc] = value\n"
+			+ "\n"
+			+ "def stand_in_mask(foreground, point_coords = None, point_labels = None, box = None):\n"
+			+ "    h, w = foreground.shape\n"
+			+ "    mask = np.zeros((h, w), dtype=bool)\n"
+			+ "    if box is not None:\n"
+			+ "        b = np.asarray(box, dtype='float32').reshape(-1)\n"
+			+ "        x0, x1 = sorted((int(np.clip(b[0], 0, w - 1)), int(np.clip(b[2], 0, w - 1))))\n"
+			+ "        y0, y1 = sorted((int(np.clip(b[1], 0, h - 1)), int(np.clip(b[3], 0, h - 1))))\n"
+			+ "        mask[y0:y1 + 1, x0:x1 + 1] = foreground[y0:y1 + 1, x0:x1 + 1]\n"
+			+ "        if not mask.any():\n"
+			+ "            mask[y0:y1 + 1, x0:x1 + 1] = True\n"
+			+ "    if point_coords is not None and len(point_coords) > 0:\n"
+			+ "        coords = np.asarray(point_coords, dtype='float32').reshape(-1, 2)\n"
+			+ "        labels = np.asarray(point_labels).reshape(-1)\n"
+			+ "        radius = max(4, min(h, w) // 32)\n"
+			+ "        stand_in_discs(mask, coords[labels == 1], radius, True)\n"
+			+ "        stand_in_discs(mask, coords[labels == 0], max(1, radius // 2), False)\n"
+			+ "    return mask\n"
+			+ "\n"
+			+ "def stand_in_logits(mask, out_h, out_w, extent_h, extent_w):\n"
+			+ "    # samples the mask on a out_h x out_w grid that covers extent_h x extent_w pixels, beyond the mask is background.\n"
+			+ "    # the logits are +-2 so the stability score of the masks is 1, as for a confident model\n"
+			+ "    h, w = mask.shape\n"
+			+ "    ys = ((np.arange(out_h) + 0.5) * extent_h / out_h).astype(int)\n"
+			+ "    xs = ((np.arange(out_w) + 0.5) * extent_w / out_w).astype(int)\n"
+			+ "    logits = np.full((out_h, out_w), -2.0, dtype='float32')\n"
+			+ "    iy, ix = ys < h, xs < w\n"
+			+ "    logits[np.ix_(iy, ix)] = np.where(mask[np.ix_(ys[iy], xs[ix])], 2.0, -2.0)\n"
+			+ "    return logits\n"
+			+ "\n"
+			+ "class StandInPromptEncoder:\n"
+			+ "    def __call__(self, points = None, boxes = None, masks = None):\n"
+			+ "        return (points, boxes), None\n"
+			+ "\n"
+			+ "    def get_dense_pe(self):\n"
+			+ "        return None\n"
+			+ "\n"
+			+ "class StandInMaskDecoder:\n"
+			+ "    def __init__(self, model):\n"
+			+ "        self.model = model\n"
+			+ "\n"
+			+ "    def __call__(self, image_embeddings, image_pe, sparse_prompt_embeddings, dense_prompt_embeddings, multimask_output):\n"
+			+ "        # one mask per prompt on the 256x256 grid that covers the image padded to a square, as the real decoder\n"
+			+ "        points, boxes = sparse_prompt_embeddings\n"
+			+ "        side = max(image_embeddings.shape)\n"
+			+ "        scale = side / self.model.image_size[0]\n"
+			+ "        n = boxes.shape[0] if boxes is not None else points[0].shape[0]\n"
+			+ "        m = 3 if multimask_output else 1\n"
+			+ "        logits = np.empty((n, m, 256, 256), dtype='float32')\n"
+			+ "        for i in range(n):\n"
+			+ "            coords = points[0][i].cpu().numpy() * scale if points is not None else None\n"
+			+ "            labels = points[1][i].cpu().numpy() if points is not None else None\n"
+			+ "            box = boxes[i].cpu().numpy() * scale if boxes is not None else None\n"
+			+ "            logits[i] = stand_in_logits(stand_in_mask(image_embeddings, coords, labels, box), 256, 256, side, side)\n"
+			+ "        return torch.from_numpy(logits), torch.ones((n, m))\n"
+			+ "\n"
+			+ "class StandInModel:\n"
+			+ "    def __init__(self, image_size):\n"
+			+ "        self.image_size = [image_size, image_size]\n"
+			+ "        self.prompt_encoder = StandInPromptEncoder()\n"
+			+ "        self.mask_decoder = StandInMaskDecoder(self)\n"
+			+ "\n"
+			+ "class StandInViTPredictor:\n"
+			+ "    def __init__(self, model):\n"
+			+ "        self.model = model\n"
+			+ "        self.is_image_set = False\n"
+			+ "\n"
+			+ "    def set_image(self, image):\n"
+			+ "        self.original_size = tuple(image.shape[:2])\n"
+			+ "        s = self.model.image_size[0] / max(self.original_size)\n"
+			+ "        self.input_size = (int(self.original_size[0] * s + 0.5), int(self.original_size[1] * s + 0.5))\n"
+			+ "        self.features = stand_in_foreground(image)\n"
+			+ "        self.is_image_set = True\n"
+			+ "\n"
+			+ "    def predict(self, point_coords = None, point_labels = None, box = None, mask_input = None, multimask_output = True, return_logits = False):\n"
+			+ "        mask = stand_in_mask(self.features, point_coords, point_labels, box)[None, ...]\n"
+			+ "        return mask, np.ones((1,), dtype='float32'), mask.astype('float32')\n"
+			+ "\n"
+			+ "class StandInEfficientSam:\n"
+			+ "    def __init__(self):\n"
+			+ "        self.encoded_images = None\n"
+			+ "        self.foreground = None\n"
+			+ "\n"
+			+ "    def preprocess(self, batched_images):\n"
+			+ "        return batched_images\n"
+			+ "\n"
+			+ "    def image_encoder(self, batched_images):\n"
+			+ "        return batched_images\n"
+			+ "\n"
+			+ "    def get_image_embeddings(self, batched_images):\n"
+			+ "        self.encoded_images = self.image_encoder(self.preprocess(batched_images))\n"
+			+ "        return self.encoded_images\n"
+			+ "\n"
+			+ "    def predict_masks(self, image_embeddings, batched_points, batched_point_labels, multimask_output, input_h, input_w, output_h = -1, output_w = -1):\n"
+			+ "        # same shapes as EfficientSam: logits (B, N, 3, output_h, output_w) and iou (B, N, 3), one mask per prompt\n"
+			+ "        if self.foreground is None or self.foreground[0] is not image_embeddings:\n"
+			+ "            self.foreground = (image_embeddings, [stand_in_foreground(e.float().mean(dim=0).cpu().numpy()) for e in image_embeddings])\n"
+			+ "        out_h = input_h if output_h < 0 else output_h\n"
+			+ "        out_w = input_w if output_w < 0 else output_w\n"
+			+ "        points = batched_points.cpu().numpy()\n"
+			+ "        labels = batched_point_labels.cpu().numpy()\n"
+			+ "        b_size, n_size = points.shape[:2]\n"
+			+ "        logits = np.empty((b_size, n_size, 3, out_h, out_w), dtype='float32')\n"
+			+ "        for b in range(b_size):\n"
+			+ "            foreground = self.foreground[1][min(b, len(self.foreground[1]) - 1)]\n"
+			+ "            for n in range(n_size):\n"
+			+ "                p = points[b, n].reshape(-1, 2)\n"
+			+ "                l = labels[b, n].reshape(-1)\n"
+			+ "                corners = l >= 2\n"
+			+ "                box = p[corners].reshape(-1)[:4] if corners.sum() >= 2 else None\n"
+			+ "                mask = stand_in_mask(foreground, p[~corners], l[~corners], box)\n"
+			+ "                logits[b, n] = stand_in_logits(mask, out_h, out_w, foreground.shape[0], foreground.shape[1])\n"
+			+ "        return torch.from_numpy(logits), torch.ones((b_size, n_size, 3))" + System.lineSeparator()
+			+ "globals()['stand_in_max_discs'] = stand_in_max_discs" + System.lineSeparator()
+			+ "globals()['stand_in_foreground'] = stand_in_foreground" + System.lineSeparator()
+			+ "globals()['stand_in_discs'] = stand_in_discs" + System.lineSeparator()
+			+ "globals()['stand_in_mask'] = stand_in_mask" + System.lineSeparator()
+			+ "globals()['stand_in_logits'] = stand_in_logits" + System.lineSeparator()
+			+ "globals()['StandInPromptEncoder'] = StandInPromptEncoder" + System.lineSeparator()
+			+ "globals()['StandInMaskDecoder'] = StandInMaskDecoder" + System.lineSeparator()
+			+ "globals()['StandInModel'] = StandInModel" + System.lineSeparator()
+			+ "globals()['StandInViTPredictor'] = StandInViTPredictor" + System.lineSeparator()
+			+ "globals()['StandInEfficientSam'] = StandInEfficientSam" + System.lineSeparator();
 }
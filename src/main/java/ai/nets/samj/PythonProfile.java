@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Time spent by the Python process on each operator during one task, as measured by cProfile, the torch profiler or both.
+ * <p>
+ * cProfile sees the Python functions, for example the contour tracer or {@code measure.label}, and the torch profiler
+ * sees the operators of the model forward, including the time on the GPU. Profiling slows down the tasks, so it is
+ * meant to find out where the time goes on real data, not to be left on.
+ *
+ * @author Carlos Garcia
+ */
+public final class PythonProfile {
+
+	/**
+	 * Profilers used in Python
+	 */
+	public enum Mode {
+		/** No profiling */
+		OFF("off"),
+		/** Python functions, with cProfile */
+		CPROFILE("cprofile"),
+		/** PyTorch operators, with the torch profiler */
+		TORCH("torch"),
+		/** Both cProfile and the torch profiler */
+		BOTH("both");
+
+		private final String pythonName;
+
+		Mode(String pythonName) {
+			this.pythonName = pythonName;
+		}
+
+		String getPythonName() {
+			return pythonName;
+		}
+	}
+
+	/**
+	 * Aggregated time of one operator or Python function
+	 */
+	public static final class Operator {
+		private final String profiler;
+		private final String name;
+		private final long calls;
+		private final double totalSeconds;
+		private final double selfSeconds;
+		private final double deviceSeconds;
+
+		private Operator(String profiler, String name, long calls, double totalSeconds, double selfSeconds, double deviceSeconds) {
+			this.profiler = profiler;
+			this.name = name;
+			this.calls = calls;
+			this.totalSeconds = totalSeconds;
+			this.selfSeconds = selfSeconds;
+			this.deviceSeconds = deviceSeconds;
+		}
+
+		/**
+		 * 
+		 * @return "cprofile" or "torch"
+		 */
+		public String getProfiler() {
+			return profiler;
+		}
+
+		/**
+		 * 
+		 * @return name of the operator, or of the Python function followed by its file and line
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * 
+		 * @return number of calls
+		 */
+		public long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * 
+		 * @return time in the operator including the operators it calls, in seconds
+		 */
+		public double getTotalSeconds() {
+			return totalSeconds;
+		}
+
+		/**
+		 * 
+		 * @return time in the operator excluding the operators it calls, in seconds
+		 */
+		public double getSelfSeconds() {
+			return selfSeconds;
+		}
+
+		/**
+		 * 
+		 * @return time on the GPU, in seconds, only measured by the torch profiler
+		 */
+		public double getDeviceSeconds() {
+			return deviceSeconds;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-8s %8d calls %10.3f ms total %10.3f ms self %10.3f ms device  %s", profiler, calls,
+					totalSeconds * 1000, selfSeconds * 1000, deviceSeconds * 1000, name);
+		}
+	}
+
+	private final String task;
+
+	private final long wallNanos;
+
+	private final List<Operator> operators;
+
+	private PythonProfile(String task, long wallNanos, List<Operator> operators) {
+		this.task = task;
+		this.wallNanos = wallNanos;
+		this.operators = Collections.unmodifiableList(operators);
+	}
+
+	/**
+	 * Read the rows {@code [profiler, operator, calls, total seconds, self seconds, device seconds]} produced by
+	 * {@code samj_profile_stop} in Python
+	 * @param task
+	 * 	name of the task that was profiled
+	 * @param wallNanos
+	 * 	duration of the task measured in Java
+	 * @param output
+	 * 	the rows, as received from Python
+	 * @return the profile, null if the output is not a list of rows
+	 */
+	static PythonProfile parse(String task, long wallNanos, Object output) {
+		if (!(output instanceof List))
+			return null;
+		List<Operator> operators = new ArrayList<Operator>();
+		for (Object row : (List<?>) output) {
+			if (!(row instanceof List) || ((List<?>) row).size() < 6)
+				continue;
+			List<?> r = (List<?>) row;
+			operators.add(new Operator(String.valueOf(r.get(0)), String.valueOf(r.get(1)), ((Number) r.get(2)).longValue(),
+					((Number) r.get(3)).doubleValue(), ((Number) r.get(4)).doubleValue(), ((Number) r.get(5)).doubleValue()));
+		}
+		return new PythonProfile(task, wallNanos, operators);
+	}
+
+	/**
+	 * 
+	 * @return name of the task that was profiled, for example "encode" or "prompt"
+	 */
+	public String getTask() {
+		return task;
+	}
+
+	/**
+	 * 
+	 * @return duration of the task measured in Java, in nanoseconds
+	 */
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	/**
+	 * 
+	 * @return the operators of all the profilers, the most expensive first for each profiler
+	 */
+	public List<Operator> getOperators() {
+		return operators;
+	}
+
+	/**
+	 * 
+	 * @param profiler
+	 * 	"cprofile" or "torch"
+	 * @return the operators measured by one of the profilers, the most expensive first
+	 */
+	public List<Operator> getOperators(String profiler) {
+		return operators.stream().filter(op -> op.profiler.equals(profiler)).collect(Collectors.toList());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Profile of the task '").append(task).append("', ").append(String.format("%.3f", wallNanos / 1e6)).append(" ms")
+			.append(System.lineSeparator());
+		for (Operator op : operators)
+			sb.append("  ").append(op).append(System.lineSeparator());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,604 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.awt.Polygon;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.imglib2.Dimensions;
+
+/**
+ * Events of the lifecycle of the SAMJ requests: instantiation of the models, segmentations, allocation and release
+ * of shared memory, Python tasks and the post-processing of their results in Java.
+ * <p>
+ * When the JVM provides Java Flight Recorder (JDK 11 and later, and the JDK 8 builds that include the {@code jdk.jfr} module),
+ * every kind of event is registered as a JFR event type named {@code ai.nets.samj.*} in the category "SAMJ", so SAMJ
+ * appears in the same recordings as the garbage collections, allocations and threads of the JVM. As SAMJ is compiled
+ * for Java 8, the event types are created at runtime with {@code jdk.jfr.EventFactory}. Each event carries the model,
+ * the operation, the size of the image, the number of prompts, polygons and vertices, the bytes involved and the result.
+ * <p>
+ * Events can also be observed from Java with a {@link Listener}. If JFR is not recording an event type and there are
+ * no listeners, {@link #begin(Kind, String)} returns an inert span, so the instrumentation costs next to nothing.
+ * <p>
+ * Every span that is not inert has a trace ID and a span ID. Instantiations and segmentations open a scope on their thread:
+ * the spans started inside of it, for example the Python tasks, are its children and share its trace ID, so
+ * all the work done for one call of a {@link ai.nets.samj.communication.model.SAMModel} can be put together,
+ * see {@link SamJTracer}.
+ *
+ * @author Carlos Garcia
+ */
+public final class SamJEvents {
+
+	/**
+	 * Kinds of events
+	 */
+	public enum Kind {
+		/** Creation of a model instance, including the start of Python and the encoding of the first image */
+		INSTANTIATE("Instantiate", "Creation of a SAMJ model and encoding of its first image", true),
+		/** A segmentation requested with prompts, from their submission until the polygons are ready */
+		SEGMENTATION("Segmentation", "Segmentation of the image with prompts", true),
+		/** A shared memory segment handed out by the pool, newly created or reused */
+		SHM_ALLOCATE("SharedMemoryAllocate", "Shared memory segment handed out to send data to Python", false),
+		/** A shared memory segment given back, kept for reuse or closed */
+		SHM_FREE("SharedMemoryFree", "Shared memory segment given back", false),
+		/** A task of the Python process, from its submission until it completes */
+		PYTHON_TASK("PythonTask", "Task run by the Python process", false),
+		/** Conversion of the contours returned by Python into polygons in the coordinates of the image */
+		POST_PROCESSING("PostProcessing", "Conversion of the contours into polygons", false);
+
+		private final String name;
+		private final String description;
+		/**
+		 * Whether the spans of this kind are the parents of the spans started on their thread until they end
+		 */
+		private final boolean scope;
+
+		Kind(String name, String description, boolean scope) {
+			this.name = name;
+			this.description = description;
+			this.scope = scope;
+		}
+
+		/**
+		 * 
+		 * @return name of the event type, without the {@code ai.nets.samj.} prefix
+		 */
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Receives the events once they end
+	 */
+	public interface Listener {
+		/**
+		 * Called, on the thread that ended it, when an event ends
+		 * @param span
+		 * 	the event
+		 */
+		void onEvent(Span span);
+	}
+
+	private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+	private static final JfrBridge JFR = JfrBridge.create();
+
+	private static final Span INERT = new Span(null, null);
+
+	/**
+	 * Innermost scope open on each thread
+	 */
+	private static final ThreadLocal<Span> SCOPE = new ThreadLocal<Span>();
+
+	/**
+	 * Wall clock time and {@link System#nanoTime()} at the same instant, used to place the spans on the wall clock
+	 * with the precision of {@link System#nanoTime()}
+	 */
+	private static final long BASE_EPOCH_MICROS = System.currentTimeMillis() * 1000;
+
+	private static final long BASE_NANOS = System.nanoTime();
+
+	private SamJEvents() {
+	}
+
+	/**
+	 * 
+	 * @return whether the events are being registered as Java Flight Recorder events
+	 */
+	public static boolean isFlightRecorderAvailable() {
+		return JFR != null;
+	}
+
+	/**
+	 * Receive the events of SAMJ in Java
+	 * @param listener
+	 * 	the listener
+	 */
+	public static void addListener(Listener listener) {
+		LISTENERS.add(listener);
+	}
+
+	/**
+	 * Stop receiving the events of SAMJ
+	 * @param listener
+	 * 	the listener
+	 */
+	public static void removeListener(Listener listener) {
+		LISTENERS.remove(listener);
+	}
+
+	/**
+	 * Start an event. The details are set on the returned span, and the event is emitted by {@link Span#end()}
+	 * @param kind
+	 * 	kind of event
+	 * @param model
+	 * 	name of the model involved, can be null
+	 * @return the span of the event, inert if nobody is recording it
+	 */
+	public static Span begin(Kind kind, String model) {
+		Object jfrEvent = JFR == null ? null : JFR.begin(kind);
+		if (jfrEvent == null && LISTENERS.isEmpty())
+			return INERT;
+		Span span = new Span(kind, model);
+		span.jfrEvent = jfrEvent;
+		Span parent = SCOPE.get();
+		if (parent != null && parent.durationNanos >= 0)
+			parent = null;
+		span.parent = parent;
+		span.traceId = parent == null ? randomHex(2) : parent.traceId;
+		span.spanId = randomHex(1);
+		if (kind.scope)
+			SCOPE.set(span);
+		return span;
+	}
+
+	/**
+	 * Convert a value of {@link System#nanoTime()} into microseconds since the epoch
+	 * @param nanos
+	 * 	value of {@link System#nanoTime()}
+	 * @return microseconds since 1970-01-01T00:00:00Z
+	 */
+	public static long toEpochMicros(long nanos) {
+		return BASE_EPOCH_MICROS + (nanos - BASE_NANOS) / 1000;
+	}
+
+	/**
+	 * 
+	 * @param nLongs
+	 * 	number of 64 bits words
+	 * @return a random identifier in hexadecimal, 16 characters per word
+	 */
+	static String randomHex(int nLongs) {
+		StringBuilder sb = new StringBuilder(nLongs * 16);
+		for (int i = 0; i < nLongs; i ++) {
+			long value = ThreadLocalRandom.current().nextLong();
+			String hex = Long.toHexString(value);
+			for (int p = hex.length(); p < 16; p ++)
+				sb.append('0');
+			sb.append(hex);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Event that has started and has not ended yet. The setters return the span itself so they can be chained,
+	 * and do nothing on an inert span
+	 */
+	public static final class Span {
+		private final Kind kind;
+		private final String model;
+		private final long startNanos = System.nanoTime();
+		private final long startMillis = System.currentTimeMillis();
+		private final String thread = Thread.currentThread().getName();
+		private Object jfrEvent;
+		private Span parent;
+		private String traceId;
+		private String spanId;
+		private long durationNanos = -1;
+		private String operation;
+		private long imageWidth;
+		private long imageHeight;
+		private int prompts;
+		private int polygons;
+		private long vertices;
+		private long bytes;
+		private String status = "ok";
+
+		private Span(Kind kind, String model) {
+			this.kind = kind;
+			this.model = model;
+		}
+
+		/**
+		 * 
+		 * @return whether the span is inert, in which case nothing is recorded
+		 */
+		public boolean isInert() {
+			return kind == null;
+		}
+
+		/**
+		 * 
+		 * @param operation
+		 * 	what is being done, for example "points", "box" or "mask" for a segmentation
+		 * @return the span
+		 */
+		public Span operation(String operation) {
+			if (kind != null) this.operation = operation;
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param dims
+		 * 	dimensions of the image involved, only the first two are used, can be null
+		 * @return the span
+		 */
+		public Span image(long[] dims) {
+			if (kind != null && dims != null && dims.length >= 2) {
+				imageWidth = dims[0];
+				imageHeight = dims[1];
+			}
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param image
+		 * 	the image involved, only the size of its first two dimensions is used, can be null
+		 * @return the span
+		 */
+		public Span image(Dimensions image) {
+			if (kind != null && image != null && image.numDimensions() >= 2) {
+				imageWidth = image.dimension(0);
+				imageHeight = image.dimension(1);
+			}
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param prompts
+		 * 	number of prompts
+		 * @return the span
+		 */
+		public Span prompts(int prompts) {
+			if (kind != null) this.prompts = prompts;
+			return this;
+		}
+
+		/**
+		 * Set the number of polygons and of vertices of the result
+		 * @param polys
+		 * 	the polygons obtained
+		 * @return the span
+		 */
+		public Span polygons(List<Polygon> polys) {
+			if (kind == null || polys == null)
+				return this;
+			polygons = polys.size();
+			vertices = 0;
+			for (Polygon pol : polys)
+				vertices += pol.npoints;
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param bytes
+		 * 	number of bytes involved
+		 * @return the span
+		 */
+		public Span bytes(long bytes) {
+			if (kind != null) this.bytes = bytes;
+			return this;
+		}
+
+		/**
+		 * 
+		 * @param status
+		 * 	result of the operation, "ok" by default
+		 * @return the span
+		 */
+		public Span status(String status) {
+			if (kind != null) this.status = status;
+			return this;
+		}
+
+		/**
+		 * End the event and emit it to Java Flight Recorder and the listeners. Ending a span twice does nothing
+		 */
+		public void end() {
+			if (kind == null || durationNanos >= 0)
+				return;
+			durationNanos = System.nanoTime() - startNanos;
+			if (SCOPE.get() == this)
+				SCOPE.set(parent);
+			if (jfrEvent != null)
+				JFR.commit(jfrEvent, this);
+			for (Listener listener : LISTENERS)
+				listener.onEvent(this);
+		}
+
+		/**
+		 * 
+		 * @return kind of event, null for an inert span
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * 
+		 * @return name of the model involved, can be null
+		 */
+		public String getModel() {
+			return model;
+		}
+
+		/**
+		 * 
+		 * @return what was done, can be null
+		 */
+		public String getOperation() {
+			return operation;
+		}
+
+		/**
+		 * 
+		 * @return value of {@link System#nanoTime()} when the event started
+		 */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		/**
+		 * 
+		 * @return identifier of the call to SAMJ the span belongs to, 32 hexadecimal characters, null for an inert span
+		 */
+		public String getTraceId() {
+			return traceId;
+		}
+
+		/**
+		 * 
+		 * @return identifier of the span, 16 hexadecimal characters, null for an inert span
+		 */
+		public String getSpanId() {
+			return spanId;
+		}
+
+		/**
+		 * 
+		 * @return identifier of the span that contains this one, null if it is the root of its trace
+		 */
+		public String getParentSpanId() {
+			return parent == null ? null : parent.spanId;
+		}
+
+		/**
+		 * 
+		 * @return microseconds since the epoch when the event started
+		 */
+		public long getStartEpochMicros() {
+			return toEpochMicros(startNanos);
+		}
+
+		/**
+		 * 
+		 * @return value of {@link System#currentTimeMillis()} when the event started
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * 
+		 * @return duration of the event in nanoseconds, -1 if it has not ended
+		 */
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		/**
+		 * 
+		 * @return name of the thread that started the event
+		 */
+		public String getThread() {
+			return thread;
+		}
+
+		/**
+		 * 
+		 * @return width of the image, 0 if unknown
+		 */
+		public long getImageWidth() {
+			return imageWidth;
+		}
+
+		/**
+		 * 
+		 * @return height of the image, 0 if unknown
+		 */
+		public long getImageHeight() {
+			return imageHeight;
+		}
+
+		/**
+		 * 
+		 * @return number of prompts
+		 */
+		public int getPrompts() {
+			return prompts;
+		}
+
+		/**
+		 * 
+		 * @return number of polygons obtained
+		 */
+		public int getPolygons() {
+			return polygons;
+		}
+
+		/**
+		 * 
+		 * @return number of vertices of all the polygons obtained
+		 */
+		public long getVertices() {
+			return vertices;
+		}
+
+		/**
+		 * 
+		 * @return number of bytes involved
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * 
+		 * @return result of the operation
+		 */
+		public String getStatus() {
+			return status;
+		}
+	}
+
+	/**
+	 * Access to {@code jdk.jfr} through reflection, so SAMJ can be compiled and run on Java 8
+	 */
+	private static final class JfrBridge {
+		private static final String[] FIELDS = new String[] {"model", "operation", "imageWidth", "imageHeight", "prompts",
+				"polygons", "vertices", "bytes", "status"};
+		private static final Class<?>[] FIELD_TYPES = new Class<?>[] {String.class, String.class, long.class, long.class, int.class,
+				int.class, long.class, long.class, String.class};
+		private static final String[] FIELD_LABELS = new String[] {"Model", "Operation", "Image Width", "Image Height", "Prompts",
+				"Polygons", "Vertices", "Bytes", "Status"};
+
+		private final Object[] factories = new Object[Kind.values().length];
+		private final Object[] eventTypes = new Object[Kind.values().length];
+		private final Method newEvent;
+		private final Method isEnabled;
+		private final Method begin;
+		private final Method end;
+		private final Method shouldCommit;
+		private final Method commit;
+		private final Method set;
+
+		private JfrBridge() throws ReflectiveOperationException {
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Class<?> eventType = Class.forName("jdk.jfr.EventType");
+			Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+			Constructor<?> newValue = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+			Method create = eventFactory.getMethod("create", List.class, List.class);
+			Method getEventType = eventFactory.getMethod("getEventType");
+			Class<?> name = Class.forName("jdk.jfr.Name");
+			Class<?> label = Class.forName("jdk.jfr.Label");
+			Class<?> description = Class.forName("jdk.jfr.Description");
+			Class<?> category = Class.forName("jdk.jfr.Category");
+			Class<?> stackTrace = Class.forName("jdk.jfr.StackTrace");
+			List<Object> fields = new ArrayList<Object>();
+			for (int i = 0; i < FIELDS.length; i ++)
+				fields.add(newValue.newInstance(FIELD_TYPES[i], FIELDS[i],
+						Collections.singletonList(newAnnotation.newInstance(label, FIELD_LABELS[i]))));
+			for (Kind kind : Kind.values()) {
+				List<Object> annotations = Arrays.asList(
+						newAnnotation.newInstance(name, "ai.nets.samj." + kind.name),
+						newAnnotation.newInstance(label, "SAMJ " + kind.name.replaceAll("([a-z])([A-Z])", "$1 $2")),
+						newAnnotation.newInstance(description, kind.description),
+						newAnnotation.newInstance(category, new String[] {"SAMJ"}),
+						// the stack trace would only show the reflective calls of the bridge
+						newAnnotation.newInstance(stackTrace, Boolean.FALSE));
+				factories[kind.ordinal()] = create.invoke(null, annotations, fields);
+				eventTypes[kind.ordinal()] = getEventType.invoke(factories[kind.ordinal()]);
+			}
+			newEvent = eventFactory.getMethod("newEvent");
+			isEnabled = eventType.getMethod("isEnabled");
+			begin = event.getMethod("begin");
+			end = event.getMethod("end");
+			shouldCommit = event.getMethod("shouldCommit");
+			commit = event.getMethod("commit");
+			set = event.getMethod("set", int.class, Object.class);
+		}
+
+		/**
+		 * 
+		 * @return the bridge, or null if the JVM does not provide Java Flight Recorder
+		 */
+		static JfrBridge create() {
+			try {
+				return new JfrBridge();
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+				return null;
+			}
+		}
+
+		/**
+		 * Start a JFR event if its type is being recorded
+		 * @param kind
+		 * 	kind of event
+		 * @return the JFR event or null if it is not being recorded
+		 */
+		Object begin(Kind kind) {
+			try {
+				if (!(Boolean) isEnabled.invoke(eventTypes[kind.ordinal()]))
+					return null;
+				Object event = newEvent.invoke(factories[kind.ordinal()]);
+				begin.invoke(event);
+				return event;
+			} catch (ReflectiveOperationException | RuntimeException ex) {
+				return null;
+			}
+		}
+
+		/**
+		 * Fill and commit a JFR event
+		 * @param event
+		 * 	the JFR event
+		 * @param span
+		 * 	the span with the values of the fields
+		 */
+		void commit(Object event, Span span) {
+			try {
+				end.invoke(event);
+				if (!(Boolean) shouldCommit.invoke(event))
+					return;
+				Object[] values = new Object[] {span.model, span.operation, span.imageWidth, span.imageHeight, span.prompts,
+						span.polygons, span.vertices, span.bytes, span.status};
+				for (int i = 0; i < values.length; i ++)
+					set.invoke(event, i, values[i]);
+				commit.invoke(event);
+			} catch (ReflectiveOperationException | RuntimeException ex) {
+			}
+		}
+	}
+}
@@ -0,0 +1,383 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.bioimage.modelrunner.apposed.appose.Service.ResponseType;
+import io.bioimage.modelrunner.apposed.appose.TaskEvent;
+
+/**
+ * Registry of the time spent in each stage of the SAMJ pipeline and of a few counters, per model.
+ * <p>
+ * The durations are kept in {@link LatencyHistogram}s organized as model, then {@link Stage}, so they can be queried
+ * from Java or exported in the Prometheus text exposition format, to a file or served on a port of the loopback interface.
+ * Comparing the stages that run in Java (statistics, conversion, copies, parsing) with the ones that run in Python
+ * (encoder, decoder, contour tracing) shows whether a station is limited by the data movement or by the computation.
+ * <p>
+ * The stages that run in Python are timed in Java from the messages that the scripts send with {@code task.update()},
+ * see {@link TaskTimeline}.
+ *
+ * @author Carlos Garcia
+ */
+public final class SamJMetrics {
+
+	/**
+	 * Stages of the pipeline that are timed
+	 */
+	public enum Stage {
+		/** Computation of the intensity range or percentiles of the image */
+		IMAGE_STATISTICS("image_statistics"),
+		/** Conversion of the image into the input of the model */
+		CONVERSION("conversion"),
+		/** Copy of data that is already converted into shared memory */
+		SHM_COPY("shm_copy"),
+		/** Time from the submission of a Python task until Python starts running it */
+		SCRIPT_DISPATCH("script_dispatch"),
+		/** Image encoder, including the preparation of the image in Python */
+		ENCODER("encoder"),
+		/** Prompt encoder and mask decoder */
+		DECODER("decoder"),
+		/** Upscaling of the masks and tracing of their contours */
+		CONTOUR_TRACING("contour_tracing"),
+		/** Transfer of the contours from Python and their decoding */
+		RESULT_PARSING("result_parsing"),
+		/** Creation of the polygons and their conversion to the coordinates of the image */
+		POLYGON_BUILDING("polygon_building");
+
+		private final String label;
+
+		Stage(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * 
+		 * @return the name of the stage used in the exported metrics
+		 */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private static final SamJMetrics INSTANCE = new SamJMetrics();
+
+	private static final double[] QUANTILES = new double[] {0.5, 0.9, 0.99, 0.999};
+
+	private final Map<String, Map<Stage, LatencyHistogram>> histograms = new ConcurrentHashMap<String, Map<Stage, LatencyHistogram>>();
+
+	private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<String, Map<String, LongAdder>>();
+
+	private volatile boolean enabled = true;
+
+	private SamJMetrics() {
+	}
+
+	/**
+	 * 
+	 * @return the registry shared by all the models of the JVM
+	 */
+	public static SamJMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * 
+	 * @param enabled
+	 * 	whether the durations and counters are recorded, true by default
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * 
+	 * @return whether the durations and counters are recorded
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record the duration of a stage
+	 * @param model
+	 * 	name of the model
+	 * @param stage
+	 * 	the stage
+	 * @param nanos
+	 * 	the duration in nanoseconds
+	 */
+	public void record(String model, Stage stage, long nanos) {
+		if (!enabled)
+			return;
+		histograms.computeIfAbsent(model, k -> Collections.synchronizedMap(new EnumMap<Stage, LatencyHistogram>(Stage.class)))
+				.computeIfAbsent(stage, k -> new LatencyHistogram()).record(nanos);
+	}
+
+	/**
+	 * Record the duration of a stage that started at some point and ends now
+	 * @param model
+	 * 	name of the model
+	 * @param stage
+	 * 	the stage
+	 * @param startNanos
+	 * 	value of {@link System#nanoTime()} when the stage started
+	 */
+	public void recordSince(String model, Stage stage, long startNanos) {
+		record(model, stage, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Add to a counter
+	 * @param model
+	 * 	name of the model
+	 * @param counter
+	 * 	name of the counter, for example "encodings" or "polygons"
+	 * @param delta
+	 * 	amount added
+	 */
+	public void increment(String model, String counter, long delta) {
+		if (!enabled)
+			return;
+		counters.computeIfAbsent(model, k -> new ConcurrentHashMap<String, LongAdder>())
+				.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+	}
+
+	/**
+	 * 
+	 * @return the names of the models with metrics
+	 */
+	public Set<String> getModels() {
+		Set<String> models = new TreeSet<String>(histograms.keySet());
+		models.addAll(counters.keySet());
+		return models;
+	}
+
+	/**
+	 * 
+	 * @param model
+	 * 	name of the model
+	 * @param stage
+	 * 	the stage
+	 * @return the durations of the stage for the model, null if it has never been recorded
+	 */
+	public LatencyHistogram getHistogram(String model, Stage stage) {
+		Map<Stage, LatencyHistogram> stages = histograms.get(model);
+		return stages == null ? null : stages.get(stage);
+	}
+
+	/**
+	 * 
+	 * @param model
+	 * 	name of the model
+	 * @param counter
+	 * 	name of the counter
+	 * @return the value of the counter, 0 if it has never been incremented
+	 */
+	public long getCounter(String model, String counter) {
+		Map<String, LongAdder> modelCounters = counters.get(model);
+		LongAdder adder = modelCounters == null ? null : modelCounters.get(counter);
+		return adder == null ? 0 : adder.sum();
+	}
+
+	/**
+	 * Remove all the durations and counters
+	 */
+	public void reset() {
+		histograms.clear();
+		counters.clear();
+	}
+
+	/**
+	 * 
+	 * @return the metrics in the Prometheus text exposition format, the durations as summaries in seconds
+	 */
+	public String toPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		String nl = "\n";
+		sb.append("# HELP samj_stage_duration_seconds Time spent in each stage of the SAMJ pipeline").append(nl);
+		sb.append("# TYPE samj_stage_duration_seconds summary").append(nl);
+		for (String model : new TreeSet<String>(histograms.keySet())) {
+			Map<Stage, LatencyHistogram> stages = new TreeMap<Stage, LatencyHistogram>(histograms.get(model));
+			for (Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+				String labels = "model=\"" + escape(model) + "\",stage=\"" + entry.getKey().getLabel() + "\"";
+				LatencyHistogram hist = entry.getValue();
+				for (double q : QUANTILES)
+					sb.append("samj_stage_duration_seconds{").append(labels).append(",quantile=\"").append(q).append("\"} ")
+						.append(seconds(hist.getValueAtPercentile(q * 100))).append(nl);
+				sb.append("samj_stage_duration_seconds_sum{").append(labels).append("} ").append(seconds(hist.getSumNanos())).append(nl);
+				sb.append("samj_stage_duration_seconds_count{").append(labels).append("} ").append(hist.getCount()).append(nl);
+			}
+		}
+		sb.append("# HELP samj_events_total Number of events of each kind processed by SAMJ").append(nl);
+		sb.append("# TYPE samj_events_total counter").append(nl);
+		for (String model : new TreeSet<String>(counters.keySet())) {
+			for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters.get(model)).entrySet())
+				sb.append("samj_events_total{model=\"").append(escape(model)).append("\",event=\"").append(escape(entry.getKey()))
+					.append("\"} ").append(entry.getValue().sum()).append(nl);
+		}
+		return sb.toString();
+	}
+
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text exposition format into a file, for example for the textfile collector
+	 * of the node exporter. The file is replaced atomically
+	 * @param file
+	 * 	the file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writePrometheus(File file) throws IOException {
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		Files.write(tmp.toPath(), toPrometheusText().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Serve the metrics in the Prometheus text exposition format at {@code http://127.0.0.1:port/metrics}
+	 * @param port
+	 * 	port of the loopback interface, 0 to use any free port
+	 * @return the server, closing it stops serving the metrics
+	 * @throws IOException if the port cannot be opened
+	 */
+	public Closeable startHttpExporter(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return () -> server.stop(0);
+	}
+
+	/**
+	 * Start timing a Python task
+	 * @param model
+	 * 	name of the model that runs the task
+	 * @return the timeline of the task, its {@link TaskTimeline#onEvent(TaskEvent)} has to be passed to {@code task.listen()}
+	 */
+	public TaskTimeline startTask(String model) {
+		return new TaskTimeline(model);
+	}
+
+	/**
+	 * Times of the events of a Python task that runs a prompt. The dispatch goes from the submission of the task until
+	 * Python launches it, the decoder from the "start ... predict" message until the "end ... predict" one, the contour
+	 * tracing from then until the "all contours traced" message and the result parsing from then until the task has returned
+	 */
+	public final class TaskTimeline {
+		private final String model;
+		private final long submitted = System.nanoTime();
+		private volatile long launched = -1;
+		private volatile long predictStart = -1;
+		private volatile long predictEnd = -1;
+		private volatile long traced = -1;
+
+		private TaskTimeline(String model) {
+			this.model = model;
+		}
+
+		/**
+		 * Register an event of the task
+		 * @param event
+		 * 	the event
+		 */
+		public void onEvent(TaskEvent event) {
+			long now = System.nanoTime();
+			if (event.responseType == ResponseType.LAUNCH) {
+				launched = now;
+				return;
+			}
+			if (event.responseType != ResponseType.UPDATE || event.task.message == null)
+				return;
+			String message = event.task.message;
+			if (message.startsWith("start") && message.endsWith("predict"))
+				predictStart = now;
+			else if (message.startsWith("end") && message.endsWith("predict"))
+				predictEnd = now;
+			else if (message.equals("all contours traced"))
+				traced = now;
+		}
+
+		/**
+		 * Record the durations of the stages of the task, once it has returned
+		 */
+		public void finish() {
+			long now = System.nanoTime();
+			if (launched >= 0)
+				record(model, Stage.SCRIPT_DISPATCH, launched - submitted);
+			long decoderStart = predictStart >= 0 ? predictStart : launched;
+			if (decoderStart >= 0 && predictEnd >= 0)
+				record(model, Stage.DECODER, predictEnd - decoderStart);
+			long tracingStart = predictEnd >= 0 ? predictEnd : decoderStart;
+			if (tracingStart >= 0 && traced >= 0)
+				record(model, Stage.CONTOUR_TRACING, traced - tracingStart);
+			if (traced >= 0)
+				record(model, Stage.RESULT_PARSING, now - traced);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (String model : getModels()) {
+			sb.append(model).append(System.lineSeparator());
+			Map<Stage, LatencyHistogram> stages = histograms.get(model);
+			if (stages != null)
+				for (Map.Entry<Stage, LatencyHistogram> entry : new TreeMap<Stage, LatencyHistogram>(stages).entrySet())
+					sb.append(String.format("  %-18s %s", entry.getKey().getLabel(), entry.getValue())).append(System.lineSeparator());
+			Map<String, LongAdder> modelCounters = counters.get(model);
+			if (modelCounters != null)
+				for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(modelCounters).entrySet())
+					sb.append(String.format("  %-18s %d", entry.getKey(), entry.getValue().sum())).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+}
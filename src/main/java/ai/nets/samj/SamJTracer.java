@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timeline of the calls to SAMJ across the JVM and the Python processes, written as a Chrome trace
+ * (Trace Event Format, JSON) that can be opened with {@code chrome://tracing}, Perfetto or Speedscope.
+ * <p>
+ * While tracing, every {@link SamJEvents} span becomes an event of the JVM process. The Python tasks receive
+ * the trace ID and the ID of their span in the input {@code trace_context}, record their own phases (decode,
+ * contour tracing and preparation of the outputs) and send them back, and they are added as events of a process per model.
+ * Between the span of a task in Java and the same task in Python, "ipc dispatch" and "ipc return" events show the time
+ * spent waiting for Python to pick up the task and for its results to arrive, so the communication and queueing
+ * can be told apart from the computation. All the events carry the trace ID of the call they belong to.
+ *
+ * @author Carlos Garcia
+ */
+public final class SamJTracer {
+
+	/**
+	 * Maximum number of events kept in memory, the events after it are dropped
+	 */
+	public static final int MAX_EVENTS = 1 << 20;
+
+	private static final int JVM_PID = 1;
+
+	private static volatile Recorder active;
+
+	private SamJTracer() {
+	}
+
+	/**
+	 * Start recording the timeline of the calls to SAMJ
+	 * @param traceFile
+	 * 	file where the Chrome trace is written when the returned object is closed, or with {@link #flush()}
+	 * @return an object that stops the recording and writes the trace when it is closed
+	 * @throws IllegalStateException if a trace is already being recorded
+	 */
+	public static synchronized Closeable start(File traceFile) {
+		if (active != null)
+			throw new IllegalStateException("A SAMJ trace is already being recorded into " + active.file);
+		final Recorder recorder = new Recorder(traceFile);
+		active = recorder;
+		SamJEvents.addListener(recorder);
+		return () -> stop(recorder);
+	}
+
+	private static synchronized void stop(Recorder recorder) throws IOException {
+		if (active != recorder)
+			return;
+		SamJEvents.removeListener(recorder);
+		active = null;
+		recorder.write();
+	}
+
+	/**
+	 * 
+	 * @return whether a trace is being recorded
+	 */
+	public static boolean isTracing() {
+		return active != null;
+	}
+
+	/**
+	 * Write the events recorded so far into the trace file, without stopping the recording
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void flush() throws IOException {
+		Recorder recorder = active;
+		if (recorder != null)
+			recorder.write();
+	}
+
+	/**
+	 * Add the spans recorded by a Python task, as returned by {@code samj_trace_end}
+	 * @param task
+	 * 	the span of the task in Java, already ended
+	 * @param rows
+	 * 	the spans {@code [name, span id, parent span id, start, end]} with the times in microseconds since the epoch
+	 */
+	static void addPythonSpans(SamJEvents.Span task, Object rows) {
+		Recorder recorder = active;
+		if (recorder == null || task.isInert() || !(rows instanceof List))
+			return;
+		recorder.addPython(task, (List<?>) rows);
+	}
+
+	/**
+	 * Collects the events as JSON objects of the Trace Event Format
+	 */
+	private static final class Recorder implements SamJEvents.Listener {
+		private final File file;
+		private final List<String> events = new ArrayList<String>();
+		private final Map<String, Integer> threads = new HashMap<String, Integer>();
+		private final Map<String, Integer> pythonProcesses = new HashMap<String, Integer>();
+		private long dropped = 0;
+
+		private Recorder(File file) {
+			this.file = file;
+			metadata("process_name", JVM_PID, 0, "SAMJ (JVM)");
+		}
+
+		@Override
+		public synchronized void onEvent(SamJEvents.Span span) {
+			String name = span.getKind().getName() + (span.getOperation() == null ? "" : " " + span.getOperation());
+			Map<String, Object> args = new HashMap<String, Object>();
+			args.put("model", span.getModel());
+			args.put("status", span.getStatus());
+			if (span.getImageWidth() > 0)
+				args.put("image", span.getImageWidth() + "x" + span.getImageHeight());
+			if (span.getPrompts() > 0)
+				args.put("prompts", span.getPrompts());
+			if (span.getPolygons() > 0) {
+				args.put("polygons", span.getPolygons());
+				args.put("vertices", span.getVertices());
+			}
+			if (span.getBytes() > 0)
+				args.put("bytes", span.getBytes());
+			complete(name, JVM_PID, thread(span.getThread()), span.getStartEpochMicros(), span.getDurationNanos() / 1000.0,
+					span.getTraceId(), span.getSpanId(), span.getParentSpanId(), args);
+		}
+
+		private synchronized void addPython(SamJEvents.Span task, List<?> rows) {
+			String model = task.getModel() == null ? "Python" : task.getModel();
+			Integer pid = pythonProcesses.get(model);
+			if (pid == null) {
+				pid = JVM_PID + 1 + pythonProcesses.size();
+				pythonProcesses.put(model, pid);
+				metadata("process_name", pid, 0, "Python worker of " + model);
+				metadata("thread_name", pid, 1, "tasks");
+			}
+			long pythonStart = Long.MAX_VALUE;
+			long pythonEnd = Long.MIN_VALUE;
+			for (Object row : rows) {
+				if (!(row instanceof List) || ((List<?>) row).size() < 5)
+					continue;
+				List<?> r = (List<?>) row;
+				long start = ((Number) r.get(3)).longValue();
+				long end = ((Number) r.get(4)).longValue();
+				pythonStart = Math.min(pythonStart, start);
+				pythonEnd = Math.max(pythonEnd, end);
+				complete(String.valueOf(r.get(0)), pid, 1, start, end - start, task.getTraceId(), String.valueOf(r.get(1)),
+						String.valueOf(r.get(2)), new HashMap<String, Object>());
+			}
+			if (pythonStart > pythonEnd)
+				return;
+			int tid = thread(task.getThread());
+			long taskStart = task.getStartEpochMicros();
+			long taskEnd = taskStart + task.getDurationNanos() / 1000;
+			complete("ipc dispatch", JVM_PID, tid, taskStart, Math.max(0, pythonStart - taskStart), task.getTraceId(),
+					SamJEvents.randomHex(1), task.getSpanId(), new HashMap<String, Object>());
+			complete("ipc return", JVM_PID, tid, Math.min(pythonEnd, taskEnd), Math.max(0, taskEnd - pythonEnd), task.getTraceId(),
+					SamJEvents.randomHex(1), task.getSpanId(), new HashMap<String, Object>());
+		}
+
+		private int thread(String name) {
+			Integer tid = threads.get(name);
+			if (tid == null) {
+				tid = threads.size() + 1;
+				threads.put(name, tid);
+				metadata("thread_name", JVM_PID, tid, name);
+			}
+			return tid;
+		}
+
+		private void metadata(String kind, int pid, int tid, String name) {
+			events.add("{\"name\":\"" + kind + "\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + tid
+					+ ",\"args\":{\"name\":" + quote(name) + "}}");
+		}
+
+		private void complete(String name, int pid, int tid, long startMicros, double durationMicros, String traceId,
+				String spanId, String parentId, Map<String, Object> args) {
+			if (events.size() >= MAX_EVENTS) {
+				dropped ++;
+				return;
+			}
+			args.put("trace_id", traceId);
+			args.put("span_id", spanId);
+			if (parentId != null)
+				args.put("parent_id", parentId);
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"name\":").append(quote(name)).append(",\"cat\":\"samj\",\"ph\":\"X\"")
+				.append(",\"ts\":").append(startMicros)
+				.append(",\"dur\":").append(String.format(Locale.ROOT, "%.3f", durationMicros))
+				.append(",\"pid\":").append(pid).append(",\"tid\":").append(tid).append(",\"args\":{");
+			String sep = "";
+			for (Map.Entry<String, Object> entry : args.entrySet()) {
+				if (entry.getValue() == null)
+					continue;
+				sb.append(sep).append(quote(entry.getKey())).append(':');
+				sb.append(entry.getValue() instanceof Number ? entry.getValue().toString() : quote(entry.getValue().toString()));
+				sep = ",";
+			}
+			events.add(sb.append("}}").toString());
+		}
+
+		private static String quote(String text) {
+			StringBuilder sb = new StringBuilder("\"");
+			for (char c : text.toCharArray()) {
+				if (c == '"' || c == '\\')
+					sb.append('\\').append(c);
+				else if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+			return sb.append('"').toString();
+		}
+
+		private synchronized void write() throws IOException {
+			File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+			try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+				writer.write("{\"displayTimeUnit\":\"ms\",\"otherData\":{\"droppedEvents\":" + dropped + "},\"traceEvents\":[\n");
+				for (int i = 0; i < events.size(); i ++) {
+					writer.write(events.get(i));
+					writer.write(i == events.size() - 1 ? "\n" : ",\n");
+				}
+				writer.write("]}\n");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,539 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+
+import io.bioimage.modelrunner.system.PlatformDetection;
+import io.bioimage.modelrunner.tensor.shm.SharedMemoryArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Pool of shared memory segments used to send data to the Python processes of the SAMJ models.
+ * <p>
+ * Segments are plain byte buffers whose capacity is rounded up to a size class (4 classes per power of two,
+ * so at most 25% of every segment is wasted). A segment that is released goes back to the pool and is
+ * reused by the next request of the same size class, thus repeated image updates do not need to map, fault in
+ * and unlink new memory every time. The Python side attaches to the segments with {@code attach_shm}
+ * (see {@link PythonMethods#SHARED_MEMORY_POOL}) and never unlinks them, the pool owns their lifetime.
+ * <p>
+ * Every segment created by the pool, or registered with {@link #track(SharedMemoryArray)}, is written to a
+ * session file that stays locked while the JVM is alive. If the JVM dies without closing the segments,
+ * the next session finds the unlocked file and unlinks the segments left behind, see {@link #sweepOrphans()}.
+ *
+ * @author Carlos Garcia
+ */
+public final class SharedMemoryPool {
+
+	/**
+	 * Smallest size class in bytes
+	 */
+	private static final long MIN_SEGMENT_SIZE = 1 << 16;
+	/**
+	 * Default maximum number of bytes kept in idle segments
+	 */
+	public static final long DEFAULT_MAX_IDLE_BYTES = 512L * 1024 * 1024;
+	/**
+	 * Folder where the session files that list the segments of each JVM are written
+	 */
+	private static final Path SESSIONS_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "samj-shm");
+	private static final String SESSION_PREFIX = "session-";
+	private static final String SESSION_SUFFIX = ".txt";
+
+	private static SharedMemoryPool INSTANCE;
+
+	/**
+	 * Capacity of each of the segments created by the pool that are being used
+	 */
+	private final Map<SharedMemoryArray, Long> inUse = new IdentityHashMap<SharedMemoryArray, Long>();
+	/**
+	 * Segments that can be reused, the most recently released first
+	 */
+	private final LinkedList<SharedMemoryArray> idle = new LinkedList<SharedMemoryArray>();
+	/**
+	 * Segments created outside of the pool that are tracked to be able to reclaim them
+	 */
+	private final Map<SharedMemoryArray, Long> tracked = new IdentityHashMap<SharedMemoryArray, Long>();
+
+	private long maxIdleBytes = DEFAULT_MAX_IDLE_BYTES;
+	private long idleBytes = 0;
+	private long inUseBytes = 0;
+	private long created = 0;
+	private long reused = 0;
+	private long evicted = 0;
+	private long peakBytes = 0;
+	private int orphansReclaimed = 0;
+
+	private String sessionName;
+	private RandomAccessFile sessionFile;
+	private FileLock sessionLock;
+
+	private SharedMemoryPool() {
+	}
+
+	/**
+	 * Get the pool shared by all the models of the JVM. The first call reclaims the segments leaked
+	 * by previous sessions that did not finish properly
+	 * @return the pool of shared memory segments
+	 */
+	public static synchronized SharedMemoryPool getInstance() {
+		if (INSTANCE != null)
+			return INSTANCE;
+		INSTANCE = new SharedMemoryPool();
+		INSTANCE.orphansReclaimed = sweepOrphans();
+		INSTANCE.openSession();
+		Runtime.getRuntime().addShutdownHook(new Thread(INSTANCE::close));
+		return INSTANCE;
+	}
+
+	/**
+	 * Get a segment of at least the number of bytes requested. The segment is a flat uint8 array whose
+	 * content is undefined, it can be bigger than requested. It has to be given back with {@link #release(SharedMemoryArray)}
+	 * once the Python process has finished using it
+	 * @param nBytes
+	 * 	minimum size of the segment in bytes
+	 * @return a shared memory segment
+	 */
+	public synchronized SharedMemoryArray acquire(long nBytes) {
+		final long capacity = sizeClass(nBytes);
+		final SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SHM_ALLOCATE, null).bytes(capacity);
+		for (Iterator<SharedMemoryArray> it = idle.iterator(); it.hasNext();) {
+			SharedMemoryArray shma = it.next();
+			if (shma.getSize() != capacity)
+				continue;
+			it.remove();
+			idleBytes -= capacity;
+			markInUse(shma, capacity);
+			reused ++;
+			span.operation("reused").end();
+			return shma;
+		}
+		SharedMemoryArray shma = SharedMemoryArray.buildMemorySegmentForImage(new long[] {capacity}, new UnsignedByteType());
+		created ++;
+		record('+', shma);
+		markInUse(shma, capacity);
+		peakBytes = Math.max(peakBytes, inUseBytes + idleBytes);
+		span.operation("created").end();
+		return shma;
+	}
+
+	private void markInUse(SharedMemoryArray shma, long capacity) {
+		inUse.put(shma, capacity);
+		inUseBytes += capacity;
+	}
+
+	/**
+	 * Give back a segment. Segments of the pool are kept to be reused, evicting the least recently
+	 * used idle segments if the idle memory exceeds {@link #getMaxIdleBytes()}. Segments that do not belong to the pool
+	 * are closed. Releasing a segment that is already idle does nothing
+	 * @param shma
+	 * 	the segment, can be null
+	 * @throws IOException if there is any error closing a segment
+	 */
+	public synchronized void release(SharedMemoryArray shma) throws IOException {
+		if (shma == null)
+			return;
+		Long capacity = inUse.remove(shma);
+		if (capacity == null) {
+			if (idle.contains(shma))
+				return;
+			final SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SHM_FREE, null).operation("closed").bytes(shma.getSize());
+			try {
+				untrackAndClose(shma);
+			} finally {
+				span.end();
+			}
+			return;
+		}
+		final SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.SHM_FREE, null).operation("pooled").bytes(capacity);
+		inUseBytes -= capacity;
+		idle.addFirst(shma);
+		idleBytes += capacity;
+		try {
+			trim(maxIdleBytes);
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * Register a segment created outside of the pool, for example with {@link SharedMemoryArray#buildSHMA(net.imglib2.RandomAccessibleInterval)},
+	 * so it is reclaimed if the session dies before closing it. The segment is closed when passed to {@link #release(SharedMemoryArray)}
+	 * @param shma
+	 * 	the segment
+	 * @return the same segment
+	 */
+	public synchronized SharedMemoryArray track(SharedMemoryArray shma) {
+		if (shma != null && !tracked.containsKey(shma) && !inUse.containsKey(shma)) {
+			tracked.put(shma, (long) shma.getSize());
+			record('+', shma);
+		}
+		return shma;
+	}
+
+	private void untrackAndClose(SharedMemoryArray shma) throws IOException {
+		if (tracked.remove(shma) != null)
+			record('-', shma);
+		shma.close();
+	}
+
+	/**
+	 * Close idle segments, the least recently used first, until the idle memory is below the limit
+	 * @param maxBytes
+	 * 	maximum number of bytes kept in idle segments
+	 * @throws IOException if there is any error closing a segment
+	 */
+	public synchronized void trim(long maxBytes) throws IOException {
+		IOException error = null;
+		while (idleBytes > maxBytes && !idle.isEmpty()) {
+			SharedMemoryArray shma = idle.removeLast();
+			idleBytes -= shma.getSize();
+			evicted ++;
+			record('-', shma);
+			try {
+				shma.close();
+			} catch (IOException ex) {
+				error = ex;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Set the maximum number of bytes kept in idle segments, by default {@link #DEFAULT_MAX_IDLE_BYTES}
+	 * @param maxIdleBytes
+	 * 	the limit in bytes, 0 to close the segments as soon as they are released
+	 * @throws IOException if there is any error closing the segments over the new limit
+	 */
+	public synchronized void setMaxIdleBytes(long maxIdleBytes) throws IOException {
+		if (maxIdleBytes < 0)
+			throw new IllegalArgumentException("The maximum idle memory cannot be negative.");
+		this.maxIdleBytes = maxIdleBytes;
+		trim(maxIdleBytes);
+	}
+
+	/**
+	 *
+	 * @return the maximum number of bytes kept in idle segments
+	 */
+	public synchronized long getMaxIdleBytes() {
+		return maxIdleBytes;
+	}
+
+	/**
+	 *
+	 * @return a snapshot of the memory used by the pool
+	 */
+	public synchronized Usage getUsage() {
+		long trackedBytes = 0;
+		for (long b : tracked.values())
+			trackedBytes += b;
+		return new Usage(inUse.size(), inUseBytes, idle.size(), idleBytes, tracked.size(), trackedBytes,
+				created, reused, evicted, peakBytes, orphansReclaimed);
+	}
+
+	/**
+	 * Close every segment of the pool and the tracked ones, and remove the session file.
+	 * Called automatically when the JVM shuts down
+	 */
+	public synchronized void close() {
+		List<SharedMemoryArray> all = new ArrayList<SharedMemoryArray>(idle);
+		all.addAll(inUse.keySet());
+		all.addAll(tracked.keySet());
+		idle.clear();
+		inUse.clear();
+		tracked.clear();
+		idleBytes = 0;
+		inUseBytes = 0;
+		for (SharedMemoryArray shma : all) {
+			try {
+				shma.close();
+			} catch (IOException ex) {
+			}
+		}
+		closeSession(true);
+	}
+
+	/**
+	 * Round a size up to its size class, 4 classes per power of two
+	 * @param nBytes
+	 * 	the size in bytes
+	 * @return the capacity of the segments used for that size
+	 */
+	static long sizeClass(long nBytes) {
+		if (nBytes <= MIN_SEGMENT_SIZE)
+			return MIN_SEGMENT_SIZE;
+		long step = Long.highestOneBit(nBytes - 1) / 4;
+		long capacity = ((nBytes + step - 1) / step) * step;
+		if (capacity > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Shared memory segments are limited to " + Integer.MAX_VALUE + " bytes.");
+		return capacity;
+	}
+
+	/**
+	 * Unlink the segments listed in the session files of the JVMs that are no longer running.
+	 * A session file that can be locked belongs to a dead session because the live ones keep it locked
+	 * @return the number of segments unlinked
+	 */
+	public static int sweepOrphans() {
+		File[] sessions = SESSIONS_DIR.toFile().listFiles((dir, name) -> name.startsWith(SESSION_PREFIX));
+		if (sessions == null)
+			return 0;
+		int count = 0;
+		for (File session : sessions) {
+			if (INSTANCE != null && session.getName().equals(INSTANCE.sessionName))
+				continue;
+			try (RandomAccessFile raf = new RandomAccessFile(session, "rw"); FileChannel channel = raf.getChannel()) {
+				FileLock lock = channel.tryLock();
+				if (lock == null)
+					continue;
+				for (String name : liveSegments(session.toPath())) {
+					if (unlink(name))
+						count ++;
+				}
+				lock.release();
+			} catch (IOException | RuntimeException ex) {
+				continue;
+			}
+			session.delete();
+		}
+		return count;
+	}
+
+	private static Set<String> liveSegments(Path session) throws IOException {
+		Set<String> names = new LinkedHashSet<String>();
+		for (String line : Files.readAllLines(session, StandardCharsets.UTF_8)) {
+			if (line.length() < 2)
+				continue;
+			if (line.charAt(0) == '+')
+				names.add(line.substring(1));
+			else if (line.charAt(0) == '-')
+				names.remove(line.substring(1));
+		}
+		return names;
+	}
+
+	private static boolean unlink(String name) {
+		if (PlatformDetection.isWindows()) {
+			// named file mappings disappear with the last handle, nothing can be leaked
+			return false;
+		} else if (PlatformDetection.isMacOS()) {
+			return CLibrary.INSTANCE.shm_unlink("/" + name) == 0;
+		}
+		try {
+			return Files.deleteIfExists(Paths.get("/dev/shm", name));
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private interface CLibrary extends Library {
+		CLibrary INSTANCE = (CLibrary) Native.loadLibrary("c", CLibrary.class);
+
+		int shm_unlink(String name);
+	}
+
+	private void openSession() {
+		try {
+			Files.createDirectories(SESSIONS_DIR);
+			sessionName = SESSION_PREFIX + UUID.randomUUID() + SESSION_SUFFIX;
+			sessionFile = new RandomAccessFile(SESSIONS_DIR.resolve(sessionName).toFile(), "rw");
+			sessionLock = sessionFile.getChannel().lock();
+		} catch (IOException | RuntimeException ex) {
+			// the pool works without the session file, only the leaked segments cannot be reclaimed
+			closeSession(true);
+		}
+	}
+
+	private void record(char op, SharedMemoryArray shma) {
+		if (sessionFile == null)
+			return;
+		try {
+			sessionFile.seek(sessionFile.length());
+			sessionFile.write((op + shma.getNameForPython() + "\n").getBytes(StandardCharsets.UTF_8));
+		} catch (IOException ex) {
+			closeSession(false);
+		}
+	}
+
+	private void closeSession(boolean delete) {
+		try {
+			if (sessionLock != null)
+				sessionLock.release();
+			if (sessionFile != null)
+				sessionFile.close();
+		} catch (IOException ex) {
+		}
+		if (delete && sessionName != null)
+			SESSIONS_DIR.resolve(sessionName).toFile().delete();
+		sessionLock = null;
+		sessionFile = null;
+	}
+
+	/**
+	 * Snapshot of the memory used by the {@link SharedMemoryPool}
+	 */
+	public static final class Usage {
+
+		private final int segmentsInUse;
+		private final long bytesInUse;
+		private final int idleSegments;
+		private final long idleBytes;
+		private final int trackedSegments;
+		private final long trackedBytes;
+		private final long created;
+		private final long reused;
+		private final long evicted;
+		private final long peakBytes;
+		private final int orphansReclaimed;
+
+		private Usage(int segmentsInUse, long bytesInUse, int idleSegments, long idleBytes, int trackedSegments,
+				long trackedBytes, long created, long reused, long evicted, long peakBytes, int orphansReclaimed) {
+			this.segmentsInUse = segmentsInUse;
+			this.bytesInUse = bytesInUse;
+			this.idleSegments = idleSegments;
+			this.idleBytes = idleBytes;
+			this.trackedSegments = trackedSegments;
+			this.trackedBytes = trackedBytes;
+			this.created = created;
+			this.reused = reused;
+			this.evicted = evicted;
+			this.peakBytes = peakBytes;
+			this.orphansReclaimed = orphansReclaimed;
+		}
+
+		/**
+		 *
+		 * @return number of segments of the pool being used
+		 */
+		public int getSegmentsInUse() {
+			return segmentsInUse;
+		}
+
+		/**
+		 *
+		 * @return bytes of the segments of the pool being used
+		 */
+		public long getBytesInUse() {
+			return bytesInUse;
+		}
+
+		/**
+		 *
+		 * @return number of segments waiting to be reused
+		 */
+		public int getIdleSegments() {
+			return idleSegments;
+		}
+
+		/**
+		 *
+		 * @return bytes of the segments waiting to be reused
+		 */
+		public long getIdleBytes() {
+			return idleBytes;
+		}
+
+		/**
+		 *
+		 * @return number of segments created outside of the pool that are still open
+		 */
+		public int getTrackedSegments() {
+			return trackedSegments;
+		}
+
+		/**
+		 *
+		 * @return bytes of the segments created outside of the pool that are still open
+		 */
+		public long getTrackedBytes() {
+			return trackedBytes;
+		}
+
+		/**
+		 *
+		 * @return number of segments created by the pool
+		 */
+		public long getCreated() {
+			return created;
+		}
+
+		/**
+		 *
+		 * @return number of requests served with an idle segment
+		 */
+		public long getReused() {
+			return reused;
+		}
+
+		/**
+		 *
+		 * @return number of idle segments closed to respect the idle memory limit
+		 */
+		public long getEvicted() {
+			return evicted;
+		}
+
+		/**
+		 *
+		 * @return maximum number of bytes held by the pool at the same time
+		 */
+		public long getPeakBytes() {
+			return peakBytes;
+		}
+
+		/**
+		 *
+		 * @return number of segments leaked by previous sessions that were unlinked at start-up
+		 */
+		public int getOrphansReclaimed() {
+			return orphansReclaimed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Shared memory pool: %d segments in use (%.1f MB), %d idle (%.1f MB), "
+					+ "%d tracked (%.1f MB), peak %.1f MB, %d created, %d reused, %d evicted, %d orphans reclaimed",
+					segmentsInUse, bytesInUse / 1e6, idleSegments, idleBytes / 1e6, trackedSegments, trackedBytes / 1e6,
+					peakBytes / 1e6, created, reused, evicted, orphansReclaimed);
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ai.nets.samj.AbstractSamJ.DebugTextPrinter;
+
+/**
+ * Ring of pre-encoded slices of a stack (z-stack or time series) used to browse it without waiting for the encoder.
+ * <p>
+ * The embeddings of the slices around the active one are computed in the background, on a single worker thread,
+ * and kept in the Python dictionary {@code slice_cache}. The slices that have to be encoded when they are activated
+ * are encoded on that same thread, after the encoding in progress, so two encodings never run at the same time
+ * in the Python process. When the active slice changes to one that is already encoded,
+ * its embeddings are swapped into the predictor, which takes a few milliseconds. The slices closer to the active one
+ * are encoded first, starting with the direction in which the user is moving, and the slices that fall outside
+ * of the window are removed from the cache.
+ * <p>
+ * Every encoding is stored in Python under its own key, so an encoding that finishes after its slice has left the window,
+ * or that is repeated, never overwrites or removes a valid one.
+ *
+ * @author Carlos Garcia
+ */
+final class SliceEmbeddingRing {
+
+	/**
+	 * Model specific code that encodes a slice and stores it in {@code slice_cache}
+	 */
+	interface SliceEncoder {
+		/**
+		 * Encode a slice
+		 * @param slice
+		 * 	position of the slice in the stack
+		 * @param key
+		 * 	key of {@code slice_cache} where the embeddings have to be stored
+		 * @param prelude
+		 * 	Python code that has to run before the encoding
+		 * @param background
+		 * 	whether the slice is encoded ahead of time, while other tasks may run in the Python process,
+		 * 	or because it is being activated
+		 * @return the information needed to activate the slice later
+		 * @throws IOException if any of the files needed to run the Python script is missing
+		 * @throws RuntimeException if there is any error running the Python process
+		 * @throws InterruptedException if the process in interrupted
+		 */
+		Slice encode(int slice, int key, String prelude, boolean background) throws IOException, RuntimeException, InterruptedException;
+	}
+
+	/**
+	 * Model specific code that makes the embeddings of a slice the ones used by the predictor
+	 */
+	interface SliceActivator {
+		/**
+		 * Activate a slice
+		 * @param slice
+		 * 	the encoded slice
+		 * @param prelude
+		 * 	Python code that has to run before the activation
+		 * @throws IOException if any of the files needed to run the Python script is missing
+		 * @throws RuntimeException if there is any error running the Python process
+		 * @throws InterruptedException if the process in interrupted
+		 */
+		void activate(Slice slice, String prelude) throws IOException, RuntimeException, InterruptedException;
+	}
+
+	/**
+	 * Slice whose embeddings are stored in Python
+	 */
+	static final class Slice {
+		final int key;
+		final long[] imageDims;
+		final long[] targetDims;
+		final double modelScale;
+
+		Slice(int key, long[] imageDims, long[] targetDims, double modelScale) {
+			this.key = key;
+			this.imageDims = imageDims;
+			this.targetDims = targetDims;
+			this.modelScale = modelScale;
+		}
+	}
+
+	private final int nSlices;
+	private final int radius;
+	private final SliceEncoder encoder;
+	private final SliceActivator activator;
+	private final DebugTextPrinter debugPrinter;
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "samj-slice-encoder");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/**
+	 * Slices already encoded
+	 */
+	private final Map<Integer, Slice> encoded = new HashMap<Integer, Slice>();
+	/**
+	 * Slices being encoded or waiting to be encoded in the background
+	 */
+	private final Map<Integer, Future<Slice>> pending = new HashMap<Integer, Future<Slice>>();
+	/**
+	 * Keys of {@code slice_cache} that have to be removed in Python
+	 */
+	private final List<Integer> evicted = new ArrayList<Integer>();
+	private int nextKey = 0;
+	private int active = -1;
+	private long prefetched = 0;
+	private long encodedOnDemand = 0;
+
+	/**
+	 * Create the ring for a stack
+	 * @param nSlices
+	 * 	number of slices of the stack
+	 * @param radius
+	 * 	number of slices encoded at each side of the active one
+	 * @param encoder
+	 * 	model specific encoding of one slice
+	 * @param activator
+	 * 	model specific activation of an encoded slice
+	 * @param debugPrinter
+	 * 	where the progress is reported
+	 */
+	SliceEmbeddingRing(int nSlices, int radius, SliceEncoder encoder, SliceActivator activator, DebugTextPrinter debugPrinter) {
+		if (radius < 0)
+			throw new IllegalArgumentException("The number of slices encoded around the active one cannot be negative.");
+		this.nSlices = nSlices;
+		this.radius = radius;
+		this.encoder = encoder;
+		this.activator = activator;
+		this.debugPrinter = debugPrinter;
+	}
+
+	/**
+	 * Make a slice the active one. If it has already been encoded in the background its embeddings are swapped in,
+	 * if it is being encoded the method waits for it and otherwise it is encoded as soon as the encoding in progress,
+	 * if any, finishes. Then the encoding of its neighbours is scheduled
+	 * @param slice
+	 * 	position of the slice in the stack
+	 * @throws IOException if any of the files needed to run the Python script is missing
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	void activate(int slice) throws IOException, RuntimeException, InterruptedException {
+		if (slice < 0 || slice >= nSlices)
+			throw new IllegalArgumentException("The slice " + slice + " is not in the stack, it has " + nSlices + " slices.");
+		long start = System.currentTimeMillis();
+		int direction;
+		Slice state;
+		Future<Slice> future;
+		synchronized (this) {
+			direction = slice < active ? -1 : 1;
+			active = slice;
+			evictOutsideWindow();
+			state = encoded.get(slice);
+			future = state == null ? pending.get(slice) : null;
+		}
+		if (state == null && future != null) {
+			try {
+				state = future.get();
+			} catch (ExecutionException | CancellationException ex) {
+				debugPrinter.printText("BACKGROUND ENCODING OF SLICE " + slice + " FAILED, encoding it again: " + ex);
+			}
+		}
+		if (state == null) {
+			state = encodeOnDemand(slice);
+			store(slice, state);
+			synchronized (this) { encodedOnDemand ++; }
+		} else {
+			synchronized (this) { prefetched ++; }
+		}
+		activator.activate(state, prelude());
+		debugPrinter.printText("SLICE " + slice + " ACTIVE AFTER " + (System.currentTimeMillis() - start) + " ms");
+		prefetch(direction);
+	}
+
+	/**
+	 * Encode a slice on the worker thread, before the slices waiting to be encoded in the background,
+	 * which are scheduled again after the activation
+	 */
+	private Slice encodeOnDemand(int slice) throws IOException, RuntimeException, InterruptedException {
+		Future<Slice> future;
+		synchronized (this) {
+			if (worker.isShutdown())
+				throw new IllegalStateException("The stack has already been closed.");
+			for (Future<Slice> waiting : pending.values())
+				waiting.cancel(false);
+			pending.clear();
+			future = worker.submit(() -> encoder.encode(slice, newKey(), prelude(), false));
+		}
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			else if (ex.getCause() instanceof InterruptedException)
+				throw (InterruptedException) ex.getCause();
+			else if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	private synchronized int newKey() {
+		return nextKey ++;
+	}
+
+	private boolean inWindow(int slice) {
+		return active >= 0 && Math.abs(slice - active) <= radius;
+	}
+
+	private synchronized void store(int slice, Slice state) {
+		Slice previous = encoded.put(slice, state);
+		if (previous != null && previous.key != state.key)
+			evicted.add(previous.key);
+	}
+
+	private synchronized void evictOutsideWindow() {
+		for (Iterator<Map.Entry<Integer, Slice>> it = encoded.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, Slice> entry = it.next();
+			if (inWindow(entry.getKey()))
+				continue;
+			evicted.add(entry.getValue().key);
+			it.remove();
+		}
+		for (Iterator<Map.Entry<Integer, Future<Slice>>> it = pending.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Integer, Future<Slice>> entry = it.next();
+			if (inWindow(entry.getKey()))
+				continue;
+			entry.getValue().cancel(false);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Schedule the encoding of the slices of the window that are not encoded yet, the closest ones first
+	 * and, at the same distance, the one in the direction of the last move first
+	 */
+	private synchronized void prefetch(int direction) {
+		if (worker.isShutdown())
+			return;
+		for (int d = 1; d <= radius; d ++) {
+			for (int slice : new int[] {active + d * direction, active - d * direction}) {
+				if (slice < 0 || slice >= nSlices || encoded.containsKey(slice))
+					continue;
+				Future<Slice> future = pending.get(slice);
+				if (future != null && !future.isDone())
+					continue;
+				final int target = slice;
+				pending.put(slice, worker.submit(() -> encodeInBackground(target)));
+			}
+		}
+	}
+
+	private Slice encodeInBackground(int slice) throws IOException, RuntimeException, InterruptedException {
+		try {
+			Slice state = encoder.encode(slice, newKey(), prelude(), true);
+			synchronized (this) {
+				if (inWindow(slice))
+					store(slice, state);
+				else
+					evicted.add(state.key);
+			}
+			return state;
+		} catch (IOException | RuntimeException | InterruptedException ex) {
+			debugPrinter.printText("BACKGROUND ENCODING OF SLICE " + slice + " FAILED: " + ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 *
+	 * @return Python code that creates the cache of slices if needed and removes the slices evicted since the last call
+	 */
+	private synchronized String prelude() {
+		String code = "globals().setdefault('slice_cache', {})" + System.lineSeparator();
+		for (int key : evicted)
+			code += "slice_cache.pop(" + key + ", None)" + System.lineSeparator();
+		evicted.clear();
+		return code;
+	}
+
+	/**
+	 *
+	 * @return number of slices activated with embeddings computed in the background
+	 */
+	synchronized long getPrefetched() {
+		return prefetched;
+	}
+
+	/**
+	 *
+	 * @return number of slices that had to be encoded when they were activated
+	 */
+	synchronized long getEncodedOnDemand() {
+		return encodedOnDemand;
+	}
+
+	/**
+	 * Stop the background encoding. The encoding running, if any, is allowed to finish so the Python
+	 * cache can be cleared safely afterwards
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void close() throws InterruptedException {
+		synchronized (this) {
+			for (Future<Slice> future : pending.values())
+				future.cancel(false);
+			pending.clear();
+			encoded.clear();
+			evicted.clear();
+			active = -1;
+		}
+		worker.shutdown();
+		worker.awaitTermination(1, TimeUnit.MINUTES);
+	}
+}
@@ -0,0 +1,526 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.cli;
+
+import java.awt.Polygon;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import ai.nets.samj.cli.PromptFile.ImagePrompts;
+import ai.nets.samj.communication.model.SAMModel;
+import ai.nets.samj.communication.model.SAMModels;
+import ai.nets.samj.ui.SAMJLogger;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+
+/**
+ * Headless runner that segments a folder or a list of images with a SAM model and writes the results to disk.
+ * <p>
+ * Usage:
+ * <pre>
+ * BatchRunner --model &lt;name&gt; (--input &lt;folder&gt; | --list &lt;file&gt;) --output &lt;folder&gt;
+ *             [--prompts &lt;file.csv|file.json&gt;] [--format polygons|labels|both] [--workers N] [--prefetch N]
+ *             [--encode-batch N] [--verbose]
+ * </pre>
+ * The model is one of the names of {@link SAMModels}, for example EfficientViTSAM-l0. The format of the prompt file
+ * is described in {@link PromptFile}; without it every image is segmented automatically. For each image the
+ * polygons are written as {@code <name>.json} and the masks as a 16 bit label image {@code <name>_labels.png}.
+ * <p>
+ * The images are split among {@code --workers} model instances, each one with its own Python process. Every worker
+ * encodes the next {@code --prefetch} images in the background while it decodes the prompts of the current one,
+ * and all the boxes of an image are decoded in a single batch. With {@code --encode-batch N}, N &gt; 1, the workers instead
+ * read N images at a time and encode them together with {@link SAMModel#encodeBatch(List, int)}, which gives a better
+ * throughput for large numbers of small images or tiles. At the end the time spent in each stage and its throughput
+ * are printed. The exit code is the number of images that could not be processed, capped at 255.
+ *
+ * @author Carlos Garcia
+ */
+public class BatchRunner {
+
+	private static final String USAGE = "Usage: BatchRunner --model <name> (--input <folder> | --list <file>) --output <folder>" 
+			+ System.lineSeparator()
+			+ "                   [--prompts <file.csv|file.json>] [--format polygons|labels|both] [--workers N] [--prefetch N]" 
+			+ System.lineSeparator()
+			+ "                   [--encode-batch N] [--verbose]";
+
+	private final SAMModel modelType;
+
+	private final List<File> images;
+
+	private final Map<String, ImagePrompts> prompts;
+
+	private final File output;
+
+	private final boolean writePolygons;
+
+	private final boolean writeLabels;
+
+	private final int workers;
+
+	private final int prefetch;
+
+	private int encodeBatch = 1;
+
+	private final SAMJLogger log;
+
+	private final Stage startup = new Stage("model startup");
+	private final Stage read = new Stage("read");
+	private final Stage encode = new Stage("encode (not hidden)");
+	private final Stage decode = new Stage("decode");
+	private final Stage write = new Stage("write");
+
+	private final AtomicLong objects = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Time spent in a stage of the processing and number of items processed by it
+	 */
+	private static class Stage {
+		private final String name;
+		private final AtomicLong nanos = new AtomicLong();
+		private final AtomicLong items = new AtomicLong();
+
+		private Stage(String name) {
+			this.name = name;
+		}
+
+		private void add(long start, long nItems) {
+			nanos.addAndGet(System.nanoTime() - start);
+			items.addAndGet(nItems);
+		}
+
+		@Override
+		public String toString() {
+			double secs = nanos.get() / 1e9;
+			return String.format("%-20s %8d items %10.2f s %10.2f items/s", name, items.get(), secs, 
+					secs == 0 ? 0 : items.get() / secs);
+		}
+	}
+
+	/**
+	 * Create a runner
+	 * @param modelType
+	 * 	the model used, it is instantiated once per worker
+	 * @param images
+	 * 	the images to process
+	 * @param prompts
+	 * 	the prompts of each image by file name, or null to segment all the images automatically
+	 * @param output
+	 * 	folder where the results are written
+	 * @param writePolygons
+	 * 	whether to write the polygons of each image as JSON
+	 * @param writeLabels
+	 * 	whether to write the masks of each image as a label image
+	 * @param workers
+	 * 	number of model instances that run in parallel
+	 * @param prefetch
+	 * 	number of images encoded in advance by each worker
+	 * @param log
+	 * 	where the progress is reported
+	 */
+	public BatchRunner(SAMModel modelType, List<File> images, Map<String, ImagePrompts> prompts, File output,
+			boolean writePolygons, boolean writeLabels, int workers, int prefetch, SAMJLogger log) {
+		if (workers < 1 || prefetch < 0)
+			throw new IllegalArgumentException("There should be at least one worker and the prefetch cannot be negative.");
+		this.modelType = modelType;
+		this.images = images;
+		this.prompts = prompts;
+		this.output = output;
+		this.writePolygons = writePolygons;
+		this.writeLabels = writeLabels;
+		this.workers = workers;
+		this.prefetch = prefetch;
+		this.log = log;
+	}
+
+	/**
+	 * 
+	 * @param encodeBatch
+	 * 	number of images encoded together, 1 to encode them one by one in the background
+	 */
+	public void setEncodeBatch(int encodeBatch) {
+		if (encodeBatch < 1)
+			throw new IllegalArgumentException("The batches should have at least one image.");
+		this.encodeBatch = encodeBatch;
+	}
+
+	/**
+	 * Run the batch
+	 * @param args
+	 * 	the command line arguments, see the documentation of the class
+	 */
+	public static void main(String[] args) {
+		BatchRunner runner;
+		try {
+			runner = fromArgs(args);
+		} catch (IllegalArgumentException | IOException ex) {
+			System.err.println(ex.getMessage());
+			System.err.println(USAGE);
+			System.exit(255);
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			long failed = runner.run();
+			runner.printReport(System.nanoTime() - start);
+			System.exit((int) Math.min(255, failed));
+		} catch (InterruptedException ex) {
+			System.err.println("The batch was interrupted.");
+			System.exit(255);
+		}
+	}
+
+	private static BatchRunner fromArgs(String[] args) throws IOException {
+		String model = null, format = "polygons";
+		File input = null, list = null, promptFile = null, output = null;
+		int workers = 1, prefetch = 2, encodeBatch = 1;
+		boolean verbose = false;
+		for (int i = 0; i < args.length; i ++) {
+			String arg = args[i];
+			if (arg.equals("--verbose")) {
+				verbose = true;
+				continue;
+			}
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+			String value = args[++ i];
+			switch (arg) {
+			case "--model": model = value; break;
+			case "--input": input = new File(value); break;
+			case "--list": list = new File(value); break;
+			case "--prompts": promptFile = new File(value); break;
+			case "--output": output = new File(value); break;
+			case "--format": format = value.toLowerCase(); break;
+			case "--workers": workers = Integer.parseInt(value); break;
+			case "--prefetch": prefetch = Integer.parseInt(value); break;
+			case "--encode-batch": encodeBatch = Integer.parseInt(value); break;
+			default: throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+		}
+		if (model == null || output == null || (input == null) == (list == null))
+			throw new IllegalArgumentException("A model, an output folder and either an input folder or a list of images are needed.");
+		if (!format.equals("polygons") && !format.equals("labels") && !format.equals("both"))
+			throw new IllegalArgumentException("Unknown output format " + format);
+		SAMModel modelType = null;
+		SAMModels models = new SAMModels();
+		for (SAMModel m : models)
+			if (m.getName().equalsIgnoreCase(model)) modelType = m;
+		if (modelType == null)
+			throw new IllegalArgumentException("Unknown model " + model + ", the available models are: " 
+					+ models.stream().map(SAMModel::getName).collect(Collectors.joining(", ")));
+		List<File> images = input != null ? ImageFiles.listImages(input) : ImageFiles.readList(list);
+		if (images.size() == 0)
+			throw new IllegalArgumentException("No images to process.");
+		if (!output.isDirectory() && !output.mkdirs())
+			throw new IOException("Cannot create the output folder " + output);
+		Map<String, ImagePrompts> prompts = promptFile == null ? null : PromptFile.read(promptFile);
+		final boolean info = verbose;
+		SAMJLogger log = new SAMJLogger() {
+			@Override
+			public void info(String text) {
+				if (info) System.out.println(text);
+			}
+			@Override
+			public void warn(String text) {
+				System.err.println("[WARNING] " + text);
+			}
+			@Override
+			public void error(String text) {
+				System.err.println("[ERROR] " + text);
+			}
+		};
+		BatchRunner runner = new BatchRunner(modelType, images, prompts, output, !format.equals("labels"), !format.equals("polygons"), 
+				workers, prefetch, log);
+		runner.setEncodeBatch(encodeBatch);
+		return runner;
+	}
+
+	/**
+	 * Process all the images
+	 * @return number of images that could not be processed
+	 * @throws InterruptedException if the batch is interrupted
+	 */
+	public long run() throws InterruptedException {
+		List<File> todo = images;
+		if (prompts != null) {
+			todo = images.stream().filter(f -> prompts.containsKey(f.getName())).collect(Collectors.toList());
+			if (todo.size() < images.size())
+				log.warn((images.size() - todo.size()) + " images have no prompts and are skipped.");
+		}
+		if (encodeBatch > 1 && !modelType.supportsBatchEncoding())
+			log.warn(modelType.getName() + " cannot encode batches of images, they are encoded one by one.");
+		if (!modelType.supportsStacks())
+			log.warn(modelType.getName() + " cannot encode images in the background, a new instance is created for each image.");
+		int nWorkers = Math.min(workers, Math.max(1, todo.size()));
+		List<List<File>> shards = new ArrayList<List<File>>();
+		for (int w = 0; w < nWorkers; w ++)
+			shards.add(new ArrayList<File>());
+		for (int i = 0; i < todo.size(); i ++)
+			shards.get(i % nWorkers).add(todo.get(i));
+		ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (List<File> shard : shards)
+				futures.add(pool.submit(() -> {
+					processShard(shard);
+					return null;
+				}));
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException ex) {
+					log.error("A worker stopped: " + ex.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return failures.get();
+	}
+
+	/**
+	 * Images of a worker, read from disk when the model encodes them
+	 */
+	private class LazyImages extends AbstractList<RandomAccessibleInterval<?>> {
+		private final List<File> files;
+		private final Map<Integer, long[]> dims = new ConcurrentHashMap<Integer, long[]>();
+
+		private LazyImages(List<File> files) {
+			this.files = files;
+		}
+
+		@Override
+		public RandomAccessibleInterval<?> get(int index) {
+			long start = System.nanoTime();
+			try {
+				RandomAccessibleInterval<?> img = ImageFiles.read(files.get(index));
+				dims.put(index, img.dimensionsAsLongArray());
+				read.add(start, 1);
+				return img;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		@Override
+		public int size() {
+			return files.size();
+		}
+	}
+
+	private void processShard(List<File> shard) throws InterruptedException {
+		LazyImages lazy = new LazyImages(shard);
+		SAMModel model = null;
+		int first = 0;
+		try {
+			for (; model == null && first < shard.size(); first ++) {
+				RandomAccessibleInterval<?> img;
+				try {
+					img = lazy.get(first);
+				} catch (UncheckedIOException ex) {
+					fail(shard.get(first), ex.getCause());
+					continue;
+				}
+				long start = System.nanoTime();
+				model = modelType.instantiate(img, log);
+				startup.add(start, 1);
+				try {
+					process(model, shard.get(first), lazy.dims.get(first));
+				} catch (IOException | RuntimeException ex) {
+					fail(shard.get(first), ex);
+				}
+			}
+			if (first >= shard.size())
+				return;
+			if (encodeBatch > 1 && model.supportsBatchEncoding()) {
+				processInBatches(model, lazy, first);
+				return;
+			} else if (!model.supportsStacks()) {
+				processOneByOne(lazy, first);
+				return;
+			}
+			List<RandomAccessibleInterval<?>> rest = lazy.subList(first, shard.size());
+			model.setStack(rest, prefetch);
+			for (int i = 0; i < rest.size(); i ++) {
+				File file = shard.get(first + i);
+				try {
+					long start = System.nanoTime();
+					model.setActiveSlice(i);
+					encode.add(start, 1);
+					process(model, file, lazy.dims.get(first + i));
+				} catch (IOException | RuntimeException ex) {
+					fail(file, ex instanceof UncheckedIOException ? ex.getCause() : ex);
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			log.error("Could not start " + modelType.getName() + ": " + ex.getMessage());
+			for (int i = Math.max(0, first); i < shard.size(); i ++)
+				fail(shard.get(i), ex);
+		} finally {
+			if (model != null) {
+				model.closeStack();
+				model.closeProcess();
+			}
+		}
+	}
+
+	/**
+	 * Process the images from the first one on with a new instance of the model for each of them,
+	 * for models that cannot encode stacks
+	 */
+	private void processOneByOne(LazyImages lazy, int first) throws InterruptedException {
+		for (int i = first; i < lazy.size(); i ++) {
+			File file = lazy.files.get(i);
+			SAMModel model = null;
+			try {
+				long start = System.nanoTime();
+				model = modelType.instantiate(lazy.get(i), log);
+				encode.add(start, 1);
+				process(model, file, lazy.dims.get(i));
+			} catch (IOException | RuntimeException ex) {
+				fail(file, ex instanceof UncheckedIOException ? ex.getCause() : ex);
+			} finally {
+				if (model != null)
+					model.closeProcess();
+			}
+		}
+	}
+
+	/**
+	 * Process the images from the first one on, reading and encoding {@link #encodeBatch} images at a time
+	 */
+	private void processInBatches(SAMModel model, LazyImages lazy, int first) 
+			throws IOException, RuntimeException, InterruptedException {
+		for (int b = first; b < lazy.size(); b += encodeBatch) {
+			List<RandomAccessibleInterval<?>> batch = new ArrayList<RandomAccessibleInterval<?>>();
+			List<Integer> positions = new ArrayList<Integer>();
+			for (int i = b; i < Math.min(lazy.size(), b + encodeBatch); i ++) {
+				try {
+					batch.add(lazy.get(i));
+					positions.add(i);
+				} catch (UncheckedIOException ex) {
+					fail(lazy.files.get(i), ex.getCause());
+				}
+			}
+			long start = System.nanoTime();
+			List<Integer> keys;
+			try {
+				keys = model.encodeBatch(batch, encodeBatch);
+			} catch (IOException | RuntimeException ex) {
+				for (int i : positions)
+					fail(lazy.files.get(i), ex);
+				continue;
+			}
+			encode.add(start, batch.size());
+			for (int i = 0; i < keys.size(); i ++) {
+				File file = lazy.files.get(positions.get(i));
+				try {
+					model.setActiveImage(keys.get(i));
+					process(model, file, lazy.dims.get(positions.get(i)));
+				} catch (IOException | RuntimeException ex) {
+					fail(file, ex);
+				} finally {
+					model.releaseImage(keys.get(i));
+				}
+			}
+		}
+	}
+
+	private void fail(File file, Throwable cause) {
+		failures.incrementAndGet();
+		log.error("Could not process " + file + ": " + cause.getMessage());
+	}
+
+	private void process(SAMModel model, File file, long[] dims) throws IOException, RuntimeException, InterruptedException {
+		long start = System.nanoTime();
+		List<List<Polygon>> results = new ArrayList<List<Polygon>>();
+		if (prompts == null) {
+			for (Polygon pol : model.fetch2dSegmentationAutomatic(null))
+				results.add(Collections.singletonList(pol));
+		} else {
+			ImagePrompts img = prompts.get(file.getName());
+			if (img.boxes.size() > 0) {
+				List<Interval> boxes = new ArrayList<Interval>();
+				for (int[] b : img.boxes)
+					boxes.add(new FinalInterval(new long[] {b[0], b[1]}, new long[] {b[2], b[3]}));
+				results.addAll(model.fetch2dSegmentationBatch(boxes));
+			}
+			for (Map.Entry<Integer, List<int[]>> entry : img.points.entrySet()) {
+				List<int[]> neg = img.negPoints.getOrDefault(entry.getKey(), Collections.emptyList());
+				results.add(model.fetch2dSegmentation(toPoints(entry.getValue()), toPoints(neg)));
+			}
+		}
+		decode.add(start, 1);
+		objects.addAndGet(results.size());
+		start = System.nanoTime();
+		String name = file.getName();
+		name = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+		if (writePolygons)
+			ImageFiles.writePolygons(results, new File(output, name + ".json"));
+		if (writeLabels)
+			ImageFiles.writeLabels(results, (int) dims[0], (int) dims[1], new File(output, name + "_labels.png"));
+		write.add(start, 1);
+		log.info("Processed " + file.getName() + ": " + results.size() + " objects");
+	}
+
+	private static List<Localizable> toPoints(List<int[]> coords) {
+		List<Localizable> points = new ArrayList<Localizable>();
+		for (int[] c : coords)
+			points.add(new Point(c[0], c[1]));
+		return points;
+	}
+
+	/**
+	 * Print the time spent in each stage and its throughput, the stages run in parallel in the different workers
+	 * and the reading and encoding of the next images overlap with the decoding of the current one
+	 * @param wallNanos
+	 * 	total time of the batch
+	 */
+	public void printReport(long wallNanos) {
+		long done = decode.items.get();
+		System.out.println("Model: " + modelType.getName() + ", workers: " + Math.min(workers, images.size()) 
+				+ (encodeBatch > 1 ? ", encode batch: " + encodeBatch : ", prefetch: " + prefetch));
+		System.out.println(startup);
+		System.out.println(read);
+		System.out.println(encode);
+		System.out.println(decode);
+		System.out.println(write);
+		double secs = wallNanos / 1e9;
+		System.out.println(String.format("Total: %d images (%d failed), %d objects in %.2f s: %.2f images/s, %.2f objects/s", 
+				done, failures.get(), objects.get(), secs, done / secs, objects.get() / secs));
+	}
+}
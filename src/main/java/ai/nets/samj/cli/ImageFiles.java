@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.cli;
+
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import ai.nets.samj.propagation.MaskRasterizer;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Reading and writing of the files of the {@link BatchRunner}. The images are read with {@link ImageIO}, so every
+ * format supported by the JVM can be used (PNG, JPEG, BMP, GIF and, from Java 9, TIFF).
+ *
+ * @author Carlos Garcia
+ */
+class ImageFiles {
+
+	private ImageFiles() {
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * 	a file
+	 * @return whether the extension of the file is one of the image formats that can be read
+	 */
+	static boolean isImage(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || !file.isFile())
+			return false;
+		return Arrays.asList(ImageIO.getReaderFileSuffixes()).contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	/**
+	 * List the images of a folder, sorted by name
+	 * @param folder
+	 * 	the folder
+	 * @return the image files
+	 */
+	static List<File> listImages(File folder) {
+		List<File> images = new ArrayList<File>();
+		File[] files = folder.listFiles();
+		if (files == null)
+			return images;
+		Arrays.sort(files);
+		for (File file : files)
+			if (isImage(file)) images.add(file);
+		return images;
+	}
+
+	/**
+	 * Read the list of images of a text file with one path per line, relative paths refer to the folder of the list
+	 * @param list
+	 * 	the text file
+	 * @return the image files
+	 * @throws IOException if the list cannot be read
+	 */
+	static List<File> readList(File list) throws IOException {
+		List<File> images = new ArrayList<File>();
+		for (String line : Files.readAllLines(list.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			File file = new File(line);
+			images.add(file.isAbsolute() ? file : new File(list.getAbsoluteFile().getParentFile(), line));
+		}
+		return images;
+	}
+
+	/**
+	 * Read an image. 8 and 16 bit grayscale images keep their type, anything else is converted to 8 bit RGB
+	 * @param file
+	 * 	the image file
+	 * @return an image with axes xy or xyc
+	 * @throws IOException if the file cannot be read or is not an image
+	 */
+	static RandomAccessibleInterval<?> read(File file) throws IOException {
+		BufferedImage bi = ImageIO.read(file);
+		if (bi == null)
+			throw new IOException("The file " + file + " is not an image that can be read.");
+		int w = bi.getWidth();
+		int h = bi.getHeight();
+		Raster raster = bi.getRaster();
+		int dataType = raster.getSampleModel().getDataType();
+		if (raster.getNumBands() == 1 && !(bi.getColorModel() instanceof IndexColorModel)) {
+			if (dataType == DataBuffer.TYPE_BYTE) {
+				byte[] px = new byte[w * h];
+				raster.getDataElements(0, 0, w, h, px);
+				return ArrayImgs.unsignedBytes(px, w, h);
+			} else if (dataType == DataBuffer.TYPE_USHORT) {
+				short[] px = new short[w * h];
+				raster.getDataElements(0, 0, w, h, px);
+				return ArrayImgs.unsignedShorts(px, w, h);
+			}
+		}
+		int[] argb = bi.getRGB(0, 0, w, h, null, 0, w);
+		byte[] px = new byte[3 * w * h];
+		for (int i = 0; i < argb.length; i ++) {
+			px[i] = (byte) (argb[i] >> 16);
+			px[i + argb.length] = (byte) (argb[i] >> 8);
+			px[i + 2 * argb.length] = (byte) argb[i];
+		}
+		return ArrayImgs.unsignedBytes(px, w, h, 3);
+	}
+
+	/**
+	 * Write the masks of the objects of an image as a 16 bit PNG where the pixels of the object i have the value i + 1
+	 * @param objects
+	 * 	polygons of each of the objects
+	 * @param width
+	 * 	width of the image
+	 * @param height
+	 * 	height of the image
+	 * @param file
+	 * 	the PNG file
+	 * @throws IOException if the file cannot be written
+	 */
+	static void writeLabels(List<List<Polygon>> objects, int width, int height, File file) throws IOException {
+		short[] labels = new short[width * height];
+		for (int i = 0; i < objects.size() && i < 65535; i ++)
+			MaskRasterizer.fill(objects.get(i), (short) (i + 1), labels, 0, width, height);
+		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+		bi.getRaster().setDataElements(0, 0, width, height, labels);
+		if (!ImageIO.write(bi, "png", file))
+			throw new IOException("No PNG writer available to save " + file);
+	}
+
+	/**
+	 * Write the polygons of the objects of an image as JSON:
+	 * {@code [{"object": 1, "polygons": [[[x, y], ...], ...]}, ...]}
+	 * @param objects
+	 * 	polygons of each of the objects
+	 * @param file
+	 * 	the JSON file
+	 * @throws IOException if the file cannot be written
+	 */
+	static void writePolygons(List<List<Polygon>> objects, File file) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writer.write("[");
+			for (int i = 0; i < objects.size(); i ++) {
+				writer.write(i == 0 ? System.lineSeparator() : "," + System.lineSeparator());
+				writer.write("  {\"object\": " + (i + 1) + ", \"polygons\": [");
+				List<Polygon> pols = objects.get(i);
+				for (int p = 0; p < pols.size(); p ++) {
+					Polygon pol = pols.get(p);
+					StringBuilder sb = new StringBuilder(p == 0 ? "[" : ", [");
+					for (int k = 0; k < pol.npoints; k ++)
+						sb.append(k == 0 ? "" : ", ").append('[').append(pol.xpoints[k]).append(", ").append(pol.ypoints[k]).append(']');
+					writer.write(sb.append(']').toString());
+				}
+				writer.write("]}");
+			}
+			writer.write(System.lineSeparator() + "]" + System.lineSeparator());
+		}
+	}
+}
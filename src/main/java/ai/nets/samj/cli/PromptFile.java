@@ -0,0 +1,348 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prompts of the images processed by the {@link BatchRunner}, read from a CSV or a JSON file.
+ * <p>
+ * The CSV file has one prompt per line, an optional header and '#' comments:
+ * <pre>
+ * image,box,x0,y0,x1,y1
+ * image,point,x,y[,object]
+ * image,negpoint,x,y[,object]
+ * </pre>
+ * Every box is an object, and the points and negative points with the same object number, 0 by default, form another one.
+ * <p>
+ * The JSON file is an object with one entry per image:
+ * <pre>
+ * {"image.png": {"boxes": [[x0, y0, x1, y1], ...], "points": [[x, y], ...], "negpoints": [[x, y], ...]}}
+ * </pre>
+ * where all the points and negative points of an image form a single object. The images are identified by their file name.
+ *
+ * @author Carlos Garcia
+ */
+class PromptFile {
+
+	/**
+	 * Prompts of one image
+	 */
+	static class ImagePrompts {
+		/**
+		 * Bounding boxes as [x0, y0, x1, y1], one object each
+		 */
+		final List<int[]> boxes = new ArrayList<int[]>();
+		/**
+		 * Points of each of the objects prompted with points
+		 */
+		final Map<Integer, List<int[]>> points = new TreeMap<Integer, List<int[]>>();
+		/**
+		 * Negative points of each of the objects prompted with points
+		 */
+		final Map<Integer, List<int[]>> negPoints = new TreeMap<Integer, List<int[]>>();
+
+		/**
+		 * 
+		 * @return number of objects prompted on the image
+		 */
+		int numObjects() {
+			return boxes.size() + points.size();
+		}
+	}
+
+	private PromptFile() {
+	}
+
+	/**
+	 * Read a prompt file, as JSON if its name ends with .json and as CSV otherwise
+	 * @param file
+	 * 	the prompt file
+	 * @return the prompts of each image, by file name
+	 * @throws IOException if the file cannot be read or has a wrong format
+	 */
+	static Map<String, ImagePrompts> read(File file) throws IOException {
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		if (file.getName().toLowerCase().endsWith(".json"))
+			return readJson(content);
+		return readCsv(content);
+	}
+
+	private static Map<String, ImagePrompts> readCsv(String content) throws IOException {
+		Map<String, ImagePrompts> prompts = new LinkedHashMap<String, ImagePrompts>();
+		String[] lines = content.split("\r?\n");
+		for (int n = 0; n < lines.length; n ++) {
+			String line = lines[n].trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] cols = line.split("\\s*[,;\\t]\\s*");
+			if (n == 0 && cols.length > 1 && cols[0].equalsIgnoreCase("image"))
+				continue;
+			try {
+				ImagePrompts img = prompts.computeIfAbsent(new File(cols[0]).getName(), k -> new ImagePrompts());
+				String type = cols[1].toLowerCase();
+				if (type.equals("box")) {
+					img.boxes.add(ints(cols, 2, 4));
+				} else if (type.equals("point") || type.equals("negpoint")) {
+					int object = cols.length > 4 ? Integer.parseInt(cols[4]) : 0;
+					Map<Integer, List<int[]>> target = type.equals("point") ? img.points : img.negPoints;
+					target.computeIfAbsent(object, k -> new ArrayList<int[]>()).add(ints(cols, 2, 2));
+				} else {
+					throw new IllegalArgumentException("unknown prompt type '" + cols[1] + "'");
+				}
+			} catch (RuntimeException ex) {
+				throw new IOException("Wrong prompt at line " + (n + 1) + " of the CSV file: " + ex.getMessage());
+			}
+		}
+		checkNegativeOnly(prompts);
+		return prompts;
+	}
+
+	private static int[] ints(String[] cols, int from, int n) {
+		if (cols.length < from + n)
+			throw new IllegalArgumentException("expected " + n + " coordinates");
+		int[] vals = new int[n];
+		for (int i = 0; i < n; i ++)
+			vals[i] = (int) Math.round(Double.parseDouble(cols[from + i]));
+		return vals;
+	}
+
+	private static Map<String, ImagePrompts> readJson(String content) throws IOException {
+		Object root;
+		try {
+			root = new JsonParser(content).parse();
+		} catch (RuntimeException ex) {
+			throw new IOException("Wrong JSON prompt file: " + ex.getMessage());
+		}
+		if (!(root instanceof Map))
+			throw new IOException("The JSON prompt file should contain an object with one entry per image.");
+		Map<String, ImagePrompts> prompts = new LinkedHashMap<String, ImagePrompts>();
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) root).entrySet()) {
+			if (!(entry.getValue() instanceof Map))
+				throw new IOException("The prompts of the image '" + entry.getKey() + "' should be a JSON object.");
+			Map<?, ?> fields = (Map<?, ?>) entry.getValue();
+			ImagePrompts img = new ImagePrompts();
+			for (int[] box : coordinates(fields.get("boxes"), 4, entry.getKey()))
+				img.boxes.add(box);
+			List<int[]> points = coordinates(fields.get("points"), 2, entry.getKey());
+			List<int[]> negPoints = coordinates(fields.get("negpoints"), 2, entry.getKey());
+			if (points.size() > 0)
+				img.points.put(0, points);
+			if (negPoints.size() > 0)
+				img.negPoints.put(0, negPoints);
+			prompts.put(new File(entry.getKey().toString()).getName(), img);
+		}
+		checkNegativeOnly(prompts);
+		return prompts;
+	}
+
+	private static List<int[]> coordinates(Object value, int n, Object image) throws IOException {
+		List<int[]> list = new ArrayList<int[]>();
+		if (value == null)
+			return list;
+		if (!(value instanceof List))
+			throw new IOException("The prompts of the image '" + image + "' should be lists of coordinates.");
+		for (Object item : (List<?>) value) {
+			if (!(item instanceof List) || ((List<?>) item).size() != n)
+				throw new IOException("The prompts of the image '" + image + "' should have " + n + " coordinates each.");
+			int[] vals = new int[n];
+			for (int i = 0; i < n; i ++) {
+				Object c = ((List<?>) item).get(i);
+				if (!(c instanceof Double))
+					throw new IOException("The coordinates of the prompts of the image '" + image + "' should be numbers.");
+				vals[i] = (int) Math.round((Double) c);
+			}
+			list.add(vals);
+		}
+		return list;
+	}
+
+	private static void checkNegativeOnly(Map<String, ImagePrompts> prompts) throws IOException {
+		for (Map.Entry<String, ImagePrompts> entry : prompts.entrySet()) {
+			for (Integer object : entry.getValue().negPoints.keySet()) {
+				if (!entry.getValue().points.containsKey(object))
+					throw new IOException("The object " + object + " of the image '" + entry.getKey() 
+						+ "' has negative points but no positive ones.");
+			}
+		}
+	}
+
+	/**
+	 * Minimal JSON parser for the prompt files. Objects are returned as maps, arrays as lists,
+	 * numbers as doubles and strings, booleans and null as themselves
+	 */
+	private static class JsonParser {
+
+		private final String text;
+		private int pos = 0;
+
+		private JsonParser(String text) {
+			this.text = text;
+		}
+
+		private Object parse() {
+			Object value = value();
+			skipSpaces();
+			if (pos != text.length())
+				throw error("unexpected content after the end");
+			return value;
+		}
+
+		private Object value() {
+			skipSpaces();
+			if (pos >= text.length())
+				throw error("unexpected end");
+			char c = text.charAt(pos);
+			if (c == '{')
+				return object();
+			else if (c == '[')
+				return array();
+			else if (c == '"')
+				return string();
+			else if (text.startsWith("true", pos)) {
+				pos += 4;
+				return Boolean.TRUE;
+			} else if (text.startsWith("false", pos)) {
+				pos += 5;
+				return Boolean.FALSE;
+			} else if (text.startsWith("null", pos)) {
+				pos += 4;
+				return null;
+			}
+			return number();
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			pos ++;
+			skipSpaces();
+			if (peek() == '}') {
+				pos ++;
+				return map;
+			}
+			while (true) {
+				skipSpaces();
+				if (peek() != '"')
+					throw error("expected a key");
+				String key = string();
+				skipSpaces();
+				expect(':');
+				map.put(key, value());
+				skipSpaces();
+				if (peek() == ',') {
+					pos ++;
+					continue;
+				}
+				expect('}');
+				return map;
+			}
+		}
+
+		private List<Object> array() {
+			List<Object> list = new ArrayList<Object>();
+			pos ++;
+			skipSpaces();
+			if (peek() == ']') {
+				pos ++;
+				return list;
+			}
+			while (true) {
+				list.add(value());
+				skipSpaces();
+				if (peek() == ',') {
+					pos ++;
+					continue;
+				}
+				expect(']');
+				return list;
+			}
+		}
+
+		private String string() {
+			StringBuilder sb = new StringBuilder();
+			pos ++;
+			while (pos < text.length()) {
+				char c = text.charAt(pos ++);
+				if (c == '"')
+					return sb.toString();
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (pos >= text.length())
+					break;
+				char e = text.charAt(pos ++);
+				switch (e) {
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos + 4 > text.length())
+						throw error("wrong unicode escape");
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default: sb.append(e);
+				}
+			}
+			throw error("unterminated string");
+		}
+
+		private Double number() {
+			int start = pos;
+			while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+				pos ++;
+			if (start == pos)
+				throw error("unexpected character '" + text.charAt(pos) + "'");
+			return Double.parseDouble(text.substring(start, pos));
+		}
+
+		private char peek() {
+			if (pos >= text.length())
+				throw error("unexpected end");
+			return text.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw error("expected '" + c + "'");
+			pos ++;
+		}
+
+		private void skipSpaces() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				pos ++;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + pos);
+		}
+	}
+}
@@ -28,12 +28,15 @@ import net.imglib2.util.Cast;
 
 import java.awt.Polygon;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import ai.nets.samj.AbstractSamJ;
 import ai.nets.samj.EfficientSamJ;
 import ai.nets.samj.SamEnvManager;
+import ai.nets.samj.SamJEvents;
 import ai.nets.samj.ui.SAMJLogger;
 
 /**
@@ -118,11 +121,15 @@ public class EfficientSAM implements SAMModel {
 	 */
 	public SAMModel instantiate(final RandomAccessibleInterval<?> image, final SAMJLogger useThisLoggerForIt) 
 			throws IOException, InterruptedException, RuntimeException {
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.INSTANTIATE, FULL_NAME).image(image);
 		try {
 			return new EfficientSAM(image,useThisLoggerForIt);
 		} catch (IOException | InterruptedException | RuntimeException e) {
+			span.status(e.getClass().getSimpleName());
 			useThisLoggerForIt.error(FULL_NAME + " experienced an error: " + e.getMessage());
 			throw e;
+		} finally {
+			span.end();
 		}
 	}
 
@@ -188,6 +195,220 @@ public class EfficientSAM implements SAMModel {
 		}
 	}
 
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D,
+			Consumer<List<Polygon>> partialResults) throws IOException, InterruptedException, RuntimeException {
+		try {
+			List<int[]> list = listOfPoints2D.stream()
+					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
+			List<int[]> negList = listOfNegPoints2D.stream()
+					.map(i -> new int[] {(int) i.positionAsDoubleArray()[0], (int) i.positionAsDoubleArray()[1]}).collect(Collectors.toList());
+			return efficientSamJ.processPoints(list, negList, partialResults);
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			log.error(FULL_NAME+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(Interval boundingBox2D, Consumer<List<Polygon>> partialResults) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			//order to processBox() should be: x0,y0, x1,y1
+			final int bbox[] = {
+				(int)boundingBox2D.min(0),
+				(int)boundingBox2D.min(1),
+				(int)boundingBox2D.max(0),
+				(int)boundingBox2D.max(1)
+			};
+			return efficientSamJ.processBox(bbox, partialResults);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai,
+			Consumer<List<Polygon>> partialResults) throws IOException, InterruptedException, RuntimeException {
+		try {
+			return efficientSamJ.processMask(rai, partialResults);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsAutomaticSegmentation() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentationAutomatic(Consumer<List<Polygon>> partialResults) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			return efficientSamJ.processAutomaticSegmentation(partialResults);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentationBatch(boundingBoxes2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D, List<Localizable> points2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			//order to processBoxes() should be: x0,y0, x1,y1
+			List<int[]> bboxes = new ArrayList<int[]>(boundingBoxes2D.size());
+			for (Interval boundingBox2D : boundingBoxes2D)
+				bboxes.add(new int[] {
+					(int)boundingBox2D.min(0),
+					(int)boundingBox2D.min(1),
+					(int)boundingBox2D.max(0),
+					(int)boundingBox2D.max(1)
+				});
+			List<int[]> points = null;
+			if (points2D != null) {
+				points = new ArrayList<int[]>(points2D.size());
+				for (Localizable point : points2D)
+					points.add(new int[] {point.getIntPosition(0), point.getIntPosition(1)});
+			}
+			return efficientSamJ.processBoxes(bboxes, points);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsImageUpdate() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void updateImage(RandomAccessibleInterval<?> image) throws IOException, InterruptedException, RuntimeException {
+		try {
+			efficientSamJ.updateImage(Cast.unchecked(image));
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+" could not encode the new image: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsStacks() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setStack(List<? extends RandomAccessibleInterval<?>> slices, int radius) throws InterruptedException {
+		efficientSamJ.setStack(Cast.unchecked(slices), radius);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setActiveSlice(int slice) throws IOException, InterruptedException, RuntimeException {
+		try {
+			efficientSamJ.setActiveSlice(slice);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+" could not segment the slice " + slice + ": "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void closeStack() throws InterruptedException {
+		efficientSamJ.closeStack();
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsBatchEncoding() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Integer> encodeBatch(List<? extends RandomAccessibleInterval<?>> images, int maxBatch) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			return efficientSamJ.encodeBatch(Cast.unchecked(images), maxBatch);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+" could not encode the batch of images: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setActiveImage(int key) throws IOException, InterruptedException, RuntimeException {
+		try {
+			efficientSamJ.setActiveImage(key);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			log.error(FULL_NAME+" could not activate the image " + key + ": "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void releaseImage(int key) throws IOException, InterruptedException {
+		efficientSamJ.releaseImage(key);
+	}
+
 	@Override
 	/**
 	 * {@inheritDoc}
@@ -0,0 +1,617 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.communication.model;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import ai.nets.samj.SamJEvents;
+import ai.nets.samj.ui.SAMJLogger;
+
+/**
+ * SAM model that runs entirely in the JVM, without Python, weights or any installation, and returns synthetic
+ * polygons after a configurable delay. It is meant to load test the layers around the models (GUI, displays,
+ * prompt batching, servers...) at rates that the real models cannot reach, so their own bottlenecks can be found.
+ * <p>
+ * The polygons are ellipses inscribed in the prompt: the bounding box, a disc around the first point or the bounding box
+ * of each label of a mask. Their number and number of vertices are given by the {@link ResultProfile}, and the time spent
+ * encoding and decoding by the {@link LatencyProfile}. As the Python process of the real models, an instance processes
+ * one request at a time.
+ * <p>
+ * It is not in the list of {@link SAMModels} unless the system property {@value #ENABLE_PROPERTY} is "true"
+ * (for example {@code -Dsamj.mock=true}), but it can always be added to the list by hand.
+ * 
+ * @author Carlos Garcia
+ */
+public class MockSAM implements SAMModel {
+	
+	/**
+	 * Time spent by the simulated model in each operation
+	 */
+	public static final class LatencyProfile {
+		/**
+		 * No delay at all, to measure the layers around the model alone
+		 */
+		public static final LatencyProfile NONE = new LatencyProfile(0, 0, 0, 0);
+		/**
+		 * Delays similar to those of EfficientViTSAM-l0 on a GPU
+		 */
+		public static final LatencyProfile FAST = new LatencyProfile(40, 5, 0.5, 0.1);
+		/**
+		 * Delays similar to those of EfficientViTSAM-l0 on a CPU
+		 */
+		public static final LatencyProfile TYPICAL = new LatencyProfile(800, 60, 5, 0.2);
+		/**
+		 * Delays similar to those of EfficientSAM on a CPU
+		 */
+		public static final LatencyProfile SLOW = new LatencyProfile(6000, 400, 40, 0.3);
+		
+		private final double encodeMillis;
+		private final double decodeMillis;
+		private final double batchedPromptMillis;
+		private final double jitter;
+		
+		/**
+		 * Create a latency profile
+		 * @param encodeMillis
+		 * 	time needed to encode an image
+		 * @param decodeMillis
+		 * 	time needed to decode a prompt
+		 * @param batchedPromptMillis
+		 * 	additional time needed by each prompt after the first one of a batch
+		 * @param jitter
+		 * 	maximum relative variation of the times, a value of 0.2 gives times between 80% and 120% of the nominal ones
+		 */
+		public LatencyProfile(double encodeMillis, double decodeMillis, double batchedPromptMillis, double jitter) {
+			if (encodeMillis < 0 || decodeMillis < 0 || batchedPromptMillis < 0 || jitter < 0 || jitter > 1)
+				throw new IllegalArgumentException("The times cannot be negative and the jitter has to be between 0 and 1.");
+			this.encodeMillis = encodeMillis;
+			this.decodeMillis = decodeMillis;
+			this.batchedPromptMillis = batchedPromptMillis;
+			this.jitter = jitter;
+		}
+		
+		@Override
+		public String toString() {
+			return "encode " + encodeMillis + " ms, decode " + decodeMillis + " ms, batched prompt " + batchedPromptMillis 
+					+ " ms, jitter " + (int) (jitter * 100) + "%";
+		}
+	}
+	
+	/**
+	 * Size of the results returned by the simulated model
+	 */
+	public static final class ResultProfile {
+		/**
+		 * A single small polygon per prompt
+		 */
+		public static final ResultProfile SMALL = new ResultProfile(1, 16, 16);
+		/**
+		 * A single polygon per prompt with as many vertices as the contour of a medium size object
+		 */
+		public static final ResultProfile TYPICAL = new ResultProfile(1, 256, 64);
+		/**
+		 * Several large polygons per prompt, as the contours of big objects with holes or disconnected parts
+		 */
+		public static final ResultProfile LARGE = new ResultProfile(4, 4096, 256);
+		/**
+		 * Many small fragments per prompt, as returned for noisy images
+		 */
+		public static final ResultProfile FRAGMENTED = new ResultProfile(50, 24, 1024);
+		
+		private final int polygons;
+		private final int vertices;
+		private final int automaticObjects;
+		
+		/**
+		 * Create a result profile
+		 * @param polygons
+		 * 	number of polygons returned for each prompt
+		 * @param vertices
+		 * 	number of vertices of each polygon
+		 * @param automaticObjects
+		 * 	number of objects found by the automatic segmentation
+		 */
+		public ResultProfile(int polygons, int vertices, int automaticObjects) {
+			if (polygons < 1 || vertices < 3 || automaticObjects < 0)
+				throw new IllegalArgumentException("There has to be at least one polygon with three vertices per prompt.");
+			this.polygons = polygons;
+			this.vertices = vertices;
+			this.automaticObjects = automaticObjects;
+		}
+		
+		@Override
+		public String toString() {
+			return polygons + " polygons of " + vertices + " vertices per prompt, " + automaticObjects + " automatic objects";
+		}
+	}
+
+	/**
+	 * Name of the model
+	 */
+	public static final String FULL_NAME = "Mock SAM";
+	/**
+	 * Axes order required for the input image by the model
+	 */
+	public static final String INPUT_IMAGE_AXES = "yxc";
+	/**
+	 * System property that adds the mock model to the list of {@link SAMModels} when it is "true"
+	 */
+	public static final String ENABLE_PROPERTY = "samj.mock";
+	
+	private static final String HTML_DESCRIPTION = "Mock SAM: simulated model running in Java, for testing <br>"
+	        + "<strong>Weights size:</strong> none <br>"
+	        + "<strong>Speed:</strong> configurable <br>"
+	        + "<strong>Performance:</strong> none, the masks are synthetic <br>";
+	
+	private final LatencyProfile latency;
+	private final ResultProfile results;
+	private final Random random = new Random(42);
+	private final Object worker = new Object();
+	private final Map<Integer, long[]> imageSessions = new HashMap<Integer, long[]>();
+	private SAMJLogger log;
+	private boolean installed = true;
+	private long[] imageDims;
+	private List<long[]> stack;
+	private int nextImageKey = 0;
+	
+	/**
+	 * Create a mock model with the {@link LatencyProfile#TYPICAL} latencies and {@link ResultProfile#TYPICAL} results
+	 */
+	public MockSAM() {
+		this(LatencyProfile.TYPICAL, ResultProfile.TYPICAL);
+	}
+	
+	/**
+	 * Create a mock model
+	 * @param latency
+	 * 	time spent by the model in each operation
+	 * @param results
+	 * 	size of the results returned
+	 */
+	public MockSAM(LatencyProfile latency, ResultProfile results) {
+		this.latency = latency;
+		this.results = results;
+	}
+
+	/**
+	 * Create an instance of the model that "encodes" an image
+	 * @param latency
+	 * 	time spent by the model in each operation
+	 * @param results
+	 * 	size of the results returned
+	 * @param image
+	 * 	the image to be encoded
+	 * @param log
+	 * 	a logging functional interface to be able to keep track of what the model is doing
+	 * @throws InterruptedException if the encoding is interrupted
+	 */
+	public MockSAM(LatencyProfile latency, ResultProfile results, final RandomAccessibleInterval<?> image, final SAMJLogger log)
+			throws InterruptedException {
+		this(latency, results);
+		this.log = log;
+		encode(image.dimensionsAsLongArray());
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getName() {
+		return FULL_NAME;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDescription() {
+		return HTML_DESCRIPTION + "<strong>Latency:</strong> " + latency + " <br>"
+				+ "<strong>Results:</strong> " + results;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isInstalled() {
+		return installed;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setInstalled(boolean installed) {
+		this.installed = installed;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public SAMModel instantiate(final RandomAccessibleInterval<?> image, final SAMJLogger useThisLoggerForIt) 
+			throws IOException, InterruptedException, RuntimeException {
+		SamJEvents.Span span = SamJEvents.begin(SamJEvents.Kind.INSTANTIATE, FULL_NAME).image(image);
+		try {
+			return new MockSAM(latency, results, image, useThisLoggerForIt);
+		} catch (InterruptedException | RuntimeException e) {
+			span.status(e.getClass().getSimpleName());
+			useThisLoggerForIt.error(FULL_NAME + " experienced an error: " + e.getMessage());
+			throw e;
+		} finally {
+			span.end();
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentation(listOfPoints2D, listOfNegPoints2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(Interval boundingBox2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentation(boundingBox2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentationFromMask(rai, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D,
+			Consumer<List<Polygon>> partialResults) throws IOException, InterruptedException, RuntimeException {
+		if (listOfPoints2D.size() == 0)
+			return new ArrayList<Polygon>();
+		int x = listOfPoints2D.get(0).getIntPosition(0);
+		int y = listOfPoints2D.get(0).getIntPosition(1);
+		synchronized (worker) {
+			int r = (int) Math.max(2, Math.min(imageDims[0], imageDims[1]) / 32);
+			simulate(latency.decodeMillis);
+			return ellipses(x - r, y - r, x + r, y + r, results.polygons, partialResults);
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(Interval boundingBox2D, Consumer<List<Polygon>> partialResults) 
+			throws IOException, InterruptedException, RuntimeException {
+		synchronized (worker) {
+			simulate(latency.decodeMillis);
+			return ellipses((int) boundingBox2D.min(0), (int) boundingBox2D.min(1), (int) boundingBox2D.max(0), (int) boundingBox2D.max(1), 
+					results.polygons, partialResults);
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai,
+			Consumer<List<Polygon>> partialResults) throws IOException, InterruptedException, RuntimeException {
+		Map<Integer, int[]> labelBoxes = new HashMap<Integer, int[]>();
+		Cursor<T> cursor = Views.iterable(rai).localizingCursor();
+		while (cursor.hasNext()) {
+			int label = (int) cursor.next().getRealDouble();
+			if (label < 1)
+				continue;
+			int x = cursor.getIntPosition(0);
+			int y = cursor.getIntPosition(1);
+			int[] box = labelBoxes.get(label);
+			if (box == null) {
+				labelBoxes.put(label, new int[] {x, y, x, y});
+				continue;
+			}
+			box[0] = Math.min(box[0], x);
+			box[1] = Math.min(box[1], y);
+			box[2] = Math.max(box[2], x);
+			box[3] = Math.max(box[3], y);
+		}
+		List<Polygon> polys = new ArrayList<Polygon>();
+		synchronized (worker) {
+			for (int[] box : labelBoxes.values()) {
+				simulate(latency.decodeMillis);
+				polys.addAll(ellipses(box[0], box[1], box[2], box[3], results.polygons, partialResults));
+			}
+		}
+		return polys;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsAutomaticSegmentation() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentationAutomatic(Consumer<List<Polygon>> partialResults) 
+			throws IOException, InterruptedException, RuntimeException {
+		int side = (int) Math.ceil(Math.sqrt(results.automaticObjects));
+		List<Polygon> polys = new ArrayList<Polygon>(results.automaticObjects);
+		synchronized (worker) {
+			simulate(latency.decodeMillis + latency.batchedPromptMillis * Math.max(0, results.automaticObjects - 1));
+			for (int i = 0; i < results.automaticObjects; i ++) {
+				long w = imageDims[0] / side;
+				long h = imageDims[1] / side;
+				int x0 = (int) ((i % side) * w);
+				int y0 = (int) ((i / side) * h);
+				polys.addAll(ellipses(x0, y0, (int) (x0 + w - 1), (int) (y0 + h - 1), 1, partialResults));
+			}
+		}
+		return polys;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentationBatch(boundingBoxes2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D, List<Localizable> points2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		List<List<Polygon>> polys = new ArrayList<List<Polygon>>(boundingBoxes2D.size());
+		if (boundingBoxes2D.size() == 0)
+			return polys;
+		synchronized (worker) {
+			simulate(latency.decodeMillis + latency.batchedPromptMillis * (boundingBoxes2D.size() - 1));
+			for (Interval box : boundingBoxes2D)
+				polys.add(ellipses((int) box.min(0), (int) box.min(1), (int) box.max(0), (int) box.max(1), results.polygons, null));
+		}
+		return polys;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsImageUpdate() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void updateImage(RandomAccessibleInterval<?> image) throws IOException, InterruptedException, RuntimeException {
+		encode(image.dimensionsAsLongArray());
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsStacks() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setStack(List<? extends RandomAccessibleInterval<?>> slices, int radius) throws InterruptedException {
+		List<long[]> dims = new ArrayList<long[]>(slices.size());
+		for (RandomAccessibleInterval<?> slice : slices)
+			dims.add(slice.dimensionsAsLongArray());
+		synchronized (worker) {
+			stack = dims;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setActiveSlice(int slice) throws IOException, InterruptedException, RuntimeException {
+		long[] dims;
+		synchronized (worker) {
+			if (stack == null)
+				throw new IllegalStateException("No stack has been set.");
+			dims = stack.get(slice);
+		}
+		encode(dims);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void closeStack() throws InterruptedException {
+		synchronized (worker) {
+			stack = null;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsBatchEncoding() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Integer> encodeBatch(List<? extends RandomAccessibleInterval<?>> images, int maxBatch) 
+			throws IOException, InterruptedException, RuntimeException {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("The batches should have at least one image.");
+		List<Integer> keys = new ArrayList<Integer>(images.size());
+		synchronized (worker) {
+			simulate(latency.encodeMillis * images.size());
+			for (RandomAccessibleInterval<?> image : images) {
+				imageSessions.put(nextImageKey, image.dimensionsAsLongArray());
+				keys.add(nextImageKey ++);
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setActiveImage(int key) throws IOException, InterruptedException, RuntimeException {
+		synchronized (worker) {
+			long[] dims = imageSessions.get(key);
+			if (dims == null)
+				throw new IllegalArgumentException("There is no image session with key " + key + ".");
+			imageDims = dims;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void releaseImage(int key) throws IOException, InterruptedException {
+		synchronized (worker) {
+			imageSessions.remove(key);
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void notifyUiHasBeenClosed() {
+		if (log != null)
+			log.info(FULL_NAME+": OKAY, I'm closing myself...");
+		closeProcess();
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void closeProcess() {
+		synchronized (worker) {
+			imageSessions.clear();
+			stack = null;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getInputImageAxes() {
+		return INPUT_IMAGE_AXES;
+	}
+	
+	private void encode(long[] dims) throws InterruptedException {
+		synchronized (worker) {
+			simulate(latency.encodeMillis);
+			imageDims = dims;
+		}
+		if (log != null)
+			log.info(FULL_NAME + " encoded an image of " + dims[0] + "x" + dims[1]);
+	}
+	
+	/**
+	 * Wait for the nominal time of an operation, with the jitter of the profile. Short times are waited
+	 * with {@link LockSupport#parkNanos(long)}, which is far more precise than {@link Thread#sleep(long)}
+	 */
+	private void simulate(double millis) throws InterruptedException {
+		if (millis <= 0)
+			return;
+		double factor = 1 + latency.jitter * (2 * random.nextDouble() - 1);
+		long deadline = System.nanoTime() + (long) (millis * factor * 1e6);
+		for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+			LockSupport.parkNanos(left);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+	
+	/**
+	 * Ellipses inscribed in the columns of a box split into as many columns as polygons, each of them streamed
+	 * to the consumer, if any, as soon as it is created
+	 */
+	private List<Polygon> ellipses(int x0, int y0, int x1, int y1, int nPolygons, Consumer<List<Polygon>> partialResults) {
+		List<Polygon> polys = new ArrayList<Polygon>(nPolygons);
+		double width = (x1 - x0 + 1) / (double) nPolygons;
+		double ry = Math.max(1, (y1 - y0) / 2.0);
+		double cy = (y0 + y1) / 2.0;
+		for (int p = 0; p < nPolygons; p ++) {
+			double rx = Math.max(1, (width - 1) / 2.0);
+			double cx = x0 + width * p + width / 2.0;
+			int[] xs = new int[results.vertices];
+			int[] ys = new int[results.vertices];
+			for (int v = 0; v < results.vertices; v ++) {
+				double angle = 2 * Math.PI * v / results.vertices;
+				xs[v] = (int) Math.round(cx + rx * Math.cos(angle));
+				ys[v] = (int) Math.round(cy + ry * Math.sin(angle));
+			}
+			Polygon pol = new Polygon(xs, ys, results.vertices);
+			polys.add(pol);
+			if (partialResults != null)
+				partialResults.accept(Collections.singletonList(pol));
+		}
+		return polys;
+	}
+}
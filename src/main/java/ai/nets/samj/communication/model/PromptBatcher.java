@@ -0,0 +1,227 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.communication.model;
+
+import java.awt.Polygon;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.Interval;
+
+/**
+ * Dynamic batching of the bounding box prompts that reach the same encoded image concurrently, from several threads
+ * or several clients of a server. The prompts that arrive within a short window after the first one, or until the batch is full,
+ * are decoded together with a single call to {@link SAMModel#fetch2dSegmentationBatch(List)} and each caller gets its own result.
+ * <p>
+ * A prompt waits at most the window before its batch is sent, so the latency added is bounded by the window while
+ * under load the number of decoder calls, and of round trips to Python, drops by the size of the batches.
+ *
+ * @author Carlos Garcia
+ */
+public class PromptBatcher implements Closeable {
+
+	/**
+	 * Default time that the first prompt of a batch waits for others, in microseconds
+	 */
+	public static final long DEFAULT_WINDOW_MICROS = 3000;
+	/**
+	 * Default maximum number of prompts of a batch
+	 */
+	public static final int DEFAULT_MAX_BATCH = 16;
+
+	/**
+	 * Decoding of a batch of bounding boxes
+	 */
+	public interface BatchCall {
+		/**
+		 * Decode the boxes
+		 * @param boxes
+		 * 	the bounding boxes
+		 * @return the polygons of each of the boxes, in the same order
+		 * @throws IOException if any of the files needed to run the Python script is missing 
+		 * @throws RuntimeException if there is any error running the Python process
+		 * @throws InterruptedException if the process in interrupted
+		 */
+		List<List<Polygon>> call(List<Interval> boxes) throws IOException, RuntimeException, InterruptedException;
+	}
+
+	private static class Pending {
+		private final Interval box;
+		private final long arrival = System.nanoTime();
+		private final CompletableFuture<List<Polygon>> result = new CompletableFuture<List<Polygon>>();
+
+		private Pending(Interval box) {
+			this.box = box;
+		}
+	}
+
+	private final BatchCall call;
+
+	private final long windowNanos;
+
+	private final int maxBatch;
+
+	private final Deque<Pending> queue = new ArrayDeque<Pending>();
+
+	private final Thread dispatcher;
+
+	private boolean closed = false;
+
+	private long batches = 0;
+
+	private long prompts = 0;
+
+	/**
+	 * Create a batcher that decodes the batches with a model
+	 * @param model
+	 * 	the model, with the image already encoded
+	 * @param windowMicros
+	 * 	time that the first prompt of a batch waits for others, in microseconds
+	 * @param maxBatch
+	 * 	maximum number of prompts of a batch
+	 */
+	public PromptBatcher(SAMModel model, long windowMicros, int maxBatch) {
+		this(model::fetch2dSegmentationBatch, windowMicros, maxBatch);
+	}
+
+	/**
+	 * Create a batcher
+	 * @param call
+	 * 	how each batch is decoded
+	 * @param windowMicros
+	 * 	time that the first prompt of a batch waits for others, in microseconds
+	 * @param maxBatch
+	 * 	maximum number of prompts of a batch
+	 */
+	public PromptBatcher(BatchCall call, long windowMicros, int maxBatch) {
+		if (windowMicros < 0 || maxBatch < 1)
+			throw new IllegalArgumentException("The window cannot be negative and the batches need at least one prompt.");
+		this.call = call;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatch = maxBatch;
+		this.dispatcher = new Thread(this::dispatch, "samj-prompt-batcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Segment the object inside of a bounding box, together with the other prompts that arrive at the same time
+	 * @param box
+	 * 	the bounding box
+	 * @return the polygons of the mask of the object
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public List<Polygon> submit(Interval box) throws IOException, RuntimeException, InterruptedException {
+		Pending pending = new Pending(box);
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("The prompt batcher has been closed.");
+			queue.add(pending);
+			notifyAll();
+		}
+		try {
+			return pending.result.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw new IOException(cause.getMessage(), cause);
+			else if (cause instanceof InterruptedException)
+				throw new InterruptedException(cause.getMessage());
+			throw new RuntimeException(cause.getMessage(), cause);
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			List<Pending> batch = new ArrayList<Pending>();
+			try {
+				synchronized (this) {
+					while (queue.isEmpty() && !closed)
+						wait();
+					if (queue.isEmpty())
+						return;
+					long deadline = queue.peekFirst().arrival + windowNanos;
+					for (long left = deadline - System.nanoTime(); queue.size() < maxBatch && left > 0 && !closed; 
+							left = deadline - System.nanoTime())
+						TimeUnit.NANOSECONDS.timedWait(this, left);
+					while (!queue.isEmpty() && batch.size() < maxBatch)
+						batch.add(queue.pollFirst());
+					batches ++;
+					prompts += batch.size();
+				}
+			} catch (InterruptedException ex) {
+				failAll(ex);
+				return;
+			}
+			List<Interval> boxes = new ArrayList<Interval>(batch.size());
+			for (Pending p : batch)
+				boxes.add(p.box);
+			try {
+				List<List<Polygon>> results = call.call(boxes);
+				for (int i = 0; i < batch.size(); i ++)
+					batch.get(i).result.complete(results.get(i));
+			} catch (IOException | RuntimeException | InterruptedException ex) {
+				for (Pending p : batch)
+					p.result.completeExceptionally(ex);
+			}
+		}
+	}
+
+	private synchronized void failAll(Throwable cause) {
+		closed = true;
+		for (Pending p : queue)
+			p.result.completeExceptionally(cause);
+		queue.clear();
+	}
+
+	/**
+	 * 
+	 * @return mean number of prompts decoded per batch
+	 */
+	public synchronized double getMeanBatchSize() {
+		return batches == 0 ? 0 : prompts / (double) batches;
+	}
+
+	/**
+	 * 
+	 * @return number of batches decoded
+	 */
+	public synchronized long getNumBatches() {
+		return batches;
+	}
+
+	/**
+	 * Stop accepting prompts. The prompts already submitted are still decoded
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
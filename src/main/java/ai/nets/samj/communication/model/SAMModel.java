@@ -21,7 +21,9 @@ package ai.nets.samj.communication.model;
 
 import java.awt.Polygon;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import ai.nets.samj.ui.SAMJLogger;
 import net.imglib2.Interval;
@@ -120,6 +122,247 @@ public interface SAMModel {
 	 */
 	public <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai) throws IOException, RuntimeException, InterruptedException;
 
+	/**
+	 * Get a 2D segmentation/annotation using two lists of points as the prompts. Each of the polygons is
+	 * streamed to the consumer provided as soon as it is produced, before the whole result is available.
+	 * Models that cannot stream give the whole result to the consumer at once when it is ready.
+	 * @param listOfPoints2D
+	 * 	List of points that make reference to the instance of interest
+	 * @param listOfNegPoints2D
+	 * 	list of points that makes reference to something that is not the instance of interest. This
+	 * 	points make reference to the background
+	 * @param partialResults
+	 * 	consumer that receives the polygons as soon as they are produced by the model, it can be null
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	default List<Polygon> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D,
+			Consumer<List<Polygon>> partialResults) throws IOException, RuntimeException, InterruptedException {
+		List<Polygon> polys = fetch2dSegmentation(listOfPoints2D, listOfNegPoints2D);
+		if (partialResults != null)
+			partialResults.accept(polys);
+		return polys;
+	}
+
+	/**
+	 * Get a 2D segmentation/annotation using a bounding box as the prompt. Each of the polygons is
+	 * streamed to the consumer provided as soon as it is produced, before the whole result is available.
+	 * Models that cannot stream give the whole result to the consumer at once when it is ready.
+	 * @param boundingBox2D
+	 * 	a bounding box around the instance of interest
+	 * @param partialResults
+	 * 	consumer that receives the polygons as soon as they are produced by the model, it can be null
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	default List<Polygon> fetch2dSegmentation(Interval boundingBox2D, Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
+		List<Polygon> polys = fetch2dSegmentation(boundingBox2D);
+		if (partialResults != null)
+			partialResults.accept(polys);
+		return polys;
+	}
+
+	/**
+	 * Get a 2D segmentation/annotation using an existing mask as the prompt. The polygons of each of the
+	 * labels of the mask are streamed to the consumer provided as soon as they are produced.
+	 * Models that cannot stream give the whole result to the consumer at once when it is ready.
+	 * @param <T>
+	 * 	the ImgLib2 data types allowed for the input mask
+	 * @param rai
+	 * 	the mask as a {@link RandomAccessibleInterval} 
+	 * @param partialResults
+	 * 	consumer that receives the polygons as soon as they are produced by the model, it can be null
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	default <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai,
+			Consumer<List<Polygon>> partialResults) throws IOException, RuntimeException, InterruptedException {
+		List<Polygon> polys = fetch2dSegmentationFromMask(rai);
+		if (partialResults != null)
+			partialResults.accept(polys);
+		return polys;
+	}
+
+	/**
+	 * Whether the model can segment every object of the image without prompts, with {@link #fetch2dSegmentationAutomatic(Consumer)}
+	 * @return true if the automatic segmentation is supported
+	 */
+	default boolean supportsAutomaticSegmentation() {
+		return false;
+	}
+
+	/**
+	 * Get a 2D segmentation/annotation of every object in the image without any prompt ("segment everything").
+	 * The polygons are also streamed to the consumer provided as soon as they are found.
+	 * @param partialResults
+	 * 	consumer that receives the polygons as soon as they are produced by the model, it can be null
+	 * @return a list of polygons that represent the edges of each of the masks segmented by the model
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 * @throws UnsupportedOperationException if the model cannot segment images without prompts
+	 */
+	default List<Polygon> fetch2dSegmentationAutomatic(Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
+		throw new UnsupportedOperationException(getName() + " does not support the automatic segmentation.");
+	}
+
+	/**
+	 * Get 2D segmentations/annotations of several objects at once, using one bounding box per object as the prompts.
+	 * Models that support it decode all the boxes in a single batch, the default implementation processes them one by one.
+	 * @param boundingBoxes2D
+	 * 	a bounding box around each of the instances of interest
+	 * @return for each of the bounding boxes, in the same order, the polygons that represent the edges of its mask
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	default List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D) 
+			throws IOException, RuntimeException, InterruptedException {
+		List<List<Polygon>> results = new ArrayList<List<Polygon>>(boundingBoxes2D.size());
+		for (Interval box : boundingBoxes2D)
+			results.add(fetch2dSegmentation(box));
+		return results;
+	}
+
+	/**
+	 * Get 2D segmentations/annotations of several objects at once, using as the prompt of each object a bounding box
+	 * together with a point inside of the object, for example the centroid of its mask on the previous frame.
+	 * Models that support it decode all the prompts in a single batch, the default implementation ignores the points.
+	 * @param boundingBoxes2D
+	 * 	a bounding box around each of the instances of interest
+	 * @param points2D
+	 * 	a point of each of the instances of interest, in the same order as the bounding boxes, or null to use only the boxes
+	 * @return for each of the bounding boxes, in the same order, the polygons that represent the edges of its mask
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	default List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D, List<Localizable> points2D) 
+			throws IOException, RuntimeException, InterruptedException {
+		return fetch2dSegmentationBatch(boundingBoxes2D);
+	}
+
+	/**
+	 * Whether the model can encode another image with the same instance, with {@link #updateImage(RandomAccessibleInterval)}
+	 * @return true if the image of an instance can be changed
+	 */
+	default boolean supportsImageUpdate() {
+		return false;
+	}
+
+	/**
+	 * Encode another image with this instance of the model, without starting it again. The prompts sent from now on
+	 * refer to the new image. It should also be called if the pixels of the image encoded have changed
+	 * @param image
+	 * 	the new image, a 2D image with the axes given by {@link #getInputImageAxes()}
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 * @throws UnsupportedOperationException if the image of the instance cannot be changed, see {@link #supportsImageUpdate()}
+	 */
+	default void updateImage(RandomAccessibleInterval<?> image) throws IOException, RuntimeException, InterruptedException {
+		throw new UnsupportedOperationException(getName() + " cannot change the image of an instance.");
+	}
+
+	/**
+	 * Whether the model can encode stacks with {@link #setStack(List, int)} and {@link #setActiveSlice(int)}
+	 * @return true if the encoding of stacks is supported
+	 */
+	default boolean supportsStacks() {
+		return false;
+	}
+
+	/**
+	 * Set a stack of images (the slices of a z-stack or the frames of a time series) that is segmented slice by slice.
+	 * The slices around the one activated with {@link #setActiveSlice(int)} are encoded in the background.
+	 * @param slices
+	 * 	the slices of the stack, each of them a 2D image with the axes given by {@link #getInputImageAxes()}
+	 * @param radius
+	 * 	number of slices kept encoded at each side of the active one
+	 * @throws InterruptedException if the thread is interrupted while stopping the encoding of a previous stack
+	 * @throws UnsupportedOperationException if the model cannot encode stacks, see {@link #supportsStacks()}
+	 */
+	default void setStack(List<? extends RandomAccessibleInterval<?>> slices, int radius) throws InterruptedException {
+		throw new UnsupportedOperationException(getName() + " does not support the encoding of stacks.");
+	}
+
+	/**
+	 * Make a slice of the stack set with {@link #setStack(List, int)} the image that is segmented.
+	 * @param slice
+	 * 	position of the slice in the stack
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 * @throws UnsupportedOperationException if the model cannot encode stacks, see {@link #supportsStacks()}
+	 */
+	default void setActiveSlice(int slice) throws IOException, RuntimeException, InterruptedException {
+		throw new UnsupportedOperationException(getName() + " does not support the encoding of stacks.");
+	}
+
+	/**
+	 * Stop encoding the slices of the stack in the background and free the embeddings kept in memory
+	 * @throws InterruptedException if the thread is interrupted while waiting for the encoding in progress
+	 */
+	default void closeStack() throws InterruptedException {
+	}
+
+	/**
+	 * Whether the model can encode batches of images with {@link #encodeBatch(List, int)} and {@link #setActiveImage(int)}
+	 * @return true if the encoding of batches of images is supported
+	 */
+	default boolean supportsBatchEncoding() {
+		return false;
+	}
+
+	/**
+	 * Encode several images together, with one forward pass of the image encoder per batch, and keep their embeddings
+	 * as image sessions that can be segmented later with {@link #setActiveImage(int)}
+	 * @param images
+	 * 	the images, each of them a 2D image with the axes given by {@link #getInputImageAxes()}
+	 * @param maxBatch
+	 * 	maximum number of images encoded in one forward pass
+	 * @return the key of the session of each of the images, in the same order
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 * @throws UnsupportedOperationException if the model cannot encode batches of images, see {@link #supportsBatchEncoding()}
+	 */
+	default List<Integer> encodeBatch(List<? extends RandomAccessibleInterval<?>> images, int maxBatch) 
+			throws IOException, RuntimeException, InterruptedException {
+		throw new UnsupportedOperationException(getName() + " does not support the encoding of batches of images.");
+	}
+
+	/**
+	 * Make one of the images encoded with {@link #encodeBatch(List, int)} the image that is segmented
+	 * @param key
+	 * 	the key of the session of the image
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 * @throws UnsupportedOperationException if the model cannot encode batches of images, see {@link #supportsBatchEncoding()}
+	 */
+	default void setActiveImage(int key) throws IOException, RuntimeException, InterruptedException {
+		throw new UnsupportedOperationException(getName() + " does not support the encoding of batches of images.");
+	}
+
+	/**
+	 * Free the embeddings of an image encoded with {@link #encodeBatch(List, int)}
+	 * @param key
+	 * 	the key of the session of the image
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	default void releaseImage(int key) throws IOException, InterruptedException {
+	}
+
 	/**
 	 * Close the Python process where the model is being executed
 	 */
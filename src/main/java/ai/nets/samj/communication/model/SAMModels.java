@@ -29,7 +29,8 @@ public class SAMModels extends ArrayList<SAMModel> {
 	private static final long serialVersionUID = -6037502816438646853L;
 
 	/**
-	 * A list where each of the components is a {@link SAMModel}
+	 * A list where each of the components is a {@link SAMModel}. The {@link MockSAM} is only included
+	 * if the system property {@value MockSAM#ENABLE_PROPERTY} is "true"
 	 */
 	public  SAMModels() {
 		super();
@@ -39,5 +40,7 @@ public class SAMModels extends ArrayList<SAMModel> {
 		add(new EfficientViTSAML2());
 		add(new EfficientViTSAMXL0());
 		add(new EfficientViTSAMXL1());
+		if (Boolean.getBoolean(MockSAM.ENABLE_PROPERTY))
+			add(new MockSAM());
 	}
 }
@@ -95,10 +95,10 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 	private LoadingButton bnStart;
 	// TODO private JButton bnComplete = new JButton("Auto-Complete (soon...)");
 	// TODO private JButton bnRoi2Mask = new JButton("Create Mask (soon...)");
-	/** TODO will this ever happen?
-	 * Button for the auto-complete function, it is not ready yet
+	/**
+	 * Button for the auto-complete function, that segments every object in the image without prompts
 	 */
-	private JButton bnComplete = new JButton("Coming soon...");
+	private JButton bnComplete = new JButton("Auto-Complete");
 	/**
 	 * Button to export the rois of an image to a instance segmentation mask
 	 */
@@ -170,6 +170,14 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 	 * run to provide annotations
 	 */
 	private boolean encodingsDone = false;
+	/**
+	 * SAMJ model instance that has encoded the current image
+	 */
+	private SAMModel netAdapter;
+	/**
+	 * Whether the automatic segmentation is being run at the moment
+	 */
+	private boolean autoCompleteRunning = false;
 	
 	/**
 	 * Constructor that creates the default GUI for SAMJ. This GUI lets the user decide between
@@ -305,7 +313,7 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 		add(pnStatus, BorderLayout.SOUTH);		
 
 		// TODO not ready yet bnRoi2Mask.addActionListener(this);		
-		// TODO not ready yet bnComplete.addActionListener(this);
+		bnComplete.addActionListener(this);
 		bnRoi2Mask.setEnabled(false);
 		bnComplete.setEnabled(false);
 		bnClose.addActionListener(this);
@@ -364,7 +372,34 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 		} else if (e.getSource() == bnClose) {
 			this.close();
 		} else if (e.getSource() == bnComplete) {
-			GUIsOwnLog.warn("TO DO call Auto-complete");
+			if (netAdapter == null || display == null
+					|| !netAdapter.supportsAutomaticSegmentation() || !display.canAddPolygons())
+				return;
+			GUIsOwnLog.warn("Start the automatic segmentation");
+			final SAMModel net = netAdapter;
+			final PromptsResultsDisplay targetDisplay = display;
+			// the model is not thread safe, so no prompt or encoding can reach it until the automatic segmentation is done
+			this.autoCompleteRunning = true;
+			display.switchToNone();
+			bnRect.setPressed(false); bnPoints.setPressed(false); bnBrush.setPressed(false);
+			new Thread(() -> {
+				try {
+					net.fetch2dSegmentationAutomatic(polys -> SwingUtilities.invokeLater(() -> {
+						try {
+							targetDisplay.addPolygons(polys);
+						} catch (RuntimeException ex) {
+							targetDisplay.notifyException(SAMJException.DECODING, ex);
+						}
+					}));
+					GUIsOwnLog.warn("Finished the automatic segmentation");
+				} catch (Exception ex) {
+					targetDisplay.notifyException(SAMJException.DECODING, ex);
+				}
+				SwingUtilities.invokeLater(() -> {
+					this.autoCompleteRunning = false;
+					updateInterface();
+				});
+			}).start();
 		} else if (e.getSource() == bnStart) {
 			if (!panelModel.getSelectedModel().isInstalled())
 				GUIsOwnLog.warn("Not starting encoding as the selected model is not installed.");
@@ -389,7 +424,9 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 				if (netAdapter == null) return;
 				display.switchToThisNet(netAdapter);
 				GUIsOwnLog.warn("Finished the encoding");
+				final SAMModel encodedNet = netAdapter;
 				SwingUtilities.invokeLater(() -> {
+					this.netAdapter = encodedNet;
 					//TODO: encoding should be a property of a model
 					this.setEncodingsDone(true);
 					updateInterface();
@@ -444,13 +481,20 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 			this.bnStart.setEnabled(false);
 			this.cmbImage.setEnabled(true);
 		}
-		// TODO not ready yet bnComplete.setEnabled(this.encodingsDone);
+		if (this.autoCompleteRunning) {
+			this.bnStart.setEnabled(false);
+			this.cmbImage.setEnabled(false);
+		}
+		boolean promptsEnabled = this.encodingsDone && !this.autoCompleteRunning;
+		bnComplete.setEnabled(promptsEnabled
+				&& this.netAdapter != null && this.netAdapter.supportsAutomaticSegmentation()
+				&& this.display != null && this.display.canAddPolygons());
 		// TODO not ready yet bnRoi2Mask.setEnabled(this.encodingsDone);
 		chkROIManager.setEnabled(this.encodingsDone);
-		bnRect.setEnabled(this.encodingsDone);
-		bnPoints.setEnabled(this.encodingsDone);
-		bnBrush.setEnabled(this.encodingsDone);
-		bnMask.setEnabled(this.encodingsDone);
+		bnRect.setEnabled(promptsEnabled);
+		bnPoints.setEnabled(promptsEnabled);
+		bnBrush.setEnabled(promptsEnabled);
+		bnMask.setEnabled(promptsEnabled);
 		if (!encodingsDone) {
 			this.bnRect.setPressed(false);
 			this.bnPoints.setPressed(false);
@@ -469,6 +513,7 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 	private void setEncodingsDone(boolean isDone) {
 		this.encodingsDone = isDone;
 		if (!isDone) {
+			this.netAdapter = null;
 			if (display != null) {
 				display.notifyNetToClose();
 				display.switchToNone();
@@ -493,6 +538,10 @@ public class SAMJDialog extends JPanel implements ActionListener, PopupMenuListe
 		 * mask is dropped
 		 */
 		public void drop(DropTargetDropEvent e) {
+			if (autoCompleteRunning) {
+				e.rejectDrop();
+				return;
+			}
 			e.acceptDrop(DnDConstants.ACTION_COPY);
 			e.getTransferable().getTransferDataFlavors();
 			Transferable transferable = e.getTransferable();
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.propagation;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Methods to convert the polygons returned by the SAM models back into masks and to derive from them
+ * the prompts used on the next slice or frame.
+ * <p>
+ * The vertices of the polygons are the coordinates of the pixels at the edge of the mask, so a pixel belongs
+ * to the mask if its center is inside of the polygon or if it is one of the vertices.
+ *
+ * @author Carlos Garcia
+ */
+public final class MaskRasterizer {
+
+	private MaskRasterizer() {
+	}
+
+	/**
+	 * Write a label into the pixels covered by the polygons of an object. The pixels are stored in a 2D plane
+	 * with the first dimension as the fastest one, as in the {@link net.imglib2.img.array.ArrayImg}s
+	 * @param polygons
+	 * 	polygons of the object
+	 * @param label
+	 * 	value written in the pixels of the object
+	 * @param data
+	 * 	array where the plane is stored
+	 * @param offset
+	 * 	position of the first pixel of the plane in the array
+	 * @param width
+	 * 	size of the first dimension of the plane
+	 * @param height
+	 * 	size of the second dimension of the plane
+	 */
+	public static void fill(List<Polygon> polygons, short label, short[] data, int offset, int width, int height) {
+		forEachPixel(polygons, width, height, i -> data[offset + i] = label);
+	}
+
+	/**
+	 * Visit the pixels covered by the polygons of an object. A pixel covered by several polygons is visited more than once
+	 * @param polygons
+	 * 	polygons of the object
+	 * @param width
+	 * 	size of the first dimension of the image
+	 * @param height
+	 * 	size of the second dimension of the image
+	 * @param action
+	 * 	receives the position of each pixel in a plane with the first dimension as the fastest one, y * width + x
+	 */
+	public static void forEachPixel(List<Polygon> polygons, int width, int height, IntConsumer action) {
+		for (Polygon pol : polygons) {
+			final Rectangle bounds = pol.getBounds().intersection(new Rectangle(0, 0, width, height));
+			for (int y = bounds.y; y < bounds.y + bounds.height; y ++) {
+				for (int x = bounds.x; x < bounds.x + bounds.width; x ++) {
+					if (pol.contains(x, y))
+						action.accept(y * width + x);
+				}
+			}
+			for (int i = 0; i < pol.npoints; i ++) {
+				final int x = pol.xpoints[i], y = pol.ypoints[i];
+				if (x >= 0 && y >= 0 && x < width && y < height)
+					action.accept(y * width + x);
+			}
+		}
+	}
+
+	/**
+	 * Area enclosed by a group of polygons, computed with the shoelace formula
+	 * @param polygons
+	 * 	polygons of the object
+	 * @return the area in pixels
+	 */
+	public static double area(List<Polygon> polygons) {
+		double area = 0;
+		for (Polygon pol : polygons) {
+			double twice = 0;
+			for (int i = 0, j = pol.npoints - 1; i < pol.npoints; j = i ++)
+				twice += (double) pol.xpoints[j] * pol.ypoints[i] - (double) pol.xpoints[i] * pol.ypoints[j];
+			area += Math.abs(twice) / 2;
+		}
+		return area;
+	}
+
+	/**
+	 * Bounding box of a group of polygons enlarged by a margin and limited to the image
+	 * @param polygons
+	 * 	polygons of the object
+	 * @param margin
+	 * 	number of pixels added at each side of the bounding box
+	 * @param width
+	 * 	size of the first dimension of the image
+	 * @param height
+	 * 	size of the second dimension of the image
+	 * @return the box as [x0, y0, x1, y1], both corners included, or null if there are no polygons
+	 */
+	public static int[] boundingBox(List<Polygon> polygons, int margin, long width, long height) {
+		Rectangle union = null;
+		for (Polygon pol : polygons) {
+			if (pol.npoints == 0)
+				continue;
+			union = union == null ? pol.getBounds() : union.union(pol.getBounds());
+		}
+		if (union == null)
+			return null;
+		return new int[] {
+			(int) Math.max(0, union.x - margin),
+			(int) Math.max(0, union.y - margin),
+			(int) Math.min(width - 1, union.x + union.width + margin),
+			(int) Math.min(height - 1, union.y + union.height + margin)
+		};
+	}
+}
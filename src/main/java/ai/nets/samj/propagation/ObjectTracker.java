@@ -0,0 +1,372 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.propagation;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ai.nets.samj.communication.model.SAMModel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Tracking of objects along a time-lapse from prompts given on its first frame.
+ * <p>
+ * The objects are segmented with bounding boxes on the starting frame and each of them gets an identity,
+ * its position in the list of boxes plus one. On every following frame the mask of each tracked object becomes its prompt:
+ * the bounding box of the mask, enlarged by a margin, together with the pixel of the mask closest to its centroid.
+ * All the tracked objects of a frame are decoded in a single batch with {@link SAMModel#fetch2dSegmentationBatch(List, List)}
+ * while the next frames are encoded in the background (see {@link SAMModel#setStack(List, int)}).
+ * <p>
+ * The identities are resolved by overlap: every new mask is matched to the identity on the previous frame with which it shares
+ * the most pixels, the largest overlaps first, so two prompts that end up on the same object do not duplicate it and a mask that
+ * drifts onto a neighbour takes its identity instead of swapping them. Masks that do not overlap any free identity, or that are
+ * smaller than the minimum area, end the track of the object that prompted them.
+ *
+ * @author Carlos Garcia
+ */
+public class ObjectTracker {
+
+	/**
+	 * Default number of frames encoded in advance at each side of the frame being segmented
+	 */
+	public static final int DEFAULT_RADIUS = 2;
+	/**
+	 * Default number of pixels added at each side of the box propagated to the next frame
+	 */
+	public static final int DEFAULT_MARGIN = 5;
+	/**
+	 * Default minimum area, in pixels, that the mask of an object needs to keep being tracked
+	 */
+	public static final double DEFAULT_MIN_AREA = 16;
+
+	private final SAMModel model;
+
+	private int radius = DEFAULT_RADIUS;
+
+	private int margin = DEFAULT_MARGIN;
+
+	private double minArea = DEFAULT_MIN_AREA;
+
+	/**
+	 * Create the tracker for a model that has already been loaded
+	 * @param model
+	 * 	the model used to segment each frame, it has to support stacks
+	 * @throws IllegalArgumentException if the model cannot encode stacks, see {@link SAMModel#supportsStacks()}
+	 */
+	public ObjectTracker(SAMModel model) {
+		if (!model.supportsStacks())
+			throw new IllegalArgumentException(model.getName() + " cannot encode stacks, so it cannot be used to track objects.");
+		this.model = model;
+	}
+
+	/**
+	 * 
+	 * @param radius
+	 * 	number of frames encoded in advance at each side of the frame being segmented
+	 */
+	public void setRadius(int radius) {
+		this.radius = radius;
+	}
+
+	/**
+	 * 
+	 * @param margin
+	 * 	number of pixels added at each side of the bounding box of a mask to create the prompt of the next frame
+	 */
+	public void setMargin(int margin) {
+		this.margin = margin;
+	}
+
+	/**
+	 * 
+	 * @param minArea
+	 * 	minimum area, in pixels, that the mask of an object needs to keep being tracked
+	 */
+	public void setMinArea(double minArea) {
+		this.minArea = minArea;
+	}
+
+	/**
+	 * Track the objects of a time-lapse, from the starting frame until the last one
+	 * @param <T>
+	 * 	ImgLib2 data type of the frames
+	 * @param frames
+	 * 	the frames of the time-lapse, all of them with the same size
+	 * @param startFrame
+	 * 	frame where the bounding boxes are drawn
+	 * @param boxes
+	 * 	one bounding box per object on the starting frame
+	 * @return the tracks of the objects and the throughput of the tracking
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>> Result 
+	track(List<RandomAccessibleInterval<T>> frames, int startFrame, List<Interval> boxes) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (startFrame < 0 || startFrame >= frames.size())
+			throw new IllegalArgumentException("The starting frame " + startFrame + " is not in the time-lapse.");
+		if (boxes.size() > 65535)
+			throw new IllegalArgumentException("At most 65535 objects can be tracked at once.");
+		final int width = (int) frames.get(startFrame).dimension(0);
+		final int height = (int) frames.get(startFrame).dimension(1);
+		if ((long) width * height > Integer.MAX_VALUE / frames.size())
+			throw new IllegalArgumentException("The time-lapse is too big to create a single label image.");
+		final ArrayImg<UnsignedShortType, ShortArray> labels = ArrayImgs.unsignedShorts(width, height, frames.size());
+		final short[] data = labels.update(null).getCurrentStorageArray();
+		final List<Map<Integer, List<Polygon>>> tracks = 
+				new ArrayList<Map<Integer, List<Polygon>>>(Collections.nCopies(frames.size(), Collections.emptyMap()));
+		final FrameMatcher matcher = new FrameMatcher(width, height);
+		final long start = System.nanoTime();
+		int nFrames = 0;
+		model.setStack(frames, radius);
+		try {
+			List<Integer> ids = new ArrayList<Integer>();
+			List<Interval> prompts = new ArrayList<Interval>(boxes);
+			List<Localizable> points = null;
+			for (int i = 0; i < boxes.size(); i ++)
+				ids.add(i + 1);
+			for (int t = startFrame; t < frames.size() && ids.size() > 0; t ++) {
+				model.setActiveSlice(t);
+				final List<List<Polygon>> masks = model.fetch2dSegmentationBatch(prompts, points);
+				final int offset = t * width * height;
+				final Map<Integer, List<Polygon>> frame = t == startFrame ? 
+						matcher.assignPrompted(masks, ids, data, offset) 
+						: matcher.match(masks, ids, data, offset - width * height, offset);
+				tracks.set(t, frame);
+				nFrames ++;
+				ids = new ArrayList<Integer>();
+				prompts = new ArrayList<Interval>();
+				points = new ArrayList<Localizable>();
+				for (Map.Entry<Integer, List<Polygon>> entry : frame.entrySet()) {
+					final int[] box = MaskRasterizer.boundingBox(entry.getValue(), margin, width, height);
+					ids.add(entry.getKey());
+					prompts.add(new FinalInterval(new long[] {box[0], box[1]}, new long[] {box[2], box[3]}));
+					points.add(matcher.centroids.get(entry.getKey()));
+				}
+			}
+		} finally {
+			model.closeStack();
+		}
+		return new Result(labels, tracks, nFrames, System.nanoTime() - start);
+	}
+
+	/**
+	 * Matching of the masks of a frame with the identities of the previous one. The work arrays are reused between frames
+	 */
+	private class FrameMatcher {
+
+		private final int width;
+		private final int height;
+		/**
+		 * Index of the last mask that visited each pixel, to count each pixel once per mask
+		 */
+		private final int[] visited;
+		private int stamp = 0;
+		/**
+		 * Point closest to the centroid of each of the identities matched on the last frame
+		 */
+		private final Map<Integer, Localizable> centroids = new HashMap<Integer, Localizable>();
+
+		private FrameMatcher(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.visited = new int[width * height];
+		}
+
+		private int[] pixels(List<Polygon> polygons) {
+			final int mark = ++ stamp;
+			final int[][] list = new int[][] {new int[64]};
+			final int[] size = new int[1];
+			MaskRasterizer.forEachPixel(polygons, width, height, i -> {
+				if (visited[i] == mark)
+					return;
+				visited[i] = mark;
+				if (size[0] == list[0].length)
+					list[0] = Arrays.copyOf(list[0], size[0] * 2);
+				list[0][size[0] ++] = i;
+			});
+			return Arrays.copyOf(list[0], size[0]);
+		}
+
+		/**
+		 * Keep the identity that prompted each mask, used on the frame where the prompts are drawn
+		 */
+		private Map<Integer, List<Polygon>> assignPrompted(List<List<Polygon>> masks, List<Integer> ids, short[] data, int offset) {
+			final List<long[]> pairs = new ArrayList<long[]>();
+			final List<int[]> pixels = new ArrayList<int[]>();
+			for (int j = 0; j < masks.size(); j ++) {
+				pixels.add(pixels(masks.get(j)));
+				pairs.add(new long[] {pixels.get(j).length, j, ids.get(j)});
+			}
+			return write(pairs, masks, pixels, data, offset);
+		}
+
+		/**
+		 * Give each mask the identity of the previous frame with which it overlaps the most
+		 */
+		private Map<Integer, List<Polygon>> match(List<List<Polygon>> masks, List<Integer> ids, short[] data, 
+				int previousOffset, int offset) {
+			final List<long[]> pairs = new ArrayList<long[]>();
+			final List<int[]> pixels = new ArrayList<int[]>();
+			for (int j = 0; j < masks.size(); j ++) {
+				final int[] px = pixels(masks.get(j));
+				pixels.add(px);
+				final Map<Integer, Long> overlaps = new HashMap<Integer, Long>();
+				for (int i : px) {
+					final int id = data[previousOffset + i] & 0xffff;
+					if (id != 0)
+						overlaps.merge(id, 1L, Long::sum);
+				}
+				for (Map.Entry<Integer, Long> overlap : overlaps.entrySet())
+					pairs.add(new long[] {overlap.getValue(), j, overlap.getKey()});
+			}
+			return write(pairs, masks, pixels, data, offset);
+		}
+
+		/**
+		 * Assign greedily the pairs of mask and identity with the largest overlap first, each mask and each identity once,
+		 * and write the masks into the label image. A pixel claimed by two masks keeps the first one
+		 */
+		private Map<Integer, List<Polygon>> write(List<long[]> pairs, List<List<Polygon>> masks, List<int[]> pixels, 
+				short[] data, int offset) {
+			pairs.sort((a, b) -> Long.compare(b[0], a[0]));
+			final boolean[] usedMask = new boolean[masks.size()];
+			final Map<Integer, List<Polygon>> frame = new LinkedHashMap<Integer, List<Polygon>>();
+			centroids.clear();
+			for (long[] pair : pairs) {
+				final int j = (int) pair[1];
+				final int id = (int) pair[2];
+				if (usedMask[j] || frame.containsKey(id) || pixels.get(j).length < minArea)
+					continue;
+				usedMask[j] = true;
+				frame.put(id, masks.get(j));
+				centroids.put(id, centroid(pixels.get(j)));
+				for (int i : pixels.get(j)) {
+					if (data[offset + i] == 0)
+						data[offset + i] = (short) id;
+				}
+			}
+			return frame;
+		}
+
+		/**
+		 * 
+		 * @return the pixel of the mask closest to its centroid, so it lies inside of the object even if it is not convex
+		 */
+		private Localizable centroid(int[] px) {
+			double cx = 0, cy = 0;
+			for (int i : px) {
+				cx += i % width;
+				cy += i / width;
+			}
+			cx /= px.length;
+			cy /= px.length;
+			int best = px[0];
+			double bestDist = Double.MAX_VALUE;
+			for (int i : px) {
+				final double dx = i % width - cx, dy = i / width - cy;
+				if (dx * dx + dy * dy < bestDist) {
+					bestDist = dx * dx + dy * dy;
+					best = i;
+				}
+			}
+			return new Point(best % width, best / width);
+		}
+	}
+
+	/**
+	 * Tracks of the objects along the time-lapse
+	 */
+	public static class Result {
+
+		private final ArrayImg<UnsignedShortType, ShortArray> labels;
+
+		private final List<Map<Integer, List<Polygon>>> tracks;
+
+		private final int nFrames;
+
+		private final long nanos;
+
+		private Result(ArrayImg<UnsignedShortType, ShortArray> labels, List<Map<Integer, List<Polygon>>> tracks, 
+				int nFrames, long nanos) {
+			this.labels = labels;
+			this.tracks = tracks;
+			this.nFrames = nFrames;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * 
+		 * @return a label image of size [width, height, number of frames] where the pixels of each object have the value of its identity
+		 */
+		public ArrayImg<UnsignedShortType, ShortArray> getLabels() {
+			return labels;
+		}
+
+		/**
+		 * 
+		 * @param frame
+		 * 	frame of interest
+		 * @return the polygons of each of the objects tracked on the frame, by identity
+		 */
+		public Map<Integer, List<Polygon>> getPolygons(int frame) {
+			return Collections.unmodifiableMap(tracks.get(frame));
+		}
+
+		/**
+		 * 
+		 * @return number of frames segmented, fewer than the frames after the starting one if all the tracks ended before
+		 */
+		public int getFramesProcessed() {
+			return nFrames;
+		}
+
+		/**
+		 * 
+		 * @return number of frames segmented per second, including the encoding that could not be overlapped with the decoding
+		 */
+		public double getFramesPerSecond() {
+			return nanos == 0 ? 0 : nFrames * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d frames tracked in %.1f s (%.2f fps)", nFrames, nanos / 1e9, getFramesPerSecond());
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.propagation;
+
+import java.awt.Polygon;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ai.nets.samj.communication.model.SAMModel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Segmentation of objects in a z-stack from prompts given on a single slice.
+ * <p>
+ * The objects are segmented with bounding boxes on the starting slice. Then the mask of each object on a slice
+ * becomes the prompt for the next one: its bounding box, enlarged by a margin, is used as the box on the neighbouring slice.
+ * The propagation goes first up and then down the stack, and an object stops being propagated when its mask
+ * disappears or gets smaller than the minimum area.
+ * <p>
+ * The slices are encoded in the background while the previous ones are being decoded (see {@link SAMModel#setStack(List, int)})
+ * and all the objects of a slice are decoded in a single batch with {@link SAMModel#fetch2dSegmentationBatch(List)}.
+ * The result is a 3D label image where each object has the value of its position in the list of boxes plus one.
+ *
+ * @author Carlos Garcia
+ */
+public class VolumeSegmentation {
+
+	/**
+	 * Default number of slices encoded in advance at each side of the slice being segmented
+	 */
+	public static final int DEFAULT_RADIUS = 2;
+	/**
+	 * Default number of pixels added at each side of the box propagated to the next slice
+	 */
+	public static final int DEFAULT_MARGIN = 5;
+	/**
+	 * Default minimum area, in pixels, that the mask of an object needs to keep being propagated
+	 */
+	public static final double DEFAULT_MIN_AREA = 16;
+
+	private final SAMModel model;
+
+	private int radius = DEFAULT_RADIUS;
+
+	private int margin = DEFAULT_MARGIN;
+
+	private double minArea = DEFAULT_MIN_AREA;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Create the propagation for a model that has already been loaded
+	 * @param model
+	 * 	the model used to segment each slice, it has to support stacks
+	 * @throws IllegalArgumentException if the model cannot encode stacks, see {@link SAMModel#supportsStacks()}
+	 */
+	public VolumeSegmentation(SAMModel model) {
+		if (!model.supportsStacks())
+			throw new IllegalArgumentException(model.getName() + " cannot encode stacks, so it cannot be used to propagate the objects through a z-stack.");
+		this.model = model;
+	}
+
+	/**
+	 * 
+	 * @param radius
+	 * 	number of slices encoded in advance at each side of the slice being segmented
+	 */
+	public void setRadius(int radius) {
+		this.radius = radius;
+	}
+
+	/**
+	 * 
+	 * @param margin
+	 * 	number of pixels added at each side of the bounding box of a mask to create the prompt of the next slice
+	 */
+	public void setMargin(int margin) {
+		this.margin = margin;
+	}
+
+	/**
+	 * 
+	 * @param minArea
+	 * 	minimum area, in pixels, that the mask of an object needs to keep being propagated
+	 */
+	public void setMinArea(double minArea) {
+		this.minArea = minArea;
+	}
+
+	/**
+	 * 
+	 * @param numThreads
+	 * 	number of threads used to write the masks into the label image
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Segment the objects of a z-stack
+	 * @param <T>
+	 * 	ImgLib2 data type of the slices
+	 * @param slices
+	 * 	the slices of the stack, all of them with the same size
+	 * @param startSlice
+	 * 	slice where the bounding boxes are drawn
+	 * @param boxes
+	 * 	one bounding box per object on the starting slice
+	 * @return a label image of size [width, height, number of slices] where the pixels of the object i have the value i + 1
+	 * @throws IOException if any of the files needed to run the Python script is missing 
+	 * @throws RuntimeException if there is any error running the Python process
+	 * @throws InterruptedException if the process in interrupted
+	 */
+	public <T extends RealType<T> & NativeType<T>> ArrayImg<UnsignedShortType, ShortArray> 
+	segment(List<RandomAccessibleInterval<T>> slices, int startSlice, List<Interval> boxes) 
+			throws IOException, RuntimeException, InterruptedException {
+		if (startSlice < 0 || startSlice >= slices.size())
+			throw new IllegalArgumentException("The starting slice " + startSlice + " is not in the stack.");
+		if (boxes.size() > 65535)
+			throw new IllegalArgumentException("At most 65535 objects can be segmented at once.");
+		final long width = slices.get(startSlice).dimension(0);
+		final long height = slices.get(startSlice).dimension(1);
+		if (width * height > Integer.MAX_VALUE / slices.size())
+			throw new IllegalArgumentException("The stack is too big to create a single label image.");
+		final List<List<List<Polygon>>> results = new ArrayList<List<List<Polygon>>>(Collections.nCopies(slices.size(), null));
+		model.setStack(slices, radius);
+		try {
+			model.setActiveSlice(startSlice);
+			results.set(startSlice, model.fetch2dSegmentationBatch(boxes));
+			propagate(results, startSlice, 1, width, height);
+			propagate(results, startSlice, -1, width, height);
+		} finally {
+			model.closeStack();
+		}
+		return rasterize(results, width, height);
+	}
+
+	private void propagate(List<List<List<Polygon>>> results, int startSlice, int direction, long width, long height) 
+			throws IOException, RuntimeException, InterruptedException {
+		List<List<Polygon>> previous = results.get(startSlice);
+		for (int z = startSlice + direction; z >= 0 && z < results.size(); z += direction) {
+			final List<Integer> objects = new ArrayList<Integer>();
+			final List<Interval> prompts = new ArrayList<Interval>();
+			for (int i = 0; i < previous.size(); i ++) {
+				final List<Polygon> pols = previous.get(i);
+				if (pols.size() == 0 || MaskRasterizer.area(pols) < minArea)
+					continue;
+				final int[] box = MaskRasterizer.boundingBox(pols, margin, width, height);
+				objects.add(i);
+				prompts.add(new FinalInterval(new long[] {box[0], box[1]}, new long[] {box[2], box[3]}));
+			}
+			if (objects.size() == 0)
+				return;
+			model.setActiveSlice(z);
+			final List<List<Polygon>> batch = model.fetch2dSegmentationBatch(prompts);
+			final List<List<Polygon>> current = new ArrayList<List<Polygon>>(Collections.nCopies(previous.size(), Collections.emptyList()));
+			for (int i = 0; i < objects.size(); i ++)
+				current.set(objects.get(i), batch.get(i));
+			results.set(z, current);
+			previous = current;
+		}
+	}
+
+	private ArrayImg<UnsignedShortType, ShortArray> rasterize(List<List<List<Polygon>>> results, long width, long height) {
+		final ArrayImg<UnsignedShortType, ShortArray> labels = ArrayImgs.unsignedShorts(width, height, results.size());
+		final short[] data = labels.update(null).getCurrentStorageArray();
+		final int planeSize = (int) (width * height);
+		final List<Integer> zs = new ArrayList<Integer>();
+		for (int z = 0; z < results.size(); z ++)
+			if (results.get(z) != null) zs.add(z);
+		Parallelization.runWithNumThreads(numThreads, () -> {
+			Parallelization.getTaskExecutor().forEach(zs, z -> {
+				final List<List<Polygon>> objects = results.get(z);
+				for (int i = 0; i < objects.size(); i ++)
+					MaskRasterizer.fill(objects.get(i), (short) (i + 1), data, z * planeSize, (int) width, (int) height);
+			});
+		});
+		return labels;
+	}
+}
@@ -0,0 +1,297 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.server;
+
+import java.awt.Polygon;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Binary protocol spoken between the {@link SegmentationServer} and the {@link RemoteSAMModel}s over a loopback socket.
+ * <p>
+ * Every request starts with an opcode byte followed by its arguments, and every response starts with a status byte,
+ * {@link #OK} followed by the result or {@link #ERROR} followed by the message of the error. Images are sent as
+ * their data type, dimensions and pixels in flat order (the first dimension the fastest), and polygons as their
+ * number of vertices followed by the x and the y coordinates.
+ *
+ * @author Carlos Garcia
+ */
+final class Protocol {
+
+	/**
+	 * Open a session: model name and image, returns the session id
+	 */
+	static final byte OPEN = 1;
+	/**
+	 * Segment with a bounding box: session, x0, y0, x1, y1
+	 */
+	static final byte BOX = 2;
+	/**
+	 * Segment with points: session, positive points and negative points
+	 */
+	static final byte POINTS = 3;
+	/**
+	 * Segment several objects: session, boxes and optionally one point per box
+	 */
+	static final byte BATCH = 4;
+	/**
+	 * Segment everything: session
+	 */
+	static final byte AUTOMATIC = 5;
+	/**
+	 * Segment from a mask: session and mask image
+	 */
+	static final byte MASK = 6;
+	/**
+	 * Close a session: session
+	 */
+	static final byte CLOSE = 7;
+
+	static final byte OK = 0;
+
+	static final byte ERROR = 1;
+
+	private static final byte UINT8 = 0;
+	private static final byte UINT16 = 1;
+	private static final byte FLOAT32 = 2;
+
+	private static final int CHUNK = 1 << 20;
+
+	private Protocol() {
+	}
+
+	/**
+	 * Send an image, 8 and 16 bit unsigned images keep their type and any other type is sent as float32
+	 * @param out
+	 * 	the stream
+	 * @param img
+	 * 	the image
+	 * @throws IOException if the image cannot be sent
+	 */
+	static void writeImage(DataOutputStream out, RandomAccessibleInterval<?> img) throws IOException {
+		Object type = Util.getTypeFromInterval(img);
+		if (!(type instanceof RealType))
+			throw new IllegalArgumentException("Only images of real numbers can be segmented.");
+		byte dtype = type instanceof UnsignedByteType ? UINT8 : (type instanceof UnsignedShortType ? UINT16 : FLOAT32);
+		int bytesPerPixel = dtype == UINT8 ? 1 : (dtype == UINT16 ? 2 : 4);
+		long n = 1;
+		out.writeByte(dtype);
+		out.writeInt(img.numDimensions());
+		for (int d = 0; d < img.numDimensions(); d ++) {
+			out.writeLong(img.dimension(d));
+			n *= img.dimension(d);
+		}
+		if (n > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The image is too big to be sent to the server.");
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK - CHUNK % 4);
+		Cursor<? extends RealType<?>> cursor = Views.flatIterable(castToReal(img)).cursor();
+		while (cursor.hasNext()) {
+			RealType<?> px = cursor.next();
+			if (dtype == UINT8)
+				buffer.put((byte) px.getRealDouble());
+			else if (dtype == UINT16)
+				buffer.putShort((short) px.getRealDouble());
+			else
+				buffer.putFloat(px.getRealFloat());
+			if (buffer.remaining() < bytesPerPixel) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		}
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static RandomAccessibleInterval<? extends RealType<?>> castToReal(RandomAccessibleInterval<?> img) {
+		return (RandomAccessibleInterval<? extends RealType<?>>) img;
+	}
+
+	/**
+	 * Image received together with the digest of its content, used to find the sessions that share an image
+	 */
+	static class ReceivedImage {
+		final RandomAccessibleInterval<?> image;
+		final String digest;
+		final long numBytes;
+
+		private ReceivedImage(RandomAccessibleInterval<?> image, String digest, long numBytes) {
+			this.image = image;
+			this.digest = digest;
+			this.numBytes = numBytes;
+		}
+	}
+
+	/**
+	 * Receive an image sent with {@link #writeImage(DataOutputStream, RandomAccessibleInterval)}
+	 * @param in
+	 * 	the stream
+	 * @return the image, backed by an array
+	 * @throws IOException if the image cannot be received
+	 */
+	static ReceivedImage readImage(DataInputStream in) throws IOException {
+		byte dtype = in.readByte();
+		int nDims = in.readInt();
+		if (nDims < 1 || nDims > 5)
+			throw new IOException("Wrong number of dimensions: " + nDims);
+		long[] dims = new long[nDims];
+		long n = 1;
+		try {
+			for (int d = 0; d < nDims; d ++) {
+				dims[d] = in.readLong();
+				if (dims[d] < 0)
+					throw new IOException("Wrong image header.");
+				n = Math.multiplyExact(n, dims[d]);
+			}
+		} catch (ArithmeticException ex) {
+			throw new IOException("Wrong image header, the image is too big.");
+		}
+		if (n > Integer.MAX_VALUE || dtype < UINT8 || dtype > FLOAT32)
+			throw new IOException("Wrong image header.");
+		MessageDigest digest = newDigest();
+		ByteBuffer header = ByteBuffer.allocate(1 + 8 * nDims).put(dtype);
+		for (long d : dims)
+			header.putLong(d);
+		digest.update(header.array());
+		int size = (int) n;
+		int bytesPerPixel = dtype == UINT8 ? 1 : (dtype == UINT16 ? 2 : 4);
+		byte[] chunk = new byte[CHUNK - CHUNK % 4];
+		Object data = dtype == UINT8 ? new byte[size] : (dtype == UINT16 ? new short[size] : new float[size]);
+		for (int pos = 0; pos < size;) {
+			int count = Math.min(size - pos, chunk.length / bytesPerPixel);
+			in.readFully(chunk, 0, count * bytesPerPixel);
+			digest.update(chunk, 0, count * bytesPerPixel);
+			ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count * bytesPerPixel);
+			if (dtype == UINT8)
+				buffer.get((byte[]) data, pos, count);
+			else if (dtype == UINT16)
+				buffer.asShortBuffer().get((short[]) data, pos, count);
+			else
+				buffer.asFloatBuffer().get((float[]) data, pos, count);
+			pos += count;
+		}
+		RandomAccessibleInterval<?> img;
+		if (dtype == UINT8)
+			img = ArrayImgs.unsignedBytes((byte[]) data, dims);
+		else if (dtype == UINT16)
+			img = ArrayImgs.unsignedShorts((short[]) data, dims);
+		else
+			img = ArrayImgs.floats((float[]) data, dims);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return new ReceivedImage(img, hex.toString(), n * bytesPerPixel);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Send a list of points as their number followed by the coordinates
+	 * @param out
+	 * 	the stream
+	 * @param points
+	 * 	points as [x, y]
+	 * @throws IOException if the points cannot be sent
+	 */
+	static void writePoints(DataOutputStream out, List<int[]> points) throws IOException {
+		out.writeInt(points.size());
+		for (int[] p : points) {
+			out.writeInt(p[0]);
+			out.writeInt(p[1]);
+		}
+	}
+
+	/**
+	 * Receive a list of points sent with {@link #writePoints(DataOutputStream, List)}
+	 * @param in
+	 * 	the stream
+	 * @return points as [x, y]
+	 * @throws IOException if the points cannot be received
+	 */
+	static List<int[]> readPoints(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<int[]> points = new ArrayList<int[]>(Math.max(0, Math.min(n, 1024)));
+		for (int i = 0; i < n; i ++)
+			points.add(new int[] {in.readInt(), in.readInt()});
+		return points;
+	}
+
+	/**
+	 * Send a list of polygons
+	 * @param out
+	 * 	the stream
+	 * @param polygons
+	 * 	the polygons
+	 * @throws IOException if the polygons cannot be sent
+	 */
+	static void writePolygons(DataOutputStream out, List<Polygon> polygons) throws IOException {
+		out.writeInt(polygons.size());
+		for (Polygon pol : polygons) {
+			out.writeInt(pol.npoints);
+			for (int i = 0; i < pol.npoints; i ++)
+				out.writeInt(pol.xpoints[i]);
+			for (int i = 0; i < pol.npoints; i ++)
+				out.writeInt(pol.ypoints[i]);
+		}
+	}
+
+	/**
+	 * Receive a list of polygons sent with {@link #writePolygons(DataOutputStream, List)}
+	 * @param in
+	 * 	the stream
+	 * @return the polygons
+	 * @throws IOException if the polygons cannot be received
+	 */
+	static List<Polygon> readPolygons(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<Polygon> polygons = new ArrayList<Polygon>(Math.max(0, Math.min(n, 1024)));
+		for (int p = 0; p < n; p ++) {
+			int nPoints = in.readInt();
+			int[] x = new int[nPoints];
+			int[] y = new int[nPoints];
+			for (int i = 0; i < nPoints; i ++)
+				x[i] = in.readInt();
+			for (int i = 0; i < nPoints; i ++)
+				y[i] = in.readInt();
+			polygons.add(new Polygon(x, y, nPoints));
+		}
+		return polygons;
+	}
+}
@@ -0,0 +1,405 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.server;
+
+import java.awt.Polygon;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import ai.nets.samj.communication.model.SAMModel;
+import ai.nets.samj.communication.model.SAMModels;
+import ai.nets.samj.ui.SAMJLogger;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Instance of a SAM model that runs in a {@link SegmentationServer} of the same machine. The image is sent to the server
+ * once, when the model is instantiated, and then only the prompts and the resulting polygons travel through the socket.
+ * The results are not streamed, the consumers of partial results receive all the polygons at once.
+ *
+ * @author Carlos Garcia
+ */
+public class RemoteSAMModel implements SAMModel {
+
+	private static final int CONNECT_TIMEOUT_MS = 500;
+
+	private final String modelName;
+
+	private final int port;
+
+	private final String axes;
+
+	private SAMJLogger log;
+
+	private Boolean installed = false;
+
+	private Socket socket;
+
+	private DataInputStream in;
+
+	private DataOutputStream out;
+
+	private long session;
+
+	/**
+	 * Create the entry of a model served by the server on the default port
+	 * @param modelName
+	 * 	name of the model in the server, one of the names of {@link SAMModels}
+	 */
+	public RemoteSAMModel(String modelName) {
+		this(modelName, SegmentationServer.DEFAULT_PORT);
+	}
+
+	/**
+	 * Create the entry of a model served by the server
+	 * @param modelName
+	 * 	name of the model in the server, one of the names of {@link SAMModels}
+	 * @param port
+	 * 	port of the loopback interface where the server listens
+	 */
+	public RemoteSAMModel(String modelName, int port) {
+		String modelAxes = null;
+		for (SAMModel model : new SAMModels())
+			if (model.getName().equals(modelName)) modelAxes = model.getInputImageAxes();
+		if (modelAxes == null)
+			throw new IllegalArgumentException("Unknown model " + modelName);
+		this.modelName = modelName;
+		this.port = port;
+		this.axes = modelAxes;
+		this.installed = isServerRunning(port);
+	}
+
+	/**
+	 * Create an instance of the model that opens a session in the server with an image
+	 * @param modelName
+	 * 	name of the model in the server
+	 * @param port
+	 * 	port of the loopback interface where the server listens
+	 * @param image
+	 * 	the image to be encoded
+	 * @param log
+	 * 	a logging functional interface to be able to keep track of what the model is doing
+	 * @throws IOException if the server cannot be reached
+	 * @throws RuntimeException if the server could not encode the image
+	 */
+	public RemoteSAMModel(String modelName, int port, final RandomAccessibleInterval<?> image, final SAMJLogger log) 
+			throws IOException, RuntimeException {
+		this(modelName, port);
+		this.log = log;
+		this.socket = new Socket();
+		socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS);
+		socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		try {
+			out.writeByte(Protocol.OPEN);
+			out.writeUTF(modelName);
+			Protocol.writeImage(out, image);
+			out.flush();
+			checkStatus();
+			this.session = in.readLong();
+		} catch (IOException | RuntimeException ex) {
+			socket.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * 
+	 * @param port
+	 * 	port of the loopback interface
+	 * @return whether there is a server listening on the port
+	 */
+	public static boolean isServerRunning(int port) {
+		try (Socket probe = new Socket()) {
+			probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS);
+			return true;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private void checkStatus() throws IOException {
+		if (in.readByte() != Protocol.OK)
+			throw new RuntimeException(in.readUTF());
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getName() {
+		return modelName + " (server)";
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDescription() {
+		return modelName + " running in the SAMJ server of this machine on port " + port 
+				+ ", shared with the other applications connected to it.";
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isInstalled() {
+		return installed;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setInstalled(boolean installed) {
+		this.installed = installed;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getInputImageAxes() {
+		return axes;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public SAMModel instantiate(final RandomAccessibleInterval<?> image, final SAMJLogger useThisLoggerForIt) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			return new RemoteSAMModel(modelName, port, image, useThisLoggerForIt);
+		} catch (IOException | RuntimeException e) {
+			useThisLoggerForIt.error(getName() + " experienced an error: " + e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentation(listOfPoints2D, listOfNegPoints2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Polygon> fetch2dSegmentation(Interval boundingBox2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentation(boundingBox2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentationFromMask(rai, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized List<Polygon> fetch2dSegmentation(List<Localizable> listOfPoints2D, List<Localizable> listOfNegPoints2D,
+			Consumer<List<Polygon>> partialResults) throws IOException, RuntimeException, InterruptedException {
+		try {
+			out.writeByte(Protocol.POINTS);
+			out.writeLong(session);
+			Protocol.writePoints(out, toCoords(listOfPoints2D));
+			Protocol.writePoints(out, toCoords(listOfNegPoints2D));
+			return receivePolygons(partialResults);
+		} catch (IOException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized List<Polygon> fetch2dSegmentation(Interval boundingBox2D, Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
+		try {
+			out.writeByte(Protocol.BOX);
+			out.writeLong(session);
+			writeBox(boundingBox2D);
+			return receivePolygons(partialResults);
+		} catch (IOException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized <T extends RealType<T> & NativeType<T>> List<Polygon> fetch2dSegmentationFromMask(RandomAccessibleInterval<T> rai,
+			Consumer<List<Polygon>> partialResults) throws IOException, RuntimeException, InterruptedException {
+		try {
+			out.writeByte(Protocol.MASK);
+			out.writeLong(session);
+			Protocol.writeImage(out, rai);
+			return receivePolygons(partialResults);
+		} catch (IOException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean supportsAutomaticSegmentation() {
+		return true;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized List<Polygon> fetch2dSegmentationAutomatic(Consumer<List<Polygon>> partialResults) 
+			throws IOException, RuntimeException, InterruptedException {
+		try {
+			out.writeByte(Protocol.AUTOMATIC);
+			out.writeLong(session);
+			return receivePolygons(partialResults);
+		} catch (IOException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		return fetch2dSegmentationBatch(boundingBoxes2D, null);
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized List<List<Polygon>> fetch2dSegmentationBatch(List<Interval> boundingBoxes2D, List<Localizable> points2D) 
+			throws IOException, InterruptedException, RuntimeException {
+		try {
+			out.writeByte(Protocol.BATCH);
+			out.writeLong(session);
+			out.writeInt(boundingBoxes2D.size());
+			for (Interval box : boundingBoxes2D)
+				writeBox(box);
+			out.writeBoolean(points2D != null);
+			if (points2D != null)
+				Protocol.writePoints(out, toCoords(points2D));
+			out.flush();
+			checkStatus();
+			int n = in.readInt();
+			List<List<Polygon>> results = new ArrayList<List<Polygon>>();
+			for (int i = 0; i < n; i ++)
+				results.add(Protocol.readPolygons(in));
+			return results;
+		} catch (IOException | RuntimeException e) {
+			log.error(getName()+", providing empty result because of some trouble: "+e.getMessage());
+			throw e;
+		}
+	}
+
+	private void writeBox(Interval box) throws IOException {
+		out.writeInt((int) box.min(0));
+		out.writeInt((int) box.min(1));
+		out.writeInt((int) box.max(0));
+		out.writeInt((int) box.max(1));
+	}
+
+	private static List<int[]> toCoords(List<Localizable> points) {
+		List<int[]> coords = new ArrayList<int[]>(points.size());
+		for (Localizable point : points)
+			coords.add(new int[] {point.getIntPosition(0), point.getIntPosition(1)});
+		return coords;
+	}
+
+	private List<Polygon> receivePolygons(Consumer<List<Polygon>> partialResults) throws IOException {
+		out.flush();
+		checkStatus();
+		List<Polygon> polygons = Protocol.readPolygons(in);
+		if (partialResults != null)
+			partialResults.accept(polygons);
+		return polygons;
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public void notifyUiHasBeenClosed() {
+		if (log != null)
+			log.info(getName()+": OKAY, I'm closing myself...");
+		closeProcess();
+	}
+
+	@Override
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized void closeProcess() {
+		if (socket == null)
+			return;
+		try {
+			out.writeByte(Protocol.CLOSE);
+			out.writeLong(session);
+			out.flush();
+			checkStatus();
+		} catch (IOException | RuntimeException ex) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+			socket = null;
+		}
+	}
+}
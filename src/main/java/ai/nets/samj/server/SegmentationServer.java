@@ -0,0 +1,620 @@
+/*-
+ * #%L
+ * Library to call models of the family of SAM (Segment Anything Model) from Java
+ * %%
+ * Copyright (C) 2024 SAMJ developers.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package ai.nets.samj.server;
+
+import java.awt.Polygon;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ai.nets.samj.communication.model.PromptBatcher;
+import ai.nets.samj.communication.model.SAMModel;
+import ai.nets.samj.communication.model.SAMModels;
+import ai.nets.samj.server.Protocol.ReceivedImage;
+import ai.nets.samj.ui.SAMJLogger;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Cast;
+
+/**
+ * Server that lets several applications of the same machine share a pool of loaded SAM models, so the number of
+ * Python processes and copies of the weights does not grow with the number of users.
+ * <p>
+ * The clients, usually {@link RemoteSAMModel}s, connect through a socket bound to the loopback interface and open
+ * a session per image. Sessions on identical images share a single copy of the image. Each model is loaded in at most
+ * {@code instancesPerModel} Python processes, created on demand. A request is served by an instance that already has
+ * the image of its session encoded whenever possible; otherwise the least recently used idle instance encodes it,
+ * and if all the instances are busy the request waits for one of them.
+ * <p>
+ * The bounding boxes that several clients send at the same time for the same image are decoded together
+ * by a {@link PromptBatcher}.
+ * <p>
+ * Usage: {@code SegmentationServer [--port N] [--instances N] [--batch-window-us N] [--batch-size N]}, by default on
+ * port {@value #DEFAULT_PORT} with one instance per model and batches of up to 16 boxes collected during 3 ms.
+ *
+ * @author Carlos Garcia
+ */
+public class SegmentationServer implements Closeable {
+
+	/**
+	 * Default port of the server
+	 */
+	public static final int DEFAULT_PORT = 47474;
+
+	private final int port;
+
+	private final int instancesPerModel;
+
+	private final SAMJLogger log;
+
+	private final Map<String, SAMModel> modelTypes = new HashMap<String, SAMModel>();
+
+	private final Map<String, ModelPool> pools = new HashMap<String, ModelPool>();
+	/**
+	 * Images of the open sessions, by digest of their content
+	 */
+	private final Map<String, SharedImage> images = new HashMap<String, SharedImage>();
+
+	private final Map<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	/**
+	 * Batchers of the bounding boxes sent to each model and image, by model name and image digest
+	 */
+	private final Map<String, PromptBatcher> batchers = new HashMap<String, PromptBatcher>();
+
+	private long batchWindowMicros = PromptBatcher.DEFAULT_WINDOW_MICROS;
+
+	private int maxBatch = PromptBatcher.DEFAULT_MAX_BATCH;
+
+	private final AtomicLong nextSession = new AtomicLong(1);
+
+	private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "samj-server-connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private ServerSocket serverSocket;
+
+	private final CountDownLatch closed = new CountDownLatch(1);
+
+	/**
+	 * Image shared by all the sessions opened on it
+	 */
+	private static class SharedImage {
+		private final String digest;
+		private final RandomAccessibleInterval<?> image;
+		private final long numBytes;
+		private int users = 0;
+
+		private SharedImage(ReceivedImage received) {
+			this.digest = received.digest;
+			this.image = received.image;
+			this.numBytes = received.numBytes;
+		}
+	}
+
+	private static class Session {
+		private final long id;
+		private final String model;
+		private final SharedImage image;
+
+		private Session(long id, String model, SharedImage image) {
+			this.id = id;
+			this.model = model;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Python process with a model loaded
+	 */
+	private static class Instance {
+		private SAMModel model;
+		/**
+		 * Digest of the image encoded, kept after the sessions of the image are closed in case it is opened again
+		 */
+		private String resident;
+		private boolean busy = true;
+		private long lastUse;
+	}
+
+	/**
+	 * Instances of one of the models
+	 */
+	private static class ModelPool {
+		private final List<Instance> instances = new ArrayList<Instance>();
+	}
+
+	/**
+	 * Call to a model done while it is reserved for a session
+	 */
+	private interface ModelCall<R> {
+		R call(SAMModel model) throws IOException, RuntimeException, InterruptedException;
+	}
+
+	/**
+	 * Create a server, it does not accept connections until {@link #start()} is called
+	 * @param port
+	 * 	port of the loopback interface where the server listens, 0 to use any free port
+	 * @param instancesPerModel
+	 * 	maximum number of Python processes loaded with each of the models
+	 * @param log
+	 * 	where the activity of the server is reported
+	 */
+	public SegmentationServer(int port, int instancesPerModel, SAMJLogger log) {
+		if (instancesPerModel < 1)
+			throw new IllegalArgumentException("At least one instance per model is needed.");
+		this.port = port;
+		this.instancesPerModel = instancesPerModel;
+		this.log = log;
+		for (SAMModel model : new SAMModels())
+			modelTypes.put(model.getName(), model);
+	}
+
+	/**
+	 * Configure the dynamic batching of the bounding boxes that different clients send at the same time for the same image.
+	 * Only affects the images opened afterwards
+	 * @param windowMicros
+	 * 	time that the first box of a batch waits for others, in microseconds, 0 to decode every box on its own
+	 * @param maxBatch
+	 * 	maximum number of boxes of a batch
+	 */
+	public synchronized void setBatching(long windowMicros, int maxBatch) {
+		if (windowMicros < 0 || maxBatch < 1)
+			throw new IllegalArgumentException("The window cannot be negative and the batches need at least one prompt.");
+		this.batchWindowMicros = windowMicros;
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Start accepting connections
+	 * @throws IOException if the port cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (serverSocket != null)
+			return;
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		final ServerSocket listening = serverSocket;
+		Thread acceptor = new Thread(() -> {
+			while (!listening.isClosed()) {
+				try {
+					Socket socket = listening.accept();
+					connections.submit(() -> serve(socket));
+				} catch (IOException ex) {
+					if (!listening.isClosed())
+						log.error("SAMJ server could not accept a connection: " + ex.getMessage());
+				}
+			}
+		}, "samj-server-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("SAMJ server listening on " + listening.getInetAddress().getHostAddress() + ":" + listening.getLocalPort());
+	}
+
+	/**
+	 * 
+	 * @return the port where the server listens, useful when it was created with port 0
+	 */
+	public synchronized int getPort() {
+		return serverSocket == null ? port : serverSocket.getLocalPort();
+	}
+
+	/**
+	 * 
+	 * @return number of images kept by the server, each of them shared by all its sessions
+	 */
+	public synchronized int getNumImages() {
+		return images.size();
+	}
+
+	/**
+	 * 
+	 * @return number of open sessions
+	 */
+	public int getNumSessions() {
+		return sessions.size();
+	}
+
+	/**
+	 * 
+	 * @return number of Python processes running
+	 */
+	public int getNumInstances() {
+		int n = 0;
+		synchronized (pools) {
+			for (ModelPool pool : pools.values())
+				synchronized (pool) { n += pool.instances.size(); }
+		}
+		return n;
+	}
+
+	/**
+	 * Stop accepting connections and close all the Python processes
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			try {
+				if (serverSocket != null)
+					serverSocket.close();
+			} catch (IOException ex) {
+			}
+		}
+		connections.shutdownNow();
+		synchronized (this) {
+			for (PromptBatcher batcher : batchers.values())
+				batcher.close();
+			batchers.clear();
+		}
+		closed.countDown();
+		synchronized (pools) {
+			for (ModelPool pool : pools.values()) {
+				synchronized (pool) {
+					for (Instance instance : pool.instances)
+						if (instance.model != null) instance.model.closeProcess();
+					pool.instances.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until the server is closed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void awaitClose() throws InterruptedException {
+		closed.await();
+	}
+
+	private void serve(Socket socket) {
+		Set<Long> opened = new HashSet<Long>();
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			while (true) {
+				byte opcode;
+				try {
+					opcode = in.readByte();
+				} catch (EOFException ex) {
+					break;
+				}
+				ByteArrayOutputStream response = new ByteArrayOutputStream();
+				DataOutputStream res = new DataOutputStream(response);
+				try {
+					handle(opcode, in, res, opened);
+				} catch (RuntimeException | InterruptedException ex) {
+					response.reset();
+					res.writeByte(Protocol.ERROR);
+					res.writeUTF(String.valueOf(ex.getMessage()));
+					if (ex instanceof InterruptedException) {
+						res.flush();
+						response.writeTo(out);
+						out.flush();
+						break;
+					}
+				}
+				res.flush();
+				response.writeTo(out);
+				out.flush();
+			}
+		} catch (SocketException | EOFException ex) {
+			// the client went away
+		} catch (IOException ex) {
+			log.error("SAMJ server connection failed: " + ex.getMessage());
+		} finally {
+			for (long id : opened)
+				closeSession(id);
+		}
+	}
+
+	/**
+	 * Read the arguments of a request, serve it and write the response. Errors of the models are reported
+	 * as {@link RuntimeException}s, so an {@link IOException} always means that the connection failed
+	 */
+	private void handle(byte opcode, DataInputStream in, DataOutputStream res, Set<Long> opened) 
+			throws IOException, InterruptedException {
+		switch (opcode) {
+		case Protocol.OPEN: {
+			String model = in.readUTF();
+			ReceivedImage received = Protocol.readImage(in);
+			if (!modelTypes.containsKey(model))
+				throw new IllegalArgumentException("Unknown model " + model + ", the available models are: " + modelTypes.keySet());
+			Session session = openSession(model, received);
+			opened.add(session.id);
+			try {
+				withModel(session, m -> null);
+			} catch (RuntimeException | InterruptedException ex) {
+				opened.remove(session.id);
+				closeSession(session.id);
+				throw ex;
+			}
+			res.writeByte(Protocol.OK);
+			res.writeLong(session.id);
+			break;
+		}
+		case Protocol.BOX: {
+			Session session = session(in.readLong());
+			long[] box = new long[] {in.readInt(), in.readInt(), in.readInt(), in.readInt()};
+			Interval interval = new FinalInterval(new long[] {box[0], box[1]}, new long[] {box[2], box[3]});
+			PromptBatcher batcher = batcher(session);
+			if (batcher == null)
+				writeResult(res, withModel(session, m -> m.fetch2dSegmentation(interval)));
+			else
+				writeResult(res, batcher.submit(interval));
+			break;
+		}
+		case Protocol.POINTS: {
+			Session session = session(in.readLong());
+			List<Localizable> points = toLocalizables(Protocol.readPoints(in));
+			List<Localizable> negPoints = toLocalizables(Protocol.readPoints(in));
+			writeResult(res, withModel(session, m -> m.fetch2dSegmentation(points, negPoints)));
+			break;
+		}
+		case Protocol.BATCH: {
+			Session session = session(in.readLong());
+			int n = in.readInt();
+			List<Interval> boxes = new ArrayList<Interval>();
+			for (int i = 0; i < n; i ++) {
+				long x0 = in.readInt(), y0 = in.readInt(), x1 = in.readInt(), y1 = in.readInt();
+				boxes.add(new FinalInterval(new long[] {x0, y0}, new long[] {x1, y1}));
+			}
+			List<Localizable> points = in.readBoolean() ? toLocalizables(Protocol.readPoints(in)) : null;
+			List<List<Polygon>> results = withModel(session, m -> m.fetch2dSegmentationBatch(boxes, points));
+			res.writeByte(Protocol.OK);
+			res.writeInt(results.size());
+			for (List<Polygon> polygons : results)
+				Protocol.writePolygons(res, polygons);
+			break;
+		}
+		case Protocol.AUTOMATIC: {
+			Session session = session(in.readLong());
+			writeResult(res, withModel(session, m -> m.fetch2dSegmentationAutomatic(null)));
+			break;
+		}
+		case Protocol.MASK: {
+			Session session = session(in.readLong());
+			RandomAccessibleInterval<?> mask = Protocol.readImage(in).image;
+			writeResult(res, withModel(session, m -> m.fetch2dSegmentationFromMask(Cast.unchecked(mask))));
+			break;
+		}
+		case Protocol.CLOSE: {
+			long id = in.readLong();
+			if (opened.remove(id))
+				closeSession(id);
+			res.writeByte(Protocol.OK);
+			break;
+		}
+		default:
+			throw new IOException("Unknown request " + opcode);
+		}
+	}
+
+	private static void writeResult(DataOutputStream res, List<Polygon> polygons) throws IOException {
+		res.writeByte(Protocol.OK);
+		Protocol.writePolygons(res, polygons);
+	}
+
+	private static List<Localizable> toLocalizables(List<int[]> coords) {
+		List<Localizable> points = new ArrayList<Localizable>();
+		for (int[] c : coords)
+			points.add(new Point(c[0], c[1]));
+		return points;
+	}
+
+	private Session session(long id) {
+		Session session = sessions.get(id);
+		if (session == null)
+			throw new IllegalArgumentException("The session " + id + " does not exist or has been closed.");
+		return session;
+	}
+
+	private Session openSession(String model, ReceivedImage received) {
+		SharedImage image;
+		synchronized (this) {
+			image = images.computeIfAbsent(received.digest, k -> new SharedImage(received));
+			image.users ++;
+		}
+		Session session = new Session(nextSession.getAndIncrement(), model, image);
+		sessions.put(session.id, session);
+		log.info("SAMJ server opened session " + session.id + " with " + model + " (" + getNumImages() + " images, " 
+				+ sessions.size() + " sessions, " + (image.numBytes >> 20) + " MB image)");
+		return session;
+	}
+
+	private void closeSession(long id) {
+		Session session = sessions.remove(id);
+		if (session == null)
+			return;
+		synchronized (this) {
+			if (-- session.image.users > 0)
+				return;
+			images.remove(session.image.digest);
+			for (String model : modelTypes.keySet()) {
+				PromptBatcher batcher = batchers.remove(model + "/" + session.image.digest);
+				if (batcher != null)
+					batcher.close();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the batcher shared by all the sessions with the model and the image of the session, or null if batching is disabled
+	 */
+	private synchronized PromptBatcher batcher(Session session) {
+		if (batchWindowMicros == 0 || maxBatch == 1)
+			return null;
+		return batchers.computeIfAbsent(session.model + "/" + session.image.digest, k -> new PromptBatcher(
+				boxes -> withModel(session, m -> m.fetch2dSegmentationBatch(boxes)), batchWindowMicros, maxBatch));
+	}
+
+	/**
+	 * Run a call on an instance of the model of the session that has the image of the session encoded
+	 */
+	private <R> R withModel(Session session, ModelCall<R> call) throws IOException, RuntimeException, InterruptedException {
+		ModelPool pool;
+		synchronized (pools) {
+			pool = pools.computeIfAbsent(session.model, k -> new ModelPool());
+		}
+		Instance instance = acquire(pool, session);
+		try {
+			try {
+				return call.call(instance.model);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex.getMessage(), ex);
+			}
+		} finally {
+			synchronized (pool) {
+				instance.busy = false;
+				instance.lastUse = System.nanoTime();
+				pool.notifyAll();
+			}
+		}
+	}
+
+	private Instance acquire(ModelPool pool, Session session) throws InterruptedException {
+		Instance instance = null;
+		boolean create = false;
+		synchronized (pool) {
+			while (instance == null) {
+				Instance lru = null;
+				for (Instance candidate : pool.instances) {
+					if (candidate.busy)
+						continue;
+					if (session.image.digest.equals(candidate.resident)) {
+						instance = candidate;
+						break;
+					}
+					if (lru == null || candidate.lastUse < lru.lastUse)
+						lru = candidate;
+				}
+				if (instance != null)
+					break;
+				if (pool.instances.size() < instancesPerModel) {
+					instance = new Instance();
+					pool.instances.add(instance);
+					create = true;
+				} else if (lru != null) {
+					instance = lru;
+				} else {
+					pool.wait();
+				}
+			}
+			instance.busy = true;
+		}
+		try {
+			if (create) {
+				instance.model = modelTypes.get(session.model).instantiate(session.image.image, log);
+				instance.resident = session.image.digest;
+			} else if (!session.image.digest.equals(instance.resident)) {
+				instance.resident = null;
+				if (instance.model.supportsImageUpdate()) {
+					instance.model.updateImage(session.image.image);
+				} else {
+					instance.model.closeProcess();
+					instance.model = modelTypes.get(session.model).instantiate(session.image.image, log);
+				}
+				instance.resident = session.image.digest;
+			}
+			return instance;
+		} catch (IOException | RuntimeException | InterruptedException ex) {
+			// an instance that failed to change its image is in an unknown state, it is discarded
+			final boolean discard = create || instance.resident == null;
+			if (!create && instance.resident == null)
+				instance.model.closeProcess();
+			synchronized (pool) {
+				if (discard)
+					pool.instances.remove(instance);
+				instance.busy = false;
+				pool.notifyAll();
+			}
+			if (ex instanceof InterruptedException)
+				throw (InterruptedException) ex;
+			throw new RuntimeException("Could not encode the image with " + session.model + ": " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Run the server until the process is killed
+	 * @param args
+	 * 	optionally --port N, --instances N, --batch-window-us N and --batch-size N
+	 * @throws IOException if the port cannot be opened
+	 * @throws InterruptedException if the server is interrupted
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int port = DEFAULT_PORT;
+		int instances = 1;
+		long window = PromptBatcher.DEFAULT_WINDOW_MICROS;
+		int batch = PromptBatcher.DEFAULT_MAX_BATCH;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("--port"))
+				port = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--instances"))
+				instances = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--batch-window-us"))
+				window = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("--batch-size"))
+				batch = Integer.parseInt(args[i + 1]);
+			else
+				throw new IllegalArgumentException("Unknown argument " + args[i]);
+		}
+		SegmentationServer server = new SegmentationServer(port, instances, new SAMJLogger() {
+			@Override
+			public void info(String text) {
+				System.out.println(text);
+			}
+			@Override
+			public void warn(String text) {
+				System.err.println("[WARNING] " + text);
+			}
+			@Override
+			public void error(String text) {
+				System.err.println("[ERROR] " + text);
+			}
+		});
+		server.setBatching(window, batch);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		server.start();
+		server.awaitClose();
+	}
+}
@@ -74,6 +74,46 @@ public interface PromptsResultsDisplay {
 	 */
 	List<Polygon> getPolygonsFromRoiManager();
 	
+	/**
+	 * Whether the consumer software can display polygons that were produced without an interactive prompt,
+	 * that is, whether {@link #addPolygon(Polygon)} or {@link #addPolygons(List)} are implemented. 
+	 * By default it is found out by checking if any of them is overridden, so existing implementations
+	 * do not need to change
+	 * @return true if the polygons of the automatic segmentation can be added to the consumer software
+	 */
+	default boolean canAddPolygons() {
+		try {
+			return getClass().getMethod("addPolygon", Polygon.class).getDeclaringClass() != PromptsResultsDisplay.class
+					|| getClass().getMethod("addPolygons", List.class).getDeclaringClass() != PromptsResultsDisplay.class;
+		} catch (NoSuchMethodException | SecurityException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Add to the consumer software a polygon that has been produced by a SAMJ model without an interactive
+	 * prompt, for example by the automatic segmentation. It is only called if {@link #canAddPolygons()} is true
+	 * @param polygon
+	 * 	the new polygon produced by the SAMJ model
+	 * @throws UnsupportedOperationException if the consumer software cannot display polygons that were not prompted
+	 */
+	default void addPolygon(Polygon polygon) {
+		throw new UnsupportedOperationException("Polygons produced without prompts cannot be displayed.");
+	}
+	
+	/**
+	 * Add to the consumer software polygons that have been produced by a SAMJ model without an interactive
+	 * prompt, for example by the automatic segmentation. This method might be called several times for the
+	 * same request, every time that a new group of polygons is available. By default each of the polygons
+	 * is added with {@link #addPolygon(Polygon)}
+	 * @param polygons
+	 * 	the new polygons produced by the SAMJ model
+	 */
+	default void addPolygons(List<Polygon> polygons) {
+		for (Polygon polygon : polygons)
+			addPolygon(polygon);
+	}
+	
 	/**
 	 * Use a mask as a prompt for SAMJ models
 	 * @param mask